@@ -0,0 +1,97 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.benchmarks;
+
+import com.google.cse.creatine.api.RetrieveAd;
+import com.google.cse.creatine.utils.GoogleCloudStorageUtils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link GoogleCloudStorageUtils#writeToBucket} on AdGroupAd rows against an in-memory
+ * Cloud Storage, in rows per second, and reports the bytes uploaded per row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CloudStorageWriteBenchmark {
+
+  static final int ROWS = 5000;
+
+  @Param({"0", "20"})
+  public int policyTopicEntries;
+
+  private InMemoryStorage storage;
+  private GoogleCloudStorageUtils gcStorage;
+  private List<String> rows;
+
+  /** Reports the bytes uploaded per row next to the throughput. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class UploadedBytes {
+
+    private long bytes;
+    private long rows;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+      rows = 0;
+    }
+
+    /** @return the bytes uploaded per row during the iteration */
+    public double bytesPerRow() {
+      return rows == 0 ? 0 : (double) bytes / rows;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    storage = new InMemoryStorage();
+    gcStorage = new GoogleCloudStorageUtils(storage.getStorage(), null);
+    gcStorage.createBucket(InMemoryStorage.BUCKET_NAME);
+    rows =
+        new RetrieveAd(null).convertToNDJson(SyntheticRows.adGroupAds(ROWS, policyTopicEntries));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public List<String> writeToBucket(UploadedBytes counters) {
+    long before = storage.getBytesWritten();
+    // writeToBucket empties the list it is given
+    List<String> blobs = gcStorage.writeToBucket(new ArrayList<>(rows), "ad_group_ad_(chunk).json");
+    counters.bytes += storage.getBytesWritten() - before;
+    counters.rows += ROWS;
+    return blobs;
+  }
+}
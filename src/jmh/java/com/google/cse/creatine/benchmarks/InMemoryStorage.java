@@ -0,0 +1,91 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.benchmarks;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.RestorableState;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Bucket;
+import com.google.cloud.storage.Storage;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import org.mockito.ArgumentMatchers;
+
+/**
+ * A Cloud Storage fake whose blobs only count the bytes written to them, so that benchmarks measure
+ * the encoding and buffering of the writers rather than the network.
+ */
+final class InMemoryStorage {
+
+  static final String BUCKET_NAME = "benchmark-bucket";
+
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private final Storage storage;
+
+  InMemoryStorage() {
+    Bucket bucket = mock(Bucket.class);
+    when(bucket.getName()).thenReturn(BUCKET_NAME);
+    storage = mock(Storage.class);
+    when(storage.get(anyString(), ArgumentMatchers.<Storage.BucketGetOption>any()))
+        .thenReturn(bucket);
+    when(storage.writer(any(BlobInfo.class))).thenAnswer(invocation -> new CountingChannel());
+  }
+
+  Storage getStorage() {
+    return storage;
+  }
+
+  /** @return the number of bytes written to all the blobs so far */
+  long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  /** A blob upload discarding its content. */
+  private class CountingChannel implements WriteChannel {
+
+    private boolean open = true;
+
+    @Override
+    public int write(ByteBuffer source) {
+      int length = source.remaining();
+      source.position(source.limit());
+      bytesWritten.addAndGet(length);
+      return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+    }
+
+    @Override
+    public void setChunkSize(int chunkSize) {}
+
+    @Override
+    public RestorableState<WriteChannel> capture() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
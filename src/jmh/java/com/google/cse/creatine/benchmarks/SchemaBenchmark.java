@@ -0,0 +1,76 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.benchmarks;
+
+import com.google.ads.googleads.v3.resources.AdGroup;
+import com.google.ads.googleads.v3.resources.AdGroupAd;
+import com.google.ads.googleads.v3.resources.Campaign;
+import com.google.ads.googleads.v3.resources.CustomerClientLink;
+import com.google.cloud.bigquery.Field;
+import com.google.cse.creatine.utils.BigQueryUtils;
+import com.google.protobuf.Descriptors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures {@link BigQueryUtils#createFields} on the descriptor of each entity. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SchemaBenchmark {
+
+  @Param({"AdGroupAd", "AdGroup", "Campaign", "CustomerClientLink"})
+  public String entity;
+
+  private BigQueryUtils bQUtils;
+  private Descriptors.Descriptor descriptor;
+
+  @Setup
+  public void setUp() {
+    // createFields only walks the descriptors, BigQuery is never called
+    bQUtils = new BigQueryUtils(null, null);
+    switch (entity) {
+      case "AdGroupAd":
+        descriptor = AdGroupAd.getDescriptor();
+        break;
+      case "AdGroup":
+        descriptor = AdGroup.getDescriptor();
+        break;
+      case "Campaign":
+        descriptor = Campaign.getDescriptor();
+        break;
+      default:
+        descriptor = CustomerClientLink.getDescriptor();
+        break;
+    }
+  }
+
+  @Benchmark
+  public Field[] createFields() {
+    return bQUtils.createFields(descriptor.getFields());
+  }
+}
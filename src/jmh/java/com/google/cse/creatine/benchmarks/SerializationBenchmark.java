@@ -0,0 +1,120 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.benchmarks;
+
+import com.google.ads.googleads.v3.resources.AdGroup;
+import com.google.ads.googleads.v3.resources.AdGroupAd;
+import com.google.ads.googleads.v3.resources.Campaign;
+import com.google.ads.googleads.v3.resources.CustomerClientLink;
+import com.google.cse.creatine.api.RetrieveAd;
+import com.google.cse.creatine.api.RetrieveAdGroup;
+import com.google.cse.creatine.api.RetrieveCampaign;
+import com.google.cse.creatine.api.RetrieveCustomer;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the conversion of each entity to NDJSON rows, in rows per second. Run with the gc
+ * profiler (the default of the benchmarks profile), gc.alloc.rate.norm gives the bytes allocated
+ * per row. The jsonFormat benchmark is the reflective printer used before, as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+  static final int ROWS = 1000;
+
+  /** The number of policy topic entries of each ad, 0 being a fully approved ad. */
+  @Param({"0", "5", "20"})
+  public int policyTopicEntries;
+
+  private List<AdGroupAd> adGroupAds;
+  private List<AdGroup> adGroups;
+  private List<Campaign> campaigns;
+  private List<CustomerClientLink> customerClientLinks;
+
+  private RetrieveAd retrieveAd;
+  private RetrieveAdGroup retrieveAdGroup;
+  private RetrieveCampaign retrieveCampaign;
+  private RetrieveCustomer retrieveCustomer;
+  private JsonFormat.Printer printer;
+
+  @Setup
+  public void setUp() {
+    adGroupAds = SyntheticRows.adGroupAds(ROWS, policyTopicEntries);
+    adGroups = SyntheticRows.adGroups(ROWS);
+    campaigns = SyntheticRows.campaigns(ROWS);
+    customerClientLinks = SyntheticRows.customerClientLinks(ROWS);
+    // The Google Ads client is only used to call the API, which these benchmarks don't do
+    retrieveAd = new RetrieveAd(null);
+    retrieveAdGroup = new RetrieveAdGroup(null);
+    retrieveCampaign = new RetrieveCampaign(null);
+    retrieveCustomer = new RetrieveCustomer(null);
+    printer = JsonFormat.printer().omittingInsignificantWhitespace().preservingProtoFieldNames();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public List<String> adGroupAds() {
+    return retrieveAd.convertToNDJson(adGroupAds);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public List<String> adGroupAdsJsonFormat() throws InvalidProtocolBufferException {
+    List<String> rows = new ArrayList<>(adGroupAds.size());
+    for (AdGroupAd adGroupAd : adGroupAds) {
+      rows.add(printer.print(adGroupAd));
+    }
+    return rows;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public List<String> adGroups() {
+    return retrieveAdGroup.convertToNDJson(adGroups);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public List<String> campaigns() {
+    return retrieveCampaign.convertToNDJson(campaigns);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public List<String> customerClientLinks() {
+    return retrieveCustomer.convertToNDJson(customerClientLinks);
+  }
+}
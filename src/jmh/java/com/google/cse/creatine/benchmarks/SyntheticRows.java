@@ -0,0 +1,188 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.benchmarks;
+
+import com.google.ads.googleads.v3.common.ExpandedTextAdInfo;
+import com.google.ads.googleads.v3.common.PolicyTopicEntry;
+import com.google.ads.googleads.v3.common.PolicyTopicEvidence;
+import com.google.ads.googleads.v3.enums.AdGroupAdStatusEnum;
+import com.google.ads.googleads.v3.enums.AdGroupStatusEnum;
+import com.google.ads.googleads.v3.enums.AdGroupTypeEnum;
+import com.google.ads.googleads.v3.enums.AdServingOptimizationStatusEnum;
+import com.google.ads.googleads.v3.enums.AdTypeEnum;
+import com.google.ads.googleads.v3.enums.CampaignServingStatusEnum;
+import com.google.ads.googleads.v3.enums.CampaignStatusEnum;
+import com.google.ads.googleads.v3.enums.ManagerLinkStatusEnum;
+import com.google.ads.googleads.v3.enums.PolicyApprovalStatusEnum;
+import com.google.ads.googleads.v3.enums.PolicyReviewStatusEnum;
+import com.google.ads.googleads.v3.enums.PolicyTopicEntryTypeEnum;
+import com.google.ads.googleads.v3.resources.Ad;
+import com.google.ads.googleads.v3.resources.AdGroup;
+import com.google.ads.googleads.v3.resources.AdGroupAd;
+import com.google.ads.googleads.v3.resources.AdGroupAdPolicySummary;
+import com.google.ads.googleads.v3.resources.Campaign;
+import com.google.ads.googleads.v3.resources.CustomerClientLink;
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.StringValue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds Google Ads resources shaped like the ones returned by the queries of the retrievers, with
+ * a fixed seed so that every benchmark run works on the same rows.
+ */
+final class SyntheticRows {
+
+  private static final long CUSTOMER_ID = 1234567890L;
+  private static final String[] WORDS = {
+    "shoes", "running", "free", "delivery", "sale", "today", "best", "price", "official", "store",
+    "new", "collection", "order", "online", "&", "<b>", "été", "Schuhe", "靴", "\"quoted\""
+  };
+
+  private SyntheticRows() {}
+
+  /**
+   * @param count the number of ads
+   * @param policyTopicEntries the number of policy topic entries of each ad, each with a few
+   *     evidences, to mimic disapproved ads whose policy_summary dominates the row size
+   */
+  static List<AdGroupAd> adGroupAds(int count, int policyTopicEntries) {
+    Random random = new Random(42);
+    List<AdGroupAd> ads = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      long adGroupId = 100000L + i / 20;
+      long adId = 5000000L + i;
+      AdGroupAdPolicySummary.Builder policySummary =
+          AdGroupAdPolicySummary.newBuilder()
+              .setReviewStatus(PolicyReviewStatusEnum.PolicyReviewStatus.REVIEWED)
+              .setApprovalStatus(
+                  policyTopicEntries == 0
+                      ? PolicyApprovalStatusEnum.PolicyApprovalStatus.APPROVED
+                      : PolicyApprovalStatusEnum.PolicyApprovalStatus.APPROVED_LIMITED);
+      for (int j = 0; j < policyTopicEntries; j++) {
+        PolicyTopicEvidence.TextList.Builder texts = PolicyTopicEvidence.TextList.newBuilder();
+        for (int k = 0; k < 3; k++) {
+          texts.addTexts(StringValue.of(sentence(random, 6)));
+        }
+        policySummary.addPolicyTopicEntries(
+            PolicyTopicEntry.newBuilder()
+                .setTopic(StringValue.of("TRADEMARKS_IN_AD_TEXT_" + j))
+                .setType(PolicyTopicEntryTypeEnum.PolicyTopicEntryType.LIMITED)
+                .addEvidences(PolicyTopicEvidence.newBuilder().setTextList(texts))
+                .addEvidences(
+                    PolicyTopicEvidence.newBuilder()
+                        .setWebsiteList(
+                            PolicyTopicEvidence.WebsiteList.newBuilder()
+                                .addWebsites(StringValue.of("www.example.com")))));
+      }
+      ads.add(
+          AdGroupAd.newBuilder()
+              .setResourceName(
+                  "customers/" + CUSTOMER_ID + "/adGroupAds/" + adGroupId + "~" + adId)
+              .setStatus(AdGroupAdStatusEnum.AdGroupAdStatus.ENABLED)
+              .setAdGroup(
+                  StringValue.of("customers/" + CUSTOMER_ID + "/adGroups/" + adGroupId))
+              .setAd(
+                  Ad.newBuilder()
+                      .setId(Int64Value.of(adId))
+                      .setType(AdTypeEnum.AdType.EXPANDED_TEXT_AD)
+                      .addFinalUrls(
+                          StringValue.of("https://www.example.com/p/" + adId + "?a=1&b=2"))
+                      .setExpandedTextAd(
+                          ExpandedTextAdInfo.newBuilder()
+                              .setHeadlinePart1(StringValue.of(sentence(random, 3)))
+                              .setHeadlinePart2(StringValue.of(sentence(random, 3)))
+                              .setHeadlinePart3(StringValue.of(sentence(random, 3)))
+                              .setDescription(StringValue.of(sentence(random, 10)))
+                              .setDescription2(StringValue.of(sentence(random, 10)))
+                              .setPath1(StringValue.of("shoes"))
+                              .setPath2(StringValue.of("sale"))))
+              .setPolicySummary(policySummary)
+              .build());
+    }
+    return ads;
+  }
+
+  /** @param count the number of ad groups */
+  static List<AdGroup> adGroups(int count) {
+    Random random = new Random(42);
+    List<AdGroup> adGroups = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      long adGroupId = 100000L + i;
+      adGroups.add(
+          AdGroup.newBuilder()
+              .setResourceName("customers/" + CUSTOMER_ID + "/adGroups/" + adGroupId)
+              .setId(Int64Value.of(adGroupId))
+              .setName(StringValue.of(sentence(random, 4)))
+              .setStatus(AdGroupStatusEnum.AdGroupStatus.ENABLED)
+              .setType(AdGroupTypeEnum.AdGroupType.SEARCH_STANDARD)
+              .setCampaign(StringValue.of("customers/" + CUSTOMER_ID + "/campaigns/" + i / 50))
+              .setCpcBidMicros(Int64Value.of(1000000L + random.nextInt(5000000)))
+              .build());
+    }
+    return adGroups;
+  }
+
+  /** @param count the number of campaigns */
+  static List<Campaign> campaigns(int count) {
+    Random random = new Random(42);
+    List<Campaign> campaigns = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      campaigns.add(
+          Campaign.newBuilder()
+              .setResourceName("customers/" + CUSTOMER_ID + "/campaigns/" + i)
+              .setId(Int64Value.of(i))
+              .setName(StringValue.of(sentence(random, 5)))
+              .setStatus(CampaignStatusEnum.CampaignStatus.ENABLED)
+              .setServingStatus(CampaignServingStatusEnum.CampaignServingStatus.SERVING)
+              .setAdServingOptimizationStatus(
+                  AdServingOptimizationStatusEnum.AdServingOptimizationStatus.OPTIMIZE)
+              .setCampaignBudget(
+                  StringValue.of("customers/" + CUSTOMER_ID + "/campaignBudgets/" + i))
+              .setStartDate(StringValue.of("2020-01-01"))
+              .setEndDate(StringValue.of("2037-12-30"))
+              .build());
+    }
+    return campaigns;
+  }
+
+  /** @param count the number of links under the manager account */
+  static List<CustomerClientLink> customerClientLinks(int count) {
+    List<CustomerClientLink> links = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      long clientId = 2000000000L + i;
+      links.add(
+          CustomerClientLink.newBuilder()
+              .setResourceName("customers/" + CUSTOMER_ID + "/customerClientLinks/" + clientId)
+              .setClientCustomer(StringValue.of("customers/" + clientId))
+              .setManagerLinkId(Int64Value.of(900000L + i))
+              .setStatus(ManagerLinkStatusEnum.ManagerLinkStatus.ACTIVE)
+              .build());
+    }
+    return links;
+  }
+
+  private static String sentence(Random random, int words) {
+    StringBuilder sentence = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      if (i > 0) {
+        sentence.append(' ');
+      }
+      sentence.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return sentence.toString();
+  }
+}
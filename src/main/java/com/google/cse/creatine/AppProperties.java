@@ -56,6 +56,108 @@ public class AppProperties {
   @Value("${googleAdsMccId}")
   private String googleAdsMccId;
 
+  @Value("${dispatchMode:taskqueue}")
+  private String dispatchMode;
+
+  @Value("${fanOutConcurrency:8}")
+  private int fanOutConcurrency;
+
+  @Value("${workClaims:datastore}")
+  private String workClaims;
+
+  @Value("${leaseWorkers:2}")
+  private int leaseWorkers;
+
+  @Value("${workClaimSize:4}")
+  private int workClaimSize;
+
+  @Value("${workLeaseSeconds:300}")
+  private long workLeaseSeconds;
+
+  @Value("${workMaxClaims:3}")
+  private int workMaxClaims;
+
+  @Value("${customerCosts:datastore}")
+  private String customerCosts;
+
+  @Value("${hierarchyCrawlConcurrency:8}")
+  private int hierarchyCrawlConcurrency;
+
+  @Value("${hierarchyCacheTtlMinutes:60}")
+  private long hierarchyCacheTtlMinutes;
+
+  @Value("${blobChunkMiB:64}")
+  private long blobChunkMiB;
+
+  @Value("${runProgress:datastore}")
+  private String runProgress;
+
+  @Value("${adsCallsPerSecond:10}")
+  private double adsCallsPerSecond;
+
+  @Value("${adsCallBurst:20}")
+  private int adsCallBurst;
+
+  @Value("${adsMaxAttempts:5}")
+  private int adsMaxAttempts;
+
+  @Value("${adsInitialBackoffMillis:1000}")
+  private long adsInitialBackoffMillis;
+
+  @Value("${adsMaxBackoffMillis:60000}")
+  private long adsMaxBackoffMillis;
+
+  @Value("${maxSpillMiB:256}")
+  private long maxSpillMiB;
+
+  @Value("${snapshotSink:gcs}")
+  private String snapshotSink;
+
+  @Value("${localSinkDirectory:snapshots}")
+  private String localSinkDirectory;
+
+  @Value("${adsBackend:google}")
+  private String adsBackend;
+
+  @Value("${fakeCustomers:10}")
+  private int fakeCustomers;
+
+  @Value("${fakeRowsPerCustomer:1000}")
+  private int fakeRowsPerCustomer;
+
+  @Value("${adsChannelPoolSize:4}")
+  private int adsChannelPoolSize;
+
+  @Value("${adsKeepAliveSeconds:60}")
+  private long adsKeepAliveSeconds;
+
+  @Value("${loadMode:gcs}")
+  private String loadMode;
+
+  @Value("${storageWriteStreamType:committed}")
+  private String storageWriteStreamType;
+
+  @Value("${stagingFormat:ndjson}")
+  private String stagingFormat;
+
+  @Value("${snapshotMode:full}")
+  private String snapshotMode;
+
+  @Value("${serializerParityCheck:false}")
+  private boolean serializerParityCheck;
+
+  @Value("${customerSearchMode:search}")
+  private String customerSearchMode;
+
+  @Value("${campaignSearchMode:search}")
+  private String campaignSearchMode;
+
+  @Value("${adGroupSearchMode:search}")
+  private String adGroupSearchMode;
+
+  @Value("${adGroupAdSearchMode:search}")
+  private String adGroupAdSearchMode;
+
   public String getGoogleAdsMccId() {
     return googleAdsMccId;
   }
@@ -99,4 +201,140 @@ public class AppProperties {
   public String getBucketName() {
     return gcsBucket;
   }
+
+  public String getCustomerSearchMode() {
+    return customerSearchMode;
+  }
+
+  public String getCampaignSearchMode() {
+    return campaignSearchMode;
+  }
+
+  public String getAdGroupSearchMode() {
+    return adGroupSearchMode;
+  }
+
+  public String getAdGroupAdSearchMode() {
+    return adGroupAdSearchMode;
+  }
+
+  public String getDispatchMode() {
+    return dispatchMode;
+  }
+
+  public int getFanOutConcurrency() {
+    return fanOutConcurrency;
+  }
+
+  public String getWorkClaims() {
+    return workClaims;
+  }
+
+  public int getLeaseWorkers() {
+    return leaseWorkers;
+  }
+
+  public int getWorkClaimSize() {
+    return workClaimSize;
+  }
+
+  public long getWorkLeaseSeconds() {
+    return workLeaseSeconds;
+  }
+
+  public int getWorkMaxClaims() {
+    return workMaxClaims;
+  }
+
+  public String getCustomerCosts() {
+    return customerCosts;
+  }
+
+  public int getHierarchyCrawlConcurrency() {
+    return hierarchyCrawlConcurrency;
+  }
+
+  public long getHierarchyCacheTtlMinutes() {
+    return hierarchyCacheTtlMinutes;
+  }
+
+  public long getBlobChunkMiB() {
+    return blobChunkMiB;
+  }
+
+  public String getRunProgress() {
+    return runProgress;
+  }
+
+  public double getAdsCallsPerSecond() {
+    return adsCallsPerSecond;
+  }
+
+  public int getAdsCallBurst() {
+    return adsCallBurst;
+  }
+
+  public int getAdsMaxAttempts() {
+    return adsMaxAttempts;
+  }
+
+  public long getAdsInitialBackoffMillis() {
+    return adsInitialBackoffMillis;
+  }
+
+  public long getAdsMaxBackoffMillis() {
+    return adsMaxBackoffMillis;
+  }
+
+  public long getMaxSpillMiB() {
+    return maxSpillMiB;
+  }
+
+  public String getSnapshotSink() {
+    return snapshotSink;
+  }
+
+  public String getLocalSinkDirectory() {
+    return localSinkDirectory;
+  }
+
+  public String getAdsBackend() {
+    return adsBackend;
+  }
+
+  public int getFakeCustomers() {
+    return fakeCustomers;
+  }
+
+  public int getFakeRowsPerCustomer() {
+    return fakeRowsPerCustomer;
+  }
+
+  public int getAdsChannelPoolSize() {
+    return adsChannelPoolSize;
+  }
+
+  public long getAdsKeepAliveSeconds() {
+    return adsKeepAliveSeconds;
+  }
+
+  public String getLoadMode() {
+    return loadMode;
+  }
+
+  public String getStorageWriteStreamType() {
+    return storageWriteStreamType;
+  }
+
+  public boolean getSerializerParityCheck() {
+    return serializerParityCheck;
+  }
+
+  public String getStagingFormat() {
+    return stagingFormat;
+  }
+
+  public String getSnapshotMode() {
+    return snapshotMode;
+  }
 }
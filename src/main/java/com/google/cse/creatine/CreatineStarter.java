@@ -15,30 +15,62 @@
 package com.google.cse.creatine;
 
 import com.google.ads.googleads.lib.GoogleAdsClient;
+import com.google.ads.googleads.v3.enums.ChangeStatusResourceTypeEnum.ChangeStatusResourceType;
 import com.google.ads.googleads.v3.resources.AdGroup;
 import com.google.ads.googleads.v3.resources.AdGroupAd;
 import com.google.ads.googleads.v3.resources.Campaign;
-import com.google.ads.googleads.v3.resources.CustomerClientLink;
+import com.google.ads.googleads.v3.resources.CustomerClient;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.auth.Credentials;
 import com.google.auth.oauth2.UserCredentials;
+import com.google.cloud.NoCredentials;
 import com.google.cloud.bigquery.BigQueryOptions;
-import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageOptions;
+import com.google.common.base.Throwables;
+import com.google.cse.creatine.api.AccountHierarchy;
+import com.google.cse.creatine.api.AccountHierarchyCrawler;
+import com.google.cse.creatine.api.AdsRetryPolicy;
+import com.google.cse.creatine.api.ChangeStatusReader;
+import com.google.cse.creatine.api.EntityDescriptor;
+import com.google.cse.creatine.api.ExtractionPipeline;
+import com.google.cse.creatine.api.FakeAdsBackend;
+import com.google.cse.creatine.api.GoogleAdsServicePool;
 import com.google.cse.creatine.api.RetrieveAd;
 import com.google.cse.creatine.api.RetrieveAdGroup;
 import com.google.cse.creatine.api.RetrieveCampaign;
-import com.google.cse.creatine.api.RetrieveCustomer;
+import com.google.cse.creatine.api.SearchMode;
 import com.google.cse.creatine.utils.*;
-import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.protobuf.Descriptors;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import javax.annotation.PreDestroy;
 import org.jboss.logging.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.SpringApplication;
@@ -56,15 +88,34 @@ public class CreatineStarter {
 
   private static final Logger logger = Logger.getLogger(CreatineStarter.class.getName());
 
+  // Above this, re-fetching the changed resources by name costs about as much as a full pull
+  private static final int MAX_INCREMENTAL_CHANGES = 1000;
+
   private AppProperties properties;
   private Configuration configuration;
   private GoogleAdsClient googleAdsClient;
+  private GoogleAdsServicePool adsServicePool;
+  private ExtractionPipeline extractionPipeline;
   private BigQueryUtils bQUtils;
-  private GoogleCloudStorageUtils gcStorage;
+  private SchemaRegistry schemaRegistry;
+  private LoadJobLedger loadJobLedger;
+  private final RunMetrics runMetrics = new RunMetrics();
+  private BigQueryLoadCoordinator loadCoordinator;
+  private TableStreamWriter tableStreamWriter;
+  private StagingFormat stagingFormat;
+  private SnapshotSink snapshotSink;
+  private ChangeStatusReader changeStatusReader;
+  private ChangeWatermarkStore watermarkStore;
+  private FingerprintStore fingerprintStore;
+  private RunProgressStore runProgressStore;
+  private WorkClaimStore workClaimStore;
+  private CustomerCostStore customerCostStore;
+  private final ConcurrentMap<String, IncrementalRun> incrementalRuns = new ConcurrentHashMap<>();
 
-  private Queue queue = QueueFactory.getDefaultQueue();
+  private Queue queue;
+  private CustomerFanOut customerFanOut;
 
-  private List<CustomerClientLink> customerList;
+  private AccountHierarchyCrawler hierarchyCrawler;
 
   /**
    * Launches the Spring based app retrieving the Customers / Campaigns /AdGroups / AdGroupAds from
@@ -98,58 +149,1172 @@ public class CreatineStarter {
    * Google services : - GoogleAds - BigQuery - Google Cloud Storage
    */
   private void initCredentials() {
-    if (googleAdsClient == null) {
+    if (adsServicePool == null) {
       try {
-        CredentialsUtils credStorage = new CredentialsUtils();
-        GoogleAdsConfiguration googleAdsConfig =
-            credStorage.getGoogleAdsConfig(Long.parseLong(properties.getEntityId()));
-
-        Credentials googleAdsCredentials =
-            UserCredentials.newBuilder()
-                .setClientId(googleAdsConfig.getClientId())
-                .setClientSecret(googleAdsConfig.getClientSecret())
-                .setRefreshToken(googleAdsConfig.getRefreshToken())
-                .build();
-
-        googleAdsClient =
-            GoogleAdsClient.newBuilder()
-                .setCredentials(googleAdsCredentials)
-                .setDeveloperToken(googleAdsConfig.getDeveloperToken())
-                .setLoginCustomerId(googleAdsConfig.getLoginCustomerId())
-                // .setEnableGeneratedCatalog(true)
-                .build();
-
-        bQUtils =
-            new BigQueryUtils(
-                BigQueryOptions.newBuilder()
-                    .setProjectId(configuration.getCloudProject())
-                    .setCredentials(CredentialsUtils.retrieveDefaultServiceAccountGCreds())
-                    .build()
-                    .getService(),
-                configuration);
-
-        gcStorage =
-            new GoogleCloudStorageUtils(
-                StorageOptions.newBuilder()
-                    .setProjectId(configuration.getCloudProject())
-                    .setCredentials(CredentialsUtils.retrieveDefaultServiceAccountGCreds())
-                    .build()
-                    .getService(),
-                configuration);
+        Credentials serviceCredentials;
+        if (isFakeAdsBackend()) {
+          checkOfflineSinks();
+          adsServicePool =
+              GoogleAdsServicePool.fake(
+                  new FakeAdsBackend(
+                      configuration.getGoogleAdsMccId(),
+                      properties.getFakeCustomers(),
+                      properties.getFakeRowsPerCustomer()));
+          // The clients are built for the sinks and stores, which make no call offline
+          serviceCredentials = NoCredentials.getInstance();
+        } else {
+          initGoogleAdsClient();
+          serviceCredentials = CredentialsUtils.retrieveDefaultServiceAccountGCreds();
+          watermarkStore =
+              new ChangeWatermarkStore(
+                  DatastoreOptions.getDefaultInstance().getService(),
+                  Long.parseLong(properties.getEntityId()));
+        }
+
+        extractionPipeline =
+            new ExtractionPipeline(
+                adsServicePool,
+                properties.getSerializerParityCheck(),
+                runMetrics,
+                properties.getMaxSpillMiB() * 1024L * 1024);
+        changeStatusReader = new ChangeStatusReader(adsServicePool);
+        hierarchyCrawler =
+            new AccountHierarchyCrawler(
+                adsServicePool,
+                SearchMode.fromProperty(properties.getCustomerSearchMode()),
+                properties.getHierarchyCrawlConcurrency(),
+                TimeUnit.MINUTES.toMillis(properties.getHierarchyCacheTtlMinutes()));
+        runProgressStore = createRunProgressStore();
+        workClaimStore = createWorkClaimStore();
+        customerCostStore = createCustomerCostStore();
+
+        BigQuery bigQuery =
+            BigQueryOptions.newBuilder()
+                .setProjectId(configuration.getCloudProject())
+                .setCredentials(serviceCredentials)
+                .build()
+                .getService();
+        bQUtils = new BigQueryUtils(bigQuery, configuration);
+        schemaRegistry = new SchemaRegistry(bQUtils);
+        loadJobLedger = new LoadJobLedger(bigQuery, runMetrics);
+        loadCoordinator = new BigQueryLoadCoordinator(bQUtils, configuration, loadJobLedger);
+        tableStreamWriter = createTableStreamWriter();
+        stagingFormat = StagingFormat.fromProperty(properties.getStagingFormat());
+
+        Storage storage =
+            StorageOptions.newBuilder()
+                .setProjectId(configuration.getCloudProject())
+                .setCredentials(serviceCredentials)
+                .build()
+                .getService();
+        snapshotSink = createSnapshotSink(storage);
+        fingerprintStore = new FingerprintStore(storage, configuration.getBucketName());
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
   }
 
+  /** Builds the Google Ads client from the googleadsconfig Datastore entity, and its pool. */
+  private void initGoogleAdsClient() {
+    CredentialsUtils credStorage = new CredentialsUtils();
+    GoogleAdsConfiguration googleAdsConfig =
+        credStorage.getGoogleAdsConfig(Long.parseLong(properties.getEntityId()));
+
+    Credentials googleAdsCredentials =
+        UserCredentials.newBuilder()
+            .setClientId(googleAdsConfig.getClientId())
+            .setClientSecret(googleAdsConfig.getClientSecret())
+            .setRefreshToken(googleAdsConfig.getRefreshToken())
+            .build();
+
+    googleAdsClient =
+        GoogleAdsClient.newBuilder()
+            .setCredentials(googleAdsCredentials)
+            .setDeveloperToken(googleAdsConfig.getDeveloperToken())
+            .setLoginCustomerId(googleAdsConfig.getLoginCustomerId())
+            .setTransportChannelProvider(
+                GoogleAdsServicePool.channelProvider(
+                    properties.getAdsChannelPoolSize(), properties.getAdsKeepAliveSeconds()))
+            // .setEnableGeneratedCatalog(true)
+            .build();
+    adsServicePool =
+        GoogleAdsServicePool.shared(
+            googleAdsClient,
+            properties.getAdsCallsPerSecond(),
+            properties.getAdsCallBurst(),
+            new AdsRetryPolicy(
+                properties.getAdsMaxAttempts(),
+                properties.getAdsInitialBackoffMillis(),
+                properties.getAdsMaxBackoffMillis()));
+  }
+
+  private boolean isFakeAdsBackend() {
+    return "fake".equalsIgnoreCase(properties.getAdsBackend());
+  }
+
+  /**
+   * Checks that the rows of the fake Google Ads backend stay offline: they would otherwise replace
+   * the real snapshot in BigQuery.
+   */
+  private void checkOfflineSinks() {
+    String sink = properties.getSnapshotSink();
+    if (!("local".equalsIgnoreCase(sink) || "memory".equalsIgnoreCase(sink))
+        || "storage_write".equalsIgnoreCase(properties.getLoadMode())) {
+      throw new IllegalStateException(
+          "The fake Google Ads backend needs the local or memory snapshot sink, and a load mode"
+              + " other than storage_write");
+    }
+  }
+
+  /**
+   * Creates the store of the progress of the runs, depending on the runProgress property.
+   *
+   * @return the store, or null when the runs are not resumed
+   */
+  private RunProgressStore createRunProgressStore() {
+    switch (properties.getRunProgress().toLowerCase()) {
+      case "datastore":
+        return new DatastoreRunProgressStore(
+            DatastoreOptions.getDefaultInstance().getService(),
+            Long.parseLong(properties.getEntityId()));
+      case "memory":
+        return new InMemoryRunProgressStore();
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Creates the store of the costs of the customers, depending on the customerCosts property.
+   *
+   * @return the store, or null when the customers are run in the order of the account hierarchy
+   */
+  private CustomerCostStore createCustomerCostStore() {
+    switch (properties.getCustomerCosts().toLowerCase()) {
+      case "datastore":
+        return new DatastoreCustomerCostStore(
+            DatastoreOptions.getDefaultInstance().getService(),
+            Long.parseLong(properties.getEntityId()));
+      case "memory":
+        return new InMemoryCustomerCostStore();
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Creates the store of the work items shared by the instances, depending on the workClaims
+   * property.
+   *
+   * @return the store, or null unless the dispatch mode is leased
+   */
+  private WorkClaimStore createWorkClaimStore() {
+    if (!isLeasedDispatch()) {
+      return null;
+    }
+    switch (properties.getWorkClaims().toLowerCase()) {
+      case "memory":
+        return new InMemoryWorkClaimStore();
+      default:
+        return new DatastoreWorkClaimStore(
+            DatastoreOptions.getDefaultInstance().getService(),
+            Long.parseLong(properties.getEntityId()));
+    }
+  }
+
+  /**
+   * Creates the sink of the blobs, depending on the snapshotSink property.
+   *
+   * @param storage the Google Cloud Storage service
+   * @return the sink
+   */
+  private SnapshotSink createSnapshotSink(Storage storage) {
+    long chunkBytes = properties.getBlobChunkMiB() * 1024L * 1024;
+    switch (properties.getSnapshotSink().toLowerCase()) {
+      case "local":
+        return new LocalFileSink(Paths.get(properties.getLocalSinkDirectory()), chunkBytes);
+      case "memory":
+        return new InMemorySink(chunkBytes);
+      default:
+        return new GoogleCloudStorageUtils(storage, configuration, chunkBytes);
+    }
+  }
+
+  /**
+   * Creates the writer streaming rows straight to BigQuery, depending on the load mode.
+   *
+   * @return the writer, or null when rows are loaded from Cloud Storage
+   */
+  private TableStreamWriter createTableStreamWriter() throws IOException {
+    switch (properties.getLoadMode().toLowerCase()) {
+      case "storage_write":
+        String streamType =
+            isInProcessDispatch() ? properties.getStorageWriteStreamType() : "COMMITTED";
+        return createStorageWriteApiWriter(streamType);
+      case "storage_write_fake":
+        return new InMemoryTableStreamWriter();
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Creates the writer of the Storage Write API, which is only built with the storage-write Maven
+   * profile, as its client needs a newer gRPC and gax stack than the Google Ads client.
+   *
+   * @param streamType COMMITTED or PENDING
+   */
+  private TableStreamWriter createStorageWriteApiWriter(String streamType) throws IOException {
+    try {
+      return (TableStreamWriter)
+          Class.forName("com.google.cse.creatine.utils.StorageWriteApiWriter")
+              .getMethod("create", BigQueryUtils.class, Configuration.class, String.class)
+              .invoke(null, bQUtils, configuration, streamType);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException(
+          "loadMode=storage_write needs a build with the storage-write profile:"
+              + " mvn -DstorageWrite package",
+          e);
+    } catch (InvocationTargetException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Releases the threads of the in-process dispatcher and of the load poller, and the channels of
+   * the Google Ads API, on shutdown.
+   */
+  @PreDestroy
+  public synchronized void shutdown() {
+    if (customerFanOut != null) {
+      customerFanOut.shutdown();
+    }
+    if (loadJobLedger != null) {
+      loadJobLedger.shutdown();
+    }
+    if (tableStreamWriter != null) {
+      tableStreamWriter.close();
+    }
+    if (adsServicePool != null) {
+      adsServicePool.close();
+    }
+  }
+
+  private boolean isInProcessDispatch() {
+    return "inprocess".equalsIgnoreCase(properties.getDispatchMode());
+  }
+
+  private boolean isLeasedDispatch() {
+    return "leased".equalsIgnoreCase(properties.getDispatchMode());
+  }
+
+  /** Gets the App Engine task queue, only available when running on App Engine. */
+  private synchronized Queue getQueue() {
+    if (queue == null) {
+      queue = QueueFactory.getDefaultQueue();
+    }
+    return queue;
+  }
+
+  /**
+   * Opens the writers of an entity for one customer: blobs of the sink named after blobBaseName,
+   * or the rows streamed straight to the table with the Storage Write API load modes.
+   */
+  private IntFunction<RowWriter<CharSequence>> openWriters(
+      String tableName, String customerId, Schema schema, String blobBaseName) {
+    if (tableStreamWriter != null) {
+      return loop -> new StreamingRowWriter(tableStreamWriter, tableName, customerId, schema);
+    }
+    return loop -> snapshotSink.openWriter(blobBaseName.replace("(index)", String.valueOf(loop)));
+  }
+
+  /**
+   * Whether the blobs written for a table are loaded to BigQuery, rather than rows being streamed
+   * or blobs being kept by an offline sink.
+   */
+  private boolean isLoadingBlobs() {
+    return tableStreamWriter == null && snapshotSink.isLoadable();
+  }
+
+  /** Whether the rows reach BigQuery at all, through loads or streams. */
+  private boolean isPublishing() {
+    return tableStreamWriter != null || snapshotSink.isLoadable();
+  }
+
+  /** Whether the rows are staged as Avro blobs rather than NDJSON. */
+  private boolean isAvroStaging() {
+    return tableStreamWriter == null && stagingFormat == StagingFormat.AVRO;
+  }
+
+  /** Opens the writers of the Avro blobs of an entity for one customer. */
+  private IntFunction<RowWriter<ByteBuffer>> openAvroWriters(
+      ProtoAvroEncoder encoder, String blobBaseName) {
+    return loop ->
+        snapshotSink.openAvroWriter(
+            blobBaseName.replace("(index)", String.valueOf(loop)), encoder.getSchema());
+  }
+
+  /**
+   * Makes the rows extracted for a table available in BigQuery, by committing its write stream or
+   * by submitting the load of its blobs.
+   *
+   * @return the ledger entries of the submitted loads, none when the write stream is committed
+   */
+  private List<LoadJobLedger.Entry> completeTable(String tableName) {
+    if (tableStreamWriter != null) {
+      try {
+        tableStreamWriter.commit(tableName);
+      } catch (IOException e) {
+        // The table is not complete, which fails the step
+        throw new UncheckedIOException("Could not commit the rows of table " + tableName, e);
+      }
+      return Collections.emptyList();
+    }
+    return loadCoordinator.flush(tableName);
+  }
+
+  private synchronized CustomerFanOut getCustomerFanOut() {
+    if (customerFanOut == null) {
+      customerFanOut = new CustomerFanOut(properties.getFanOutConcurrency());
+    }
+    return customerFanOut;
+  }
+
+  /**
+   * Runs the per-customer handler of an entity for each customer, either by sending one App
+   * Engine task per customer or, with the "inprocess" dispatch mode, in this JVM with a bounded
+   * number of customers in flight. In the latter case the method returns once all customers are
+   * done. With the "leased" dispatch mode, the customers become work items and a few App Engine
+   * tasks are sent to {@link #work}, each one claiming customers until none is left, so that the
+   * instances share the customers according to how busy they are.
+   *
+   * @param entityName the name of the entity, used in logs
+   * @param taskUrl the URL of the per-customer handler
+   * @param customerIds the customers to process
+   * @param handler the per-customer handler
+   */
+  private void dispatch(
+      String entityName, String taskUrl, List<String> customerIds, Consumer<String> handler) {
+    if (isInProcessDispatch()) {
+      getCustomerFanOut().submit(entityName, customerIds, handler).await();
+    } else if (isLeasedDispatch()) {
+      String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
+      workClaimStore.addItems(today, entityName, customerIds);
+      for (int i = 0; i < properties.getLeaseWorkers(); i++) {
+        getQueue()
+            .addAsync(
+                TaskOptions.Builder.withUrl("/v1/work")
+                    .method(TaskOptions.Method.GET)
+                    .param("entity", entityName));
+      }
+    } else {
+      for (String customerId : customerIds) {
+        TaskOptions task =
+            TaskOptions.Builder.withUrl(taskUrl)
+                .method(TaskOptions.Method.GET)
+                .param("customerID", customerId);
+        getQueue().addAsync(task);
+      }
+    }
+  }
+
+  /**
+   * Whether the progress of the runs is recorded, for a retried run to skip the customers already
+   * done. Streamed rows and incremental snapshots keep state outside of the staged blobs, so they
+   * are always run in full.
+   */
+  private boolean isResumable() {
+    return runProgressStore != null && isLoadingBlobs() && isSnapshotMode("full");
+  }
+
+  /**
+   * Records that a customer is done, for a retried run to skip it.
+   *
+   * @param today the date of today's snapshot
+   * @param entityName the name of the entity
+   * @param customerId the customer ID
+   * @param gcsBlobs the blobs staged by the customer
+   */
+  private void markCustomerDone(
+      String today, String entityName, String customerId, List<String> gcsBlobs) {
+    if (!isResumable()) {
+      return;
+    }
+    try {
+      runProgressStore.markCustomerDone(today, entityName, customerId, gcsBlobs);
+    } catch (RuntimeException e) {
+      logger.error("Could not record the progress of customer " + customerId, e);
+    }
+  }
+
+  /**
+   * Orders the customers of an entity longest first, from their costs in the previous runs, so
+   * that the largest customers do not start last and hold the run up on their own.
+   *
+   * @param entityName the name of the entity
+   * @param customerIds the customers to process
+   * @return the customers in the order to process them
+   */
+  private List<String> scheduleLongestFirst(String entityName, List<String> customerIds) {
+    if (customerCostStore == null) {
+      return customerIds;
+    }
+    try {
+      CustomerSchedule schedule =
+          new CustomerSchedule(customerIds, customerCostStore.getAll(entityName, customerIds));
+      // The parallelism of the App Engine queue is unknown, taken as that of one instance
+      int workers =
+          properties.getFanOutConcurrency()
+              * (isLeasedDispatch() ? Math.max(1, properties.getLeaseWorkers()) : 1);
+      logger.info(
+          "[CreatineStarter] Scheduled " + entityName + ": " + schedule.describe(workers));
+      return schedule.getOrder();
+    } catch (RuntimeException e) {
+      logger.error("Could not read the costs of " + entityName + ", keeping the customer order", e);
+      return customerIds;
+    }
+  }
+
+  /**
+   * Saves the costs of the customers of an entity extracted since the last call, for the next run
+   * to schedule them. Incremental and delta snapshots only pull the changes, which do not measure
+   * the customers, so only full snapshots are saved.
+   *
+   * @param entityName the name of the entity
+   */
+  private void saveCustomerCosts(String entityName) {
+    Map<String, CustomerCost> costs = runMetrics.drainCosts(entityName);
+    if (customerCostStore == null || costs.isEmpty() || !isSnapshotMode("full")) {
+      return;
+    }
+    try {
+      customerCostStore.putAll(entityName, costs);
+    } catch (RuntimeException e) {
+      logger.error("Could not save the costs of " + entityName, e);
+    }
+  }
+
+  private boolean isSnapshotMode(String snapshotMode) {
+    return snapshotMode.equalsIgnoreCase(properties.getSnapshotMode());
+  }
+
+  /** @return the name of the change table of a snapshot table, in the delta snapshot mode */
+  private static String getChangeTable(String tableName) {
+    return "changes_" + tableName;
+  }
+
+  /**
+   * Starts an incremental snapshot of a table if the snapshot mode is incremental or delta. Both
+   * need the in-process dispatch mode, as the unchanged rows are merged once all the customers are
+   * done.
+   *
+   * @param entityName the name of the entity, under which the watermarks are stored
+   * @param tableName the name of today's table of the entity
+   * @param today the date of today's snapshot
+   * @return the run, or null if the customers are pulled in full
+   */
+  private IncrementalRun startIncrementalRun(String entityName, String tableName, String today) {
+    if (!isSnapshotMode("incremental") && !isSnapshotMode("delta")) {
+      return null;
+    }
+    if (!isInProcessDispatch()) {
+      logger.warn("[CreatineStarter] Incremental snapshots need the inprocess dispatch mode");
+      return null;
+    }
+    if (!isPublishing() || isFakeAdsBackend()) {
+      logger.warn("[CreatineStarter] Incremental snapshots need the rows to reach BigQuery");
+      return null;
+    }
+    if (isSnapshotMode("delta")) {
+      bQUtils.deleteTable(configuration, getChangeTable(tableName));
+    }
+    IncrementalRun run = new IncrementalRun(entityName, today);
+    incrementalRuns.put(tableName, run);
+    return run;
+  }
+
+  /**
+   * Gets the watermark of a customer during an incremental snapshot, if the table of its previous
+   * snapshot is still there.
+   *
+   * @param run the incremental snapshot
+   * @param customerId a customer ID
+   * @param tableTemplate the name of the tables of the entity, with a [YYYYMMDD] placeholder
+   * @return the watermark, or null to pull the customer in full
+   */
+  private ChangeWatermarkStore.Watermark getWatermark(
+      IncrementalRun run, String customerId, String tableTemplate) {
+    ChangeWatermarkStore.Watermark watermark;
+    try {
+      watermark = watermarkStore.get(run.getEntityName(), customerId);
+    } catch (RuntimeException e) {
+      logger.error("Could not read the watermark of customer " + customerId, e);
+      return null;
+    }
+    if (watermark == null || watermark.getSnapshotDate().equals(run.getSnapshotDate())) {
+      return null;
+    }
+    String previousTable = tableTemplate.replace("[YYYYMMDD]", watermark.getSnapshotDate());
+    if (!run.isTableAvailable(
+        previousTable, table -> bQUtils.getTableSchema(configuration, table) != null)) {
+      return null;
+    }
+    return watermark;
+  }
+
+  /**
+   * Looks up the resources of a customer which changed since its watermark, during an incremental
+   * snapshot. The customer is recorded as incremental unless it must be pulled in full.
+   *
+   * @param run the incremental snapshot
+   * @param customerId a customer ID
+   * @param resourceType the type of the resources in change_status
+   * @param tableTemplate the name of the tables of the entity, with a [YYYYMMDD] placeholder
+   * @return the resource names of the changed resources, or null to pull the customer in full
+   */
+  private Set<String> getChangedResourceNames(
+      IncrementalRun run,
+      String customerId,
+      ChangeStatusResourceType resourceType,
+      String tableTemplate) {
+    ChangeWatermarkStore.Watermark watermark = getWatermark(run, customerId, tableTemplate);
+    if (watermark == null) {
+      return null;
+    }
+    Set<String> changed =
+        changeStatusReader.getChangedResourceNames(
+            customerId, resourceType, watermark.getChangesSinceMillis());
+    if (changed == null || changed.size() > MAX_INCREMENTAL_CHANGES) {
+      return null;
+    }
+    run.markIncremental(customerId, watermark.getSnapshotDate());
+    return changed;
+  }
+
+  /**
+   * Pulls all the rows of a customer during a delta snapshot but only writes the ones which changed
+   * since its previous snapshot, according to the fingerprints of that snapshot, to the change
+   * table. The fingerprints of today's rows are then stored for the next snapshot.
+   *
+   * @param run the delta snapshot
+   * @param customerId a customer ID
+   * @param descriptor the descriptor of the entity
+   * @param serializer prints the entity as JSON
+   * @param tableTemplate the name of the tables of the entity, with a [YYYYMMDD] placeholder
+   * @param blobBaseName the name of the blobs of the changes, with (index) and (chunk) placeholders
+   * @param retriever extracts the entity with the given encoder and writers
+   * @return the blobs written, if the rows are staged in Cloud Storage
+   */
+  private List<String> extractChanges(
+      IncrementalRun run,
+      String customerId,
+      Descriptors.Descriptor descriptor,
+      ProtoJsonSerializer serializer,
+      String tableTemplate,
+      String blobBaseName,
+      BiFunction<FingerprintingEncoder, IntFunction<DeltaRowWriter>, List<String>> retriever) {
+    String changeTable =
+        getChangeTable(tableTemplate.replace("[YYYYMMDD]", run.getSnapshotDate()));
+    Schema changeSchema = schemaRegistry.getChangeSchema(descriptor);
+
+    FingerprintIndex previous = null;
+    ChangeWatermarkStore.Watermark watermark = getWatermark(run, customerId, tableTemplate);
+    if (watermark != null) {
+      try {
+        previous =
+            fingerprintStore.load(run.getEntityName(), watermark.getSnapshotDate(), customerId);
+      } catch (IOException e) {
+        logger.error("Could not read the fingerprints of customer " + customerId, e);
+      }
+    }
+    if (previous != null) {
+      run.markIncremental(customerId, watermark.getSnapshotDate());
+    }
+
+    DeltaTracker tracker = new DeltaTracker(previous);
+    IntFunction<RowWriter<CharSequence>> writers =
+        openWriters(changeTable, customerId, changeSchema, blobBaseName);
+    List<String> gcsBlobs =
+        new ArrayList<>(
+            retriever.apply(
+                new FingerprintingEncoder(descriptor, serializer),
+                loop -> new DeltaRowWriter(tracker, writers.apply(loop))));
+    try {
+      RowWriter<CharSequence> deletions =
+          openWriters(
+                  changeTable,
+                  customerId,
+                  changeSchema,
+                  blobBaseName.replace("(index)", "deleted"))
+              .apply(0);
+      DeltaRowWriter.writeDeletions(tracker, deletions);
+      deletions.close();
+      gcsBlobs.addAll(deletions.getBlobNames());
+      fingerprintStore.save(
+          run.getEntityName(), run.getSnapshotDate(), customerId, tracker.getCurrent());
+    } catch (IOException e) {
+      // Without its deletions or fingerprints, the customer's watermark must not move
+      throw new UncheckedIOException(e);
+    }
+    logger.info(
+        "[CreatineStarter] " + run.getEntityName() + " of customer " + customerId + ": "
+            + tracker);
+    return gcsBlobs;
+  }
+
+  /**
+   * Ends an incremental snapshot once its rows are in BigQuery: copies the unchanged rows of the
+   * incremental customers from their previous snapshot, then moves the watermarks of the
+   * customers whose snapshot is complete. In the delta snapshot mode, the inserted and updated
+   * rows are first copied from the change table.
+   *
+   * @param run the incremental snapshot, or null if the customers were pulled in full
+   * @param tableTemplate the name of the tables of the entity, with a [YYYYMMDD] placeholder
+   * @param tableName the name of today's table of the entity
+   * @param schema the Schema of the tables of the entity
+   * @param loads the loads of today's table, which must be done before rows are copied
+   */
+  private void finishIncrementalRun(
+      IncrementalRun run,
+      String tableTemplate,
+      String tableName,
+      Schema schema,
+      List<LoadJobLedger.Entry> loads) {
+    if (run == null) {
+      return;
+    }
+    incrementalRuns.remove(tableName);
+    for (LoadJobLedger.Entry load : loads) {
+      if (load.getCompletion().join().getStatus() == LoadJobLedger.Status.FAILED) {
+        logger.error(
+            "[CreatineStarter] Not moving the watermarks of " + run.getEntityName()
+                + " as a load to " + tableName + " failed");
+        return;
+      }
+    }
+    String changeTable = getChangeTable(tableName);
+    boolean delta = isSnapshotMode("delta");
+    if (delta) {
+      long rows = bQUtils.applyChanges(configuration, changeTable, tableName, schema);
+      if (rows < 0) {
+        logger.error(
+            "[CreatineStarter] Not moving the watermarks of " + run.getEntityName()
+                + " as the changes could not be applied to " + tableName);
+        return;
+      }
+      logger.info("[CreatineStarter] Applied " + rows + " changed rows to " + tableName);
+    }
+    for (Map.Entry<String, List<String>> customers :
+        run.getIncrementalCustomersBySnapshot().entrySet()) {
+      String previousTable = tableTemplate.replace("[YYYYMMDD]", customers.getKey());
+      long rows =
+          delta
+              ? bQUtils.carryOverUnchangedRows(
+                  configuration, previousTable, changeTable, tableName, customers.getValue())
+              : bQUtils.carryOverRows(
+                  configuration, previousTable, tableName, schema, customers.getValue());
+      if (rows < 0) {
+        run.markFailed(customers.getValue());
+      } else {
+        logger.info(
+            "[CreatineStarter] Carried " + rows + " unchanged rows of "
+                + customers.getValue().size() + " customers over from " + previousTable + " to "
+                + tableName);
+      }
+    }
+    logger.info(
+        "[CreatineStarter] " + run.getIncrementalCount() + " customers of " + run.getEntityName()
+            + " pulled incrementally");
+    watermarkStore.putAll(
+        run.getEntityName(),
+        run.getSucceededCustomers(),
+        new ChangeWatermarkStore.Watermark(run.getStartMillis(), run.getSnapshotDate()));
+  }
+
+  private EntityRefresh newCampaignsRefresh() {
+    return new EntityRefresh(
+        "/v1/getCampaignsFromCustomerId",
+        configuration.getCampaignTable(),
+        "campaign",
+        Campaign.getDescriptor(),
+        RetrieveCampaign.CAMPAIGNS,
+        SearchMode.fromProperty(properties.getCampaignSearchMode()),
+        null,
+        null);
+  }
+
+  private EntityRefresh newAdGroupsRefresh() {
+    return new EntityRefresh(
+        "/v1/getAdGroupsFromCustomerId",
+        configuration.getAdGroupTable(),
+        "ad_group",
+        AdGroup.getDescriptor(),
+        RetrieveAdGroup.AD_GROUPS,
+        SearchMode.fromProperty(properties.getAdGroupSearchMode()),
+        ChangeStatusResourceType.AD_GROUP,
+        "ad_group.resource_name");
+  }
+
+  private EntityRefresh newAdGroupAdsRefresh() {
+    return new EntityRefresh(
+        "/v1/getAdGroupAdsFromCustomerId",
+        configuration.getAdGroupAdTable(),
+        "ad_group_ad",
+        AdGroupAd.getDescriptor(),
+        RetrieveAd.AD_GROUP_ADS,
+        SearchMode.fromProperty(properties.getAdGroupAdSearchMode()),
+        ChangeStatusResourceType.AD_GROUP_AD,
+        "ad_group_ad.resource_name");
+  }
+
+  /** @return the refresh of an entity, given its name */
+  private EntityRefresh newRefresh(String entityName) {
+    switch (entityName) {
+      case "Campaigns":
+        return newCampaignsRefresh();
+      case "AdGroups":
+        return newAdGroupsRefresh();
+      case "AdGroupAds":
+        return newAdGroupAdsRefresh();
+      default:
+        throw new IllegalArgumentException("Unknown entity: " + entityName);
+    }
+  }
+
+  /** Refreshes today's table of an entity, running its per-customer handler for each customer. */
+  private void refresh(EntityRefresh refresh) {
+    List<String> customerIds = getClientCustomerIds();
+    if (customerIds.isEmpty()) {
+      logger.warn(
+          "[CreatineStarter] Could not get " + refresh.entityName
+              + " because Customer List was empty");
+      return;
+    }
+    List<String> pendingCustomerIds = refresh.getPendingCustomers(customerIds);
+    if (pendingCustomerIds == null) {
+      return;
+    }
+    pendingCustomerIds = scheduleLongestFirst(refresh.entityName, pendingCustomerIds);
+    refresh.prepare();
+    dispatch(refresh.entityName, refresh.taskUrl, pendingCustomerIds, refresh::extract);
+    if (isInProcessDispatch()) {
+      refresh.finish(refresh.complete());
+    }
+  }
+
+  /**
+   * The steps of the refresh of an entity: preparing today's table before any customer, extracting
+   * each customer, and finishing the table once the rows of every customer are loaded or
+   * committed.
+   *
+   * <p>When the progress of the runs is recorded, a retried run resumes the one which failed: the
+   * customers already done are skipped and their staged blobs are loaded again along with the
+   * others.
+   */
+  private final class EntityRefresh {
+
+    private final String entityName;
+    private final String taskUrl;
+    private final String tableTemplate;
+    private final String blobName;
+    private final Descriptors.Descriptor descriptor;
+    private final EntityDescriptor<?> entity;
+    private final SearchMode searchMode;
+    private final ChangeStatusResourceType changeType;
+    private final String resourceNameField;
+    private final String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
+    private final String tableName;
+    private IncrementalRun incrementalRun;
+    private RunProgressStore.Progress progress = RunProgressStore.Progress.NONE;
+
+    /**
+     * @param taskUrl the URL of the per-customer handler
+     * @param tableTemplate the name of the tables of the entity, with a [YYYYMMDD] placeholder
+     * @param blobName the name of the blobs of the entity, before their (index) and (chunk)
+     * @param descriptor the descriptor of the entity
+     * @param entity the entity extracted by the pipeline, whose name is that of the refresh
+     * @param searchMode how rows are pulled from the API
+     * @param changeType the type of the entity in change_status, or null if the entity does not
+     *     support the incremental and delta snapshot modes
+     * @param resourceNameField the GAQL field of the resource name, for incremental snapshots
+     */
+    private EntityRefresh(
+        String taskUrl,
+        String tableTemplate,
+        String blobName,
+        Descriptors.Descriptor descriptor,
+        EntityDescriptor<?> entity,
+        SearchMode searchMode,
+        ChangeStatusResourceType changeType,
+        String resourceNameField) {
+      this.entityName = entity.getName();
+      this.taskUrl = taskUrl;
+      this.tableTemplate = tableTemplate;
+      this.blobName = blobName;
+      this.descriptor = descriptor;
+      this.entity = entity;
+      this.searchMode = searchMode;
+      this.changeType = changeType;
+      this.resourceNameField = resourceNameField;
+      this.tableName = tableTemplate.replace("[YYYYMMDD]", today);
+    }
+
+    /**
+     * Reads the progress of a previous run of today, if any.
+     *
+     * @param customerIds the customers of the run
+     * @return the customers not done yet, or null if today's table is already complete
+     */
+    private List<String> getPendingCustomers(List<String> customerIds) {
+      if (!isResumable()) {
+        return customerIds;
+      }
+      try {
+        progress = runProgressStore.get(today, entityName);
+      } catch (RuntimeException e) {
+        logger.error("Could not read the progress of " + entityName + ", running it in full", e);
+        return customerIds;
+      }
+      if (progress.getTableState() == RunProgressStore.TableState.COMPLETED) {
+        logger.info("[CreatineStarter] " + entityName + " already completed today, skipping it");
+        return null;
+      }
+      List<String> pendingCustomerIds = new ArrayList<>();
+      for (String customerId : customerIds) {
+        if (!progress.isDone(customerId)) {
+          pendingCustomerIds.add(customerId);
+        }
+      }
+      if (pendingCustomerIds.size() < customerIds.size()) {
+        logger.info(
+            "[CreatineStarter] Resuming " + entityName + ": "
+                + (customerIds.size() - pendingCustomerIds.size()) + " customers already done, "
+                + pendingCustomerIds.size() + " left");
+      }
+      return pendingCustomerIds;
+    }
+
+    /**
+     * Deletes today's table and starts its incremental snapshot, if any. When resuming a run, the
+     * blobs of the customers already done are loaded again: a customer is done once its load is
+     * submitted, and the load may have failed since.
+     */
+    private void prepare() {
+      Map<String, List<String>> doneBlobs = progress.getBlobsByCustomer();
+      if (isPublishing()) {
+        bQUtils.deleteTable(configuration, tableName);
+      }
+      // Make sure the bucket exists
+      snapshotSink.prepare(configuration.getBucketName());
+      if (!doneBlobs.isEmpty()) {
+        Schema schema = schemaRegistry.getSchema(descriptor);
+        for (List<String> blobNames : doneBlobs.values()) {
+          loadCoordinator.enqueue(tableName, schema, stagingFormat, blobNames);
+        }
+        if (!isInProcessDispatch()) {
+          // The tasks only load the blobs enqueued on their own instance
+          loadCoordinator.flush(tableName);
+        }
+      }
+      if (changeType != null) {
+        incrementalRun = startIncrementalRun(entityName, tableName, today);
+      }
+    }
+
+    /**
+     * Loads or commits the rows of today's table once every customer is done.
+     *
+     * @return the ledger entries of the submitted loads
+     */
+    private List<LoadJobLedger.Entry> complete() {
+      if (!isResumable()) {
+        return completeTable(getTargetTable());
+      }
+      setTableState(RunProgressStore.TableState.LOADING);
+      List<LoadJobLedger.Entry> loads = completeTable(getTargetTable());
+      List<CompletableFuture<LoadJobLedger.Entry>> completions = new ArrayList<>();
+      for (LoadJobLedger.Entry load : loads) {
+        completions.add(load.getCompletion());
+      }
+      // The table is only complete once its loads succeeded, a failed one being redone on retry
+      CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0]))
+          .thenRun(
+              () -> {
+                for (LoadJobLedger.Entry load : loads) {
+                  if (load.getStatus() == LoadJobLedger.Status.FAILED) {
+                    return;
+                  }
+                }
+                setTableState(RunProgressStore.TableState.COMPLETED);
+              });
+      return loads;
+    }
+
+    private void setTableState(RunProgressStore.TableState state) {
+      try {
+        runProgressStore.setTableState(today, entityName, state);
+      } catch (RuntimeException e) {
+        logger.error("Could not record the state of " + tableName, e);
+      }
+    }
+
+    /** @return the table written by the customers, the change table of a delta snapshot */
+    private String getTargetTable() {
+      return incrementalRun != null && isSnapshotMode("delta")
+          ? getChangeTable(tableName)
+          : tableName;
+    }
+
+    /** Merges the unchanged rows of an incremental snapshot once the loads are submitted. */
+    private void finish(List<LoadJobLedger.Entry> loads) {
+      finishIncrementalRun(
+          incrementalRun, tableTemplate, tableName, schemaRegistry.getSchema(descriptor), loads);
+    }
+
+    /**
+     * Extracts the rows of a customer, staging or streaming them. The costs of the customer are
+     * saved on every path, so that those of delta and failed customers do not pile up.
+     *
+     * @param customerId the customer ID
+     */
+    private void extract(String customerId) {
+      extract(customerId, () -> true);
+    }
+
+    /**
+     * Extracts the rows of a customer claimed by the leased dispatch mode. Right before its blobs
+     * are loaded, the customer fails if the claim was lost: its lease expired and another instance
+     * may have claimed it, which loads its own blobs, so the blobs of this one are dropped instead
+     * of adding its rows twice. Streamed rows are already visible and cannot be dropped.
+     *
+     * @param customerId the customer ID
+     * @param claim renews the claim of the customer, false once it is lost
+     */
+    private void extract(String customerId, BooleanSupplier claim) {
+      try {
+        extractRows(customerId, claim);
+      } catch (RuntimeException e) {
+        if (tableStreamWriter != null) {
+          // The rows of a failed customer are not committed along with those of the others
+          tableStreamWriter.drop(tableName, customerId);
+        }
+        throw e;
+      } finally {
+        saveCustomerCosts(entityName);
+      }
+    }
+
+    private void extractRows(String customerId, BooleanSupplier claim) {
+      String todaysBlob = String.format("%s_%s_%s", today, customerId, blobName);
+      // The incremental run is started by the refresh which prepared the table, not this one
+      IncrementalRun run = incrementalRuns.get(tableName);
+      if (run != null && isSnapshotMode("delta")) {
+        List<String> gcsBlobs =
+            extractChanges(
+                run,
+                customerId,
+                descriptor,
+                entity.getSerializer(),
+                tableTemplate,
+                todaysBlob + "_changes_(index)_(chunk).json",
+                (encoder, writers) ->
+                    extractionPipeline.extract(entity, searchMode, customerId, encoder, writers));
+        if (isLoadingBlobs()) {
+          loadCoordinator.enqueue(
+              getChangeTable(tableName),
+              schemaRegistry.getChangeSchema(descriptor),
+              StagingFormat.NDJSON,
+              gcsBlobs);
+        }
+        run.markSucceeded(customerId);
+        return;
+      }
+      Set<String> changed =
+          run == null
+              ? null
+              : getChangedResourceNames(run, customerId, changeType, tableTemplate);
+      if (changed != null && changed.isEmpty()) {
+        run.markSucceeded(customerId);
+        return;
+      }
+
+      EntityDescriptor<?> selected =
+          changed == null ? entity : entity.restrictedTo(resourceNameField, changed);
+      String blobBaseName = todaysBlob + "_(index)_(chunk)" + stagingFormat.getExtension();
+      Schema schema = schemaRegistry.getSchema(descriptor);
+      List<String> gcsBlobs;
+      if (isAvroStaging()) {
+        ProtoAvroEncoder encoder =
+            schemaRegistry.getAvroEncoder(descriptor, entity.getSerializer());
+        gcsBlobs =
+            extractionPipeline.extract(
+                selected, searchMode, customerId, encoder, openAvroWriters(encoder, blobBaseName));
+      } else {
+        gcsBlobs =
+            extractionPipeline.extract(
+                selected,
+                searchMode,
+                customerId,
+                openWriters(tableName, customerId, schema, blobBaseName));
+      }
+      if (!claim.getAsBoolean()) {
+        throw new IllegalStateException(
+            "Lost the claim of customer " + customerId + " for " + entityName
+                + ", dropping its blobs");
+      }
+      if (tableStreamWriter != null && !isInProcessDispatch()) {
+        // Only the in-process fan-out commits the table at the end, each task its own stream
+        try {
+          tableStreamWriter.commit(tableName, customerId);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      if (isLoadingBlobs()) {
+        loadCoordinator.enqueue(tableName, schema, stagingFormat, gcsBlobs);
+        if (!isInProcessDispatch()) {
+          // Each task loads what was enqueued on its instance, the in-process fan-out at the end
+          loadCoordinator.flush(tableName);
+        }
+      }
+      if (run != null) {
+        run.markSucceeded(customerId);
+      }
+      markCustomerDone(today, entityName, customerId, gcsBlobs);
+    }
+  }
+
+  /**
+   * Returns the cached BigQuery schema of an entity along with the schema of today's table, so that
+   * both can be compared.
+   *
+   * @param entity one of account, campaign, adgroup or adgroupad
+   * @return json object containing both schemas and whether they match
+   */
+  @GetMapping(value = "/v1/schema", produces = "application/json;UTF-8")
+  public String getSchema(@RequestParam(name = "entity") String entity) {
+    Descriptors.Descriptor descriptor;
+    String tableName;
+    switch (entity.toLowerCase()) {
+      case "account":
+        descriptor = CustomerClient.getDescriptor();
+        tableName = configuration.getAccountTable();
+        break;
+      case "campaign":
+        descriptor = Campaign.getDescriptor();
+        tableName = configuration.getCampaignTable();
+        break;
+      case "adgroup":
+        descriptor = AdGroup.getDescriptor();
+        tableName = configuration.getAdGroupTable();
+        break;
+      case "adgroupad":
+        descriptor = AdGroupAd.getDescriptor();
+        tableName = configuration.getAdGroupAdTable();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown entity " + entity);
+    }
+    String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
+    tableName = tableName.replace("[YYYYMMDD]", today);
+
+    JsonObject result = new JsonObject();
+    result.addProperty("entity", entity);
+    result.addProperty("table", tableName);
+    JsonArray cached = schemaRegistry.toJson(descriptor);
+    result.add("cached", cached);
+    Schema tableSchema = bQUtils.getTableSchema(configuration, tableName);
+    if (tableSchema != null) {
+      JsonArray current = SchemaRegistry.toJson(tableSchema.getFields());
+      result.add("bigquery", current);
+      result.addProperty("matches", cached.equals(current));
+    }
+    return result.toString();
+  }
+
+  /**
+   * Lists the BigQuery load jobs running on this instance, and those completed since the last call.
+   *
+   * @return json array containing the status, bytes and rows of each load
+   */
+  @GetMapping(value = "/v1/load_jobs", produces = "application/json;UTF-8")
+  public String getLoadJobs() {
+    return loadJobLedger.toJson().toString();
+  }
+
+  /**
+   * Exposes the time spent in each stage of the snapshot runs, and their rows, bytes and errors.
+   *
+   * @return the metrics in the Prometheus text format
+   */
+  @GetMapping(value = "/v1/metrics", produces = "text/plain; version=0.0.4; charset=utf-8")
+  public String getMetrics() {
+    return runMetrics.toPrometheus();
+  }
+
+  /**
+   * Claims the customers of an entity from the work items of today's run and runs its per-customer
+   * handler on them, until every customer is done or failed. Sent by the "leased" dispatch mode.
+   *
+   * @param entityName the name of the entity, e.g. AdGroups
+   * @return json object containing the number of customers in each state
+   */
+  @GetMapping(value = "/v1/work", produces = "application/json;UTF-8")
+  public String work(@RequestParam(name = "entity") String entityName)
+      throws InterruptedException {
+    if (workClaimStore == null) {
+      throw new IllegalStateException("The work items need the leased dispatch mode");
+    }
+    WorkClaimRunner runner =
+        new WorkClaimRunner(
+            workClaimStore,
+            getCustomerFanOut(),
+            properties.getWorkClaimSize(),
+            TimeUnit.SECONDS.toMillis(properties.getWorkLeaseSeconds()),
+            properties.getWorkMaxClaims());
+    EntityRefresh refresh = newRefresh(entityName);
+    WorkClaimStore.Counts counts = runner.run(refresh.today, entityName, refresh::extract);
+    JsonObject json = new JsonObject();
+    json.addProperty("pending", counts.getPending());
+    json.addProperty("claimed", counts.getClaimed());
+    json.addProperty("done", counts.getDone());
+    json.addProperty("failed", counts.getFailed());
+    return json.toString();
+  }
+
   /** Clear all list entities to avoid memory heap errors */
   @GetMapping(value = "/v1/clear", produces = "application/json;UTF-8")
   public void clearCustomerList() {
-    customerList = null;
+    hierarchyCrawler.invalidate();
+  }
+
+  /** @return the accounts under the main MCC, resolved again once the cached tree expires */
+  private AccountHierarchy getCustomerHierarchy() {
+    return hierarchyCrawler.getHierarchy(configuration.getGoogleAdsMccId());
+  }
+
+  /**
+   * @return the IDs of the accounts under the main MCC from which entities are extracted, managers
+   *     being left out
+   */
+  private List<String> getClientCustomerIds() {
+    CustomerRegistry registry = getCustomerHierarchy().getRegistry();
+    logger.info("[CreatineStarter] Customer registry: " + registry);
+    return registry.getIdsWithout(CustomerRegistry.Flag.MANAGER);
   }
 
   @EventListener(ApplicationReadyEvent.class)
   public void onStartup() {
+    schemaRegistry.warmUp(
+        CustomerClient.getDescriptor(),
+        Campaign.getDescriptor(),
+        AdGroup.getDescriptor(),
+        AdGroupAd.getDescriptor());
     System.out.println("Loading Customers on Startup");
     refreshCustomers();
   }
@@ -158,25 +1323,75 @@ public class CreatineStarter {
    * Makes calls to all subsequents entities This method is a shortcut to avoid calling the four
    * different methods below making the execution on Google App Engine simpler
    *
-   * <p>Those four tasks are not interchangeable. - AdGroupsAds and Campaigns needs Customers to be
-   * executed first. - AdGroups needs AdgroupAds to be executed first
+   * <p>Campaigns, AdGroupAds and AdGroups only need the Customers to be resolved first, they do
+   * not depend on each other.
    */
   @GetMapping(value = "/v1/get_all", produces = "application/json;UTF-8")
   public void refreshAll() {
-    queue.add(TaskOptions.Builder.withUrl("/v1/startlongprocess").method(TaskOptions.Method.GET));
+    if (isInProcessDispatch()) {
+      startLongProcess();
+    } else {
+      getQueue()
+          .add(TaskOptions.Builder.withUrl("/v1/startlongprocess").method(TaskOptions.Method.GET));
+    }
   }
 
-  /** Dummy method wrapping all calls to be executed inside a task queue */
+  /**
+   * Runs a whole snapshot. With the in-process dispatch mode, the steps of all the entities run as
+   * one {@link RunGraph}, each table being completed as soon as its customers are done; otherwise
+   * the refresh of each entity sends its tasks one after the other.
+   */
   @GetMapping(value = "/v1/startlongprocess", produces = "application/json;UTF-8")
   public void startLongProcess() {
     clearCustomerList();
-    refreshCustomers();
-    refreshCampaigns();
-    refreshAdGroupAds();
-    refreshAdGroups();
+    if (isInProcessDispatch()) {
+      snapshotSink.prepare(configuration.getBucketName());
+      buildSnapshotRun().start(getCustomerFanOut().getExecutor()).join();
+    } else {
+      refreshCustomers();
+      refreshCampaigns();
+      refreshAdGroupAds();
+      refreshAdGroups();
+    }
     clearCustomerList();
   }
 
+  /**
+   * Builds the graph of a snapshot: the account table, and for each entity the preparation of
+   * today's table, then one step per customer, then the completion of the table once all its
+   * customers are done. The entities do not depend on each other, so their steps overlap.
+   */
+  private RunGraph buildSnapshotRun() {
+    RunGraph run = new RunGraph("Snapshot");
+    run.add("Accounts", this::refreshCustomers);
+    List<String> customerIds = getClientCustomerIds();
+    if (customerIds.isEmpty()) {
+      logger.warn("[CreatineStarter] Could not get entities because Customer List was empty");
+      return run;
+    }
+    for (EntityRefresh refresh :
+        Arrays.asList(newCampaignsRefresh(), newAdGroupAdsRefresh(), newAdGroupsRefresh())) {
+      List<String> pendingCustomerIds = refresh.getPendingCustomers(customerIds);
+      if (pendingCustomerIds == null) {
+        continue;
+      }
+      // The customer steps of an entity start in the order they are added
+      pendingCustomerIds = scheduleLongestFirst(refresh.entityName, pendingCustomerIds);
+      RunGraph.Node prepare = run.add(refresh.entityName + "/prepare", refresh::prepare);
+      RunGraph.Node complete =
+          run.add(refresh.entityName + "/complete", () -> refresh.finish(refresh.complete()))
+              .requires(prepare);
+      for (String customerId : pendingCustomerIds) {
+        complete.awaits(
+            run.add(
+                    refresh.entityName + "/" + customerId,
+                    () -> refresh.extract(customerId))
+                .requires(prepare));
+      }
+    }
+    return run;
+  }
+
   /**
    * Retrieves the list of AdWords Customers, stores it on BigQuery and eventually returns the list
    * as a JSON object
@@ -187,26 +1402,31 @@ public class CreatineStarter {
   public String refreshCustomers() {
     logger.info("Starting getting Customers");
     String blobName = "accounts.json";
-    RetrieveCustomer retrieveCustomer = new RetrieveCustomer(googleAdsClient);
     String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
     String customerTable = configuration.getAccountTable().replace("[YYYYMMDD]", today);
 
-    // Pulling Customers from AdWords
-    customerList = retrieveCustomer.getSubAccountsFromMCCId(configuration.getGoogleAdsMccId());
+    // Pulling the tree of Customers from Google Ads
+    AccountHierarchy hierarchy = getCustomerHierarchy();
 
     // Transform to JSON
-    List<String> accountsToStore = retrieveCustomer.convertToNDJson(customerList);
+    List<String> accountsToStore = hierarchyCrawler.convertToNDJson(hierarchy);
+    String accounts = "[" + String.join(",", accountsToStore) + "]";
 
     // Write to GCS
-    gcStorage.createBucket(configuration.getBucketName());
-    gcStorage.writeToBucket(accountsToStore, blobName);
+    snapshotSink.prepare(configuration.getBucketName());
+    snapshotSink.writeToBucket(accountsToStore, blobName);
 
-    // Persist to BigQuery
-    Field[] fields = bQUtils.createFields(CustomerClientLink.getDescriptor().getFields());
-    bQUtils.loadJSONToBigQuery(configuration, customerTable, fields, blobName);
+    // Persist to BigQuery, unless the sink keeps the blobs offline
+    if (snapshotSink.isLoadable()) {
+      Schema schema = schemaRegistry.getSchema(CustomerClient.getDescriptor());
+      loadJobLedger.submit(
+          customerTable,
+          bQUtils.createLoadJobConfiguration(
+              configuration, customerTable, schema, Collections.singletonList(blobName)));
+    }
 
     logger.info("Finished getting Customers");
-    return new Gson().toJson(customerList);
+    return accounts;
   }
 
   /**
@@ -218,35 +1438,7 @@ public class CreatineStarter {
   @GetMapping(value = "/v1/get_campaigns", produces = "application/json;UTF-8")
   public String refreshCampaigns() {
     logger.info("Starting getting Campaigns");
-    Pattern regexpCustomerId = Pattern.compile("^customers/(\\d+)$");
-    String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
-
-    String campaignTable = configuration.getCampaignTable().replace("[YYYYMMDD]", today);
-
-    // Pull Campaigns from Google Ads for each Customer
-    if (!customerList.isEmpty()) {
-
-      // Delete the current table
-      bQUtils.deleteTable(configuration, campaignTable);
-
-      // Make sure the bucket exists
-      gcStorage.createBucket(configuration.getBucketName());
-
-      for (CustomerClientLink account : customerList) {
-        Matcher m = regexpCustomerId.matcher(account.getClientCustomer().getValue());
-        if (account.getStatus().getValueDescriptor().getName().equals("ACTIVE") && m.find()) {
-          String accountId = m.group(1);
-          TaskOptions task =
-              TaskOptions.Builder.withUrl("/v1/getCampaignsFromCustomerId")
-                  .method(TaskOptions.Method.GET)
-                  .param("customerID", accountId);
-          queue.addAsync(task);
-        }
-      }
-    } else {
-      logger.warn("[CreatineStarter] Could not get Campaigns because Customer List was empty");
-    }
-
+    refresh(newCampaignsRefresh());
     logger.info("Finished getting Campaigns");
     return "Finished getting Campaigns";
   }
@@ -259,22 +1451,7 @@ public class CreatineStarter {
    */
   @GetMapping(value = "/v1/getCampaignsFromCustomerId", produces = "application/json;UTF-8")
   public void getCampaignsFromCustomerId(@RequestParam(name = "customerID") String customerID) {
-
-    String blobName = "campaign_(index)_(chunk).json";
-    String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
-    String todaysBlob = String.format("%s_%s_%s", today, customerID, blobName);
-    String campaignTable = configuration.getCampaignTable().replace("[YYYYMMDD]", today);
-
-    // Create the schema of the table to BigQuery
-    Field[] fields = bQUtils.createFields(Campaign.getDescriptor().getFields());
-
-    RetrieveCampaign campaignsRetriever = new RetrieveCampaign(googleAdsClient);
-    List<String> gcsBlobs =
-        campaignsRetriever.getCampaignsFromCustomerId(customerID, gcStorage, todaysBlob);
-    for (int i = 0; i < gcsBlobs.size(); i++) {
-      logger.info("Uploading file " + gcsBlobs.get(i) + " to BigQuery");
-      bQUtils.loadJSONToBigQuery(configuration, campaignTable, fields, gcsBlobs.get(i));
-    }
+    newCampaignsRefresh().extract(customerID);
   }
 
   /**
@@ -285,36 +1462,8 @@ public class CreatineStarter {
    */
   @GetMapping(value = "/v1/get_adgroups", produces = "application/json;UTF-8")
   public String refreshAdGroups() {
-
     logger.info("Starting getting AdGroups");
-    String cleanCustomerId;
-    String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
-    String adGroupTable = configuration.getAdGroupTable().replace("[YYYYMMDD]", today);
-
-    // Pull AdGroups from Google Ads for each Customer
-    if (!customerList.isEmpty()) {
-
-      // Delete the current table
-      bQUtils.deleteTable(configuration, adGroupTable);
-
-      // Make sure the bucket exists
-      gcStorage.createBucket(configuration.getBucketName());
-
-      for (CustomerClientLink ccl : customerList) {
-        if (!ccl.getStatus().getValueDescriptor().getName().equals("INACTIVE")) {
-
-          cleanCustomerId = ccl.getClientCustomer().getValue().replace("customers/", "");
-
-          TaskOptions task =
-              TaskOptions.Builder.withUrl("/v1/getAdGroupsFromCustomerId")
-                  .method(TaskOptions.Method.GET)
-                  .param("customerID", cleanCustomerId);
-          queue.addAsync(task);
-        }
-      }
-    } else {
-      logger.warn("[CreatineStarter] Could not get AdGroups because Customer List was empty");
-    }
+    refresh(newAdGroupsRefresh());
     logger.info("Finished getting AdGroups");
     return "Finished getting AdGroups";
   }
@@ -327,22 +1476,7 @@ public class CreatineStarter {
    */
   @GetMapping(value = "/v1/getAdGroupsFromCustomerId", produces = "application/json;UTF-8")
   public void getAdGroupsFromCustomerId(@RequestParam(name = "customerID") String customerID) {
-
-    String blobName = "ad_group_(index)_(chunk).json";
-    String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
-    String todaysBlob = String.format("%s_%s_%s", today, customerID, blobName);
-    String adGroupTable = configuration.getAdGroupTable().replace("[YYYYMMDD]", today);
-
-    // Create the schema of the table to BigQuery
-    Field[] fields = bQUtils.createFields(AdGroup.getDescriptor().getFields());
-
-    RetrieveAdGroup adGroupsRetriever = new RetrieveAdGroup(googleAdsClient);
-    List<String> gcsBlobs =
-        adGroupsRetriever.getAdGroupsFromCustomerId(customerID, gcStorage, todaysBlob);
-    for (int i = 0; i < gcsBlobs.size(); i++) {
-      logger.info("Uploading file " + gcsBlobs.get(i) + " to BigQuery");
-      bQUtils.loadJSONToBigQuery(configuration, adGroupTable, fields, gcsBlobs.get(i));
-    }
+    newAdGroupsRefresh().extract(customerID);
   }
 
   /**
@@ -354,37 +1488,7 @@ public class CreatineStarter {
   @GetMapping(value = "/v1/get_adgroupads", produces = "application/json;UTF-8")
   public String refreshAdGroupAds() {
     logger.info("Starting getting AdGroupAds");
-
-    String cleanCustomerId;
-
-    String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
-    String adGroupAdTable = configuration.getAdGroupAdTable().replace("[YYYYMMDD]", today);
-
-    // Pull AdGroupAds from Google Ads for each Customer
-    if (!customerList.isEmpty()) {
-
-      // Delete the current table
-      bQUtils.deleteTable(configuration, adGroupAdTable);
-
-      // Make sure the bucket exists
-      gcStorage.createBucket(configuration.getBucketName());
-
-      for (CustomerClientLink ccl : customerList) {
-        if (!ccl.getStatus().getValueDescriptor().getName().equals("INACTIVE")) {
-
-          cleanCustomerId = ccl.getClientCustomer().getValue().replace("customers/", "");
-
-          TaskOptions task =
-              TaskOptions.Builder.withUrl("/v1/getAdGroupAdsFromCustomerId")
-                  .method(TaskOptions.Method.GET)
-                  .param("customerID", cleanCustomerId);
-          queue.addAsync(task);
-        }
-      }
-    } else {
-      logger.warn("[CreatineStarter] Could not get AdGroupAds because Customer List was empty");
-    }
-
+    refresh(newAdGroupAdsRefresh());
     logger.info("Finished getting AdGroupAds");
     return "Finished getting AdGroupAds";
   }
@@ -397,21 +1501,6 @@ public class CreatineStarter {
    */
   @GetMapping(value = "/v1/getAdGroupAdsFromCustomerId", produces = "application/json;UTF-8")
   public void getAdGroupAdsFromCustomerId(@RequestParam(name = "customerID") String customerID) {
-
-    String blobName = "ad_group_ad_(index)_(chunk).json";
-    String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
-    String todaysBlob = String.format("%s_%s_%s", today, customerID, blobName);
-    String adGroupAdTable = configuration.getAdGroupAdTable().replace("[YYYYMMDD]", today);
-
-    // Create the schema of the table to BigQuery
-    Field[] fields = bQUtils.createFields(AdGroupAd.getDescriptor().getFields());
-
-    RetrieveAd adGroupAdsRetriever = new RetrieveAd(googleAdsClient);
-    List<String> gcsBlobs =
-        adGroupAdsRetriever.getAdsFromCustomerId(customerID, gcStorage, todaysBlob);
-    for (int i = 0; i < gcsBlobs.size(); i++) {
-      logger.info("Uploading file " + gcsBlobs.get(i) + " to BigQuery");
-      bQUtils.loadJSONToBigQuery(configuration, adGroupAdTable, fields, gcsBlobs.get(i));
-    }
+    newAdGroupAdsRefresh().extract(customerID);
   }
 }
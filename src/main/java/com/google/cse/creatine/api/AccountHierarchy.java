@@ -0,0 +1,132 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.api;
+
+import com.google.ads.googleads.v3.resources.CustomerClient;
+import com.google.cse.creatine.utils.CustomerRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The accounts under a manager account, as resolved by the {@link AccountHierarchyCrawler}. An
+ * account linked to several managers of the tree appears once, under the first manager found.
+ */
+public class AccountHierarchy {
+
+  private final String rootId;
+  private final long resolvedAt = System.currentTimeMillis();
+  private final Map<String, CustomerClient> accounts = new LinkedHashMap<>();
+  private final Map<String, List<String>> children = new LinkedHashMap<>();
+  private final List<String> failedManagers = new ArrayList<>();
+
+  private CustomerRegistry registry;
+
+  AccountHierarchy(String rootId) {
+    this.rootId = rootId;
+  }
+
+  /**
+   * Adds a client account under a manager.
+   *
+   * @return whether the account was not in the tree yet
+   */
+  boolean add(String managerId, CustomerClient client) {
+    String clientId = String.valueOf(client.getId().getValue());
+    if (accounts.containsKey(clientId)) {
+      return false;
+    }
+    accounts.put(clientId, client);
+    children.computeIfAbsent(managerId, key -> new ArrayList<>()).add(clientId);
+    return true;
+  }
+
+  /** Records a manager whose clients could not be read, and are missing from the tree. */
+  void addFailedManager(String managerId) {
+    failedManagers.add(managerId);
+  }
+
+  /** @return whether the clients of every manager of the tree were read */
+  public boolean isComplete() {
+    return failedManagers.isEmpty();
+  }
+
+  /** @return the IDs of the managers whose clients could not be read */
+  public List<String> getFailedManagers() {
+    return Collections.unmodifiableList(failedManagers);
+  }
+
+  /** @return the ID of the manager account at the root of the tree */
+  public String getRootId() {
+    return rootId;
+  }
+
+  /** @return when the tree was resolved, in milliseconds since the epoch */
+  public long getResolvedAt() {
+    return resolvedAt;
+  }
+
+  /** @return every account under the root, managers included, in breadth-first order */
+  public List<CustomerClient> getAccounts() {
+    return new ArrayList<>(accounts.values());
+  }
+
+  /**
+   * @return the accounts under the root as a registry, built on the first call once the tree is
+   *     resolved
+   */
+  public synchronized CustomerRegistry getRegistry() {
+    if (registry == null) {
+      if (accounts.isEmpty()) {
+        registry = CustomerRegistry.EMPTY;
+      } else {
+        CustomerRegistry.Builder builder = CustomerRegistry.builder();
+        for (CustomerClient account : accounts.values()) {
+          List<CustomerRegistry.Flag> flags = new ArrayList<>();
+          if (account.getManager().getValue()) {
+            flags.add(CustomerRegistry.Flag.MANAGER);
+          }
+          if (account.getHidden().getValue()) {
+            flags.add(CustomerRegistry.Flag.HIDDEN);
+          }
+          if (account.getTestAccount().getValue()) {
+            flags.add(CustomerRegistry.Flag.TEST_ACCOUNT);
+          }
+          builder.add(account.getId().getValue(), flags.toArray(new CustomerRegistry.Flag[0]));
+        }
+        registry = builder.build();
+      }
+    }
+    return registry;
+  }
+
+  /**
+   * @param managerId the ID of a manager account of the tree
+   * @return the IDs of the accounts directly under the manager
+   */
+  public List<String> getChildren(String managerId) {
+    List<String> clientIds = children.get(managerId);
+    return clientIds == null
+        ? Collections.<String>emptyList()
+        : Collections.unmodifiableList(clientIds);
+  }
+
+  /** @return the number of accounts under the root */
+  public int size() {
+    return accounts.size();
+  }
+}
@@ -0,0 +1,213 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.api;
+
+import com.google.ads.googleads.v3.resources.CustomerClient;
+import com.google.ads.googleads.v3.services.GoogleAdsRow;
+import com.google.cse.creatine.utils.ProtoJsonSerializer;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves the whole tree of accounts under a manager account, nested managers included.
+ *
+ * <p>The tree is walked breadth-first with customer_client, whose level and manager fields tell
+ * the direct clients of a manager and which of them are managers in turn. All the managers of a
+ * level are queried in parallel, with at most {@code concurrency} queries in flight. The resolved
+ * tree is cached for {@code ttlMillis}, so that the refresh of each entity reuses it, unless the
+ * clients of some managers could not be read: such a tree is only used by the call which crawled
+ * it, and the next call crawls again.
+ */
+public class AccountHierarchyCrawler {
+
+  private static final Logger logger = Logger.getLogger(AccountHierarchyCrawler.class.getName());
+
+  private static final ProtoJsonSerializer SERIALIZER = ProtoJsonSerializer.create();
+
+  private static final String QUERY =
+      "SELECT customer_client.resource_name, "
+          + "         customer_client.client_customer, "
+          + "         customer_client.id, "
+          + "         customer_client.level, "
+          + "         customer_client.manager, "
+          + "         customer_client.descriptive_name, "
+          + "         customer_client.currency_code, "
+          + "         customer_client.time_zone, "
+          + "         customer_client.hidden, "
+          + "         customer_client.test_account "
+          + " FROM customer_client "
+          + " WHERE customer_client.level <= 1";
+
+  private final GoogleAdsServicePool servicePool;
+  private final SearchMode searchMode;
+  private final int concurrency;
+  private final long ttlMillis;
+
+  private AccountHierarchy cached;
+
+  /**
+   * @param servicePool hands out the clients of the Google Ads API
+   * @param searchMode how rows are pulled from the API
+   * @param concurrency the maximum number of managers queried at the same time
+   * @param ttlMillis how long a resolved tree is reused
+   */
+  public AccountHierarchyCrawler(
+      GoogleAdsServicePool servicePool, SearchMode searchMode, int concurrency, long ttlMillis) {
+    this.servicePool = servicePool;
+    this.searchMode = searchMode;
+    this.concurrency = concurrency;
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * Gets the tree under a manager account, from the cache while it is fresh.
+   *
+   * @param rootId the ID of the manager account
+   * @return the tree of accounts, possibly incomplete if some managers could not be read
+   */
+  public synchronized AccountHierarchy getHierarchy(String rootId) {
+    if (cached != null
+        && cached.getRootId().equals(rootId)
+        && System.currentTimeMillis() - cached.getResolvedAt() < ttlMillis) {
+      logger.info("[AccountHierarchyCrawler] Reusing the tree of " + cached.size() + " accounts");
+      return cached;
+    }
+    AccountHierarchy hierarchy = crawl(rootId);
+    if (hierarchy.isComplete()) {
+      cached = hierarchy;
+    } else {
+      cached = null;
+      logger.warning(
+          "[AccountHierarchyCrawler] Not caching the tree, the accounts under "
+              + hierarchy.getFailedManagers() + " are missing");
+    }
+    return hierarchy;
+  }
+
+  /** Drops the cached tree, so that the next call resolves it again. */
+  public synchronized void invalidate() {
+    cached = null;
+  }
+
+  /**
+   * Resolves the tree under a manager account from the API.
+   *
+   * @param rootId the ID of the manager account
+   * @return the tree of accounts, without the clients of the managers which could not be read
+   */
+  public AccountHierarchy crawl(String rootId) {
+    logger.info("[AccountHierarchyCrawler] Crawling the accounts under " + rootId);
+    AccountHierarchy hierarchy = new AccountHierarchy(rootId);
+    AtomicInteger threadCount = new AtomicInteger();
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            concurrency,
+            runnable -> {
+              Thread thread =
+                  new Thread(runnable, "hierarchy-crawler-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    try (GoogleAdsServicePool.Lease lease = servicePool.lease()) {
+      List<String> managers = new ArrayList<>();
+      managers.add(rootId);
+      int depth = 0;
+      while (!managers.isEmpty()) {
+        Map<String, Future<List<CustomerClient>>> clients = new LinkedHashMap<>();
+        for (String managerId : managers) {
+          clients.put(
+              managerId,
+              executor.submit(() -> getDirectClients(lease, managerId)));
+        }
+        List<String> nextManagers = new ArrayList<>();
+        for (Map.Entry<String, Future<List<CustomerClient>>> entry : clients.entrySet()) {
+          for (CustomerClient client : get(hierarchy, entry.getKey(), entry.getValue())) {
+            if (hierarchy.add(entry.getKey(), client) && client.getManager().getValue()) {
+              nextManagers.add(String.valueOf(client.getId().getValue()));
+            }
+          }
+        }
+        depth++;
+        logger.info(
+            "[AccountHierarchyCrawler] " + hierarchy.size() + " accounts within " + depth
+                + " levels");
+        managers = nextManagers;
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return hierarchy;
+  }
+
+  /**
+   * Transforms the accounts of a tree into a corresponding ArrayList containing each account as a
+   * JSON.
+   *
+   * @param hierarchy a tree of accounts
+   * @return the accounts as JSON rows
+   */
+  public List<String> convertToNDJson(AccountHierarchy hierarchy) {
+    List<String> accounts = new ArrayList<>();
+    for (CustomerClient account : hierarchy.getAccounts()) {
+      try {
+        accounts.add(SERIALIZER.print(account));
+      } catch (InvalidProtocolBufferException e) {
+        logger.log(Level.SEVERE, "[AccountHierarchyCrawler] Could not parse Customer", e);
+      }
+    }
+    return accounts;
+  }
+
+  /** @return the accounts directly under a manager, without the manager itself */
+  private List<CustomerClient> getDirectClients(
+      GoogleAdsServicePool.Lease lease, String managerId) {
+    List<CustomerClient> clients = new ArrayList<>();
+    for (GoogleAdsRow googleAdsRow : lease.search(searchMode, managerId, QUERY)) {
+      CustomerClient client = googleAdsRow.getCustomerClient();
+      if (client.getLevel().getValue() == 1) {
+        clients.add(client);
+      }
+    }
+    return clients;
+  }
+
+  private List<CustomerClient> get(
+      AccountHierarchy hierarchy, String managerId, Future<List<CustomerClient>> clients) {
+    try {
+      return clients.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.warning(
+          "[AccountHierarchyCrawler] Interrupted before getting the accounts under " + managerId);
+    } catch (ExecutionException e) {
+      logger.log(
+          Level.SEVERE,
+          "[AccountHierarchyCrawler] Could not get the accounts under " + managerId,
+          e.getCause());
+    }
+    hierarchy.addFailedManager(managerId);
+    return new ArrayList<>();
+  }
+}
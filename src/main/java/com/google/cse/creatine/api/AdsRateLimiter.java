@@ -0,0 +1,112 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A token bucket spacing out the calls to the Google Ads API made with the same developer token
+ * and login customer, whose quota they share.
+ *
+ * <p>Each Search page or SearchStream request takes a token; tokens come back at a steady rate up
+ * to a burst. When the API answers that the quota is exhausted, the bucket is paused for the delay
+ * the server asked for, so that every customer in flight backs off together instead of each one
+ * finding out on its own.
+ */
+public class AdsRateLimiter {
+
+  private static final Logger logger = Logger.getLogger(AdsRateLimiter.class.getName());
+
+  // One bucket per developer token and login customer, whichever pool asks for it
+  private static final ConcurrentMap<String, AdsRateLimiter> accounts = new ConcurrentHashMap<>();
+
+  private final boolean limited;
+  private final double tokensPerNano;
+  private final double burst;
+  private double tokens;
+  private long refilledAt = System.nanoTime();
+  private long pausedUntil = refilledAt;
+
+  private AdsRateLimiter(boolean limited, double callsPerSecond, int burst) {
+    this.limited = limited;
+    this.tokensPerNano = callsPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.burst = Math.max(1, burst);
+    this.tokens = this.burst;
+  }
+
+  /**
+   * Gets the bucket of an account, creating it with the given rate on first use.
+   *
+   * @param developerToken the developer token of the calls
+   * @param loginCustomerId the login customer of the calls, or null if there is none
+   * @param callsPerSecond the steady rate of the calls, 0 or less not to limit them
+   * @param burst the number of calls which can be made at once after a quiet period
+   * @return the bucket
+   */
+  public static AdsRateLimiter forAccount(
+      String developerToken, Long loginCustomerId, double callsPerSecond, int burst) {
+    return accounts.computeIfAbsent(
+        developerToken + "/" + loginCustomerId,
+        key -> callsPerSecond > 0 ? new AdsRateLimiter(true, callsPerSecond, burst) : unlimited());
+  }
+
+  /** @return a bucket which never limits the calls, but still pauses them when asked to */
+  public static AdsRateLimiter unlimited() {
+    return new AdsRateLimiter(false, 0, 0);
+  }
+
+  /** Waits for a token. */
+  public void acquire() throws InterruptedException {
+    while (true) {
+      long waitNanos;
+      synchronized (this) {
+        long now = System.nanoTime();
+        if (now - pausedUntil < 0) {
+          waitNanos = pausedUntil - now;
+        } else if (!limited) {
+          return;
+        } else {
+          tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+          refilledAt = now;
+          if (tokens >= 1) {
+            tokens--;
+            return;
+          }
+          waitNanos = (long) Math.ceil((1 - tokens) / tokensPerNano);
+        }
+      }
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  /**
+   * Holds every call back for a while, e.g. after the quota of the account was exhausted.
+   *
+   * @param millis the time to wait before the next call
+   */
+  public synchronized void pause(long millis) {
+    long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    if (until - pausedUntil > 0) {
+      pausedUntil = until;
+      // The calls resume with an empty bucket rather than a burst
+      tokens = Math.min(tokens, 0);
+      refilledAt = until;
+      logger.info("[AdsRateLimiter] Pausing the Google Ads API calls for " + millis + " ms");
+    }
+  }
+}
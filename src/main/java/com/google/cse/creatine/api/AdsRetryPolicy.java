@@ -0,0 +1,121 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.api;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.rpc.RetryInfo;
+import io.grpc.Status;
+import io.grpc.protobuf.StatusProto;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a failed Google Ads API call is tried again, and after how long.
+ *
+ * <p>Exhausted quotas, unavailable servers, deadlines and internal errors are transient; any other
+ * error, such as an invalid query or a missing permission, fails at once. The delay before the next
+ * attempt is the one the server asked for in the RetryInfo of the error if any, otherwise an
+ * exponential backoff with full jitter, so that the customers failing together do not come back
+ * together. A call whose server asks for more than the maximum backoff, e.g. as a daily quota is
+ * exhausted, fails at once rather than holding its customer that long.
+ */
+public class AdsRetryPolicy {
+
+  private static final Set<Status.Code> TRANSIENT =
+      EnumSet.of(
+          Status.Code.RESOURCE_EXHAUSTED,
+          Status.Code.UNAVAILABLE,
+          Status.Code.DEADLINE_EXCEEDED,
+          Status.Code.ABORTED,
+          Status.Code.INTERNAL);
+
+  private final int maxAttempts;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+
+  /**
+   * @param maxAttempts the number of attempts of a call, 1 not to retry
+   * @param initialBackoffMillis the backoff after the first failure, doubled after each failure
+   * @param maxBackoffMillis the maximum backoff
+   */
+  public AdsRetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  /** @return the policy used when none is configured */
+  public static AdsRetryPolicy defaults() {
+    return new AdsRetryPolicy(5, TimeUnit.SECONDS.toMillis(1), TimeUnit.MINUTES.toMillis(1));
+  }
+
+  /**
+   * @param error the error of a call
+   * @param attempt the number of the failed attempt, starting at 1
+   * @return whether the call should be tried again
+   */
+  public boolean shouldRetry(Throwable error, int attempt) {
+    if (attempt >= maxAttempts || !TRANSIENT.contains(Status.fromThrowable(error).getCode())) {
+      return false;
+    }
+    Long serverDelay = getRetryDelayMillis(error);
+    return serverDelay == null || serverDelay <= maxBackoffMillis;
+  }
+
+  /** @return whether the error means that the quota of the account is exhausted */
+  public static boolean isQuotaExhausted(Throwable error) {
+    return Status.fromThrowable(error).getCode() == Status.Code.RESOURCE_EXHAUSTED;
+  }
+
+  /**
+   * @param error the error of a call
+   * @param attempt the number of the failed attempt, starting at 1
+   * @return the time to wait before the next attempt
+   */
+  public long getDelayMillis(Throwable error, int attempt) {
+    Long serverDelay = getRetryDelayMillis(error);
+    if (serverDelay != null) {
+      return Math.min(serverDelay, maxBackoffMillis);
+    }
+    long backoff = initialBackoffMillis;
+    for (int i = 1; i < attempt && backoff < maxBackoffMillis; i++) {
+      backoff *= 2;
+    }
+    return ThreadLocalRandom.current().nextLong(Math.min(backoff, maxBackoffMillis) + 1);
+  }
+
+  /** @return the delay asked for by the server, or null if the error does not carry one */
+  private static Long getRetryDelayMillis(Throwable error) {
+    com.google.rpc.Status status = StatusProto.fromThrowable(error);
+    if (status == null) {
+      return null;
+    }
+    for (Any detail : status.getDetailsList()) {
+      if (detail.is(RetryInfo.class)) {
+        try {
+          com.google.protobuf.Duration delay = detail.unpack(RetryInfo.class).getRetryDelay();
+          return TimeUnit.SECONDS.toMillis(delay.getSeconds())
+              + TimeUnit.NANOSECONDS.toMillis(delay.getNanos());
+        } catch (InvalidProtocolBufferException e) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,118 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.api;
+
+import com.google.ads.googleads.lib.GoogleAdsClient;
+import com.google.ads.googleads.v3.enums.ChangeStatusResourceTypeEnum.ChangeStatusResourceType;
+import com.google.ads.googleads.v3.resources.ChangeStatus;
+import com.google.ads.googleads.v3.services.GoogleAdsRow;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the change_status resource of a customer to find the AdGroups or AdGroupAds which changed
+ * since a point in time.
+ *
+ * <p>change_status only covers the last 90 days and returns at most MAX_CHANGES rows per query. A
+ * change window which does not fit in these limits is reported as exceeded, in which case the
+ * customer must be extracted in full.
+ */
+public class ChangeStatusReader {
+
+  private static final Logger logger = Logger.getLogger(ChangeStatusReader.class.getName());
+
+  /** The maximum number of rows returned by a change_status query. */
+  public static final int MAX_CHANGES = 10000;
+
+  // change_status dates are in the time zone of the account, so the window starts one day earlier
+  // than the UTC watermark and ends one day later than now
+  private static final long TIME_ZONE_MARGIN_MILLIS = TimeUnit.DAYS.toMillis(1);
+  private static final long MAX_WINDOW_MILLIS =
+      TimeUnit.DAYS.toMillis(90) - TIME_ZONE_MARGIN_MILLIS;
+
+  private GoogleAdsServicePool servicePool;
+
+  public ChangeStatusReader(GoogleAdsClient googleAdsClient) {
+    this(GoogleAdsServicePool.perCall(googleAdsClient));
+  }
+
+  public ChangeStatusReader(GoogleAdsServicePool servicePool) {
+    this.servicePool = servicePool;
+  }
+
+  /**
+   * Gets the resources of a type which changed in a customer since a point in time, including the
+   * added and removed ones.
+   *
+   * @param customerId a customer ID
+   * @param resourceType AD_GROUP or AD_GROUP_AD
+   * @param sinceMillis the start of the window, in milliseconds since the epoch
+   * @return the resource names of the changed resources, or null if the change window is exceeded
+   */
+  public Set<String> getChangedResourceNames(
+      String customerId, ChangeStatusResourceType resourceType, long sinceMillis) {
+    long now = System.currentTimeMillis();
+    if (now - sinceMillis > MAX_WINDOW_MILLIS) {
+      logger.info("[ChangeStatusReader] Change window exceeded for customer " + customerId);
+      return null;
+    }
+    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    String query =
+        "SELECT change_status.resource_name, "
+            + "         change_status.resource_type, "
+            + "         change_status.ad_group, "
+            + "         change_status.ad_group_ad, "
+            + "         change_status.last_change_date_time "
+            + " FROM change_status "
+            + " WHERE change_status.last_change_date_time >= '"
+            + dateFormat.format(new Date(sinceMillis - TIME_ZONE_MARGIN_MILLIS))
+            + "' AND change_status.last_change_date_time <= '"
+            + dateFormat.format(new Date(now + TIME_ZONE_MARGIN_MILLIS))
+            + "' AND change_status.resource_type = "
+            + resourceType.name()
+            + " ORDER BY change_status.last_change_date_time"
+            + " LIMIT "
+            + MAX_CHANGES;
+
+    Set<String> resourceNames = new HashSet<>();
+    int rows = 0;
+    try (GoogleAdsServicePool.Lease lease = servicePool.lease()) {
+      for (GoogleAdsRow googleAdsRow : lease.search(SearchMode.SEARCH, customerId, query)) {
+        ChangeStatus changeStatus = googleAdsRow.getChangeStatus();
+        resourceNames.add(
+            resourceType == ChangeStatusResourceType.AD_GROUP
+                ? changeStatus.getAdGroup().getValue()
+                : changeStatus.getAdGroupAd().getValue());
+        rows++;
+      }
+    } catch (Exception e) {
+      logger.log(
+          Level.SEVERE, "[ChangeStatusReader] Could not get changes of customer " + customerId, e);
+      return null;
+    }
+    if (rows >= MAX_CHANGES) {
+      logger.info("[ChangeStatusReader] Too many changes for customer " + customerId);
+      return null;
+    }
+    return resourceNames;
+  }
+}
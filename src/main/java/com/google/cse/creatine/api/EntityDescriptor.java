@@ -0,0 +1,98 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.api;
+
+import com.google.ads.googleads.v3.services.GoogleAdsRow;
+import com.google.cse.creatine.utils.ProtoJsonSerializer;
+import com.google.protobuf.Message;
+import java.util.Collection;
+import java.util.function.Function;
+
+/**
+ * Describes a Google Ads entity to be extracted by the {@link ExtractionPipeline}: the GAQL query
+ * selecting it, how to pick it out of a GoogleAdsRow and how to print it as JSON.
+ *
+ * @param <T> the resource type of the entity
+ */
+public final class EntityDescriptor<T extends Message> {
+
+  private final String name;
+  private final String query;
+  private final Function<GoogleAdsRow, T> extractor;
+  private final ProtoJsonSerializer serializer;
+  private final long bytesPerCheckpoint;
+
+  /**
+   * @param name the name of the entity, used in logs
+   * @param query the GAQL query selecting the entity
+   * @param extractor picks the entity out of a GoogleAdsRow
+   * @param serializer prints the entity as a single line of JSON
+   * @param bytesPerCheckpoint the bytes written after which a new set of blobs is started
+   */
+  public EntityDescriptor(
+      String name,
+      String query,
+      Function<GoogleAdsRow, T> extractor,
+      ProtoJsonSerializer serializer,
+      long bytesPerCheckpoint) {
+    this.name = name;
+    this.query = query;
+    this.extractor = extractor;
+    this.serializer = serializer;
+    this.bytesPerCheckpoint = bytesPerCheckpoint;
+  }
+
+  /**
+   * Narrows the entity down to some resources, e.g. the ones changed since the last snapshot. The
+   * query of the entity must not have a WHERE clause.
+   *
+   * @param resourceNameField the GAQL field of the resource name, e.g. ad_group.resource_name
+   * @param resourceNames the resource names of the resources, at least one
+   * @return the entity selecting only these resources
+   */
+  public EntityDescriptor<T> restrictedTo(
+      String resourceNameField, Collection<String> resourceNames) {
+    StringBuilder restrictedQuery =
+        new StringBuilder(query).append(" WHERE ").append(resourceNameField).append(" IN (");
+    String separator = "";
+    for (String resourceName : resourceNames) {
+      restrictedQuery.append(separator).append('\'').append(resourceName).append('\'');
+      separator = ", ";
+    }
+    restrictedQuery.append(")");
+    return new EntityDescriptor<>(
+        name, restrictedQuery.toString(), extractor, serializer, bytesPerCheckpoint);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getQuery() {
+    return query;
+  }
+
+  public ProtoJsonSerializer getSerializer() {
+    return serializer;
+  }
+
+  public long getBytesPerCheckpoint() {
+    return bytesPerCheckpoint;
+  }
+
+  public T extract(GoogleAdsRow googleAdsRow) {
+    return extractor.apply(googleAdsRow);
+  }
+}
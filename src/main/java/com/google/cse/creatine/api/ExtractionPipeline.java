@@ -0,0 +1,423 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.api;
+
+import com.google.ads.googleads.lib.GoogleAdsClient;
+import com.google.ads.googleads.v3.services.GoogleAdsRow;
+import com.google.cse.creatine.utils.RowEncoder;
+import com.google.cse.creatine.utils.RowWriter;
+import com.google.cse.creatine.utils.RunMetrics;
+import com.google.cse.creatine.utils.RunMetrics.Stage;
+import com.google.cse.creatine.utils.SnapshotSink;
+import com.google.cse.creatine.utils.SpillBuffer;
+import com.google.cse.creatine.utils.SpillCodec;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Extracts an entity of a customer into Cloud Storage blobs or another {@link RowWriter}.
+ *
+ * <p>The extraction runs as three concurrent stages connected by bounded queues: the calling thread
+ * fetches rows from the Google Ads API, a second thread prints them as JSON and a third one writes
+ * them out. Rows travel between stages in batches, and a full queue blocks the stage
+ * feeding it, so memory stays bounded when a downstream stage is slower.
+ *
+ * <p>The encoded rows are handed to the write stage through a {@link SpillBuffer}, which spills
+ * them to a memory-mapped temporary file instead of blocking once its heap batches are full. A
+ * large customer whose blobs upload slower than the API returns its rows thus keeps a bounded heap
+ * without holding back its Google Ads stream.
+ *
+ * <p>A customer whose rows cannot all be fetched, once the transient errors were tried again by
+ * {@link GoogleAdsServicePool.Lease#search}, or written fails with the error instead of returning
+ * part of its blobs, so that it is not taken for done.
+ *
+ * <p>Each stage records the time it spent working, not waiting for the other stages, into the
+ * {@link RunMetrics} of the pipeline.
+ */
+public class ExtractionPipeline {
+
+  private static final Logger logger = Logger.getLogger(ExtractionPipeline.class.getName());
+
+  private static final int BATCH_SIZE = 500;
+  private static final int QUEUE_CAPACITY = 16;
+
+  private static final ExecutorService stages =
+      Executors.newCachedThreadPool(
+          runnable -> {
+            Thread thread = new Thread(runnable, "extraction-stage");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private GoogleAdsServicePool servicePool;
+  private boolean checkingSerializerParity;
+  private RunMetrics runMetrics;
+  private long maxSpillBytes;
+
+  public ExtractionPipeline(GoogleAdsClient googleAdsClient) {
+    this(GoogleAdsServicePool.perCall(googleAdsClient), false, new RunMetrics(), 0);
+  }
+
+  /**
+   * @param servicePool hands out the clients of the Google Ads API
+   * @param checkingSerializerParity whether each row is also printed with JsonFormat and compared
+   *     with the output of the entity's serializer, the JsonFormat output being kept on mismatch
+   * @param runMetrics records the stages of each extraction
+   * @param maxSpillBytes the size of the spill file of an extraction after which the encoding
+   *     waits for the writes, 0 to never spill
+   */
+  public ExtractionPipeline(
+      GoogleAdsServicePool servicePool,
+      boolean checkingSerializerParity,
+      RunMetrics runMetrics,
+      long maxSpillBytes) {
+    this.servicePool = servicePool;
+    this.checkingSerializerParity = checkingSerializerParity;
+    this.runMetrics = runMetrics;
+    this.maxSpillBytes = maxSpillBytes;
+  }
+
+  /**
+   * Retrieves an entity from a customer ID and uploads it to Cloud Storage.
+   *
+   * @param entity the entity to extract
+   * @param searchMode how rows are pulled from the API
+   * @param customerId a customer ID
+   * @param sink the sink of the blobs
+   * @param blobBaseName the basename to be used to create the blobs in Cloud Storage
+   * @return the blobs' path to be uploaded to BigQuery
+   */
+  public <T extends Message> List<String> extract(
+      EntityDescriptor<T> entity,
+      SearchMode searchMode,
+      String customerId,
+      SnapshotSink sink,
+      String blobBaseName) {
+    return extract(
+        entity,
+        searchMode,
+        customerId,
+        loop -> sink.openWriter(blobBaseName.replace("(index)", String.valueOf(loop))));
+  }
+
+  /**
+   * Retrieves an entity from a customer ID and writes it as JSON with the given writers.
+   *
+   * @param entity the entity to extract
+   * @param searchMode how rows are pulled from the API
+   * @param customerId a customer ID
+   * @param writers opens the writer of each checkpoint, given the checkpoint number
+   * @return the blobs written, if the writers write to Cloud Storage
+   */
+  public <T extends Message> List<String> extract(
+      EntityDescriptor<T> entity,
+      SearchMode searchMode,
+      String customerId,
+      IntFunction<? extends RowWriter<? super String>> writers) {
+    RowEncoder<T, String> printer =
+        new RowEncoder<T, String>() {
+          @Override
+          public String encode(T item) throws IOException {
+            return printRow(entity, item);
+          }
+
+          @Override
+          public SpillCodec<String> getSpillCodec() {
+            return SpillCodec.STRINGS;
+          }
+        };
+    return this.<T, String>extract(entity, searchMode, customerId, printer, writers);
+  }
+
+  /**
+   * Retrieves an entity from a customer ID and writes it with the given encoder and writers.
+   *
+   * @param entity the entity to extract
+   * @param searchMode how rows are pulled from the API
+   * @param customerId a customer ID
+   * @param encoder encodes each item as a row
+   * @param writers opens the writer of each checkpoint, given the checkpoint number
+   * @return the blobs written, if the writers write to Cloud Storage
+   */
+  public <T extends Message, R> List<String> extract(
+      EntityDescriptor<T> entity,
+      SearchMode searchMode,
+      String customerId,
+      RowEncoder<? super T, ? extends R> encoder,
+      IntFunction<? extends RowWriter<? super R>> writers) {
+    String tag = "[" + entity.getName() + "] ";
+    RunMetrics.Extraction metrics = runMetrics.startExtraction(entity.getName(), customerId);
+    BlockingQueue<List<T>> items = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    SpillBuffer<R> rows =
+        new SpillBuffer<>(
+            tag + customerId, QUEUE_CAPACITY, BATCH_SIZE, maxSpillBytes, spillCodec(encoder));
+    Future<List<String>> uploader = stages.submit(() -> upload(entity, rows, writers, metrics));
+    Future<Void> serializer = stages.submit(() -> serialize(entity, encoder, items, rows, metrics));
+
+    try {
+      long fetchStart = System.nanoTime();
+      long waitNanos = 0;
+      try (GoogleAdsServicePool.Lease lease = servicePool.lease()) {
+        List<T> batch = new ArrayList<>(BATCH_SIZE);
+        for (GoogleAdsRow googleAdsRow : lease.search(searchMode, customerId, entity.getQuery())) {
+          batch.add(entity.extract(googleAdsRow));
+          if (batch.size() == BATCH_SIZE) {
+            waitNanos += put(items, batch, serializer);
+            batch = new ArrayList<>(BATCH_SIZE);
+          }
+        }
+        if (!batch.isEmpty()) {
+          waitNanos += put(items, batch, serializer);
+        }
+      } catch (RuntimeException e) {
+        // The search already tried again the calls which failed with a transient error
+        metrics.recordError(Stage.FETCH);
+        logger.severe(tag + "Could not get " + entity.getName() + " from CID " + customerId);
+        throw e;
+      }
+      metrics.recordStage(Stage.FETCH, System.nanoTime() - fetchStart - waitNanos);
+      put(items, Collections.<T>emptyList(), serializer);
+      List<String> blobNames = await(uploader, serializer);
+      metrics.finish();
+      return blobNames;
+    } catch (InterruptedException | ExecutionException | RuntimeException e) {
+      logger.severe(tag + "Extraction failed for CID " + customerId);
+      logger.log(Level.SEVERE, e.getMessage(), e);
+      serializer.cancel(true);
+      uploader.cancel(true);
+      rows.close();
+      // Fail the customer rather than have it taken for done with part of its rows
+      throw unchecked(e);
+    }
+  }
+
+  /** @return the cause of a failed extraction, as an unchecked exception */
+  private static RuntimeException unchecked(Exception e) {
+    if (e instanceof InterruptedException) {
+      Thread.currentThread().interrupt();
+    }
+    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+    if (cause instanceof RuntimeException) {
+      return (RuntimeException) cause;
+    }
+    if (cause instanceof IOException) {
+      return new UncheckedIOException((IOException) cause);
+    }
+    return new IllegalStateException(cause);
+  }
+
+  /** Gets the spill codec of an encoder, whose rows are all of the type it encodes. */
+  @SuppressWarnings("unchecked")
+  private static <R> SpillCodec<R> spillCodec(RowEncoder<?, ? extends R> encoder) {
+    return (SpillCodec<R>) encoder.getSpillCodec();
+  }
+
+  /**
+   * Encodes the items, an empty batch marking the end of the stream. Fails the buffer of the rows
+   * on any error, so that the upload stage stops instead of waiting for the end of the rows.
+   */
+  private <T extends Message, R> Void serialize(
+      EntityDescriptor<T> entity,
+      RowEncoder<? super T, ? extends R> encoder,
+      BlockingQueue<List<T>> items,
+      SpillBuffer<R> rows,
+      RunMetrics.Extraction metrics)
+      throws IOException, InterruptedException {
+    long encodeNanos = 0;
+    try {
+      List<T> batch;
+      while (!(batch = items.take()).isEmpty()) {
+        long batchStart = System.nanoTime();
+        List<R> encoded = new ArrayList<>(batch.size());
+        for (T item : batch) {
+          try {
+            encoded.add(encoder.encode(item));
+          } catch (IOException e) {
+            metrics.recordError(Stage.ENCODE);
+            logger.log(Level.SEVERE, "[" + entity.getName() + "] Could not parse item", e);
+          }
+        }
+        encodeNanos += System.nanoTime() - batchStart;
+        if (!encoded.isEmpty()) {
+          rows.put(encoded);
+        }
+      }
+      rows.end();
+      return null;
+    } catch (Throwable e) {
+      metrics.recordError(Stage.ENCODE);
+      rows.fail(e);
+      throw e;
+    } finally {
+      metrics.recordStage(Stage.ENCODE, encodeNanos);
+    }
+  }
+
+  /**
+   * Prints an item as JSON. With the parity check on, the row is compared with the JsonFormat
+   * output of the same item, which wins on mismatch.
+   */
+  private <T extends Message> String printRow(EntityDescriptor<T> entity, T item)
+      throws InvalidProtocolBufferException {
+    String row = entity.getSerializer().print(item);
+    if (!checkingSerializerParity) {
+      return row;
+    }
+    String expected = entity.getSerializer().getPrinter().print(item);
+    if (!expected.equals(row)) {
+      int index = 0;
+      while (index < row.length()
+          && index < expected.length()
+          && row.charAt(index) == expected.charAt(index)) {
+        index++;
+      }
+      logger.severe(
+          "[" + entity.getName() + "] Serializer output differs from JsonFormat at character "
+              + index + ": " + expected);
+      return expected;
+    }
+    return row;
+  }
+
+  /**
+   * Writes the rows, opening a new writer at each checkpoint, once the current writer wrote the
+   * bytes per checkpoint of the entity. Closes the buffer of the rows on exit, so that the encoding
+   * fails instead of waiting for a stage which stopped.
+   */
+  private <R> List<String> upload(
+      EntityDescriptor<?> entity,
+      SpillBuffer<R> rows,
+      IntFunction<? extends RowWriter<? super R>> writers,
+      RunMetrics.Extraction metrics)
+      throws Exception {
+    String tag = "[" + entity.getName() + "] ";
+    List<String> gcsBlobs = new ArrayList<>();
+    int i = 0;
+    int loop = 0;
+    long writeNanos = 0;
+    RowWriter<? super R> writer = null;
+    try {
+      long start = System.nanoTime();
+      writer = writers.apply(0);
+      writeNanos += System.nanoTime() - start;
+      List<R> batch;
+      while (!(batch = rows.take()).isEmpty()) {
+        start = System.nanoTime();
+        for (R row : batch) {
+          writer.writeRow(row);
+          i++;
+          if (writer.getBytesWritten() >= entity.getBytesPerCheckpoint()) {
+            logger.info(tag + "Saving checkpoint at " + i + " position");
+            RowWriter<? super R> full = writer;
+            // Not closed again on failure
+            writer = null;
+            full.close();
+            gcsBlobs.addAll(full.getBlobNames());
+            metrics.addBytes(full.getBytesWritten());
+            loop++;
+            writer = writers.apply(loop);
+          }
+        }
+        writeNanos += System.nanoTime() - start;
+        metrics.addRows(batch.size());
+      }
+      logger.info(tag + "Saving last items");
+      start = System.nanoTime();
+      RowWriter<? super R> last = writer;
+      writer = null;
+      last.close();
+      writeNanos += System.nanoTime() - start;
+      gcsBlobs.addAll(last.getBlobNames());
+      metrics.addBytes(last.getBytesWritten());
+    } catch (Exception e) {
+      if (!rows.isFailed()) {
+        // The failures of the encoding are recorded by its stage
+        metrics.recordError(Stage.WRITE);
+      }
+      if (writer != null) {
+        // Releases the upload or stream of the writer, its rows being dropped with the customer
+        try {
+          writer.close();
+        } catch (Exception closing) {
+          e.addSuppressed(closing);
+        }
+      }
+      throw e;
+    } finally {
+      metrics.recordStage(Stage.WRITE, writeNanos);
+      metrics.addSpilledBytes(rows.getSpilledBytes());
+      rows.close();
+    }
+    return gcsBlobs;
+  }
+
+  /**
+   * Waits for the result of the last stage. Fails as soon as an upstream stage fails, instead of
+   * waiting forever for a stage which will never get the end of its rows.
+   *
+   * @param last the last stage
+   * @param upstream the stages feeding it
+   * @return the result of the last stage
+   */
+  private static <V> V await(Future<V> last, Future<?>... upstream)
+      throws InterruptedException, ExecutionException {
+    while (true) {
+      for (Future<?> stage : upstream) {
+        if (stage.isDone()) {
+          stage.get();
+        }
+      }
+      try {
+        return last.get(1, TimeUnit.SECONDS);
+      } catch (TimeoutException e) {
+        // Check the upstream stages again
+      }
+    }
+  }
+
+  /**
+   * Hands a batch over to the next stage, waiting while its queue is full. Fails if the next stage
+   * stopped, instead of waiting forever.
+   *
+   * @return the time spent waiting, in nanoseconds
+   */
+  private static <E> long put(BlockingQueue<List<E>> queue, List<E> batch, Future<?> consumer)
+      throws InterruptedException, ExecutionException {
+    long start = System.nanoTime();
+    while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+      if (consumer.isDone()) {
+        consumer.get();
+        throw new IllegalStateException("Downstream stage ended before the end of the stream");
+      }
+    }
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,255 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.api;
+
+import com.google.ads.googleads.v3.common.ExpandedTextAdInfo;
+import com.google.ads.googleads.v3.common.PolicyTopicEntry;
+import com.google.ads.googleads.v3.enums.AdGroupAdStatusEnum.AdGroupAdStatus;
+import com.google.ads.googleads.v3.enums.AdGroupStatusEnum.AdGroupStatus;
+import com.google.ads.googleads.v3.enums.AdGroupTypeEnum.AdGroupType;
+import com.google.ads.googleads.v3.enums.AdTypeEnum.AdType;
+import com.google.ads.googleads.v3.enums.CampaignStatusEnum.CampaignStatus;
+import com.google.ads.googleads.v3.enums.ManagerLinkStatusEnum.ManagerLinkStatus;
+import com.google.ads.googleads.v3.enums.PolicyApprovalStatusEnum.PolicyApprovalStatus;
+import com.google.ads.googleads.v3.enums.PolicyReviewStatusEnum.PolicyReviewStatus;
+import com.google.ads.googleads.v3.enums.PolicyTopicEntryTypeEnum.PolicyTopicEntryType;
+import com.google.ads.googleads.v3.resources.Ad;
+import com.google.ads.googleads.v3.resources.AdGroup;
+import com.google.ads.googleads.v3.resources.AdGroupAd;
+import com.google.ads.googleads.v3.resources.AdGroupAdPolicySummary;
+import com.google.ads.googleads.v3.resources.Campaign;
+import com.google.ads.googleads.v3.resources.CustomerClient;
+import com.google.ads.googleads.v3.resources.CustomerClientLink;
+import com.google.ads.googleads.v3.services.GoogleAdsRow;
+import com.google.protobuf.BoolValue;
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.StringValue;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Answers the GAQL queries of the app with generated rows instead of calling the Google Ads API, so
+ * that the extraction can be run offline, e.g. with the local or memory snapshot sinks.
+ *
+ * <p>The manager account has a fixed number of client accounts, each with the same number of
+ * campaigns, ad groups and ads. The rows of a customer are generated again on each query, with a
+ * seed taken from the customer ID, so that every run of a customer gives the same rows without
+ * holding them in memory. Nothing ever changes, so change_status queries get no rows.
+ */
+public class FakeAdsBackend {
+
+  private static final Pattern FROM =
+      Pattern.compile("\\bFROM\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+  private static final long FIRST_CLIENT_ID = 2000000000L;
+  private static final String[] WORDS = {
+    "shoes", "running", "free", "delivery", "sale", "today", "best", "price", "official", "store",
+    "new", "collection", "order", "online", "&", "<b>", "\u00e9t\u00e9", "\"quoted\""
+  };
+
+  private final String managerId;
+  private final int clients;
+  private final int rowsPerCustomer;
+
+  /**
+   * @param managerId the ID of the manager account at the top of the hierarchy
+   * @param clients the number of client accounts under the manager
+   * @param rowsPerCustomer the number of campaigns, ad groups and ads of each client
+   */
+  public FakeAdsBackend(String managerId, int clients, int rowsPerCustomer) {
+    this.managerId = managerId;
+    this.clients = clients;
+    this.rowsPerCustomer = rowsPerCustomer;
+  }
+
+  /**
+   * Runs a GAQL query against a customer.
+   *
+   * @param customerId a customer ID
+   * @param query the GAQL query, only its resource being looked at
+   * @return the rows of the resource for the customer
+   */
+  public Iterable<GoogleAdsRow> search(String customerId, String query) {
+    Matcher from = FROM.matcher(query);
+    if (!from.find()) {
+      throw new IllegalArgumentException("No resource in query: " + query);
+    }
+    long customer = Long.parseLong(customerId);
+    switch (from.group(1).toLowerCase()) {
+      case "customer_client":
+        if (!customerId.equals(managerId)) {
+          return rows(1, i -> customerClientRow(customer, customer, 0, false));
+        }
+        return rows(
+            clients + 1,
+            i ->
+                i == 0
+                    ? customerClientRow(customer, customer, 0, true)
+                    : customerClientRow(customer, FIRST_CLIENT_ID + i - 1, 1, false));
+      case "customer_client_link":
+        return customerId.equals(managerId)
+            ? rows(clients, i -> customerClientLinkRow(customer, FIRST_CLIENT_ID + i))
+            : Collections.emptyList();
+      case "campaign":
+        return rows(rowsPerCustomer, i -> campaignRow(customer, i));
+      case "ad_group":
+        return rows(rowsPerCustomer, i -> adGroupRow(customer, i));
+      case "ad_group_ad":
+        return seededRows(customer, (random, i) -> adGroupAdRow(customer, i, random));
+      case "change_status":
+        return Collections.emptyList();
+      default:
+        throw new IllegalArgumentException("The fake backend does not serve: " + query);
+    }
+  }
+
+  private static GoogleAdsRow customerClientRow(
+      long managerId, long clientId, int level, boolean manager) {
+    return GoogleAdsRow.newBuilder()
+        .setCustomerClient(
+            CustomerClient.newBuilder()
+                .setResourceName("customers/" + managerId + "/customerClients/" + clientId)
+                .setClientCustomer(StringValue.of("customers/" + clientId))
+                .setId(Int64Value.of(clientId))
+                .setLevel(Int64Value.of(level))
+                .setManager(BoolValue.of(manager))
+                .setDescriptiveName(StringValue.of("Fake account " + clientId))
+                .setCurrencyCode(StringValue.of("EUR"))
+                .setTimeZone(StringValue.of("Europe/Paris"))
+                .setHidden(BoolValue.of(false))
+                .setTestAccount(BoolValue.of(true)))
+        .build();
+  }
+
+  private static GoogleAdsRow customerClientLinkRow(long managerId, long clientId) {
+    return GoogleAdsRow.newBuilder()
+        .setCustomerClientLink(
+            CustomerClientLink.newBuilder()
+                .setResourceName("customers/" + managerId + "/customerClientLinks/" + clientId)
+                .setClientCustomer(StringValue.of("customers/" + clientId))
+                .setManagerLinkId(Int64Value.of(clientId - FIRST_CLIENT_ID))
+                .setStatus(ManagerLinkStatus.ACTIVE))
+        .build();
+  }
+
+  private static GoogleAdsRow campaignRow(long customerId, int index) {
+    return GoogleAdsRow.newBuilder()
+        .setCampaign(
+            Campaign.newBuilder()
+                .setResourceName("customers/" + customerId + "/campaigns/" + index)
+                .setId(Int64Value.of(index))
+                .setName(StringValue.of("Campaign " + index))
+                .setStatus(index % 10 == 0 ? CampaignStatus.PAUSED : CampaignStatus.ENABLED))
+        .build();
+  }
+
+  private static GoogleAdsRow adGroupRow(long customerId, int index) {
+    return GoogleAdsRow.newBuilder()
+        .setAdGroup(
+            AdGroup.newBuilder()
+                .setResourceName("customers/" + customerId + "/adGroups/" + index)
+                .setId(Int64Value.of(index))
+                .setName(StringValue.of("Ad group " + index))
+                .setStatus(AdGroupStatus.ENABLED)
+                .setType(AdGroupType.SEARCH_STANDARD)
+                .setCampaign(StringValue.of("customers/" + customerId + "/campaigns/" + index))
+                .setCpcBidMicros(Int64Value.of(1000000L + index)))
+        .build();
+  }
+
+  private static GoogleAdsRow adGroupAdRow(long customerId, int index, Random random) {
+    // One ad in ten is disapproved, the case the app is watching for
+    boolean disapproved = random.nextInt(10) == 0;
+    AdGroupAdPolicySummary.Builder policySummary =
+        AdGroupAdPolicySummary.newBuilder()
+            .setReviewStatus(PolicyReviewStatus.REVIEWED)
+            .setApprovalStatus(
+                disapproved ? PolicyApprovalStatus.DISAPPROVED : PolicyApprovalStatus.APPROVED);
+    if (disapproved) {
+      policySummary.addPolicyTopicEntries(
+          PolicyTopicEntry.newBuilder()
+              .setTopic(StringValue.of("DESTINATION_NOT_WORKING"))
+              .setType(PolicyTopicEntryType.PROHIBITED));
+    }
+    return GoogleAdsRow.newBuilder()
+        .setAdGroupAd(
+            AdGroupAd.newBuilder()
+                .setResourceName(
+                    "customers/" + customerId + "/adGroupAds/" + index + "~" + (1000000L + index))
+                .setStatus(AdGroupAdStatus.ENABLED)
+                .setAdGroup(StringValue.of("customers/" + customerId + "/adGroups/" + index))
+                .setAd(
+                    Ad.newBuilder()
+                        .setId(Int64Value.of(1000000L + index))
+                        .setType(AdType.EXPANDED_TEXT_AD)
+                        .addFinalUrls(StringValue.of("https://www.example.com/p/" + index))
+                        .setExpandedTextAd(
+                            ExpandedTextAdInfo.newBuilder()
+                                .setHeadlinePart1(StringValue.of(sentence(random, 3)))
+                                .setHeadlinePart2(StringValue.of(sentence(random, 3)))
+                                .setDescription(StringValue.of(sentence(random, 10)))))
+                .setPolicySummary(policySummary))
+        .build();
+  }
+
+  private static String sentence(Random random, int words) {
+    StringBuilder sentence = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      if (i > 0) {
+        sentence.append(' ');
+      }
+      sentence.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return sentence.toString();
+  }
+
+  /** Generates rows whose content is drawn from a random seeded by the customer ID. */
+  private Iterable<GoogleAdsRow> seededRows(long customerId, SeededRow row) {
+    return () -> {
+      Random random = new Random(customerId);
+      return rows(rowsPerCustomer, i -> row.build(random, i)).iterator();
+    };
+  }
+
+  /** Generates rows on the fly, each time the rows are iterated. */
+  private static Iterable<GoogleAdsRow> rows(int count, IntFunction<GoogleAdsRow> row) {
+    return () ->
+        new Iterator<GoogleAdsRow>() {
+          private int next;
+
+          @Override
+          public boolean hasNext() {
+            return next < count;
+          }
+
+          @Override
+          public GoogleAdsRow next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            return row.apply(next++);
+          }
+        };
+  }
+
+  /** Builds the row at an index from a seeded random. */
+  private interface SeededRow {
+    GoogleAdsRow build(Random random, int index);
+  }
+}
@@ -0,0 +1,223 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.api;
+
+import com.google.ads.googleads.lib.GoogleAdsClient;
+import com.google.ads.googleads.v3.services.GoogleAdsRow;
+import com.google.ads.googleads.v3.services.GoogleAdsServiceClient;
+import com.google.ads.googleads.v3.services.GoogleAdsServiceSettings;
+import com.google.api.gax.rpc.TransportChannelProvider;
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.threeten.bp.Duration;
+
+/**
+ * Hands out the GoogleAdsServiceClient used to query the Google Ads API.
+ *
+ * <p>A shared pool keeps a single thread-safe client for the life of the application, whose gRPC
+ * channels come from {@link #channelProvider}: a fixed number of channels used in turn, kept open
+ * between customers by keep-alive pings. Customers therefore skip the channel setup, TLS handshake
+ * and credential refresh paid by a new client. A per-call pool creates and closes a client for each
+ * lease instead, as the retrievers used to do.
+ *
+ * <p>The queries run through {@link Lease#search} share the {@link AdsRateLimiter} of the pool and
+ * are tried again on transient errors according to its {@link AdsRetryPolicy}. A fake pool answers
+ * them from a {@link FakeAdsBackend} instead, without any client.
+ */
+public class GoogleAdsServicePool implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(GoogleAdsServicePool.class.getName());
+
+  // The default of the Google Ads client library, as rows of large customers come in big messages
+  private static final int MAX_INBOUND_MESSAGE_SIZE = 64 * 1024 * 1024;
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+  private final GoogleAdsClient googleAdsClient;
+  private final GoogleAdsServiceClient sharedClient;
+  private final AdsRateLimiter rateLimiter;
+  private final AdsRetryPolicy retryPolicy;
+  private final FakeAdsBackend fakeBackend;
+
+  private GoogleAdsServicePool(
+      GoogleAdsClient googleAdsClient,
+      boolean shared,
+      AdsRateLimiter rateLimiter,
+      AdsRetryPolicy retryPolicy,
+      FakeAdsBackend fakeBackend) {
+    this.googleAdsClient = googleAdsClient;
+    this.sharedClient =
+        shared ? googleAdsClient.getLatestVersion().createGoogleAdsServiceClient() : null;
+    this.rateLimiter = rateLimiter;
+    this.retryPolicy = retryPolicy;
+    this.fakeBackend = fakeBackend;
+  }
+
+  /**
+   * Creates a pool sharing one client, which must be closed on shutdown, without rate limit.
+   *
+   * @param googleAdsClient the Google Ads client, built with a {@link #channelProvider}
+   */
+  public static GoogleAdsServicePool shared(GoogleAdsClient googleAdsClient) {
+    return shared(googleAdsClient, 0, 1, AdsRetryPolicy.defaults());
+  }
+
+  /**
+   * Creates a pool sharing one client, which must be closed on shutdown.
+   *
+   * @param googleAdsClient the Google Ads client, built with a {@link #channelProvider}
+   * @param callsPerSecond the rate of the calls made with the developer token and login customer
+   *     of the client, 0 not to limit them
+   * @param burst the number of calls which can be made at once after a quiet period
+   * @param retryPolicy decides which failed calls are tried again
+   */
+  public static GoogleAdsServicePool shared(
+      GoogleAdsClient googleAdsClient,
+      double callsPerSecond,
+      int burst,
+      AdsRetryPolicy retryPolicy) {
+    return new GoogleAdsServicePool(
+        googleAdsClient,
+        true,
+        AdsRateLimiter.forAccount(
+            googleAdsClient.getDeveloperToken(),
+            googleAdsClient.getLoginCustomerId(),
+            callsPerSecond,
+            burst),
+        retryPolicy,
+        null);
+  }
+
+  /**
+   * Creates a pool creating a client per lease, without rate limit.
+   *
+   * @param googleAdsClient the Google Ads client
+   */
+  public static GoogleAdsServicePool perCall(GoogleAdsClient googleAdsClient) {
+    return new GoogleAdsServicePool(
+        googleAdsClient, false, AdsRateLimiter.unlimited(), AdsRetryPolicy.defaults(), null);
+  }
+
+  /**
+   * Creates a pool answering the queries from generated rows, to run offline.
+   *
+   * @param fakeBackend generates the rows of the queries
+   */
+  public static GoogleAdsServicePool fake(FakeAdsBackend fakeBackend) {
+    return new GoogleAdsServicePool(
+        null, false, AdsRateLimiter.unlimited(), AdsRetryPolicy.defaults(), fakeBackend);
+  }
+
+  /**
+   * Builds the provider of the gRPC channels of the Google Ads clients.
+   *
+   * @param channels the number of channels, each customer call using the next one
+   * @param keepAliveSeconds the idle time after which a channel is pinged to keep it open
+   * @return the provider, to be set on the GoogleAdsClient builder
+   */
+  public static TransportChannelProvider channelProvider(int channels, long keepAliveSeconds) {
+    return GoogleAdsServiceSettings.defaultGrpcTransportProviderBuilder()
+        .setPoolSize(channels)
+        .setKeepAliveTime(Duration.ofSeconds(keepAliveSeconds))
+        .setKeepAliveTimeout(Duration.ofSeconds(keepAliveSeconds))
+        .setKeepAliveWithoutCalls(true)
+        .setMaxInboundMessageSize(MAX_INBOUND_MESSAGE_SIZE)
+        .build();
+  }
+
+  /** @return a lease on a client, to be closed once the calls are done */
+  public Lease lease() {
+    if (sharedClient != null || fakeBackend != null) {
+      return new Lease(this, sharedClient, false);
+    }
+    return new Lease(
+        this, googleAdsClient.getLatestVersion().createGoogleAdsServiceClient(), true);
+  }
+
+  /** Closes the shared client and its channels. */
+  @Override
+  public void close() {
+    if (sharedClient != null) {
+      sharedClient.shutdown();
+      try {
+        if (!sharedClient.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          sharedClient.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        sharedClient.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+      logger.info("Closed the shared Google Ads service client");
+    }
+  }
+
+  /** A client borrowed from the pool. */
+  public static final class Lease implements AutoCloseable {
+
+    private final GoogleAdsServicePool pool;
+    private final GoogleAdsServiceClient client;
+    private final boolean owned;
+    private final Queue<ResumableSearch> searches = new ConcurrentLinkedQueue<>();
+
+    private Lease(GoogleAdsServicePool pool, GoogleAdsServiceClient client, boolean owned) {
+      this.pool = pool;
+      this.client = client;
+      this.owned = owned;
+    }
+
+    /** @return the client, null in a fake pool */
+    public GoogleAdsServiceClient getClient() {
+      return client;
+    }
+
+    /**
+     * Runs a GAQL query against a customer with the client, within the rate limit of the pool and
+     * trying its calls again on transient errors.
+     *
+     * @param searchMode how rows are pulled from the API
+     * @param customerId a customer ID
+     * @param query the GAQL query
+     * @return the rows, to be iterated while the lease is open, whose iteration throws the error
+     *     of a call which failed for good
+     */
+    public Iterable<GoogleAdsRow> search(SearchMode searchMode, String customerId, String query) {
+      if (pool.fakeBackend != null) {
+        return pool.fakeBackend.search(customerId, query);
+      }
+      ResumableSearch search =
+          new ResumableSearch(
+              client, searchMode, customerId, query, pool.rateLimiter, pool.retryPolicy);
+      searches.add(search);
+      return search;
+    }
+
+    /**
+     * Gives the client back, closing it unless it is shared, once the streams of the searches left
+     * before their end are cancelled.
+     */
+    @Override
+    public void close() {
+      ResumableSearch search;
+      while ((search = searches.poll()) != null) {
+        search.close();
+      }
+      if (owned) {
+        client.close();
+      }
+    }
+  }
+}
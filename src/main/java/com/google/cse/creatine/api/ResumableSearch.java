@@ -0,0 +1,243 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.api;
+
+import com.google.ads.googleads.v3.services.GoogleAdsRow;
+import com.google.ads.googleads.v3.services.GoogleAdsServiceClient;
+import com.google.ads.googleads.v3.services.SearchGoogleAdsRequest;
+import com.google.ads.googleads.v3.services.SearchGoogleAdsResponse;
+import com.google.ads.googleads.v3.services.SearchGoogleAdsStreamRequest;
+import com.google.ads.googleads.v3.services.SearchGoogleAdsStreamResponse;
+import com.google.api.gax.rpc.ServerStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Runs a GAQL query through an {@link AdsRateLimiter}, trying the calls failing with a transient
+ * error again as long as the {@link AdsRetryPolicy} allows it, and resuming where they failed.
+ *
+ * <p>A Search query resumes from the page token of the page which failed. A SearchStream query has
+ * no such token, so it is sent again and the rows already returned are skipped; the API returns
+ * the rows of a query in the same order as long as the account does not change in the meantime.
+ * Once a call fails for good, its error is thrown to the caller rather than ending the rows early,
+ * so that a customer is never taken for done with part of its rows. Closing the search cancels the
+ * SearchStream calls of the iterations left before their end, e.g. as a later stage failed.
+ */
+final class ResumableSearch implements Iterable<GoogleAdsRow>, AutoCloseable {
+
+  private static final Logger logger = Logger.getLogger(ResumableSearch.class.getName());
+
+  private final GoogleAdsServiceClient client;
+  private final SearchMode searchMode;
+  private final String customerId;
+  private final String query;
+  private final AdsRateLimiter rateLimiter;
+  private final AdsRetryPolicy retryPolicy;
+  private final Set<ServerStream<?>> openStreams = ConcurrentHashMap.newKeySet();
+
+  ResumableSearch(
+      GoogleAdsServiceClient client,
+      SearchMode searchMode,
+      String customerId,
+      String query,
+      AdsRateLimiter rateLimiter,
+      AdsRetryPolicy retryPolicy) {
+    this.client = client;
+    this.searchMode = searchMode;
+    this.customerId = customerId;
+    this.query = query;
+    this.rateLimiter = rateLimiter;
+    this.retryPolicy = retryPolicy;
+  }
+
+  @Override
+  public Iterator<GoogleAdsRow> iterator() {
+    return searchMode == SearchMode.SEARCH ? new PagedRows() : new StreamedRows();
+  }
+
+  /** Cancels the streams still open, whose rows will not be read. */
+  @Override
+  public void close() {
+    for (ServerStream<?> stream : openStreams) {
+      stream.cancel();
+    }
+    openStreams.clear();
+  }
+
+  /** Iterates over the rows of the current page or batch, calling the API for the next ones. */
+  private abstract class Rows implements Iterator<GoogleAdsRow> {
+
+    Iterator<GoogleAdsRow> rows = Collections.emptyIterator();
+    long returned = 0;
+    private int attempt = 0;
+
+    /**
+     * Moves to the next page or batch.
+     *
+     * @return false once there are no more rows
+     */
+    abstract boolean advance();
+
+    /** Gets ready to resume after a failed call. */
+    abstract void reset();
+
+    @Override
+    public boolean hasNext() {
+      while (true) {
+        try {
+          if (rows.hasNext()) {
+            return true;
+          }
+          if (!advance()) {
+            return false;
+          }
+          attempt = 0;
+        } catch (RuntimeException e) {
+          retry(e);
+        }
+      }
+    }
+
+    @Override
+    public GoogleAdsRow next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      returned++;
+      return rows.next();
+    }
+
+    /** Waits before the next attempt, or throws the error if there is none. */
+    private void retry(RuntimeException error) {
+      attempt++;
+      if (!retryPolicy.shouldRetry(error, attempt)) {
+        throw error;
+      }
+      long delayMillis = retryPolicy.getDelayMillis(error, attempt);
+      if (AdsRetryPolicy.isQuotaExhausted(error)) {
+        rateLimiter.pause(delayMillis);
+      }
+      logger.warning(
+          "[ResumableSearch] Attempt " + attempt + " failed for customer " + customerId + " after "
+              + returned + " rows, trying again in " + delayMillis + " ms: " + error);
+      reset();
+      rows = Collections.emptyIterator();
+      try {
+        Thread.sleep(delayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw error;
+      }
+    }
+
+    void acquire() {
+      try {
+        rateLimiter.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for the rate limiter", e);
+      }
+    }
+  }
+
+  /** The pages of a Search request, each one being a call. */
+  private final class PagedRows extends Rows {
+
+    private String pageToken = "";
+    private boolean started = false;
+
+    @Override
+    boolean advance() {
+      if (started && pageToken.isEmpty()) {
+        return false;
+      }
+      acquire();
+      SearchGoogleAdsResponse page =
+          client
+              .searchCallable()
+              .call(
+                  SearchGoogleAdsRequest.newBuilder()
+                      .setCustomerId(customerId)
+                      .setQuery(query)
+                      .setPageToken(pageToken)
+                      .build());
+      started = true;
+      pageToken = page.getNextPageToken();
+      rows = page.getResultsList().iterator();
+      return true;
+    }
+
+    @Override
+    void reset() {
+      // The page which failed is asked for again with the same token
+    }
+  }
+
+  /** The batches of a SearchStream request, which is sent again after a failure. */
+  private final class StreamedRows extends Rows {
+
+    private ServerStream<SearchGoogleAdsStreamResponse> stream;
+    private Iterator<SearchGoogleAdsStreamResponse> batches;
+
+    @Override
+    boolean advance() {
+      long skipped = 0;
+      if (stream == null) {
+        acquire();
+        stream =
+            client
+                .searchStreamCallable()
+                .call(
+                    SearchGoogleAdsStreamRequest.newBuilder()
+                        .setCustomerId(customerId)
+                        .setQuery(query)
+                        .build());
+        openStreams.add(stream);
+        batches = stream.iterator();
+        // After a failure, the rows already returned come first
+        skipped = returned;
+      }
+      while (batches.hasNext()) {
+        List<GoogleAdsRow> batch = batches.next().getResultsList();
+        if (skipped >= batch.size()) {
+          skipped -= batch.size();
+          continue;
+        }
+        rows = batch.subList((int) skipped, batch.size()).iterator();
+        return true;
+      }
+      if (skipped > 0) {
+        throw new IllegalStateException(
+            "The stream of customer " + customerId + " ended before the rows already returned");
+      }
+      openStreams.remove(stream);
+      return false;
+    }
+
+    @Override
+    void reset() {
+      if (stream != null) {
+        stream.cancel();
+        openStreams.remove(stream);
+        stream = null;
+      }
+    }
+  }
+}
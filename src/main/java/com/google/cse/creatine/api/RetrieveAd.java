@@ -17,16 +17,16 @@ package com.google.cse.creatine.api;
 import com.google.ads.googleads.lib.GoogleAdsClient;
 import com.google.ads.googleads.v3.resources.AdGroupAd;
 import com.google.ads.googleads.v3.services.GoogleAdsRow;
-import com.google.ads.googleads.v3.services.GoogleAdsServiceClient;
-import com.google.ads.googleads.v3.services.GoogleAdsServiceClient.SearchPagedResponse;
-import com.google.ads.googleads.v3.services.SearchGoogleAdsRequest;
-import com.google.cse.creatine.utils.GoogleCloudStorageUtils;
+import com.google.cse.creatine.utils.ProtoJsonSerializer;
+import com.google.cse.creatine.utils.RowEncoder;
+import com.google.cse.creatine.utils.RowWriter;
+import com.google.cse.creatine.utils.SnapshotSink;
 import com.google.protobuf.InvalidProtocolBufferException;
-import com.google.protobuf.util.JsonFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.logging.Level;
+import java.util.function.IntFunction;
 import java.util.logging.Logger;
 
 /** Wraps API calls to retrieve AdGroupAds. */
@@ -34,75 +34,97 @@ public class RetrieveAd {
 
   private static final Logger logger = Logger.getLogger(RetrieveAd.class.getName());
 
-  private GoogleAdsClient googleAdsClient;
+  // Rows are chunked by size, so every entity starts a new set of blobs after the same amount
+  private static final long BYTES_PER_CHECKPOINT = 1024L * 1024 * 1024;
 
-  private final Integer MAX_PER_LOOP = 50000;
+  /** The AdGroupAds extracted by the pipeline. */
+  public static final EntityDescriptor<AdGroupAd> AD_GROUP_ADS =
+      new EntityDescriptor<>(
+          "AdGroupAds",
+          "SELECT "
+              + "         ad_group_ad.ad.id,"
+              + "         ad_group_ad.resource_name,"
+              + "         ad_group_ad.status,"
+              + "         ad_group_ad.ad_group,"
+              + "         ad_group_ad.resource_name,"
+              + "         ad_group_ad.policy_summary"
+              + " FROM ad_group_ad ",
+          GoogleAdsRow::getAdGroupAd,
+          ProtoJsonSerializer.create(),
+          BYTES_PER_CHECKPOINT);
+
+  private ExtractionPipeline pipeline;
+  private SearchMode searchMode;
+  private EntityDescriptor<AdGroupAd> entity = AD_GROUP_ADS;
 
   public RetrieveAd(GoogleAdsClient googleAdsClient) {
-    this.googleAdsClient = googleAdsClient;
+    this(googleAdsClient, SearchMode.SEARCH);
+  }
+
+  public RetrieveAd(GoogleAdsClient googleAdsClient, SearchMode searchMode) {
+    this(new ExtractionPipeline(googleAdsClient), searchMode);
+  }
+
+  public RetrieveAd(ExtractionPipeline pipeline, SearchMode searchMode) {
+    this.pipeline = pipeline;
+    this.searchMode = searchMode;
+  }
+
+  /**
+   * Restricts the extraction to some AdGroupAds, e.g. the ones changed since the last snapshot.
+   *
+   * @param resourceNames the resource names of the AdGroupAds, at least one.
+   * @return this retriever.
+   */
+  public RetrieveAd onlyResourceNames(Collection<String> resourceNames) {
+    entity = AD_GROUP_ADS.restrictedTo("ad_group_ad.resource_name", resourceNames);
+    return this;
   }
 
   /**
    * Retrieves AdGroupAds from a customer ID.
    *
    * @param customerId a customer ID.
-   * @param gcStorage the GoogleCloudStorageUtils object.
+   * @param sink the sink of the blobs.
    * @param blobBaseName the basename to be used to create the blobs in Cloud Storage.
    * @return JsonArray containing the blobs' path to be uploaded to BigQuery.
    */
   public List<String> getAdsFromCustomerId(
-      String customerId, GoogleCloudStorageUtils gcStorage, String blobBaseName) {
-    List<AdGroupAd> itemsList = new ArrayList<AdGroupAd>();
-    List<String> gcsBlobs = new ArrayList<String>();
-
+      String customerId, SnapshotSink sink, String blobBaseName) {
     logger.info("[RetrieveAd] Get Google Ads AdGroupAds");
     logger.info("[RetrieveAd] Retrieving AdGroupsAds for customer " + customerId);
-    SearchGoogleAdsRequest requestAdGroupAds =
-        SearchGoogleAdsRequest.newBuilder()
-            .setCustomerId(customerId)
-            .setQuery(
-                "SELECT "
-                    + "         ad_group_ad.ad.id,"
-                    + "         ad_group_ad.resource_name,"
-                    + "         ad_group_ad.status,"
-                    + "         ad_group_ad.ad_group,"
-                    + "         ad_group_ad.resource_name,"
-                    + "         ad_group_ad.policy_summary"
-                    + " FROM ad_group_ad ")
-            .build();
+    return pipeline.extract(entity, searchMode, customerId, sink, blobBaseName);
+  }
 
-    try (GoogleAdsServiceClient googleAdsServiceClient =
-        googleAdsClient.getLatestVersion().createGoogleAdsServiceClient()) {
-      SearchPagedResponse searchPagedResponse = googleAdsServiceClient.search(requestAdGroupAds);
-      Integer i = 0;
-      Integer loop = 0;
-      for (GoogleAdsRow googleAdsRow : searchPagedResponse.iterateAll()) {
-        AdGroupAd adGroupAd = googleAdsRow.getAdGroupAd();
-        itemsList.add(adGroupAd);
-        i++;
-        if (i % MAX_PER_LOOP == 0) {
-          logger.info("[RetrieveAd] Saving checkpoint at " + i + " position");
-          String blobName = blobBaseName.replace("(index)", String.valueOf(loop));
-          List<String> itemsToStore = convertToNDJson(itemsList);
-          gcsBlobs.addAll(gcStorage.writeToBucket(itemsToStore, blobName));
-          itemsList = new ArrayList<AdGroupAd>();
-          loop++;
-        }
-      }
-      if (itemsList.size() > 0) {
-        logger.info("[RetrieveAd] Saving last items");
-        String blobName = blobBaseName.replace("(index)", String.valueOf(loop));
-        List<String> itemsToStore = convertToNDJson(itemsList);
-        gcsBlobs.addAll(gcStorage.writeToBucket(itemsToStore, blobName));
-        itemsList = new ArrayList<AdGroupAd>();
-      }
-    } catch (Exception e) {
-      System.out.println("[RetrieveAd] Could not get Ads from CID " + customerId);
-      logger.severe("[RetrieveAd] Could not get Ads from CID " + customerId);
-      logger.log(Level.SEVERE, e.getMessage(), e);
-    }
+  /**
+   * Retrieves AdGroupAds from a customer ID as JSON rows.
+   *
+   * @param customerId a customer ID.
+   * @param writers opens the writer of each checkpoint, given the checkpoint number.
+   * @return the blobs' path to be uploaded to BigQuery, if the writers write to Cloud Storage.
+   */
+  public List<String> getAdsFromCustomerId(
+      String customerId, IntFunction<? extends RowWriter<? super String>> writers) {
+    logger.info("[RetrieveAd] Get Google Ads AdGroupAds");
+    logger.info("[RetrieveAd] Retrieving AdGroupsAds for customer " + customerId);
+    return pipeline.extract(entity, searchMode, customerId, writers);
+  }
 
-    return gcsBlobs;
+  /**
+   * Retrieves AdGroupAds from a customer ID as rows of another format.
+   *
+   * @param customerId a customer ID.
+   * @param encoder encodes each AdGroupAd as a row.
+   * @param writers opens the writer of each checkpoint, given the checkpoint number.
+   * @return the blobs' path to be uploaded to BigQuery, if the writers write to Cloud Storage.
+   */
+  public <R> List<String> getAdsFromCustomerId(
+      String customerId,
+      RowEncoder<? super AdGroupAd, ? extends R> encoder,
+      IntFunction<? extends RowWriter<? super R>> writers) {
+    logger.info("[RetrieveAd] Get Google Ads AdGroupAds");
+    logger.info("[RetrieveAd] Retrieving AdGroupsAds for customer " + customerId);
+    return pipeline.extract(entity, searchMode, customerId, encoder, writers);
   }
 
   /**
@@ -115,8 +137,7 @@ public class RetrieveAd {
   public List<String> convertToNDJson(List<AdGroupAd> adsList) {
     AdGroupAd ad;
     List<String> ads = new ArrayList<>();
-    JsonFormat.Printer jsonAd =
-        JsonFormat.printer().omittingInsignificantWhitespace().preservingProtoFieldNames();
+    ProtoJsonSerializer jsonAd = AD_GROUP_ADS.getSerializer();
     for (ListIterator<AdGroupAd> it = adsList.listIterator(); it.hasNext(); ) {
       try {
         ad = it.next();
@@ -17,14 +17,13 @@ package com.google.cse.creatine.api;
 import com.google.ads.googleads.lib.GoogleAdsClient;
 import com.google.ads.googleads.v3.resources.AdGroup;
 import com.google.ads.googleads.v3.services.GoogleAdsRow;
-import com.google.ads.googleads.v3.services.GoogleAdsServiceClient;
-import com.google.ads.googleads.v3.services.GoogleAdsServiceClient.SearchPagedResponse;
-import com.google.ads.googleads.v3.services.SearchGoogleAdsRequest;
-import com.google.cse.creatine.utils.GoogleCloudStorageUtils;
+import com.google.cse.creatine.utils.ProtoJsonSerializer;
+import com.google.cse.creatine.utils.RowEncoder;
+import com.google.cse.creatine.utils.RowWriter;
+import com.google.cse.creatine.utils.SnapshotSink;
 import com.google.protobuf.InvalidProtocolBufferException;
-import com.google.protobuf.util.JsonFormat;
 import java.util.*;
-import java.util.logging.Level;
+import java.util.function.IntFunction;
 import java.util.logging.Logger;
 
 /** Wraps API calls to retrieve AdWords AdGroups */
@@ -32,82 +31,104 @@ public class RetrieveAdGroup {
 
   private static final Logger logger = Logger.getLogger(RetrieveAdGroup.class.getName());
 
-  private GoogleAdsClient googleAdsClient;
+  // Rows are chunked by size, so every entity starts a new set of blobs after the same amount
+  private static final long BYTES_PER_CHECKPOINT = 1024L * 1024 * 1024;
 
-  private final Integer MAX_PER_LOOP = 20000;
+  /** The AdGroups extracted by the pipeline. */
+  public static final EntityDescriptor<AdGroup> AD_GROUPS =
+      new EntityDescriptor<>(
+          "AdGroups",
+          "SELECT "
+              + "    ad_group.resource_name,"
+              + "    ad_group.id,"
+              + "    ad_group.name,"
+              + "    ad_group.status,"
+              + "    ad_group.type, "
+              + "    ad_group.ad_rotation_mode, "
+              + "    ad_group.tracking_url_template, "
+              + "    ad_group.url_custom_parameters, "
+              + "    ad_group.campaign,"
+              + "    ad_group.cpc_bid_micros, "
+              + "    ad_group.cpm_bid_micros, "
+              + "    ad_group.cpv_bid_micros, "
+              + "    ad_group.percent_cpc_bid_micros "
+              + " FROM ad_group ",
+          GoogleAdsRow::getAdGroup,
+          ProtoJsonSerializer.create(),
+          BYTES_PER_CHECKPOINT);
+
+  private ExtractionPipeline pipeline;
+  private SearchMode searchMode;
+  private EntityDescriptor<AdGroup> entity = AD_GROUPS;
 
   public RetrieveAdGroup(GoogleAdsClient googleAdsClient) {
-    this.googleAdsClient = googleAdsClient;
+    this(googleAdsClient, SearchMode.SEARCH);
+  }
+
+  public RetrieveAdGroup(GoogleAdsClient googleAdsClient, SearchMode searchMode) {
+    this(new ExtractionPipeline(googleAdsClient), searchMode);
+  }
+
+  public RetrieveAdGroup(ExtractionPipeline pipeline, SearchMode searchMode) {
+    this.pipeline = pipeline;
+    this.searchMode = searchMode;
+  }
+
+  /**
+   * Restricts the extraction to some AdGroups, e.g. the ones changed since the last snapshot.
+   *
+   * @param resourceNames the resource names of the AdGroups, at least one.
+   * @return this retriever.
+   */
+  public RetrieveAdGroup onlyResourceNames(Collection<String> resourceNames) {
+    entity = AD_GROUPS.restrictedTo("ad_group.resource_name", resourceNames);
+    return this;
   }
 
   /**
    * Retrieves AdGroups from a customer ID.
    *
    * @param customerId a customer ID.
-   * @param gcStorage the GoogleCloudStorageUtils object.
+   * @param sink the sink of the blobs.
    * @param blobBaseName the basename to be used to create the blobs in Cloud Storage.
    * @return JsonArray containing the blobs' path to be uploaded to BigQuery.
    */
   public List<String> getAdGroupsFromCustomerId(
-      String customerId, GoogleCloudStorageUtils gcStorage, String blobBaseName) {
-    List<AdGroup> itemsList = new ArrayList<AdGroup>();
-    List<String> gcsBlobs = new ArrayList<String>();
-
+      String customerId, SnapshotSink sink, String blobBaseName) {
     logger.info("[RetrieveAdGroups] Get Google Ads AdGroups");
     logger.info("[RetrieveAdGroups] Retrieving AdGroups for customer " + customerId);
-    SearchGoogleAdsRequest requestAdGroups =
-        SearchGoogleAdsRequest.newBuilder()
-            .setCustomerId(customerId)
-            .setQuery(
-                "SELECT "
-                    + "    ad_group.resource_name,"
-                    + "    ad_group.id,"
-                    + "    ad_group.name,"
-                    + "    ad_group.status,"
-                    + "    ad_group.type, "
-                    + "    ad_group.ad_rotation_mode, "
-                    + "    ad_group.tracking_url_template, "
-                    + "    ad_group.url_custom_parameters, "
-                    + "    ad_group.campaign,"
-                    + "    ad_group.cpc_bid_micros, "
-                    + "    ad_group.cpm_bid_micros, "
-                    + "    ad_group.cpv_bid_micros, "
-                    + "    ad_group.percent_cpc_bid_micros "
-                    + " FROM ad_group ")
-            .build();
+    return pipeline.extract(entity, searchMode, customerId, sink, blobBaseName);
+  }
 
-    try (GoogleAdsServiceClient googleAdsServiceClient =
-        googleAdsClient.getLatestVersion().createGoogleAdsServiceClient()) {
-      SearchPagedResponse searchPagedResponse = googleAdsServiceClient.search(requestAdGroups);
-      Integer i = 0;
-      Integer loop = 0;
-      for (GoogleAdsRow googleAdsRow : searchPagedResponse.iterateAll()) {
-        AdGroup adGroup = googleAdsRow.getAdGroup();
-        itemsList.add(adGroup);
-        i++;
-        if (i % MAX_PER_LOOP == 0) {
-          logger.info("[RetrieveAdGroups] Saving checkpoint at " + i + " position");
-          String blobName = blobBaseName.replace("(index)", String.valueOf(loop));
-          List<String> itemsToStore = convertToNDJson(itemsList);
-          gcsBlobs.addAll(gcStorage.writeToBucket(itemsToStore, blobName));
-          itemsList = new ArrayList<AdGroup>();
-          loop++;
-        }
-      }
-      if (itemsList.size() > 0) {
-        logger.info("[RetrieveAd] Saving last items");
-        String blobName = blobBaseName.replace("(index)", String.valueOf(loop));
-        List<String> itemsToStore = convertToNDJson(itemsList);
-        gcsBlobs.addAll(gcStorage.writeToBucket(itemsToStore, blobName));
-        itemsList = new ArrayList<AdGroup>();
-      }
-    } catch (Exception e) {
-      System.out.println("[RetrieveAdGroups] Could not get Ads from CID " + customerId);
-      logger.severe("[RetrieveAdGroups] Could not get Ads from CID " + customerId);
-      logger.log(Level.SEVERE, e.getMessage(), e);
-    }
+  /**
+   * Retrieves AdGroups from a customer ID as JSON rows.
+   *
+   * @param customerId a customer ID.
+   * @param writers opens the writer of each checkpoint, given the checkpoint number.
+   * @return the blobs' path to be uploaded to BigQuery, if the writers write to Cloud Storage.
+   */
+  public List<String> getAdGroupsFromCustomerId(
+      String customerId, IntFunction<? extends RowWriter<? super String>> writers) {
+    logger.info("[RetrieveAdGroups] Get Google Ads AdGroups");
+    logger.info("[RetrieveAdGroups] Retrieving AdGroups for customer " + customerId);
+    return pipeline.extract(entity, searchMode, customerId, writers);
+  }
 
-    return gcsBlobs;
+  /**
+   * Retrieves AdGroups from a customer ID as rows of another format.
+   *
+   * @param customerId a customer ID.
+   * @param encoder encodes each AdGroup as a row.
+   * @param writers opens the writer of each checkpoint, given the checkpoint number.
+   * @return the blobs' path to be uploaded to BigQuery, if the writers write to Cloud Storage.
+   */
+  public <R> List<String> getAdGroupsFromCustomerId(
+      String customerId,
+      RowEncoder<? super AdGroup, ? extends R> encoder,
+      IntFunction<? extends RowWriter<? super R>> writers) {
+    logger.info("[RetrieveAdGroups] Get Google Ads AdGroups");
+    logger.info("[RetrieveAdGroups] Retrieving AdGroups for customer " + customerId);
+    return pipeline.extract(entity, searchMode, customerId, encoder, writers);
   }
 
   /**
@@ -120,8 +141,7 @@ public class RetrieveAdGroup {
   public ArrayList<String> convertToNDJson(List<AdGroup> adsList) {
     AdGroup adGroup;
     ArrayList<String> ads = new ArrayList<>();
-    JsonFormat.Printer jsonAd =
-        JsonFormat.printer().omittingInsignificantWhitespace().preservingProtoFieldNames();
+    ProtoJsonSerializer jsonAd = AD_GROUPS.getSerializer();
     for (ListIterator<AdGroup> it = adsList.listIterator(); it.hasNext(); ) {
       try {
         adGroup = it.next();
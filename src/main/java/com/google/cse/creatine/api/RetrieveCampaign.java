@@ -17,16 +17,15 @@ package com.google.cse.creatine.api;
 import com.google.ads.googleads.lib.GoogleAdsClient;
 import com.google.ads.googleads.v3.resources.Campaign;
 import com.google.ads.googleads.v3.services.GoogleAdsRow;
-import com.google.ads.googleads.v3.services.GoogleAdsServiceClient;
-import com.google.ads.googleads.v3.services.GoogleAdsServiceClient.SearchPagedResponse;
-import com.google.ads.googleads.v3.services.SearchGoogleAdsRequest;
-import com.google.cse.creatine.utils.GoogleCloudStorageUtils;
+import com.google.cse.creatine.utils.ProtoJsonSerializer;
+import com.google.cse.creatine.utils.RowEncoder;
+import com.google.cse.creatine.utils.RowWriter;
+import com.google.cse.creatine.utils.SnapshotSink;
 import com.google.protobuf.InvalidProtocolBufferException;
-import com.google.protobuf.util.JsonFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.logging.Level;
+import java.util.function.IntFunction;
 import java.util.logging.Logger;
 
 /** Wraps API calls to retrieve Campaigns. */
@@ -34,78 +33,88 @@ public class RetrieveCampaign {
 
   private static final Logger logger = Logger.getLogger(RetrieveCampaign.class.getName());
 
-  private GoogleAdsClient googleAdsClient;
+  // Rows are chunked by size, so every entity starts a new set of blobs after the same amount
+  private static final long BYTES_PER_CHECKPOINT = 1024L * 1024 * 1024;
 
-  private final Integer MAX_PER_LOOP = 20000;
+  /** The Campaigns extracted by the pipeline. */
+  public static final EntityDescriptor<Campaign> CAMPAIGNS =
+      new EntityDescriptor<>(
+          "Campaigns",
+          "SELECT "
+              + "         campaign.ad_serving_optimization_status,"
+              + "         campaign.campaign_budget,"
+              + "         campaign.end_date,"
+              + "         campaign.id, "
+              + "         campaign.name,"
+              + "         campaign.resource_name,"
+              + "         campaign.serving_status,"
+              + "         campaign.start_date,"
+              + "         campaign.status"
+              + " FROM campaign ",
+          GoogleAdsRow::getCampaign,
+          ProtoJsonSerializer.create().includingDefaultValueFields(),
+          BYTES_PER_CHECKPOINT);
+
+  private ExtractionPipeline pipeline;
+  private SearchMode searchMode;
 
   public RetrieveCampaign(GoogleAdsClient googleAdsClient) {
-    this.googleAdsClient = googleAdsClient;
+    this(googleAdsClient, SearchMode.SEARCH);
+  }
+
+  public RetrieveCampaign(GoogleAdsClient googleAdsClient, SearchMode searchMode) {
+    this(new ExtractionPipeline(googleAdsClient), searchMode);
+  }
+
+  public RetrieveCampaign(ExtractionPipeline pipeline, SearchMode searchMode) {
+    this.pipeline = pipeline;
+    this.searchMode = searchMode;
   }
 
   /**
    * Retrieves Campaigns from a customer ID.
    *
    * @param customerId a customer ID.
-   * @param gcStorage the GoogleCloudStorageUtils object.
+   * @param sink the sink of the blobs.
    * @param blobBaseName the basename to be used to create the blobs in Cloud Storage.
    * @return JsonArray containing the blobs' path to be uploaded to BigQuery.
    */
   public List<String> getCampaignsFromCustomerId(
-      String customerId, GoogleCloudStorageUtils gcStorage, String blobBaseName) {
-    List<Campaign> itemsList = new ArrayList<Campaign>();
-    List<String> gcsBlobs = new ArrayList<String>();
-
+      String customerId, SnapshotSink sink, String blobBaseName) {
     logger.info("[RetrieveCampaign] Get Google Ads Campaigns");
     logger.info("[RetrieveCampaign] Retrieving Campaigns for customer " + customerId);
-    SearchGoogleAdsRequest requestCampaigns =
-        SearchGoogleAdsRequest.newBuilder()
-            .setCustomerId(customerId)
-            .setQuery(
-                "SELECT "
-                    + "         campaign.ad_serving_optimization_status,"
-                    + "         campaign.campaign_budget,"
-                    + "         campaign.end_date,"
-                    + "         campaign.id, "
-                    + "         campaign.name,"
-                    + "         campaign.resource_name,"
-                    + "         campaign.serving_status,"
-                    + "         campaign.start_date,"
-                    + "         campaign.status"
-                    + " FROM campaign ")
-            .build();
+    return pipeline.extract(CAMPAIGNS, searchMode, customerId, sink, blobBaseName);
+  }
 
-    try (GoogleAdsServiceClient googleAdsServiceClient =
-        googleAdsClient.getLatestVersion().createGoogleAdsServiceClient()) {
-      SearchPagedResponse searchPagedResponse = googleAdsServiceClient.search(requestCampaigns);
-      Integer i = 0;
-      Integer loop = 0;
-      for (GoogleAdsRow googleAdsRow : searchPagedResponse.iterateAll()) {
-        Campaign campaign = googleAdsRow.getCampaign();
-        itemsList.add(campaign);
-        i++;
-        if (i % MAX_PER_LOOP == 0) {
-          logger.info("[RetrieveCampaign] Saving checkpoint at " + i + " position");
-          String blobName = blobBaseName.replace("(index)", String.valueOf(loop));
-          List<String> itemsToStore = convertToNDJson(itemsList);
-          gcsBlobs.addAll(gcStorage.writeToBucket(itemsToStore, blobName));
-          itemsList = new ArrayList<Campaign>();
-          loop++;
-        }
-      }
-      if (itemsList.size() > 0) {
-        logger.info("[RetrieveCampaign] Saving last items");
-        String blobName = blobBaseName.replace("(index)", String.valueOf(loop));
-        List<String> itemsToStore = convertToNDJson(itemsList);
-        gcsBlobs.addAll(gcStorage.writeToBucket(itemsToStore, blobName));
-        itemsList = new ArrayList<Campaign>();
-      }
-    } catch (Exception e) {
-      System.out.println("[RetrieveCampaign] Could not get Ads from CID " + customerId);
-      logger.severe("[RetrieveCampaign] Could not get Ads from CID " + customerId);
-      logger.log(Level.SEVERE, e.getMessage(), e);
-    }
+  /**
+   * Retrieves Campaigns from a customer ID as JSON rows.
+   *
+   * @param customerId a customer ID.
+   * @param writers opens the writer of each checkpoint, given the checkpoint number.
+   * @return the blobs' path to be uploaded to BigQuery, if the writers write to Cloud Storage.
+   */
+  public List<String> getCampaignsFromCustomerId(
+      String customerId, IntFunction<? extends RowWriter<? super String>> writers) {
+    logger.info("[RetrieveCampaign] Get Google Ads Campaigns");
+    logger.info("[RetrieveCampaign] Retrieving Campaigns for customer " + customerId);
+    return pipeline.extract(CAMPAIGNS, searchMode, customerId, writers);
+  }
 
-    return gcsBlobs;
+  /**
+   * Retrieves Campaigns from a customer ID as rows of another format.
+   *
+   * @param customerId a customer ID.
+   * @param encoder encodes each Campaign as a row.
+   * @param writers opens the writer of each checkpoint, given the checkpoint number.
+   * @return the blobs' path to be uploaded to BigQuery, if the writers write to Cloud Storage.
+   */
+  public <R> List<String> getCampaignsFromCustomerId(
+      String customerId,
+      RowEncoder<? super Campaign, ? extends R> encoder,
+      IntFunction<? extends RowWriter<? super R>> writers) {
+    logger.info("[RetrieveCampaign] Get Google Ads Campaigns");
+    logger.info("[RetrieveCampaign] Retrieving Campaigns for customer " + customerId);
+    return pipeline.extract(CAMPAIGNS, searchMode, customerId, encoder, writers);
   }
 
   /**
@@ -118,11 +127,7 @@ public class RetrieveCampaign {
   public List<String> convertToNDJson(List<Campaign> campaignList) {
     Campaign campaign;
     List<String> campaigns = new ArrayList<>();
-    JsonFormat.Printer printer =
-        JsonFormat.printer()
-            .includingDefaultValueFields()
-            .omittingInsignificantWhitespace()
-            .preservingProtoFieldNames();
+    ProtoJsonSerializer printer = CAMPAIGNS.getSerializer();
     for (ListIterator<Campaign> it = campaignList.listIterator(); it.hasNext(); ) {
       try {
         campaign = it.next();
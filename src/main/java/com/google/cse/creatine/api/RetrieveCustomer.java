@@ -17,11 +17,8 @@ package com.google.cse.creatine.api;
 import com.google.ads.googleads.lib.GoogleAdsClient;
 import com.google.ads.googleads.v3.resources.CustomerClientLink;
 import com.google.ads.googleads.v3.services.GoogleAdsRow;
-import com.google.ads.googleads.v3.services.GoogleAdsServiceClient;
-import com.google.ads.googleads.v3.services.GoogleAdsServiceClient.SearchPagedResponse;
-import com.google.ads.googleads.v3.services.SearchGoogleAdsRequest;
+import com.google.cse.creatine.utils.ProtoJsonSerializer;
 import com.google.protobuf.InvalidProtocolBufferException;
-import com.google.protobuf.util.JsonFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
@@ -32,10 +29,22 @@ public class RetrieveCustomer {
 
   private static final Logger logger = Logger.getLogger(RetrieveCustomer.class.getName());
 
-  private GoogleAdsClient googleAdsClient;
+  private static final ProtoJsonSerializer SERIALIZER = ProtoJsonSerializer.create();
+
+  private GoogleAdsServicePool servicePool;
+  private SearchMode searchMode;
 
   public RetrieveCustomer(GoogleAdsClient googleAdsClient) {
-    this.googleAdsClient = googleAdsClient;
+    this(googleAdsClient, SearchMode.SEARCH);
+  }
+
+  public RetrieveCustomer(GoogleAdsClient googleAdsClient, SearchMode searchMode) {
+    this(GoogleAdsServicePool.perCall(googleAdsClient), searchMode);
+  }
+
+  public RetrieveCustomer(GoogleAdsServicePool servicePool, SearchMode searchMode) {
+    this.servicePool = servicePool;
+    this.searchMode = searchMode;
   }
 
   /**
@@ -47,28 +56,25 @@ public class RetrieveCustomer {
    *
    * @param customerId main MCC id
    * @return JsonArray containing the locations
+   * @deprecated only reads the accounts directly under the MCC, use {@link
+   *     AccountHierarchyCrawler} to resolve nested MCCs
    */
+  @Deprecated
   public List<CustomerClientLink> getSubAccountsFromMCCId(String customerId) {
 
     List<CustomerClientLink> accountList = new ArrayList<CustomerClientLink>();
 
     logger.info("[RetrieveCustomer] Get AW Sub-accounts");
 
-    SearchGoogleAdsRequest requestAdGroups =
-        SearchGoogleAdsRequest.newBuilder()
-            .setCustomerId(customerId)
-            .setQuery(
-                "SELECT customer_client_link.client_customer, "
-                    + "         customer_client_link.resource_name, "
-                    + "         customer_client_link.manager_link_id, "
-                    + "         customer_client_link.status "
-                    + " FROM customer_client_link ")
-            .build();
-
-    try (GoogleAdsServiceClient googleAdsServiceClient =
-        googleAdsClient.getLatestVersion().createGoogleAdsServiceClient()) {
-      SearchPagedResponse searchPagedResponse = googleAdsServiceClient.search(requestAdGroups);
-      for (GoogleAdsRow googleAdsRow : searchPagedResponse.iterateAll()) {
+    String query =
+        "SELECT customer_client_link.client_customer, "
+            + "         customer_client_link.resource_name, "
+            + "         customer_client_link.manager_link_id, "
+            + "         customer_client_link.status "
+            + " FROM customer_client_link ";
+
+    try (GoogleAdsServicePool.Lease lease = servicePool.lease()) {
+      for (GoogleAdsRow googleAdsRow : lease.search(searchMode, customerId, query)) {
         CustomerClientLink customerClientLink = googleAdsRow.getCustomerClientLink();
         accountList.add(customerClientLink);
       }
@@ -89,12 +95,10 @@ public class RetrieveCustomer {
   public List<String> convertToNDJson(List<CustomerClientLink> customerList) {
     CustomerClientLink campaign;
     List<String> customers = new ArrayList<>();
-    JsonFormat.Printer printer =
-        JsonFormat.printer().omittingInsignificantWhitespace().preservingProtoFieldNames();
     for (ListIterator<CustomerClientLink> it = customerList.listIterator(); it.hasNext(); ) {
       try {
         campaign = it.next();
-        customers.add(printer.print(campaign));
+        customers.add(SERIALIZER.print(campaign));
       } catch (InvalidProtocolBufferException e) {
         logger.severe("[RetrieveCustomer] Could not parse Campaign");
         e.printStackTrace();
@@ -0,0 +1,78 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.api;
+
+import com.google.ads.googleads.v3.services.GoogleAdsRow;
+import com.google.ads.googleads.v3.services.GoogleAdsServiceClient;
+import com.google.ads.googleads.v3.services.SearchGoogleAdsRequest;
+import com.google.ads.googleads.v3.services.SearchGoogleAdsStreamRequest;
+import com.google.ads.googleads.v3.services.SearchGoogleAdsStreamResponse;
+import com.google.common.collect.FluentIterable;
+
+/**
+ * How rows are pulled out of the GoogleAdsService.
+ *
+ * <p>SEARCH walks the pages of a Search request, paying one round trip per page. SEARCH_STREAM
+ * consumes the batches of a single SearchStream request as they arrive, which is much faster on
+ * large accounts.
+ *
+ * <p>{@link GoogleAdsServicePool.Lease#search} runs the queries within the rate limit of the pool
+ * and resumes them after transient errors.
+ */
+public enum SearchMode {
+  SEARCH {
+    @Override
+    public Iterable<GoogleAdsRow> search(
+        GoogleAdsServiceClient googleAdsServiceClient, String customerId, String query) {
+      SearchGoogleAdsRequest request =
+          SearchGoogleAdsRequest.newBuilder().setCustomerId(customerId).setQuery(query).build();
+      return googleAdsServiceClient.search(request).iterateAll();
+    }
+  },
+  SEARCH_STREAM {
+    @Override
+    public Iterable<GoogleAdsRow> search(
+        GoogleAdsServiceClient googleAdsServiceClient, String customerId, String query) {
+      SearchGoogleAdsStreamRequest request =
+          SearchGoogleAdsStreamRequest.newBuilder()
+              .setCustomerId(customerId)
+              .setQuery(query)
+              .build();
+      return FluentIterable.from(googleAdsServiceClient.searchStreamCallable().call(request))
+          .transformAndConcat(SearchGoogleAdsStreamResponse::getResultsList);
+    }
+  };
+
+  /**
+   * Runs a GAQL query against a customer.
+   *
+   * @param googleAdsServiceClient the client used to call the API
+   * @param customerId a customer ID
+   * @param query the GAQL query
+   * @return the rows, which can only be iterated once
+   */
+  public abstract Iterable<GoogleAdsRow> search(
+      GoogleAdsServiceClient googleAdsServiceClient, String customerId, String query);
+
+  /**
+   * Parses a mode from application.properties, "search" and "search_stream" being accepted.
+   *
+   * @param value the property value
+   * @return the corresponding mode
+   */
+  public static SearchMode fromProperty(String value) {
+    return SearchMode.valueOf(value.trim().toUpperCase());
+  }
+}
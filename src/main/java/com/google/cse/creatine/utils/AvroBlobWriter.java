@@ -0,0 +1,155 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.storage.Storage;
+import com.google.common.io.CountingOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+
+/**
+ * Streams Avro-encoded rows to Google Cloud Storage, or to the blobs of another {@link
+ * SnapshotSink}, as deflate-compressed Avro container files.
+ *
+ * <p>Rows are appended already encoded, see {@link ProtoAvroEncoder}, and the container blocks are
+ * uploaded through the blob's resumable upload as they fill up. A new blob is started once the
+ * current one holds {@code chunkBytes} bytes of encoded rows before compression, whatever the size
+ * of the rows, replacing "(chunk)" in the blob name with the chunk number.
+ */
+public class AvroBlobWriter implements RowWriter<ByteBuffer> {
+
+  private static final Logger logger = Logger.getLogger(AvroBlobWriter.class.getName());
+
+  private static final int DEFLATE_LEVEL = 6;
+
+  private final BlobChannelFactory channels;
+  private final String blobName;
+  private final long chunkBytes;
+  private final Schema schema;
+  private final List<String> blobNames = new ArrayList<>();
+
+  private DataFileWriter<Object> fileWriter;
+  private CountingOutputStream output;
+  private long bytesWritten = 0;
+  private int rowsInChunk = 0;
+  private long bytesInChunk = 0;
+  private int chunkNumber = 0;
+
+  /**
+   * @param storage the Google Cloud Storage service
+   * @param bucketName the bucket in which the blobs are created
+   * @param folder the folder (usually today's date) in which the blobs are created
+   * @param blobName the name of the blobs, "(chunk)" being replaced by the chunk number
+   * @param chunkBytes the size of the encoded rows of a blob after which the next one is started
+   * @param schema the Avro schema of the rows
+   */
+  public AvroBlobWriter(
+      Storage storage,
+      String bucketName,
+      String folder,
+      String blobName,
+      long chunkBytes,
+      Schema schema) {
+    this(
+        GoogleCloudStorageUtils.channels(storage, bucketName, folder),
+        blobName,
+        chunkBytes,
+        schema);
+  }
+
+  /**
+   * @param channels opens the channel of each blob
+   * @param blobName the name of the blobs, "(chunk)" being replaced by the chunk number
+   * @param chunkBytes the size of the encoded rows of a blob after which the next one is started
+   * @param schema the Avro schema of the rows
+   */
+  public AvroBlobWriter(
+      BlobChannelFactory channels, String blobName, long chunkBytes, Schema schema) {
+    this.channels = channels;
+    this.blobName = blobName;
+    this.chunkBytes = chunkBytes;
+    this.schema = schema;
+  }
+
+  /** Appends a row encoded with the schema of the writer to the current blob. */
+  @Override
+  public void writeRow(ByteBuffer row) throws IOException {
+    if (fileWriter == null) {
+      openChunk();
+    }
+    // Counted before compression, like the NDJSON rows, so that checkpoints and byte metrics do
+    // not depend on the staging format or on when the deflate blocks are flushed
+    int rowBytes = row.remaining();
+    bytesInChunk += rowBytes;
+    bytesWritten += rowBytes;
+    fileWriter.appendEncoded(row);
+    rowsInChunk++;
+    if (bytesInChunk >= chunkBytes) {
+      closeChunk();
+    }
+  }
+
+  /** @return the names of the blobs written so far, relative to the folder */
+  @Override
+  public List<String> getBlobNames() {
+    return Collections.unmodifiableList(blobNames);
+  }
+
+  /** @return the bytes of the encoded rows appended so far, before compression */
+  @Override
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /** Finalizes the upload of the current blob, if any. */
+  @Override
+  public void close() throws IOException {
+    if (fileWriter != null) {
+      closeChunk();
+    }
+  }
+
+  private void openChunk() throws IOException {
+    chunkNumber++;
+    String chunkName = blobName.replace("(chunk)", String.valueOf(chunkNumber));
+    fileWriter = new DataFileWriter<>(new GenericDatumWriter<>(schema));
+    fileWriter.setCodec(CodecFactory.deflateCodec(DEFLATE_LEVEL));
+    output =
+        new CountingOutputStream(
+            Channels.newOutputStream(channels.open(chunkName, "avro/binary")));
+    fileWriter.create(schema, output);
+    blobNames.add(chunkName);
+  }
+
+  private void closeChunk() throws IOException {
+    fileWriter.close();
+    fileWriter = null;
+    logger.fine(
+        "Uploaded " + rowsInChunk + " rows (" + output.getCount() + " compressed bytes) to "
+            + blobNames.get(blobNames.size() - 1));
+    output = null;
+    rowsInChunk = 0;
+    bytesInChunk = 0;
+  }
+}
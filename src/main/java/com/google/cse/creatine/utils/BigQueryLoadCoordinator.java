@@ -0,0 +1,132 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.bigquery.Schema;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Collects the blobs written for each BigQuery table so that they are loaded with as few load jobs
+ * as possible, instead of one job per blob and per customer.
+ *
+ * <p>Customer handlers only {@link #enqueue} their blobs. A {@link #flush} of a table then submits
+ * one load job per {@link BigQueryUtils#MAX_URIS_PER_JOB} blobs with the schema of the table to the
+ * {@link LoadJobLedger}, without waiting for the jobs to complete.
+ */
+public class BigQueryLoadCoordinator {
+
+  private static final Logger logger = Logger.getLogger(BigQueryLoadCoordinator.class.getName());
+
+  private final BigQueryUtils bQUtils;
+  private final Configuration configuration;
+  private final LoadJobLedger ledger;
+  private final ConcurrentMap<String, PendingLoad> pendingLoads = new ConcurrentHashMap<>();
+
+  public BigQueryLoadCoordinator(
+      BigQueryUtils bQUtils, Configuration configuration, LoadJobLedger ledger) {
+    this.bQUtils = bQUtils;
+    this.configuration = configuration;
+    this.ledger = ledger;
+  }
+
+  /**
+   * Adds blobs to be loaded in a table.
+   *
+   * @param tableName the name of the table on which the data will be loaded
+   * @param schema the Schema of the table
+   * @param blobNames the names of the blobs in today's folder of the bucket
+   */
+  public void enqueue(String tableName, Schema schema, List<String> blobNames) {
+    enqueue(tableName, schema, StagingFormat.NDJSON, blobNames);
+  }
+
+  /**
+   * Adds blobs of the given format to be loaded in a table. All the blobs of a table must share
+   * the same format.
+   *
+   * @param tableName the name of the table on which the data will be loaded
+   * @param schema the Schema of the table
+   * @param format the format of the blobs
+   * @param blobNames the names of the blobs in today's folder of the bucket
+   */
+  public void enqueue(
+      String tableName, Schema schema, StagingFormat format, List<String> blobNames) {
+    pendingLoads
+        .computeIfAbsent(tableName, key -> new PendingLoad(schema, format))
+        .blobNames
+        .addAll(blobNames);
+  }
+
+  /**
+   * Submits the loads of all the blobs enqueued so far for a table.
+   *
+   * @param tableName the name of the table
+   * @return the ledger entries of the submitted load jobs
+   */
+  public List<LoadJobLedger.Entry> flush(String tableName) {
+    List<LoadJobLedger.Entry> submitted = new ArrayList<>();
+    PendingLoad pendingLoad = pendingLoads.get(tableName);
+    if (pendingLoad == null) {
+      return submitted;
+    }
+    List<String> batch = new ArrayList<>();
+    String blobName;
+    while ((blobName = pendingLoad.blobNames.poll()) != null) {
+      batch.add(blobName);
+      if (batch.size() == BigQueryUtils.MAX_URIS_PER_JOB) {
+        submitted.add(load(tableName, pendingLoad, batch));
+        batch = new ArrayList<>();
+      }
+    }
+    if (!batch.isEmpty()) {
+      submitted.add(load(tableName, pendingLoad, batch));
+    }
+    return submitted;
+  }
+
+  /** @return the number of blobs waiting to be loaded in a table */
+  public int getPendingCount(String tableName) {
+    PendingLoad pendingLoad = pendingLoads.get(tableName);
+    return pendingLoad == null ? 0 : pendingLoad.blobNames.size();
+  }
+
+  private LoadJobLedger.Entry load(
+      String tableName, PendingLoad pendingLoad, List<String> blobNames) {
+    logger.info("Loading " + blobNames.size() + " files to BigQuery table " + tableName);
+    return ledger.submit(
+        tableName,
+        bQUtils.createLoadJobConfiguration(
+            configuration, tableName, pendingLoad.schema, pendingLoad.format, blobNames));
+  }
+
+  /** The blobs waiting to be loaded in a table. */
+  private static class PendingLoad {
+
+    private final Schema schema;
+    private final StagingFormat format;
+    private final Queue<String> blobNames = new ConcurrentLinkedQueue<>();
+
+    private PendingLoad(Schema schema, StagingFormat format) {
+      this.schema = schema;
+      this.format = format;
+    }
+  }
+}
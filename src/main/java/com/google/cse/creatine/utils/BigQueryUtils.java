@@ -15,20 +15,27 @@
 package com.google.cse.creatine.utils;
 
 import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryException;
 import com.google.cloud.bigquery.Field;
-import com.google.cloud.bigquery.FormatOptions;
 import com.google.cloud.bigquery.Job;
 import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.JobStatistics;
 import com.google.cloud.bigquery.LegacySQLTypeName;
 import com.google.cloud.bigquery.LoadJobConfiguration;
+import com.google.cloud.bigquery.QueryJobConfiguration;
+import com.google.cloud.bigquery.QueryParameterValue;
 import com.google.cloud.bigquery.Schema;
 import com.google.cloud.bigquery.StandardTableDefinition;
+import com.google.cloud.bigquery.Table;
 import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.TableInfo;
 import com.google.protobuf.Descriptors;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /** Wraps biquery calls to the API. */
@@ -36,6 +43,13 @@ public class BigQueryUtils {
 
   private static final Logger logger = Logger.getLogger(BigQueryUtils.class.getName());
 
+  /** The maximum number of source URIs accepted by a BigQuery load job. */
+  public static final int MAX_URIS_PER_JOB = 10000;
+
+  // The customer ID of a row of a snapshot table, taken from its resource name
+  private static final String CUSTOMER_OF_ROW =
+      "REGEXP_EXTRACT(previous.resource_name, r'^customers/([0-9]+)/')";
+
   private BigQuery bigquery;
   private Configuration configuration;
 
@@ -126,39 +140,217 @@ public class BigQueryUtils {
   }
 
   /**
-   * This method creates a job on BigQuery that will use a JSON file stored on Google Cloud Storage
-   * and load it in a specified table
+   * This method builds the configuration of a job loading JSON files stored on Google Cloud Storage
+   * in a specified table, without submitting it
    *
    * @param config the Configuration to get the BigQuery dataset name and Google Cloud Storage
    *     Bucket Name
    * @param tableName the name of the table on which the data will be loaded on BigQuery
-   * @param fields the Fields defining the structure of the BigQuery table
-   * @param blobName the name of the blob on BigQuery
-   * @return the number of rows that were created by the job
+   * @param schema the Schema of the BigQuery table
+   * @param blobNames the names of the blobs in today's folder of the bucket, at most
+   *     MAX_URIS_PER_JOB
+   * @return the configuration of the load job
    */
-  public Long loadJSONToBigQuery(
-      Configuration config, String tableName, Field[] fields, String blobName) {
-    Schema schema = Schema.of(fields);
+  public LoadJobConfiguration createLoadJobConfiguration(
+      Configuration config, String tableName, Schema schema, List<String> blobNames) {
+    return createLoadJobConfiguration(config, tableName, schema, StagingFormat.NDJSON, blobNames);
+  }
+
+  /**
+   * This method builds the configuration of a job loading files of the given format stored on
+   * Google Cloud Storage in a specified table, without submitting it
+   *
+   * @param config the Configuration to get the BigQuery dataset name and Google Cloud Storage
+   *     Bucket Name
+   * @param tableName the name of the table on which the data will be loaded on BigQuery
+   * @param schema the Schema of the BigQuery table
+   * @param format the format of the blobs
+   * @param blobNames the names of the blobs in today's folder of the bucket, at most
+   *     MAX_URIS_PER_JOB
+   * @return the configuration of the load job
+   */
+  public LoadJobConfiguration createLoadJobConfiguration(
+      Configuration config,
+      String tableName,
+      Schema schema,
+      StagingFormat format,
+      List<String> blobNames) {
     TableId tableId = TableId.of(config.getBqDataSet(), tableName);
     String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
-    LoadJobConfiguration jobConfiguration =
-        LoadJobConfiguration.builder(
-                tableId, "gs://" + config.getBucketName() + "/" + today + "/" + blobName)
-            .setFormatOptions(FormatOptions.json())
-            .setCreateDisposition(JobInfo.CreateDisposition.CREATE_IF_NEEDED)
-            .setSchema(schema)
-            .setWriteDisposition(JobInfo.WriteDisposition.WRITE_APPEND)
-            .build();
-    try {
-      // Load the table
-      JobInfo ji = JobInfo.of(jobConfiguration);
-      Job loadJob = bigquery.create(ji);
+    List<String> sourceUris = new ArrayList<>(blobNames.size());
+    for (String blobName : blobNames) {
+      sourceUris.add("gs://" + config.getBucketName() + "/" + today + "/" + blobName);
+    }
+    return LoadJobConfiguration.builder(tableId, sourceUris)
+        .setFormatOptions(format.getFormatOptions())
+        .setCreateDisposition(JobInfo.CreateDisposition.CREATE_IF_NEEDED)
+        .setSchema(schema)
+        .setWriteDisposition(JobInfo.WriteDisposition.WRITE_APPEND)
+        .build();
+  }
+
+  /**
+   * This method gets the schema of an existing BigQuery table
+   *
+   * @param config the Configuration to get the BigQuery dataset name
+   * @param tableName the name of the table
+   * @return the schema of the table, or null if the table does not exist
+   */
+  public Schema getTableSchema(Configuration config, String tableName) {
+    Table table = bigquery.getTable(TableId.of(config.getBqDataSet(), tableName));
+    if (table == null) {
+      return null;
+    }
+    return table.getDefinition().getSchema();
+  }
+
+  /**
+   * This method creates a table on BigQuery if it doesn't exist
+   *
+   * @param config the Configuration to get the BigQuery dataset name
+   * @param tableName the name of the table
+   * @param schema the Schema of the table
+   */
+  public void createTableIfNotExists(Configuration config, String tableName, Schema schema) {
+    TableId tableId = TableId.of(config.getBqDataSet(), tableName);
+    if (bigquery.getTable(tableId) == null) {
+      try {
+        bigquery.create(TableInfo.of(tableId, StandardTableDefinition.of(schema)));
+        logger.info("Created table " + tableName);
+      } catch (BigQueryException e) {
+        // Another customer created it in the meantime
+        if (e.getCode() != 409) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * This method copies the rows of some customers from a previous snapshot to another table,
+   * skipping the rows whose resource_name is already in the target table. It merges the rows
+   * re-fetched by an incremental snapshot with the unchanged rows of the previous one.
+   *
+   * @param config the Configuration to get the Cloud project and BigQuery dataset names
+   * @param fromTable the name of the table of the previous snapshot
+   * @param toTable the name of the table of the current snapshot, created if it doesn't exist
+   * @param schema the Schema of both tables
+   * @param customerIds the customers whose rows are copied
+   * @return the number of rows copied, or -1 if the query failed
+   */
+  public long carryOverRows(
+      Configuration config,
+      String fromTable,
+      String toTable,
+      Schema schema,
+      List<String> customerIds) {
+    createTableIfNotExists(config, toTable, schema);
+    return runDml(
+        toTable,
+        "INSERT INTO " + qualify(config, toTable) + " "
+            + "SELECT * FROM " + qualify(config, fromTable) + " AS previous "
+            + "WHERE " + CUSTOMER_OF_ROW + " IN UNNEST(@customers) "
+            + "AND previous.resource_name NOT IN ("
+            + "SELECT resource_name FROM " + qualify(config, toTable) + " "
+            + "WHERE resource_name IS NOT NULL)",
+        customerIds);
+  }
 
-      loadJob.waitFor();
+  /**
+   * This method copies the inserted and updated rows of a change table written by {@link
+   * DeltaRowWriter} to the table of the snapshot, without the change columns.
+   *
+   * @param config the Configuration to get the Cloud project and BigQuery dataset names
+   * @param changeTable the name of the change table, created if it doesn't exist
+   * @param toTable the name of the table of the current snapshot, created if it doesn't exist
+   * @param schema the Schema of the snapshot tables
+   * @return the number of rows copied, or -1 if the query failed
+   */
+  public long applyChanges(
+      Configuration config, String changeTable, String toTable, Schema schema) {
+    createTableIfNotExists(config, changeTable, DeltaRowWriter.changeSchema(schema));
+    createTableIfNotExists(config, toTable, schema);
+    return runDml(
+        toTable,
+        "INSERT INTO " + qualify(config, toTable) + " "
+            + "SELECT * EXCEPT(" + DeltaRowWriter.CHANGE_TYPE_FIELD + ", "
+            + DeltaRowWriter.KEY_FINGERPRINT_FIELD + ") "
+            + "FROM " + qualify(config, changeTable) + " "
+            + "WHERE " + DeltaRowWriter.CHANGE_TYPE_FIELD + " != 'DELETE'",
+        null);
+  }
+
+  /**
+   * This method copies the rows of some customers from a previous snapshot to another table,
+   * skipping the rows whose resource_name fingerprint is in a change table. It rebuilds a full
+   * snapshot from the previous one and the changes written by {@link DeltaRowWriter}.
+   *
+   * @param config the Configuration to get the Cloud project and BigQuery dataset names
+   * @param fromTable the name of the table of the previous snapshot
+   * @param changeTable the name of the change table
+   * @param toTable the name of the table of the current snapshot
+   * @param customerIds the customers whose rows are copied
+   * @return the number of rows copied, or -1 if the query failed
+   */
+  public long carryOverUnchangedRows(
+      Configuration config,
+      String fromTable,
+      String changeTable,
+      String toTable,
+      List<String> customerIds) {
+    return runDml(
+        toTable,
+        "INSERT INTO " + qualify(config, toTable) + " "
+            + "SELECT * FROM " + qualify(config, fromTable) + " AS previous "
+            + "WHERE " + CUSTOMER_OF_ROW + " IN UNNEST(@customers) "
+            + "AND FARM_FINGERPRINT(previous.resource_name) NOT IN ("
+            + "SELECT " + DeltaRowWriter.KEY_FINGERPRINT_FIELD + " "
+            + "FROM " + qualify(config, changeTable) + ")",
+        customerIds);
+  }
+
+  /** @return the table name in standard SQL, qualified by the project and dataset */
+  private static String qualify(Configuration config, String tableName) {
+    return "`" + config.getCloudProject() + "." + config.getBqDataSet() + "." + tableName + "`";
+  }
+
+  /**
+   * Runs a DML query and waits for it.
+   *
+   * @param tableName the name of the table modified by the query, used in logs
+   * @param query the query in standard SQL
+   * @param customerIds the value of the @customers parameter, if the query uses it
+   * @return the number of rows affected, or -1 if the query failed
+   */
+  private long runDml(String tableName, String query, List<String> customerIds) {
+    QueryJobConfiguration.Builder jobConfiguration =
+        QueryJobConfiguration.newBuilder(query).setUseLegacySql(false);
+    if (customerIds != null) {
+      jobConfiguration.addNamedParameter(
+          "customers",
+          QueryParameterValue.array(customerIds.toArray(new String[0]), String.class));
+    }
+    try {
+      Job queryJob = bigquery.create(JobInfo.of(jobConfiguration.build())).waitFor();
+      if (queryJob == null) {
+        logger.severe("Query job to table " + tableName + " no longer exists");
+        return -1;
+      } else if (queryJob.getStatus().getError() != null) {
+        logger.severe(
+            "Query job to table " + tableName + " failed: " + queryJob.getStatus().getError());
+        return -1;
+      }
+      JobStatistics.QueryStatistics statistics = queryJob.getStatistics();
+      Long rows = statistics.getNumDmlAffectedRows();
+      return rows == null ? 0 : rows;
     } catch (InterruptedException e) {
-      e.printStackTrace();
+      Thread.currentThread().interrupt();
+      logger.log(Level.SEVERE, "Interrupted while waiting for query job to table " + tableName, e);
+      return -1;
+    } catch (BigQueryException e) {
+      logger.log(Level.SEVERE, "Query job to table " + tableName + " failed", e);
+      return -1;
     }
-    return ((StandardTableDefinition) bigquery.getTable(tableId).getDefinition()).getNumRows();
   }
 
   /**
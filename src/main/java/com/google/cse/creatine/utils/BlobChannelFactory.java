@@ -0,0 +1,30 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/** Opens the channel through which a blob of a {@link SnapshotSink} is written. */
+@FunctionalInterface
+public interface BlobChannelFactory {
+
+  /**
+   * @param blobName the name of the blob, relative to the folder of the snapshot
+   * @param contentType the MIME type of the blob
+   * @return the channel, which finalizes the blob when closed
+   */
+  WritableByteChannel open(String blobName, String contentType) throws IOException;
+}
@@ -0,0 +1,130 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.PathElement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Persists the change watermark of each customer and entity in Datastore, as children of the
+ * googleadsconfig entity read by {@link CredentialsUtils}.
+ *
+ * <p>A watermark records when the last successful snapshot of the customer started, from which the
+ * next incremental snapshot reads its change_status, and the date of that snapshot, whose table
+ * holds the rows which did not change since.
+ */
+public class ChangeWatermarkStore {
+
+  private static final Logger logger = Logger.getLogger(ChangeWatermarkStore.class.getName());
+
+  private static final String KIND = "changewatermark";
+  private static final int MAX_ENTITIES_PER_PUT = 500;
+
+  private final Datastore datastore;
+  private final long configEntityId;
+
+  /**
+   * @param datastore the Datastore service
+   * @param configEntityId the id of the googleadsconfig entity
+   */
+  public ChangeWatermarkStore(Datastore datastore, long configEntityId) {
+    this.datastore = datastore;
+    this.configEntityId = configEntityId;
+  }
+
+  /**
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @param customerId a customer ID
+   * @return the watermark of the customer, or null if it was never extracted successfully
+   */
+  public Watermark get(String entityName, String customerId) {
+    Entity entity = datastore.get(key(entityName, customerId));
+    if (entity == null) {
+      return null;
+    }
+    return new Watermark(
+        entity.getTimestamp("changesSince").toDate().getTime(), entity.getString("snapshotDate"));
+  }
+
+  /**
+   * Sets the same watermark for several customers.
+   *
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @param customerIds the customers extracted successfully
+   * @param watermark the watermark of the snapshot
+   */
+  public void putAll(String entityName, Collection<String> customerIds, Watermark watermark) {
+    Timestamp changesSince = Timestamp.of(new Date(watermark.getChangesSinceMillis()));
+    List<FullEntity<?>> batch = new ArrayList<>();
+    for (String customerId : customerIds) {
+      batch.add(
+          Entity.newBuilder(key(entityName, customerId))
+              .set("changesSince", changesSince)
+              .set("snapshotDate", watermark.getSnapshotDate())
+              .build());
+      if (batch.size() == MAX_ENTITIES_PER_PUT) {
+        datastore.put(batch.toArray(new FullEntity<?>[0]));
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      datastore.put(batch.toArray(new FullEntity<?>[0]));
+    }
+    logger.info(
+        "Saved " + entityName + " watermarks of " + customerIds.size() + " customers for snapshot "
+            + watermark.getSnapshotDate());
+  }
+
+  private Key key(String entityName, String customerId) {
+    return datastore
+        .newKeyFactory()
+        .addAncestor(PathElement.of("googleadsconfig", configEntityId))
+        .setKind(KIND)
+        .newKey(entityName + "_" + customerId);
+  }
+
+  /** The point from which the changes of a customer are read. */
+  public static class Watermark {
+
+    private final long changesSinceMillis;
+    private final String snapshotDate;
+
+    /**
+     * @param changesSinceMillis the start of the snapshot, in milliseconds since the epoch
+     * @param snapshotDate the date of the snapshot, as in the table names (yyyyMMdd)
+     */
+    public Watermark(long changesSinceMillis, String snapshotDate) {
+      this.changesSinceMillis = changesSinceMillis;
+      this.snapshotDate = snapshotDate;
+    }
+
+    public long getChangesSinceMillis() {
+      return changesSinceMillis;
+    }
+
+    public String getSnapshotDate() {
+      return snapshotDate;
+    }
+  }
+}
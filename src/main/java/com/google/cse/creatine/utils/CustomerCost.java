@@ -0,0 +1,49 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+/** The size of the extraction of an entity for a customer, as measured by a run. */
+public class CustomerCost {
+
+  private final long rows;
+  private final long durationMillis;
+
+  /**
+   * @param rows the rows extracted
+   * @param durationMillis the time from the first call to the API to the last row written
+   */
+  public CustomerCost(long rows, long durationMillis) {
+    this.rows = rows;
+    this.durationMillis = durationMillis;
+  }
+
+  public long getRows() {
+    return rows;
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  /** @return the cost of both extractions, e.g. of two queries for the same customer */
+  public CustomerCost plus(CustomerCost other) {
+    return new CustomerCost(rows + other.rows, durationMillis + other.durationMillis);
+  }
+
+  @Override
+  public String toString() {
+    return rows + " rows in " + durationMillis + " ms";
+  }
+}
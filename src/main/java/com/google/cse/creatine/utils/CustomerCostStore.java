@@ -0,0 +1,40 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Keeps the last measured {@link CustomerCost} of each customer and entity, from which the next run
+ * starts the largest customers first.
+ */
+public interface CustomerCostStore {
+
+  /**
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @param customerIds the customers of the run
+   * @return the last cost of each customer, by customer ID, without the customers never measured
+   */
+  Map<String, CustomerCost> getAll(String entityName, Collection<String> customerIds);
+
+  /**
+   * Replaces the costs of customers.
+   *
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @param costs the cost of each customer, by customer ID
+   */
+  void putAll(String entityName, Map<String, CustomerCost> costs);
+}
@@ -0,0 +1,155 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a per-customer task for many customers inside the JVM, keeping at most {@code concurrency}
+ * customers in flight. This is an alternative to one App Engine task per customer which also works
+ * outside of App Engine.
+ */
+public class CustomerFanOut {
+
+  private static final Logger logger = Logger.getLogger(CustomerFanOut.class.getName());
+
+  private final ExecutorService executor;
+
+  /** @param concurrency the maximum number of customers processed at the same time */
+  public CustomerFanOut(int concurrency) {
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor =
+        Executors.newFixedThreadPool(
+            concurrency,
+            runnable -> {
+              Thread thread =
+                  new Thread(runnable, "customer-fan-out-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Submits the task for each customer.
+   *
+   * @param name the name of the fan-out, used in logs
+   * @param customerIds the customers to process
+   * @param task the work to do for one customer, given its ID
+   * @return the report holding one future per customer
+   */
+  public Report submit(String name, List<String> customerIds, Consumer<String> task) {
+    Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+    for (String customerId : customerIds) {
+      futures.put(
+          customerId,
+          CompletableFuture.runAsync(
+              () -> {
+                try {
+                  task.accept(customerId);
+                } catch (RuntimeException e) {
+                  logger.log(
+                      Level.SEVERE, "[" + name + "] Failed for customer " + customerId, e);
+                  throw e;
+                }
+              },
+              executor));
+    }
+    logger.info("[" + name + "] Submitted " + futures.size() + " customers");
+    return new Report(name, futures);
+  }
+
+  /** @return the worker threads, for other steps to share the same bound on concurrency */
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /** Stops the worker threads once the submitted tasks are done. */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /** Tracks the completion of the customers of a fan-out. */
+  public static class Report {
+
+    private final String name;
+    private final Map<String, CompletableFuture<Void>> futures;
+
+    private Report(String name, Map<String, CompletableFuture<Void>> futures) {
+      this.name = name;
+      this.futures = futures;
+    }
+
+    /** @return the future of each customer, by customer ID */
+    public Map<String, CompletableFuture<Void>> getFutures() {
+      return Collections.unmodifiableMap(futures);
+    }
+
+    /** @return a future completed once every customer is done, whether it failed or not */
+    public CompletableFuture<Report> whenDone() {
+      return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0]))
+          .handle((ignored, error) -> this);
+    }
+
+    /** Blocks until every customer is done. */
+    public Report await() {
+      Report report = whenDone().join();
+      logger.info(report.toString());
+      return report;
+    }
+
+    public int getSubmittedCount() {
+      return futures.size();
+    }
+
+    public int getCompletedCount() {
+      int count = 0;
+      for (CompletableFuture<Void> future : futures.values()) {
+        if (future.isDone()) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    public List<String> getFailedCustomerIds() {
+      List<String> failed = new ArrayList<>();
+      for (Map.Entry<String, CompletableFuture<Void>> entry : futures.entrySet()) {
+        if (entry.getValue().isCompletedExceptionally()) {
+          failed.add(entry.getKey());
+        }
+      }
+      return failed;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "[%s] %d/%d customers done, %d failed",
+          name, getCompletedCount(), getSubmittedCount(), getFailedCustomerIds().size());
+    }
+  }
+}
@@ -0,0 +1,169 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * The customers of a run, as a sorted primitive array of IDs with one bit set per {@link Flag}.
+ *
+ * <p>A registry is built once per run and never modified afterwards, so it can be shared by every
+ * thread without locking. Iterating over the customers with or without a flag walks the bit set
+ * and does not allocate anything per customer.
+ */
+public final class CustomerRegistry {
+
+  /** A property of some customers of the registry. */
+  public enum Flag {
+    MANAGER,
+    HIDDEN,
+    TEST_ACCOUNT
+  }
+
+  /** The registry without any customer. */
+  public static final CustomerRegistry EMPTY = builder().build();
+
+  private final long[] ids;
+  private final BitSet[] flags;
+
+  private CustomerRegistry(long[] ids, BitSet[] flags) {
+    this.ids = ids;
+    this.flags = flags;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** @return the number of customers */
+  public int size() {
+    return ids.length;
+  }
+
+  /** @return the ID of the customer at an index, customers being sorted by ID */
+  public long getId(int index) {
+    return ids[index];
+  }
+
+  /** @return the index of a customer, or a negative value if it is not in the registry */
+  public int indexOf(long id) {
+    return Arrays.binarySearch(ids, id);
+  }
+
+  public boolean contains(long id) {
+    return indexOf(id) >= 0;
+  }
+
+  public boolean hasFlag(int index, Flag flag) {
+    return flags[flag.ordinal()].get(index);
+  }
+
+  /** Calls the action with the ID of each customer having the flag. */
+  public void forEachWith(Flag flag, LongConsumer action) {
+    BitSet set = flags[flag.ordinal()];
+    for (int index = set.nextSetBit(0); index >= 0; index = set.nextSetBit(index + 1)) {
+      action.accept(ids[index]);
+    }
+  }
+
+  /** Calls the action with the ID of each customer not having the flag. */
+  public void forEachWithout(Flag flag, LongConsumer action) {
+    BitSet set = flags[flag.ordinal()];
+    for (int index = set.nextClearBit(0); index < ids.length; index = set.nextClearBit(index + 1)) {
+      action.accept(ids[index]);
+    }
+  }
+
+  /** @return the number of customers not having the flag */
+  public int countWithout(Flag flag) {
+    return ids.length - flags[flag.ordinal()].cardinality();
+  }
+
+  /**
+   * @param flag a flag
+   * @return the IDs of the customers not having the flag, as expected by the per-customer handlers
+   */
+  public List<String> getIdsWithout(Flag flag) {
+    List<String> customerIds = new ArrayList<>(countWithout(flag));
+    forEachWithout(flag, id -> customerIds.add(Long.toString(id)));
+    return customerIds;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%d customers, %d managers", ids.length, flags[Flag.MANAGER.ordinal()].cardinality());
+  }
+
+  /** Collects the customers of a registry, in any order. */
+  public static final class Builder {
+
+    private long[] ids = new long[64];
+    private BitSet[] flags = newFlags();
+    private int size = 0;
+
+    private Builder() {}
+
+    /**
+     * Adds a customer. Adding a customer twice merges its flags.
+     *
+     * @param id the ID of the customer
+     * @param customerFlags the flags of the customer
+     */
+    public Builder add(long id, Flag... customerFlags) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      for (Flag flag : customerFlags) {
+        flags[flag.ordinal()].set(size);
+      }
+      ids[size++] = id;
+      return this;
+    }
+
+    /** @return the registry, sorted by customer ID */
+    public CustomerRegistry build() {
+      long[] sortedIds = Arrays.copyOf(ids, size);
+      Arrays.sort(sortedIds);
+      int distinct = 0;
+      for (int i = 0; i < size; i++) {
+        if (distinct == 0 || sortedIds[distinct - 1] != sortedIds[i]) {
+          sortedIds[distinct++] = sortedIds[i];
+        }
+      }
+      sortedIds = Arrays.copyOf(sortedIds, distinct);
+      BitSet[] sortedFlags = newFlags();
+      for (int flag = 0; flag < flags.length; flag++) {
+        BitSet set = flags[flag];
+        for (int index = set.nextSetBit(0); index >= 0; index = set.nextSetBit(index + 1)) {
+          sortedFlags[flag].set(Arrays.binarySearch(sortedIds, ids[index]));
+        }
+      }
+      return new CustomerRegistry(sortedIds, sortedFlags);
+    }
+
+    private static BitSet[] newFlags() {
+      BitSet[] flags = new BitSet[Flag.values().length];
+      for (int flag = 0; flag < flags.length; flag++) {
+        flags[flag] = new BitSet();
+      }
+      return flags;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Orders the customers of a run longest job first, from the costs measured by the previous runs.
+ *
+ * <p>A run lasts at least as long as its largest customer, so a large customer starting last keeps
+ * the run going long after the others are done. Starting the customers in decreasing order of their
+ * last duration, each one going to the next free worker, bounds the run to 4/3 of the best possible
+ * schedule, and usually brings it close to the total work over the number of workers. Customers
+ * never measured, e.g. new accounts, are estimated at the mean duration of the others.
+ */
+public class CustomerSchedule {
+
+  private final List<String> order;
+  private final Map<String, Long> estimatedMillis = new HashMap<>();
+  private final int measured;
+
+  /**
+   * @param customerIds the customers of the run
+   * @param costs the last cost of the customers, by customer ID, without those never measured
+   */
+  public CustomerSchedule(List<String> customerIds, Map<String, CustomerCost> costs) {
+    long knownMillis = 0;
+    int known = 0;
+    for (String customerId : customerIds) {
+      CustomerCost cost = costs.get(customerId);
+      if (cost != null) {
+        knownMillis += cost.getDurationMillis();
+        known++;
+      }
+    }
+    long meanMillis = known == 0 ? 0 : knownMillis / known;
+    for (String customerId : customerIds) {
+      CustomerCost cost = costs.get(customerId);
+      estimatedMillis.put(customerId, cost == null ? meanMillis : cost.getDurationMillis());
+    }
+    this.measured = known;
+    // Stable, so that customers of equal cost keep the order of the account hierarchy
+    List<String> sorted = new ArrayList<>(customerIds);
+    sorted.sort(Comparator.comparing(estimatedMillis::get, Comparator.reverseOrder()));
+    this.order = Collections.unmodifiableList(sorted);
+  }
+
+  /** @return the customers, longest first */
+  public List<String> getOrder() {
+    return order;
+  }
+
+  /** @return the estimated duration of all the customers, one after the other */
+  public long getTotalMillis() {
+    long total = 0;
+    for (long millis : estimatedMillis.values()) {
+      total += millis;
+    }
+    return total;
+  }
+
+  /**
+   * Packs the customers in order onto the least loaded of the workers, as they are when each one
+   * takes the next customer once free.
+   *
+   * @param workers the number of customers processed at the same time
+   * @return the estimated duration of the run
+   */
+  public long getMakespanMillis(int workers) {
+    PriorityQueue<Long> loads = new PriorityQueue<>();
+    for (int i = 0; i < Math.max(1, workers); i++) {
+      loads.add(0L);
+    }
+    for (String customerId : order) {
+      loads.add(loads.poll() + estimatedMillis.get(customerId));
+    }
+    long makespan = 0;
+    for (long load : loads) {
+      makespan = Math.max(makespan, load);
+    }
+    return makespan;
+  }
+
+  /**
+   * @param workers the number of customers processed at the same time
+   * @return a summary of the schedule, for logs
+   */
+  public String describe(int workers) {
+    return String.format(
+        "%d customers, %d measured, %d ms of work, about %d ms over %d workers (%d ms per worker)",
+        order.size(),
+        measured,
+        getTotalMillis(),
+        getMakespanMillis(workers),
+        workers,
+        getTotalMillis() / Math.max(1, workers));
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.PathElement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists the costs of the customers in Datastore, as "customercost" children of the
+ * googleadsconfig entity read by {@link CredentialsUtils}, named after the entity and customer
+ * like the change watermarks. Reading the costs of a run is a few batched lookups.
+ */
+public class DatastoreCustomerCostStore implements CustomerCostStore {
+
+  private static final String KIND = "customercost";
+  private static final int MAX_KEYS_PER_GET = 1000;
+  private static final int MAX_ENTITIES_PER_PUT = 500;
+
+  private final Datastore datastore;
+  private final long configEntityId;
+
+  /**
+   * @param datastore the Datastore service
+   * @param configEntityId the id of the googleadsconfig entity
+   */
+  public DatastoreCustomerCostStore(Datastore datastore, long configEntityId) {
+    this.datastore = datastore;
+    this.configEntityId = configEntityId;
+  }
+
+  @Override
+  public Map<String, CustomerCost> getAll(String entityName, Collection<String> customerIds) {
+    Map<String, String> customerIdsByKeyName = new HashMap<>();
+    List<Key> keys = new ArrayList<>();
+    for (String customerId : customerIds) {
+      Key key = key(entityName, customerId);
+      customerIdsByKeyName.put(key.getName(), customerId);
+      keys.add(key);
+    }
+    Map<String, CustomerCost> costs = new HashMap<>();
+    for (int from = 0; from < keys.size(); from += MAX_KEYS_PER_GET) {
+      Iterator<Entity> entities =
+          datastore.get(keys.subList(from, Math.min(from + MAX_KEYS_PER_GET, keys.size())));
+      while (entities.hasNext()) {
+        Entity entity = entities.next();
+        costs.put(
+            customerIdsByKeyName.get(entity.getKey().getName()),
+            new CustomerCost(entity.getLong("rows"), entity.getLong("durationMillis")));
+      }
+    }
+    return costs;
+  }
+
+  @Override
+  public void putAll(String entityName, Map<String, CustomerCost> costs) {
+    List<FullEntity<?>> batch = new ArrayList<>();
+    for (Map.Entry<String, CustomerCost> entry : costs.entrySet()) {
+      batch.add(
+          Entity.newBuilder(key(entityName, entry.getKey()))
+              .set("rows", entry.getValue().getRows())
+              .set("durationMillis", entry.getValue().getDurationMillis())
+              .build());
+      if (batch.size() == MAX_ENTITIES_PER_PUT) {
+        datastore.put(batch.toArray(new FullEntity<?>[0]));
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      datastore.put(batch.toArray(new FullEntity<?>[0]));
+    }
+  }
+
+  private Key key(String entityName, String customerId) {
+    return datastore
+        .newKeyFactory()
+        .addAncestor(PathElement.of("googleadsconfig", configEntityId))
+        .setKind(KIND)
+        .newKey(entityName + "_" + customerId);
+  }
+}
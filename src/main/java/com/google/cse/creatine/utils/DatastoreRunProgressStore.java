@@ -0,0 +1,106 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityQuery;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.PathElement;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists the progress of the snapshot runs in Datastore, under the googleadsconfig entity read by
+ * {@link CredentialsUtils}.
+ *
+ * <p>The customers done for an entity on a snapshot date are "customerprogress" entities, holding
+ * their blobs, under the key of a "runprogress" entity which holds the state of the table once it
+ * is set. Reading the progress of an entity is a lookup and an ancestor query.
+ */
+public class DatastoreRunProgressStore implements RunProgressStore {
+
+  private static final String RUN_KIND = "runprogress";
+  private static final String CUSTOMER_KIND = "customerprogress";
+
+  private final Datastore datastore;
+  private final long configEntityId;
+
+  /**
+   * @param datastore the Datastore service
+   * @param configEntityId the id of the googleadsconfig entity
+   */
+  public DatastoreRunProgressStore(Datastore datastore, long configEntityId) {
+    this.datastore = datastore;
+    this.configEntityId = configEntityId;
+  }
+
+  @Override
+  public Progress get(String snapshotDate, String entityName) {
+    Key runKey = runKey(snapshotDate, entityName);
+    Entity run = datastore.get(runKey);
+    EntityQuery query =
+        Query.newEntityQueryBuilder()
+            .setKind(CUSTOMER_KIND)
+            .setFilter(PropertyFilter.hasAncestor(runKey))
+            .build();
+    Map<String, List<String>> blobsByCustomer = new HashMap<>();
+    QueryResults<Entity> results = datastore.run(query);
+    while (results.hasNext()) {
+      Entity customer = results.next();
+      String blobs = customer.getString("blobs");
+      blobsByCustomer.put(
+          customer.getKey().getName(),
+          blobs.isEmpty() ? Collections.emptyList() : Arrays.asList(blobs.split("\n")));
+    }
+    if (run == null && blobsByCustomer.isEmpty()) {
+      return Progress.NONE;
+    }
+    TableState state = run == null ? null : TableState.valueOf(run.getString("state"));
+    return new Progress(state, blobsByCustomer);
+  }
+
+  @Override
+  public void markCustomerDone(
+      String snapshotDate, String entityName, String customerId, List<String> blobNames) {
+    // One unindexed string, as the blob names of a large customer exceed the indexed size limit
+    StringValue blobs =
+        StringValue.newBuilder(String.join("\n", blobNames)).setExcludeFromIndexes(true).build();
+    Key customerKey =
+        Key.newBuilder(runKey(snapshotDate, entityName), CUSTOMER_KIND, customerId).build();
+    datastore.put(Entity.newBuilder(customerKey).set("blobs", blobs).build());
+  }
+
+  @Override
+  public void setTableState(String snapshotDate, String entityName, TableState state) {
+    datastore.put(
+        Entity.newBuilder(runKey(snapshotDate, entityName)).set("state", state.name()).build());
+  }
+
+  private Key runKey(String snapshotDate, String entityName) {
+    return datastore
+        .newKeyFactory()
+        .addAncestor(PathElement.of("googleadsconfig", configEntityId))
+        .setKind(RUN_KIND)
+        .newKey(snapshotDate + "_" + entityName);
+  }
+}
@@ -0,0 +1,289 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityQuery;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.PathElement;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.OrderBy;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Transaction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Persists the work items of the snapshot runs in Datastore, under the googleadsconfig entity read
+ * by {@link CredentialsUtils}, so that every instance of the app claims from the same items.
+ *
+ * <p>The items of an entity on a snapshot date are "workclaim" entities named after their customer,
+ * under the key of a "workrun" entity. Besides its state, an item holds the time after which it can
+ * be claimed: 0 while pending, the expiry of its lease while claimed, and never once done or
+ * failed. Claiming is an ancestor query on that time in a transaction, so that two instances
+ * claiming at once conflict and one of them tries again, rather than both getting the same items.
+ * The pending items are claimed by their rank, the order in which they were added. The query needs
+ * the composite index declared in index.yaml.
+ */
+public class DatastoreWorkClaimStore implements WorkClaimStore {
+
+  private static final String RUN_KIND = "workrun";
+  private static final String ITEM_KIND = "workclaim";
+  // The maximum number of entities written in a commit
+  private static final int MAX_WRITES = 500;
+  private static final int MAX_TRANSACTION_ATTEMPTS = 5;
+
+  private final Datastore datastore;
+  private final long configEntityId;
+
+  /**
+   * @param datastore the Datastore service
+   * @param configEntityId the id of the googleadsconfig entity
+   */
+  public DatastoreWorkClaimStore(Datastore datastore, long configEntityId) {
+    this.datastore = datastore;
+    this.configEntityId = configEntityId;
+  }
+
+  @Override
+  public void addItems(String snapshotDate, String entityName, Collection<String> customerIds) {
+    Key runKey = runKey(snapshotDate, entityName);
+    List<Key> keys = new ArrayList<>();
+    for (String customerId : customerIds) {
+      keys.add(itemKey(runKey, customerId));
+    }
+    for (int from = 0; from < keys.size(); from += MAX_WRITES) {
+      int rank = from;
+      Key[] chunk =
+          keys.subList(from, Math.min(from + MAX_WRITES, keys.size())).toArray(new Key[0]);
+      inTransaction(
+          transaction -> {
+            List<Entity> existing = transaction.fetch(chunk);
+            for (int i = 0; i < chunk.length; i++) {
+              Entity item = existing.get(i);
+              if (item == null || state(item) == ItemState.FAILED) {
+                transaction.put(
+                    update(
+                        Entity.newBuilder(chunk[i]).set("rank", rank + i).build(),
+                        ItemState.PENDING,
+                        "",
+                        0,
+                        0));
+              }
+            }
+            return null;
+          });
+    }
+  }
+
+  @Override
+  public List<String> claim(
+      String snapshotDate, String entityName, String owner, int maxItems, long leaseMillis) {
+    Key runKey = runKey(snapshotDate, entityName);
+    return inTransaction(
+        transaction -> {
+          long now = System.currentTimeMillis();
+          EntityQuery query =
+              Query.newEntityQueryBuilder()
+                  .setKind(ITEM_KIND)
+                  .setFilter(
+                      CompositeFilter.and(
+                          PropertyFilter.hasAncestor(runKey),
+                          PropertyFilter.lt("claimableAfter", now)))
+                  .setOrderBy(OrderBy.asc("claimableAfter"), OrderBy.asc("rank"))
+                  .setLimit(Math.min(maxItems, MAX_WRITES))
+                  .build();
+          List<String> claimed = new ArrayList<>();
+          QueryResults<Entity> results = transaction.run(query);
+          while (results.hasNext()) {
+            Entity item = results.next();
+            transaction.put(
+                update(
+                    item,
+                    ItemState.CLAIMED,
+                    owner,
+                    item.getLong("attempts") + 1,
+                    now + leaseMillis));
+            claimed.add(item.getKey().getName());
+          }
+          return claimed;
+        });
+  }
+
+  @Override
+  public Set<String> renew(
+      String snapshotDate,
+      String entityName,
+      String owner,
+      Collection<String> customerIds,
+      long leaseMillis) {
+    Key runKey = runKey(snapshotDate, entityName);
+    Key[] keys = customerIds.stream().map(id -> itemKey(runKey, id)).toArray(Key[]::new);
+    if (keys.length == 0) {
+      return new HashSet<>();
+    }
+    return inTransaction(
+        transaction -> {
+          long now = System.currentTimeMillis();
+          Set<String> renewed = new HashSet<>();
+          for (Entity item : transaction.fetch(keys)) {
+            if (isClaimedBy(item, owner, now)) {
+              transaction.put(
+                  update(
+                      item,
+                      ItemState.CLAIMED,
+                      owner,
+                      item.getLong("attempts"),
+                      now + leaseMillis));
+              renewed.add(item.getKey().getName());
+            }
+          }
+          return renewed;
+        });
+  }
+
+  @Override
+  public boolean complete(String snapshotDate, String entityName, String owner, String customerId) {
+    Key key = itemKey(runKey(snapshotDate, entityName), customerId);
+    return inTransaction(
+        transaction -> {
+          Entity item = transaction.get(key);
+          if (!isClaimedBy(item, owner, System.currentTimeMillis())) {
+            return false;
+          }
+          transaction.put(
+              update(item, ItemState.DONE, "", item.getLong("attempts"), Long.MAX_VALUE));
+          return true;
+        });
+  }
+
+  @Override
+  public void release(
+      String snapshotDate, String entityName, String owner, String customerId, int maxClaims) {
+    Key key = itemKey(runKey(snapshotDate, entityName), customerId);
+    inTransaction(
+        transaction -> {
+          Entity item = transaction.get(key);
+          if (isClaimedBy(item, owner, System.currentTimeMillis())) {
+            long attempts = item.getLong("attempts");
+            transaction.put(
+                attempts >= maxClaims
+                    ? update(item, ItemState.FAILED, "", attempts, Long.MAX_VALUE)
+                    : update(item, ItemState.PENDING, "", attempts, 0));
+          }
+          return null;
+        });
+  }
+
+  @Override
+  public Counts getCounts(String snapshotDate, String entityName) {
+    EntityQuery query =
+        Query.newEntityQueryBuilder()
+            .setKind(ITEM_KIND)
+            .setFilter(PropertyFilter.hasAncestor(runKey(snapshotDate, entityName)))
+            .build();
+    long now = System.currentTimeMillis();
+    int pending = 0;
+    int claimed = 0;
+    int done = 0;
+    int failed = 0;
+    QueryResults<Entity> results = datastore.run(query);
+    while (results.hasNext()) {
+      Entity item = results.next();
+      ItemState state = state(item);
+      if (state == ItemState.DONE) {
+        done++;
+      } else if (state == ItemState.FAILED) {
+        failed++;
+      } else if (item.getLong("claimableAfter") < now) {
+        pending++;
+      } else {
+        claimed++;
+      }
+    }
+    return new Counts(pending, claimed, done, failed);
+  }
+
+  /** Runs a unit of work in a transaction, trying it again when it conflicts with another. */
+  private <T> T inTransaction(Function<Transaction, T> work) {
+    for (int attempt = 1; ; attempt++) {
+      Transaction transaction = datastore.newTransaction();
+      try {
+        T result = work.apply(transaction);
+        transaction.commit();
+        return result;
+      } catch (DatastoreException e) {
+        if (!e.isRetryable() || attempt >= MAX_TRANSACTION_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+      try {
+        // The instances which conflicted do not try again at the same time
+        Thread.sleep(ThreadLocalRandom.current().nextLong(50L << attempt));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for Datastore", e);
+      }
+    }
+  }
+
+  private static boolean isClaimedBy(Entity item, String owner, long now) {
+    return item != null
+        && state(item) == ItemState.CLAIMED
+        && owner.equals(item.getString("owner"))
+        && item.getLong("claimableAfter") >= now;
+  }
+
+  private static ItemState state(Entity item) {
+    return ItemState.valueOf(item.getString("state"));
+  }
+
+  /** @return the item with a new state, keeping its rank */
+  private static Entity update(
+      Entity item, ItemState state, String owner, long attempts, long claimableAfter) {
+    return Entity.newBuilder(item)
+        .set("state", state.name())
+        .set("owner", StringValue.newBuilder(owner).setExcludeFromIndexes(true).build())
+        .set("attempts", attempts)
+        .set("claimableAfter", claimableAfter)
+        .build();
+  }
+
+  private static Key itemKey(Key runKey, String customerId) {
+    return Key.newBuilder(runKey, ITEM_KIND, customerId).build();
+  }
+
+  private Key runKey(String snapshotDate, String entityName) {
+    return datastore
+        .newKeyFactory()
+        .addAncestor(PathElement.of("googleadsconfig", configEntityId))
+        .setKind(RUN_KIND)
+        .newKey(snapshotDate + "_" + entityName);
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes only the rows which changed since the previous snapshot to a change table, each row
+ * carrying its change type and the fingerprint of its resource name in two extra columns.
+ *
+ * <p>The rows of a customer go through one writer per checkpoint, all sharing the customer's
+ * {@link DeltaTracker}. Once the customer is extracted, {@link #writeDeletions} adds a row made of
+ * the two extra columns only for each resource which disappeared.
+ */
+public class DeltaRowWriter implements RowWriter<FingerprintedRow> {
+
+  /** The column holding the {@link DeltaTracker.ChangeType} of a row of a change table. */
+  public static final String CHANGE_TYPE_FIELD = "_change_type";
+
+  /** The column holding the FARM_FINGERPRINT of the resource name of a row of a change table. */
+  public static final String KEY_FINGERPRINT_FIELD = "_key_fingerprint";
+
+  private final DeltaTracker tracker;
+  private final RowWriter<CharSequence> writer;
+  private final StringBuilder row = new StringBuilder();
+
+  /**
+   * @param tracker the tracker of the customer
+   * @param writer the writer of the change table
+   */
+  public DeltaRowWriter(DeltaTracker tracker, RowWriter<CharSequence> writer) {
+    this.tracker = tracker;
+    this.writer = writer;
+  }
+
+  /** Writes the row if it is new or changed. */
+  @Override
+  public void writeRow(FingerprintedRow fingerprintedRow) throws IOException {
+    DeltaTracker.ChangeType changeType = tracker.track(fingerprintedRow);
+    if (changeType == null) {
+      return;
+    }
+    String json = fingerprintedRow.getJson();
+    row.setLength(0);
+    // Reopen the JSON object to add the change columns
+    row.append(json, 0, json.length() - 1);
+    if (json.length() > 2) {
+      row.append(',');
+    }
+    appendChangeFields(row, changeType, fingerprintedRow.getKey());
+    writer.writeRow(row);
+  }
+
+  @Override
+  public List<String> getBlobNames() {
+    return writer.getBlobNames();
+  }
+
+  @Override
+  public long getBytesWritten() {
+    return writer.getBytesWritten();
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+
+  /**
+   * Writes a deletion row for each resource of the previous snapshot which was not seen by the
+   * tracker.
+   *
+   * @param tracker the tracker of a customer whose extraction is complete
+   * @param writer the writer of the change table, left open
+   * @return the number of deletion rows written
+   */
+  public static int writeDeletions(DeltaTracker tracker, RowWriter<CharSequence> writer)
+      throws IOException {
+    long[] deletedKeys = tracker.getDeletedKeys();
+    StringBuilder row = new StringBuilder();
+    for (long key : deletedKeys) {
+      row.setLength(0);
+      row.append('{');
+      appendChangeFields(row, DeltaTracker.ChangeType.DELETE, key);
+      writer.writeRow(row);
+    }
+    return deletedKeys.length;
+  }
+
+  /**
+   * @param schema the schema of the snapshot tables of an entity
+   * @return the schema of its change tables, with the two change columns added at the end
+   */
+  public static Schema changeSchema(Schema schema) {
+    List<Field> fields = new ArrayList<>(schema.getFields());
+    fields.add(
+        Field.newBuilder(CHANGE_TYPE_FIELD, LegacySQLTypeName.STRING)
+            .setMode(Field.Mode.REQUIRED)
+            .build());
+    fields.add(
+        Field.newBuilder(KEY_FINGERPRINT_FIELD, LegacySQLTypeName.INTEGER)
+            .setMode(Field.Mode.REQUIRED)
+            .build());
+    return Schema.of(fields);
+  }
+
+  private static void appendChangeFields(
+      StringBuilder row, DeltaTracker.ChangeType changeType, long key) {
+    row.append('"')
+        .append(CHANGE_TYPE_FIELD)
+        .append("\":\"")
+        .append(changeType.name())
+        .append("\",\"")
+        .append(KEY_FINGERPRINT_FIELD)
+        .append("\":")
+        .append(key)
+        .append('}');
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.util.BitSet;
+
+/**
+ * Compares the rows of a customer with the fingerprints of its previous snapshot while they are
+ * extracted, and collects the fingerprints of the current snapshot. A tracker is used by a single
+ * thread.
+ */
+public class DeltaTracker {
+
+  /** How a row differs from the previous snapshot. */
+  public enum ChangeType {
+    INSERT,
+    UPDATE,
+    DELETE
+  }
+
+  private final FingerprintIndex previous;
+  private final BitSet seen;
+  private final FingerprintIndex current;
+
+  private int inserted = 0;
+  private int updated = 0;
+  private int unchanged = 0;
+
+  /** @param previous the fingerprints of the previous snapshot, or null to insert every row */
+  public DeltaTracker(FingerprintIndex previous) {
+    this.previous = previous == null ? new FingerprintIndex(0) : previous;
+    this.seen = new BitSet(this.previous.capacity());
+    this.current = new FingerprintIndex(this.previous.size());
+  }
+
+  /**
+   * Records a row of the current snapshot.
+   *
+   * @return how the row changed, or null if it did not
+   */
+  public ChangeType track(FingerprintedRow row) {
+    current.put(row.getKey(), row.getContent());
+    int slot = previous.slotOf(row.getKey());
+    if (slot < 0) {
+      inserted++;
+      return ChangeType.INSERT;
+    }
+    seen.set(slot);
+    if (previous.contentAt(slot) == row.getContent()) {
+      unchanged++;
+      return null;
+    }
+    updated++;
+    return ChangeType.UPDATE;
+  }
+
+  /** @return the fingerprints of the resource names of the previous rows not seen since */
+  public long[] getDeletedKeys() {
+    long[] deleted = new long[previous.size() - seen.cardinality()];
+    int count = 0;
+    for (int slot = 0; slot < previous.capacity(); slot++) {
+      if (previous.isOccupied(slot) && !seen.get(slot)) {
+        deleted[count++] = previous.keyAt(slot);
+      }
+    }
+    return deleted;
+  }
+
+  /** @return the fingerprints of the rows tracked so far */
+  public FingerprintIndex getCurrent() {
+    return current;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%d inserted, %d updated, %d unchanged, %d deleted",
+        inserted, updated, unchanged, previous.size() - seen.cardinality());
+  }
+}
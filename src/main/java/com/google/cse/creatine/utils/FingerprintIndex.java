@@ -0,0 +1,151 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.BitSet;
+
+/**
+ * Maps the fingerprint of each row's resource name to the fingerprint of its content, for the rows
+ * of one customer.
+ *
+ * <p>The index is an open-addressing hash table over two primitive arrays, kept at most half full.
+ * It takes 32 to 64 bytes per row and no object per row, so that the index of a customer with
+ * hundreds of thousands of ads stays small. It is stored as a count followed by the (key, content)
+ * pairs, 16 bytes per row.
+ */
+public final class FingerprintIndex {
+
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] keys;
+  private long[] contents;
+  private BitSet occupied;
+  private int size = 0;
+
+  /** @param expectedSize the number of rows expected, to size the table */
+  public FingerprintIndex(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  /**
+   * Adds or replaces the content fingerprint of a row.
+   *
+   * @param key the fingerprint of the resource name of the row
+   * @param content the fingerprint of the content of the row
+   */
+  public void put(long key, long content) {
+    if ((size + 1) * 2 > keys.length) {
+      grow();
+    }
+    int slot = find(key);
+    if (!occupied.get(slot)) {
+      occupied.set(slot);
+      keys[slot] = key;
+      size++;
+    }
+    contents[slot] = content;
+  }
+
+  /**
+   * @param key the fingerprint of the resource name of a row
+   * @return the slot of the row, or -1 if the row is not in the index
+   */
+  public int slotOf(long key) {
+    int slot = find(key);
+    return occupied.get(slot) ? slot : -1;
+  }
+
+  /** @return the number of slots, occupied or not */
+  public int capacity() {
+    return keys.length;
+  }
+
+  public boolean isOccupied(int slot) {
+    return occupied.get(slot);
+  }
+
+  public long keyAt(int slot) {
+    return keys[slot];
+  }
+
+  public long contentAt(int slot) {
+    return contents[slot];
+  }
+
+  /** @return the number of rows */
+  public int size() {
+    return size;
+  }
+
+  /** Writes the index to a stream, without closing it. */
+  public void writeTo(OutputStream stream) throws IOException {
+    DataOutputStream output = new DataOutputStream(stream);
+    output.writeInt(size);
+    for (int slot = occupied.nextSetBit(0); slot >= 0; slot = occupied.nextSetBit(slot + 1)) {
+      output.writeLong(keys[slot]);
+      output.writeLong(contents[slot]);
+    }
+    output.flush();
+  }
+
+  /** Reads an index written by {@link #writeTo}. */
+  public static FingerprintIndex readFrom(InputStream stream) throws IOException {
+    DataInputStream input = new DataInputStream(stream);
+    int count = input.readInt();
+    FingerprintIndex index = new FingerprintIndex(count);
+    for (int i = 0; i < count; i++) {
+      long key = input.readLong();
+      index.put(key, input.readLong());
+    }
+    return index;
+  }
+
+  /** @return the slot holding the key, or the empty slot where it belongs */
+  private int find(long key) {
+    int mask = keys.length - 1;
+    // The keys are already uniformly distributed fingerprints
+    int slot = (int) (key ^ (key >>> 32)) & mask;
+    while (occupied.get(slot) && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    contents = new long[capacity];
+    occupied = new BitSet(capacity);
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    long[] oldContents = contents;
+    BitSet oldOccupied = occupied;
+    allocate(keys.length * 2);
+    size = 0;
+    for (int slot = oldOccupied.nextSetBit(0); slot >= 0; slot = oldOccupied.nextSetBit(slot + 1)) {
+      put(oldKeys[slot], oldContents[slot]);
+    }
+  }
+}
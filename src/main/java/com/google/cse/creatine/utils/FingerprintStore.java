@@ -0,0 +1,97 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the {@link FingerprintIndex} of each customer's snapshot in the Cloud Storage bucket, under
+ * fingerprints/(entity)/(snapshot date)/(customer ID).bin.
+ */
+public class FingerprintStore {
+
+  private static final Logger logger = Logger.getLogger(FingerprintStore.class.getName());
+
+  private static final int BUFFER_SIZE = 256 * 1024;
+
+  private final Storage storage;
+  private final String bucketName;
+
+  /**
+   * @param storage the Google Cloud Storage service
+   * @param bucketName the bucket holding the fingerprints
+   */
+  public FingerprintStore(Storage storage, String bucketName) {
+    this.storage = storage;
+    this.bucketName = bucketName;
+  }
+
+  /**
+   * @param entityName the name of the extracted entity, e.g. AdGroupAds
+   * @param snapshotDate the date of the snapshot, as in the table names (yyyyMMdd)
+   * @param customerId a customer ID
+   * @return the fingerprints of the customer's rows in the snapshot, or null if there are none
+   */
+  public FingerprintIndex load(String entityName, String snapshotDate, String customerId)
+      throws IOException {
+    Blob blob = storage.get(blobId(entityName, snapshotDate, customerId));
+    if (blob == null) {
+      return null;
+    }
+    try (InputStream input =
+        new BufferedInputStream(Channels.newInputStream(blob.reader()), BUFFER_SIZE)) {
+      return FingerprintIndex.readFrom(input);
+    }
+  }
+
+  /**
+   * Stores the fingerprints of the customer's rows in a snapshot.
+   *
+   * @param entityName the name of the extracted entity, e.g. AdGroupAds
+   * @param snapshotDate the date of the snapshot, as in the table names (yyyyMMdd)
+   * @param customerId a customer ID
+   * @param index the fingerprints
+   */
+  public void save(
+      String entityName, String snapshotDate, String customerId, FingerprintIndex index)
+      throws IOException {
+    BlobInfo blobInfo =
+        BlobInfo.newBuilder(blobId(entityName, snapshotDate, customerId))
+            .setContentType("application/octet-stream")
+            .build();
+    // Closing the stream closes the channel, which finalizes the upload
+    try (OutputStream output =
+        new BufferedOutputStream(Channels.newOutputStream(storage.writer(blobInfo)), BUFFER_SIZE)) {
+      index.writeTo(output);
+    }
+    logger.fine(
+        "Saved " + index.size() + " " + entityName + " fingerprints of customer " + customerId);
+  }
+
+  private BlobId blobId(String entityName, String snapshotDate, String customerId) {
+    return BlobId.of(
+        bucketName, "fingerprints/" + entityName + "/" + snapshotDate + "/" + customerId + ".bin");
+  }
+}
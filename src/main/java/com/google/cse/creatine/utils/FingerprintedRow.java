@@ -0,0 +1,46 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+/** A JSON row along with the fingerprints of its resource name and of its content. */
+public final class FingerprintedRow {
+
+  private final long key;
+  private final long content;
+  private final String json;
+
+  /**
+   * @param key the fingerprint of the resource name of the row
+   * @param content the fingerprint of the JSON row
+   * @param json the row as a single line of JSON
+   */
+  public FingerprintedRow(long key, long content, String json) {
+    this.key = key;
+    this.content = content;
+    this.json = json;
+  }
+
+  public long getKey() {
+    return key;
+  }
+
+  public long getContent() {
+    return content;
+  }
+
+  public String getJson() {
+    return json;
+  }
+}
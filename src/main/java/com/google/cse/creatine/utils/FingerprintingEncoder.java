@@ -0,0 +1,69 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.MessageOrBuilder;
+import java.io.IOException;
+
+/**
+ * Prints each resource as JSON and fingerprints it, so that a {@link DeltaRowWriter} can tell
+ * whether it changed since the previous snapshot.
+ *
+ * <p>Fingerprints are FarmHash Fingerprint64 values, the function behind BigQuery's
+ * FARM_FINGERPRINT, so that the fingerprint of a resource name can be matched in SQL. The content
+ * fingerprint is taken over the UTF-8 bytes of the JSON row, which are canonical as the serializer
+ * prints the fields in a fixed order.
+ */
+public class FingerprintingEncoder implements RowEncoder<MessageOrBuilder, FingerprintedRow> {
+
+  private static final HashFunction FINGERPRINT = Hashing.farmHashFingerprint64();
+
+  private final Descriptors.FieldDescriptor resourceNameField;
+  private final ProtoJsonSerializer serializer;
+
+  /**
+   * @param descriptor the descriptor of the resources, which must have a resource_name field
+   * @param serializer prints the resources as JSON
+   */
+  public FingerprintingEncoder(Descriptors.Descriptor descriptor, ProtoJsonSerializer serializer) {
+    this.resourceNameField = descriptor.findFieldByName("resource_name");
+    if (resourceNameField == null) {
+      throw new IllegalArgumentException(descriptor.getFullName() + " has no resource_name");
+    }
+    this.serializer = serializer;
+  }
+
+  @Override
+  public FingerprintedRow encode(MessageOrBuilder message) throws IOException {
+    String json = serializer.print(message);
+    return new FingerprintedRow(
+        fingerprint((String) message.getField(resourceNameField)), fingerprint(json), json);
+  }
+
+  @Override
+  public SpillCodec<FingerprintedRow> getSpillCodec() {
+    return SpillCodec.FINGERPRINTED_ROWS;
+  }
+
+  /** @return the fingerprint of a string, equal to FARM_FINGERPRINT in BigQuery */
+  public static long fingerprint(String value) {
+    return FINGERPRINT.hashString(value, UTF_8).asLong();
+  }
+}
@@ -14,25 +14,36 @@
 
 package com.google.cse.creatine.utils;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 import com.google.cloud.storage.*;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 import java.util.logging.Logger;
 
-/** Wraps biquery calls to the Google Cloud Storage API. */
-public class GoogleCloudStorageUtils {
+/** Wraps biquery calls to the Google Cloud Storage API, as the {@link SnapshotSink} of the runs. */
+public class GoogleCloudStorageUtils implements SnapshotSink {
 
   private static final Logger logger = Logger.getLogger(GoogleCloudStorageUtils.class.getName());
 
+  /** The default size of the rows of a blob, before compression. */
+  public static final long DEFAULT_CHUNK_BYTES = 64L * 1024 * 1024;
+
   private final Storage storage;
+  private final long chunkBytes;
   private Bucket bucket;
 
   public GoogleCloudStorageUtils(Storage storage, Configuration conf) {
+    this(storage, conf, DEFAULT_CHUNK_BYTES);
+  }
+
+  /**
+   * @param storage the Google Cloud Storage service
+   * @param conf the Configuration
+   * @param chunkBytes the size of the rows of a blob, before compression, after which the next blob
+   *     is started
+   */
+  public GoogleCloudStorageUtils(Storage storage, Configuration conf, long chunkBytes) {
     this.storage = storage;
+    this.chunkBytes = chunkBytes;
   }
 
   /**
@@ -49,44 +60,56 @@ public class GoogleCloudStorageUtils {
     return bucket;
   }
 
+  @Override
+  public void prepare(String bucketName) {
+    createBucket(bucketName);
+  }
+
+  @Override
+  public boolean isLoadable() {
+    return true;
+  }
+
   /**
-   * This method writes the content in the dataList to the file with the blobName into Google Cloud
-   * Storage
+   * Opens the resumable uploads of the blobs of a folder.
    *
-   * @param dataList the list containing the data
-   * @param blobName the name of the blob where the data should be written
-   * @return a String containing the Google Cloud Storage link to the blob
+   * @param storage the Google Cloud Storage service
+   * @param bucketName the bucket in which the blobs are created
+   * @param folder the folder (usually today's date) in which the blobs are created
    */
-  public List<String> writeToBucket(List<String> dataList, String blobName) {
-    BlobId blobId;
-    BlobInfo blobInfo;
-    Integer chunkSize = 20000;
-
-    StringBuilder sb = new StringBuilder();
+  static BlobChannelFactory channels(Storage storage, String bucketName, String folder) {
+    return (blobName, contentType) ->
+        storage.writer(
+            BlobInfo.newBuilder(BlobId.of(bucketName, folder + "/" + blobName))
+                .setContentType(contentType)
+                .build());
+  }
 
-    // Splitting mechanism to avoid OutOfMemory errors
-    List<String> elementsAdded = new ArrayList<>();
+  /**
+   * Opens a streaming writer to the blobs named blobName in today's folder of the bucket. Rows
+   * pushed into the writer are uploaded as they come, a new blob being started every chunkBytes
+   * bytes.
+   *
+   * @param blobName the name of the blobs, "(chunk)" being replaced by the chunk number
+   * @return the writer, which must be closed to finalize the last blob
+   */
+  @Override
+  public NDJsonBlobWriter openWriter(String blobName) {
     String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
-    for (int i = dataList.size(); i > 0; i--) {
-      sb.append(dataList.get(i - 1));
-      sb.append("\n");
-      dataList.remove(i - 1);
-      // Every "{chunkSize}" lines, we send a new bloc to GCS or at the end of the list
-      if (i % chunkSize == 0 || i - 1 == 0) {
-        int chunkNumber = (int) Math.round(Math.floor(i / chunkSize) + 1);
-        blobId =
-            BlobId.of(
-                bucket.getName(),
-                today + "/" + blobName.replace("(chunk)", String.valueOf(chunkNumber)));
-        elementsAdded.add(blobName.replace("(chunk)", String.valueOf(chunkNumber)));
-        blobInfo = BlobInfo.newBuilder(blobId).setContentType("application/json").build();
-        storage.create(blobInfo, sb.toString().getBytes(UTF_8));
-        // Empty the StringBuffer
-        sb.delete(0, sb.length());
-      }
-    }
+    return new NDJsonBlobWriter(storage, bucket.getName(), today, blobName, chunkBytes);
+  }
 
-    // Blob blob = storage.create(blobInfo, sb.toString().getBytes(UTF_8));
-    return elementsAdded;
+  /**
+   * Opens a streaming writer to the Avro blobs named blobName in today's folder of the bucket, a
+   * new blob being started every chunkBytes bytes of encoded rows.
+   *
+   * @param blobName the name of the blobs, "(chunk)" being replaced by the chunk number
+   * @param schema the Avro schema of the rows
+   * @return the writer, which must be closed to finalize the last blob
+   */
+  @Override
+  public AvroBlobWriter openAvroWriter(String blobName, org.apache.avro.Schema schema) {
+    String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
+    return new AvroBlobWriter(storage, bucket.getName(), today, blobName, chunkBytes, schema);
   }
 }
@@ -0,0 +1,47 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link CustomerCostStore} kept in memory, for running offline. The costs only serve the runs of
+ * the same instance.
+ */
+public class InMemoryCustomerCostStore implements CustomerCostStore {
+
+  private final Map<String, Map<String, CustomerCost>> costs = new ConcurrentHashMap<>();
+
+  @Override
+  public Map<String, CustomerCost> getAll(String entityName, Collection<String> customerIds) {
+    Map<String, CustomerCost> entityCosts = costs.getOrDefault(entityName, new HashMap<>());
+    Map<String, CustomerCost> found = new HashMap<>();
+    for (String customerId : customerIds) {
+      CustomerCost cost = entityCosts.get(customerId);
+      if (cost != null) {
+        found.put(customerId, cost);
+      }
+    }
+    return found;
+  }
+
+  @Override
+  public void putAll(String entityName, Map<String, CustomerCost> customerCosts) {
+    costs.computeIfAbsent(entityName, key -> new ConcurrentHashMap<>()).putAll(customerCosts);
+  }
+}
@@ -0,0 +1,58 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link RunProgressStore} kept in memory, for running offline. The progress only survives retries
+ * served by the same instance.
+ */
+public class InMemoryRunProgressStore implements RunProgressStore {
+
+  private final Map<String, TableState> tableStates = new ConcurrentHashMap<>();
+  private final Map<String, Map<String, List<String>>> customers = new ConcurrentHashMap<>();
+
+  @Override
+  public Progress get(String snapshotDate, String entityName) {
+    String key = key(snapshotDate, entityName);
+    Map<String, List<String>> blobsByCustomer = customers.get(key);
+    if (blobsByCustomer == null) {
+      return Progress.NONE;
+    }
+    return new Progress(tableStates.get(key), new HashMap<>(blobsByCustomer));
+  }
+
+  @Override
+  public void markCustomerDone(
+      String snapshotDate, String entityName, String customerId, List<String> blobNames) {
+    customers
+        .computeIfAbsent(key(snapshotDate, entityName), key -> new ConcurrentHashMap<>())
+        .put(customerId, new ArrayList<>(blobNames));
+  }
+
+  @Override
+  public void setTableState(String snapshotDate, String entityName, TableState state) {
+    tableStates.put(key(snapshotDate, entityName), state);
+  }
+
+  private static String key(String snapshotDate, String entityName) {
+    return snapshotDate + "_" + entityName;
+  }
+}
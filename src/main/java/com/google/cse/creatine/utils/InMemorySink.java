@@ -0,0 +1,102 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import org.apache.avro.Schema;
+
+/**
+ * {@link SnapshotSink} keeping the blobs in memory, to run a snapshot offline and read back what it
+ * wrote. Every blob is kept until {@link #clear}, so it suits small accounts and benchmarks.
+ */
+public class InMemorySink implements SnapshotSink {
+
+  private final long chunkBytes;
+  // The blobs by path, <bucket>/<yyyyMMdd>/<blob>
+  private final Map<String, ByteArrayOutputStream> blobs = new ConcurrentSkipListMap<>();
+  private volatile String bucketName = "";
+
+  /**
+   * @param chunkBytes the size of the rows of a blob, before compression, after which the next blob
+   *     is started
+   */
+  public InMemorySink(long chunkBytes) {
+    this.chunkBytes = chunkBytes;
+  }
+
+  @Override
+  public void prepare(String bucketName) {
+    this.bucketName = bucketName;
+  }
+
+  @Override
+  public NDJsonBlobWriter openWriter(String blobName) {
+    return new NDJsonBlobWriter(openChannels(), blobName, chunkBytes);
+  }
+
+  @Override
+  public AvroBlobWriter openAvroWriter(String blobName, Schema schema) {
+    return new AvroBlobWriter(openChannels(), blobName, chunkBytes, schema);
+  }
+
+  @Override
+  public boolean isLoadable() {
+    return false;
+  }
+
+  /** @return the paths of the blobs written so far, as bucket/yyyyMMdd/blob */
+  public List<String> getBlobPaths() {
+    return new ArrayList<>(blobs.keySet());
+  }
+
+  /**
+   * @param blobPath the path of a blob, as bucket/yyyyMMdd/blob
+   * @return the content of the blob, or null if it was never written
+   */
+  public byte[] getContent(String blobPath) {
+    ByteArrayOutputStream blob = blobs.get(blobPath);
+    return blob == null ? null : blob.toByteArray();
+  }
+
+  /** @return the bytes of all the blobs */
+  public long getBytesWritten() {
+    long bytes = 0;
+    for (ByteArrayOutputStream blob : blobs.values()) {
+      bytes += blob.size();
+    }
+    return bytes;
+  }
+
+  /** Forgets every blob. */
+  public void clear() {
+    blobs.clear();
+  }
+
+  private BlobChannelFactory openChannels() {
+    String folder = bucketName + "/" + new SimpleDateFormat("yyyyMMdd").format(new Date());
+    return (blobName, contentType) -> {
+      ByteArrayOutputStream blob = new ByteArrayOutputStream();
+      blobs.put(folder + "/" + blobName, blob);
+      return Channels.newChannel(blob);
+    };
+  }
+}
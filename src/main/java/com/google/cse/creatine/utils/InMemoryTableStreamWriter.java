@@ -0,0 +1,101 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.bigquery.Schema;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Fake {@link TableStreamWriter} keeping the rows in memory, so that the direct BigQuery path can
+ * be run offline. Like a pending stream, appended rows only become visible after a commit.
+ */
+public class InMemoryTableStreamWriter implements TableStreamWriter {
+
+  private static final Logger logger = Logger.getLogger(InMemoryTableStreamWriter.class.getName());
+
+  // The rows not committed yet of each table, by customer ID
+  private final Map<String, Map<String, List<String>>> pendingRows = new ConcurrentHashMap<>();
+  private final Map<String, List<String>> committedRows = new ConcurrentHashMap<>();
+
+  @Override
+  public void append(String tableName, String customerId, Schema schema, List<String> rows) {
+    pendingRows
+        .computeIfAbsent(tableName, key -> new ConcurrentHashMap<>())
+        .computeIfAbsent(customerId, key -> Collections.synchronizedList(new ArrayList<>()))
+        .addAll(rows);
+  }
+
+  @Override
+  public void commit(String tableName) {
+    Map<String, List<String>> tableRows = pendingRows.remove(tableName);
+    if (tableRows != null) {
+      for (List<String> rows : tableRows.values()) {
+        commitRows(tableName, rows);
+      }
+    }
+  }
+
+  @Override
+  public void commit(String tableName, String customerId) {
+    List<String> rows = removeRows(tableName, customerId);
+    if (rows != null) {
+      commitRows(tableName, rows);
+    }
+  }
+
+  @Override
+  public void drop(String tableName, String customerId) {
+    List<String> rows = removeRows(tableName, customerId);
+    if (rows != null) {
+      logger.info("Dropped " + rows.size() + " rows of customer " + customerId);
+    }
+  }
+
+  private List<String> removeRows(String tableName, String customerId) {
+    Map<String, List<String>> tableRows = pendingRows.get(tableName);
+    return tableRows == null ? null : tableRows.remove(customerId);
+  }
+
+  private void commitRows(String tableName, List<String> rows) {
+    committedRows
+        .computeIfAbsent(tableName, key -> Collections.synchronizedList(new ArrayList<>()))
+        .addAll(rows);
+    logger.info("Committed " + rows.size() + " rows to in-memory table " + tableName);
+  }
+
+  /**
+   * @param tableName the name of the table
+   * @return the rows committed to the table so far
+   */
+  public List<String> getRows(String tableName) {
+    List<String> rows = committedRows.get(tableName);
+    if (rows == null) {
+      return Collections.emptyList();
+    }
+    synchronized (rows) {
+      return new ArrayList<>(rows);
+    }
+  }
+
+  @Override
+  public void close() {
+    pendingRows.clear();
+  }
+}
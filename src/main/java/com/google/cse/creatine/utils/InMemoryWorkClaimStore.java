@@ -0,0 +1,156 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link WorkClaimStore} kept in memory, for running offline. The items are only shared between
+ * the workers of the same instance.
+ */
+public class InMemoryWorkClaimStore implements WorkClaimStore {
+
+  private final Map<String, Map<String, Item>> runs = new HashMap<>();
+
+  @Override
+  public synchronized void addItems(
+      String snapshotDate, String entityName, Collection<String> customerIds) {
+    Map<String, Item> items =
+        runs.computeIfAbsent(key(snapshotDate, entityName), key -> new LinkedHashMap<>());
+    for (String customerId : customerIds) {
+      Item item = items.computeIfAbsent(customerId, id -> new Item());
+      if (item.state == ItemState.FAILED) {
+        item.state = ItemState.PENDING;
+        item.attempts = 0;
+      }
+    }
+  }
+
+  @Override
+  public synchronized List<String> claim(
+      String snapshotDate, String entityName, String owner, int maxItems, long leaseMillis) {
+    long now = System.currentTimeMillis();
+    List<String> claimed = new ArrayList<>();
+    for (Map.Entry<String, Item> entry : items(snapshotDate, entityName).entrySet()) {
+      if (claimed.size() >= maxItems) {
+        break;
+      }
+      Item item = entry.getValue();
+      if (item.isClaimable(now)) {
+        item.state = ItemState.CLAIMED;
+        item.owner = owner;
+        item.leaseExpiry = now + leaseMillis;
+        item.attempts++;
+        claimed.add(entry.getKey());
+      }
+    }
+    return claimed;
+  }
+
+  @Override
+  public synchronized Set<String> renew(
+      String snapshotDate,
+      String entityName,
+      String owner,
+      Collection<String> customerIds,
+      long leaseMillis) {
+    long now = System.currentTimeMillis();
+    Map<String, Item> items = items(snapshotDate, entityName);
+    Set<String> renewed = new HashSet<>();
+    for (String customerId : customerIds) {
+      Item item = items.get(customerId);
+      if (item != null && item.isClaimedBy(owner, now)) {
+        item.leaseExpiry = now + leaseMillis;
+        renewed.add(customerId);
+      }
+    }
+    return renewed;
+  }
+
+  @Override
+  public synchronized boolean complete(
+      String snapshotDate, String entityName, String owner, String customerId) {
+    Item item = items(snapshotDate, entityName).get(customerId);
+    if (item == null || !item.isClaimedBy(owner, System.currentTimeMillis())) {
+      return false;
+    }
+    item.state = ItemState.DONE;
+    item.owner = null;
+    return true;
+  }
+
+  @Override
+  public synchronized void release(
+      String snapshotDate, String entityName, String owner, String customerId, int maxClaims) {
+    Item item = items(snapshotDate, entityName).get(customerId);
+    if (item == null || !item.isClaimedBy(owner, System.currentTimeMillis())) {
+      return;
+    }
+    item.state = item.attempts >= maxClaims ? ItemState.FAILED : ItemState.PENDING;
+    item.owner = null;
+  }
+
+  @Override
+  public synchronized Counts getCounts(String snapshotDate, String entityName) {
+    long now = System.currentTimeMillis();
+    int pending = 0;
+    int claimed = 0;
+    int done = 0;
+    int failed = 0;
+    for (Item item : items(snapshotDate, entityName).values()) {
+      if (item.state == ItemState.DONE) {
+        done++;
+      } else if (item.state == ItemState.FAILED) {
+        failed++;
+      } else if (item.isClaimable(now)) {
+        pending++;
+      } else {
+        claimed++;
+      }
+    }
+    return new Counts(pending, claimed, done, failed);
+  }
+
+  private Map<String, Item> items(String snapshotDate, String entityName) {
+    return runs.getOrDefault(key(snapshotDate, entityName), new HashMap<>());
+  }
+
+  private static String key(String snapshotDate, String entityName) {
+    return snapshotDate + "_" + entityName;
+  }
+
+  private static final class Item {
+
+    ItemState state = ItemState.PENDING;
+    String owner;
+    long leaseExpiry;
+    int attempts;
+
+    boolean isClaimable(long now) {
+      return state == ItemState.PENDING || (state == ItemState.CLAIMED && leaseExpiry <= now);
+    }
+
+    boolean isClaimedBy(String claimant, long now) {
+      return state == ItemState.CLAIMED && claimant.equals(owner) && leaseExpiry > now;
+    }
+  }
+}
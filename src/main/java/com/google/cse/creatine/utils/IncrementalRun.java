@@ -0,0 +1,109 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+/**
+ * Tracks the customers of an incremental snapshot of a table while they are extracted: the ones
+ * for which only the changed rows were extracted, grouped by the previous snapshot holding their
+ * other rows, and the ones whose extraction succeeded.
+ */
+public class IncrementalRun {
+
+  private final String entityName;
+  private final String snapshotDate;
+  private final long startMillis = System.currentTimeMillis();
+  private final ConcurrentMap<String, String> previousSnapshots = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Boolean> availableTables = new ConcurrentHashMap<>();
+  private final Set<String> succeededCustomers = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @param snapshotDate the date of this snapshot, as in the table names (yyyyMMdd)
+   */
+  public IncrementalRun(String entityName, String snapshotDate) {
+    this.entityName = entityName;
+    this.snapshotDate = snapshotDate;
+  }
+
+  public String getEntityName() {
+    return entityName;
+  }
+
+  public String getSnapshotDate() {
+    return snapshotDate;
+  }
+
+  /** @return when the run started, which becomes the watermark of its successful customers */
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  /**
+   * Checks once per run whether the table of a previous snapshot still exists.
+   *
+   * @param tableName the name of the table
+   * @param exists checks whether the table exists
+   */
+  public boolean isTableAvailable(String tableName, Predicate<String> exists) {
+    return availableTables.computeIfAbsent(tableName, exists::test);
+  }
+
+  /**
+   * Records that only the changed rows of a customer are extracted.
+   *
+   * @param customerId a customer ID
+   * @param previousSnapshotDate the date of the snapshot holding the unchanged rows
+   */
+  public void markIncremental(String customerId, String previousSnapshotDate) {
+    previousSnapshots.put(customerId, previousSnapshotDate);
+  }
+
+  /** Records that the extraction of a customer succeeded. */
+  public void markSucceeded(String customerId) {
+    succeededCustomers.add(customerId);
+  }
+
+  /** Forgets the success of customers, e.g. when their unchanged rows could not be merged. */
+  public void markFailed(List<String> customerIds) {
+    succeededCustomers.removeAll(customerIds);
+  }
+
+  /** @return the incrementally extracted customers, by date of their previous snapshot */
+  public Map<String, List<String>> getIncrementalCustomersBySnapshot() {
+    Map<String, List<String>> customers = new TreeMap<>();
+    for (Map.Entry<String, String> entry : previousSnapshots.entrySet()) {
+      customers.computeIfAbsent(entry.getValue(), key -> new ArrayList<>()).add(entry.getKey());
+    }
+    return customers;
+  }
+
+  public Set<String> getSucceededCustomers() {
+    return Collections.unmodifiableSet(succeededCustomers);
+  }
+
+  public int getIncrementalCount() {
+    return previousSnapshots.size();
+  }
+}
@@ -0,0 +1,383 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.Dataset;
+import com.google.cloud.bigquery.DatasetId;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.JobStatistics;
+import com.google.cloud.bigquery.JobStatus;
+import com.google.cloud.bigquery.LoadJobConfiguration;
+import com.google.cloud.bigquery.TableId;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks BigQuery load jobs without holding the submitting thread.
+ *
+ * <p>{@link #submit} creates the job and returns its ledger entry straight away. A single poller
+ * thread then checks all the outstanding jobs, backing off exponentially while none of them
+ * changes, and records their status, input bytes and output rows. A failed load is submitted again
+ * with the same configuration, the blobs still being in Cloud Storage, up to MAX_ATTEMPTS times.
+ * Each job keeps its ID until it is created, so that a job created by a call which failed on the
+ * way back is found under that ID instead of being loaded twice.
+ * Completed loads are recorded in the {@link RunMetrics} of the ledger, and stay in the ledger
+ * until {@link #toJson} has reported them once, the oldest being dropped beyond
+ * MAX_COMPLETED_ENTRIES when nobody reads the ledger.
+ */
+public class LoadJobLedger {
+
+  private static final Logger logger = Logger.getLogger(LoadJobLedger.class.getName());
+
+  private static final long MIN_POLL_MILLIS = 1000;
+  private static final long MAX_POLL_MILLIS = 60000;
+  private static final int MAX_ATTEMPTS = 3;
+  private static final int MAX_COMPLETED_ENTRIES = 1000;
+  private static final int HTTP_CONFLICT = 409;
+
+  /** The state of a load in the ledger. */
+  public enum Status {
+    RUNNING,
+    DONE,
+    FAILED
+  }
+
+  private final BigQuery bigquery;
+  private final RunMetrics runMetrics;
+  private final Map<Long, Entry> entries = new ConcurrentSkipListMap<>();
+  private final AtomicLong sequence = new AtomicLong();
+  private final ScheduledExecutorService poller =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "load-job-poller");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private boolean polling = false;
+  private long pollDelayMillis = MIN_POLL_MILLIS;
+
+  public LoadJobLedger(BigQuery bigquery) {
+    this(bigquery, new RunMetrics());
+  }
+
+  /**
+   * @param bigquery the BigQuery service
+   * @param runMetrics records the duration, bytes and failures of the completed loads
+   */
+  public LoadJobLedger(BigQuery bigquery, RunMetrics runMetrics) {
+    this.bigquery = bigquery;
+    this.runMetrics = runMetrics;
+  }
+
+  /**
+   * Submits a load job.
+   *
+   * @param tableName the name of the table loaded by the job, used in the ledger
+   * @param configuration the configuration of the load job
+   * @return the ledger entry of the load, whose completion can be awaited
+   */
+  public Entry submit(String tableName, LoadJobConfiguration configuration) {
+    Entry entry = new Entry(sequence.incrementAndGet(), tableName, configuration);
+    start(entry);
+    entries.put(entry.sequence, entry);
+    evictCompleted();
+    ensurePolling();
+    return entry;
+  }
+
+  /** @return the loads running, and those completed but not reported yet, oldest first */
+  public List<Entry> getEntries() {
+    return new ArrayList<>(entries.values());
+  }
+
+  /**
+   * Reports the ledger, then drops the completed loads from it: a completed load is reported once.
+   *
+   * @return the ledger as a JSON array
+   */
+  public JsonArray toJson() {
+    JsonArray array = new JsonArray();
+    for (Entry entry : entries.values()) {
+      // Read first, so that a load completing meanwhile is reported again once completed
+      boolean completed = entry.status != Status.RUNNING;
+      array.add(entry.toJson());
+      if (completed) {
+        entries.remove(entry.sequence, entry);
+      }
+    }
+    return array;
+  }
+
+  /** Stops the poller thread. */
+  public void shutdown() {
+    poller.shutdownNow();
+  }
+
+  private void start(Entry entry) {
+    entry.attempts++;
+    if (entry.jobId == null) {
+      entry.jobId = JobId.of("creatine_load_" + UUID.randomUUID().toString().replace("-", ""));
+    }
+    try {
+      Job job =
+          bigquery.create(JobInfo.newBuilder(entry.configuration).setJobId(entry.jobId).build());
+      // The ID returned has the location of the job, without which it is only found in US and EU
+      entry.jobId = job.getJobId();
+      entry.created = true;
+      logger.info("Submitted load job " + entry.getJobId() + " to table " + entry.tableName);
+    } catch (BigQueryException e) {
+      if (e.getCode() == HTTP_CONFLICT) {
+        // Created by a previous call whose response was lost
+        entry.jobId = locate(entry.jobId, entry.configuration.getDestinationTable());
+        entry.created = true;
+        logger.info("Load job " + entry.getJobId() + " to table " + entry.tableName + " exists");
+        return;
+      }
+      entry.error = e.getMessage();
+      logger.log(Level.WARNING, "Could not submit load job to table " + entry.tableName, e);
+      if (entry.attempts >= MAX_ATTEMPTS) {
+        complete(entry, Status.FAILED);
+      }
+    }
+  }
+
+  /**
+   * Adds the location of the dataset of a table to a job ID, the location of a job being that of
+   * the tables it loads.
+   *
+   * @param jobId the ID of a job loading the table
+   * @param table the table loaded by the job
+   * @return the ID with its location, or as is if the location could not be read
+   */
+  private JobId locate(JobId jobId, TableId table) {
+    try {
+      Dataset dataset =
+          bigquery.getDataset(
+              table.getProject() == null
+                  ? DatasetId.of(table.getDataset())
+                  : DatasetId.of(table.getProject(), table.getDataset()));
+      if (dataset != null && dataset.getLocation() != null) {
+        return jobId.toBuilder().setLocation(dataset.getLocation()).build();
+      }
+    } catch (BigQueryException e) {
+      logger.log(Level.WARNING, "Could not read the location of " + table, e);
+    }
+    return jobId;
+  }
+
+  /** Drops the oldest completed loads beyond MAX_COMPLETED_ENTRIES. */
+  private void evictCompleted() {
+    int completed = 0;
+    for (Entry entry : entries.values()) {
+      if (entry.status != Status.RUNNING) {
+        completed++;
+      }
+    }
+    for (Entry entry : entries.values()) {
+      if (completed <= MAX_COMPLETED_ENTRIES) {
+        return;
+      }
+      if (entry.status != Status.RUNNING && entries.remove(entry.sequence, entry)) {
+        completed--;
+      }
+    }
+  }
+
+  private synchronized void ensurePolling() {
+    pollDelayMillis = MIN_POLL_MILLIS;
+    if (!polling) {
+      polling = true;
+      poller.schedule(this::poll, pollDelayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void poll() {
+    boolean changed = false;
+    for (Entry entry : entries.values()) {
+      if (entry.status == Status.RUNNING) {
+        try {
+          changed |= check(entry);
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Could not check load job " + entry.getJobId(), e);
+        }
+      }
+    }
+    synchronized (this) {
+      boolean outstanding = false;
+      for (Entry entry : entries.values()) {
+        outstanding |= entry.status == Status.RUNNING;
+      }
+      if (!outstanding) {
+        polling = false;
+        return;
+      }
+      pollDelayMillis = changed ? MIN_POLL_MILLIS : Math.min(pollDelayMillis * 2, MAX_POLL_MILLIS);
+      poller.schedule(this::poll, pollDelayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** @return whether the entry changed */
+  private boolean check(Entry entry) {
+    if (!entry.created) {
+      // The previous submission failed, submitted again under the same ID
+      start(entry);
+      return true;
+    }
+    Job job = bigquery.getJob(entry.jobId);
+    if (job != null && job.getStatus().getState() != JobStatus.State.DONE) {
+      return false;
+    }
+    BigQueryError error = job == null ? null : job.getStatus().getError();
+    if (job == null || error != null) {
+      entry.error = job == null ? "Job not found" : error.getReason() + ": " + error.getMessage();
+      if (entry.attempts < MAX_ATTEMPTS) {
+        logger.warning(
+            "Load job " + entry.getJobId() + " to table " + entry.tableName + " failed ("
+                + entry.error + "), retrying");
+        // Another job, as the ID of the failed one cannot be used again
+        entry.jobId = null;
+        entry.created = false;
+        start(entry);
+      } else {
+        logger.severe(
+            "Load job " + entry.getJobId() + " to table " + entry.tableName + " failed");
+        complete(entry, Status.FAILED);
+      }
+      return true;
+    }
+    JobStatistics.LoadStatistics statistics = job.getStatistics();
+    entry.inputBytes = statistics.getInputBytes();
+    entry.outputRows = statistics.getOutputRows();
+    complete(entry, Status.DONE);
+    logger.info(
+        "Load job " + entry.getJobId() + " loaded " + entry.outputRows + " rows to "
+            + entry.tableName);
+    return true;
+  }
+
+  private void complete(Entry entry, Status status) {
+    entry.complete(status);
+    runMetrics.recordLoad(
+        entry.tableName,
+        entry.completedAt - entry.submittedAt,
+        entry.inputBytes,
+        status == Status.FAILED);
+  }
+
+  /** A load submitted to the ledger, possibly retried over several BigQuery jobs. */
+  public static class Entry {
+
+    private final long sequence;
+    private final String tableName;
+    private final LoadJobConfiguration configuration;
+    private final long submittedAt = System.currentTimeMillis();
+    private final CompletableFuture<Entry> completion = new CompletableFuture<>();
+
+    private volatile Status status = Status.RUNNING;
+    private volatile JobId jobId;
+    private volatile boolean created;
+    private volatile int attempts = 0;
+    private volatile String error;
+    private volatile Long inputBytes;
+    private volatile Long outputRows;
+    private volatile long completedAt;
+
+    private Entry(long sequence, String tableName, LoadJobConfiguration configuration) {
+      this.sequence = sequence;
+      this.tableName = tableName;
+      this.configuration = configuration;
+    }
+
+    private void complete(Status finalStatus) {
+      status = finalStatus;
+      completedAt = System.currentTimeMillis();
+      completion.complete(this);
+    }
+
+    public String getTableName() {
+      return tableName;
+    }
+
+    public LoadJobConfiguration getConfiguration() {
+      return configuration;
+    }
+
+    public Status getStatus() {
+      return status;
+    }
+
+    /** @return the ID of the current job of the load, null before its first submission */
+    public String getJobId() {
+      JobId id = jobId;
+      return id == null ? null : id.getJob();
+    }
+
+    public int getAttempts() {
+      return attempts;
+    }
+
+    public String getError() {
+      return error;
+    }
+
+    public Long getInputBytes() {
+      return inputBytes;
+    }
+
+    public Long getOutputRows() {
+      return outputRows;
+    }
+
+    /** @return a future completed once the load is DONE or FAILED */
+    public CompletableFuture<Entry> getCompletion() {
+      return completion;
+    }
+
+    public JsonObject toJson() {
+      JsonObject object = new JsonObject();
+      object.addProperty("table", tableName);
+      object.addProperty("status", status.name());
+      object.addProperty("jobId", getJobId());
+      object.addProperty("attempts", attempts);
+      object.addProperty("sourceUris", configuration.getSourceUris().size());
+      object.addProperty("inputBytes", inputBytes);
+      object.addProperty("outputRows", outputRows);
+      object.addProperty("error", error);
+      object.addProperty("submittedAt", submittedAt);
+      if (status != Status.RUNNING) {
+        object.addProperty("durationMillis", completedAt - submittedAt);
+      }
+      return object;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.logging.Logger;
+import org.apache.avro.Schema;
+
+/**
+ * {@link SnapshotSink} writing the blobs as files under a local directory, laid out as in the
+ * bucket: {@code <directory>/<bucket>/<yyyyMMdd>/<blob>}.
+ *
+ * <p>Rows are written through a {@link FileChannel} from the writers' direct buffers, so a full
+ * snapshot can be run and profiled on a workstation without paying for Cloud Storage round trips.
+ */
+public class LocalFileSink implements SnapshotSink {
+
+  private static final Logger logger = Logger.getLogger(LocalFileSink.class.getName());
+
+  private final Path directory;
+  private final long chunkBytes;
+  private volatile Path bucket;
+
+  /**
+   * @param directory the directory holding the buckets
+   * @param chunkBytes the size of the rows of a blob, before compression, after which the next blob
+   *     is started
+   */
+  public LocalFileSink(Path directory, long chunkBytes) {
+    this.directory = directory;
+    this.chunkBytes = chunkBytes;
+  }
+
+  @Override
+  public void prepare(String bucketName) {
+    bucket = directory.resolve(bucketName);
+    try {
+      Files.createDirectories(bucket);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    logger.info("Writing the snapshot blobs to " + bucket.toAbsolutePath());
+  }
+
+  @Override
+  public NDJsonBlobWriter openWriter(String blobName) {
+    return new NDJsonBlobWriter(openChannels(), blobName, chunkBytes);
+  }
+
+  @Override
+  public AvroBlobWriter openAvroWriter(String blobName, Schema schema) {
+    return new AvroBlobWriter(openChannels(), blobName, chunkBytes, schema);
+  }
+
+  @Override
+  public boolean isLoadable() {
+    return false;
+  }
+
+  /** Opens the files of today's folder of the bucket. */
+  private BlobChannelFactory openChannels() {
+    Path folder = bucket.resolve(new SimpleDateFormat("yyyyMMdd").format(new Date()));
+    return (blobName, contentType) -> {
+      Files.createDirectories(folder);
+      return FileChannel.open(
+          folder.resolve(blobName),
+          StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+    };
+  }
+}
@@ -0,0 +1,162 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.cloud.storage.Storage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Streams newline-delimited JSON rows to Google Cloud Storage through resumable uploads, or to the
+ * blobs of another {@link SnapshotSink}.
+ *
+ * <p>Rows are UTF-8 encoded straight into a reusable direct buffer which is drained into the blob's
+ * channel, so the memory used by a writer does not depend on the number of rows. A
+ * new blob is started once the current one holds {@code chunkBytes} bytes, whatever the size of
+ * the rows, replacing "(chunk)" in the blob name with the chunk number.
+ */
+public class NDJsonBlobWriter implements RowWriter<CharSequence> {
+
+  private static final Logger logger = Logger.getLogger(NDJsonBlobWriter.class.getName());
+
+  private static final int BUFFER_SIZE = 256 * 1024;
+  private static final CharBuffer NEW_LINE = CharBuffer.wrap("\n");
+
+  private final BlobChannelFactory channels;
+  private final String blobName;
+  private final long chunkBytes;
+
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private final CharsetEncoder encoder =
+      UTF_8
+          .newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private final List<String> blobNames = new ArrayList<>();
+
+  private WritableByteChannel channel;
+  private int rowsInChunk = 0;
+  private int chunkNumber = 0;
+  private long bytesWritten = 0;
+  private long chunkStart = 0;
+
+  /**
+   * @param storage the Google Cloud Storage service
+   * @param bucketName the bucket in which the blobs are created
+   * @param folder the folder (usually today's date) in which the blobs are created
+   * @param blobName the name of the blobs, "(chunk)" being replaced by the chunk number
+   * @param chunkBytes the size of a blob after which the next one is started
+   */
+  public NDJsonBlobWriter(
+      Storage storage, String bucketName, String folder, String blobName, long chunkBytes) {
+    this(GoogleCloudStorageUtils.channels(storage, bucketName, folder), blobName, chunkBytes);
+  }
+
+  /**
+   * @param channels opens the channel of each blob
+   * @param blobName the name of the blobs, "(chunk)" being replaced by the chunk number
+   * @param chunkBytes the size of a blob after which the next one is started
+   */
+  public NDJsonBlobWriter(BlobChannelFactory channels, String blobName, long chunkBytes) {
+    this.channels = channels;
+    this.blobName = blobName;
+    this.chunkBytes = chunkBytes;
+  }
+
+  /** Appends a row followed by a new line to the current blob. */
+  @Override
+  public void writeRow(CharSequence row) throws IOException {
+    if (channel == null) {
+      openChunk();
+    }
+    encode(CharBuffer.wrap(row));
+    encode(NEW_LINE.duplicate());
+    rowsInChunk++;
+    // The bytes still in the buffer belong to the chunk too
+    if (bytesWritten - chunkStart + buffer.position() >= chunkBytes) {
+      closeChunk();
+    }
+  }
+
+  /** @return the names of the blobs written so far, relative to the folder */
+  @Override
+  public List<String> getBlobNames() {
+    return Collections.unmodifiableList(blobNames);
+  }
+
+  /** @return the UTF-8 bytes uploaded so far */
+  @Override
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /** Finalizes the upload of the current blob, if any. */
+  @Override
+  public void close() throws IOException {
+    if (channel != null) {
+      closeChunk();
+    }
+  }
+
+  private void openChunk() throws IOException {
+    chunkNumber++;
+    String chunkName = blobName.replace("(chunk)", String.valueOf(chunkNumber));
+    channel = channels.open(chunkName, "application/json");
+    blobNames.add(chunkName);
+    chunkStart = bytesWritten;
+  }
+
+  private void closeChunk() throws IOException {
+    drain();
+    channel.close();
+    channel = null;
+    logger.fine(
+        "Uploaded " + rowsInChunk + " rows (" + (bytesWritten - chunkStart) + " bytes) to "
+            + blobNames.get(blobNames.size() - 1));
+    rowsInChunk = 0;
+  }
+
+  private void encode(CharBuffer chars) throws IOException {
+    encoder.reset();
+    CoderResult result = encoder.encode(chars, buffer, true);
+    while (result.isOverflow()) {
+      drain();
+      result = encoder.encode(chars, buffer, true);
+    }
+    while (encoder.flush(buffer).isOverflow()) {
+      drain();
+    }
+  }
+
+  private void drain() throws IOException {
+    buffer.flip();
+    bytesWritten += buffer.remaining();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+}
@@ -0,0 +1,321 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.MessageOrBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+
+/**
+ * Encodes proto messages as Avro records matching the BigQuery schema built by {@link
+ * BigQueryUtils#createFields} for the same descriptor.
+ *
+ * <p>The Avro schema is derived once from the BigQuery fields: NULLABLE fields become unions with
+ * null, REPEATED fields become arrays and RECORD fields nested records. Messages are then written
+ * field by field straight into the Avro binary encoding, without building generic records. Values
+ * follow what BigQuery loads from the JSON rows of the same message: wrappers are unwrapped, enums
+ * are written by name and messages of STRING fields are written as their JSON.
+ */
+public final class ProtoAvroEncoder implements RowEncoder<MessageOrBuilder, ByteBuffer> {
+
+  private static final String NAMESPACE = "creatine";
+
+  /** How the value of a field is taken from the message. */
+  private enum Kind {
+    /** A proto scalar or enum. */
+    SCALAR,
+    /** A wrapper message such as StringValue, written as the value it wraps. */
+    WRAPPER,
+    /** A message written as its JSON in a STRING field. */
+    JSON,
+    /** A message written as a nested record. */
+    RECORD,
+    /** A field without a matching value, always null or empty. */
+    NULL
+  }
+
+  private final ProtoJsonSerializer serializer;
+  private final RecordLayout layout;
+
+  /**
+   * @param descriptor the descriptor of the message type
+   * @param fields the BigQuery fields of the message type
+   * @param serializer prints the messages of STRING fields, and tells whether fields set to their
+   *     default value are written or left null
+   */
+  public ProtoAvroEncoder(
+      Descriptors.Descriptor descriptor, FieldList fields, ProtoJsonSerializer serializer) {
+    this.serializer = serializer;
+    this.layout = compile(descriptor, fields, descriptor.getName(), NAMESPACE);
+  }
+
+  /** @return the Avro schema of the encoded records */
+  public Schema getSchema() {
+    return layout.schema;
+  }
+
+  @Override
+  public ByteBuffer encode(MessageOrBuilder message) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+    BinaryEncoder out = EncoderFactory.get().directBinaryEncoder(bytes, null);
+    writeRecord(layout, message, out);
+    out.flush();
+    return ByteBuffer.wrap(bytes.toByteArray());
+  }
+
+  @Override
+  public SpillCodec<ByteBuffer> getSpillCodec() {
+    return SpillCodec.BYTES;
+  }
+
+  private RecordLayout compile(
+      Descriptors.Descriptor descriptor, FieldList fields, String name, String namespace) {
+    List<FieldLayout> layouts = new ArrayList<>();
+    List<Schema.Field> avroFields = new ArrayList<>();
+    for (Field field : fields) {
+      Descriptors.FieldDescriptor fd = descriptor.findFieldByName(field.getName());
+      boolean repeated = field.getMode() == Field.Mode.REPEATED;
+      RecordLayout record = null;
+      Schema.Type type;
+      Schema valueSchema;
+      Kind kind;
+      if (field.getType() == LegacySQLTypeName.RECORD) {
+        record =
+            compile(
+                fd.getMessageType(), field.getSubFields(), field.getName(), namespace + "." + name);
+        valueSchema = record.schema;
+        type = Schema.Type.RECORD;
+        kind = Kind.RECORD;
+      } else {
+        type = avroType(field.getType());
+        valueSchema = Schema.create(type);
+        if (fd == null) {
+          kind = Kind.NULL;
+        } else if (fd.getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+          kind = Kind.SCALAR;
+        } else if (isWrapper(fd.getMessageType())) {
+          kind = Kind.WRAPPER;
+        } else if (type == Schema.Type.STRING) {
+          kind = Kind.JSON;
+        } else {
+          kind = Kind.NULL;
+        }
+      }
+      layouts.add(
+          new FieldLayout(
+              fd, kind, type, repeated, record, serializer.isIncludingDefaultValueFields()));
+      Schema fieldSchema =
+          repeated
+              ? Schema.createArray(valueSchema)
+              : Schema.createUnion(Arrays.asList(Schema.create(Schema.Type.NULL), valueSchema));
+      avroFields.add(new Schema.Field(field.getName(), fieldSchema, null, (Object) null));
+    }
+    Schema schema = Schema.createRecord(name, null, namespace, false, avroFields);
+    return new RecordLayout(schema, layouts.toArray(new FieldLayout[0]));
+  }
+
+  private static Schema.Type avroType(LegacySQLTypeName type) {
+    switch (type.name()) {
+      case "INTEGER":
+      case "INT64":
+      case "UINT32":
+      case "UINT64":
+      case "SINT32":
+      case "SINT64":
+      case "FIXED32":
+      case "FIXED64":
+      case "SFIXED32":
+      case "SFIXED64":
+        return Schema.Type.LONG;
+      case "FLOAT":
+        return Schema.Type.DOUBLE;
+      case "BOOLEAN":
+      case "BOOL":
+        return Schema.Type.BOOLEAN;
+      case "BYTES":
+        return Schema.Type.BYTES;
+      default:
+        return Schema.Type.STRING;
+    }
+  }
+
+  private static boolean isWrapper(Descriptors.Descriptor descriptor) {
+    return descriptor.getFullName().startsWith("google.protobuf.")
+        && descriptor.getName().endsWith("Value")
+        && descriptor.getFields().size() == 1
+        && descriptor.getFields().get(0).getName().equals("value");
+  }
+
+  private void writeRecord(RecordLayout record, MessageOrBuilder message, BinaryEncoder out)
+      throws IOException {
+    for (FieldLayout field : record.fields) {
+      writeField(field, message, out);
+    }
+  }
+
+  private void writeField(FieldLayout field, MessageOrBuilder message, BinaryEncoder out)
+      throws IOException {
+    if (field.kind == Kind.NULL) {
+      if (field.repeated) {
+        out.writeArrayStart();
+        out.setItemCount(0);
+        out.writeArrayEnd();
+      } else {
+        out.writeIndex(0);
+      }
+      return;
+    }
+    Descriptors.FieldDescriptor fd = field.field;
+    if (fd.isRepeated()) {
+      int count = message.getRepeatedFieldCount(fd);
+      out.writeArrayStart();
+      out.setItemCount(count);
+      for (int i = 0; i < count; i++) {
+        out.startItem();
+        writeValue(field, message.getRepeatedField(fd, i), out);
+      }
+      out.writeArrayEnd();
+      return;
+    }
+    boolean present = field.writtenWhenUnset || message.hasField(fd);
+    if (field.repeated) {
+      // Messages are REPEATED records in the BigQuery schema, holding at most one item here
+      out.writeArrayStart();
+      out.setItemCount(present ? 1 : 0);
+      if (present) {
+        out.startItem();
+        writeValue(field, message.getField(fd), out);
+      }
+      out.writeArrayEnd();
+    } else if (present) {
+      out.writeIndex(1);
+      writeValue(field, message.getField(fd), out);
+    } else {
+      out.writeIndex(0);
+    }
+  }
+
+  private void writeValue(FieldLayout field, Object value, BinaryEncoder out) throws IOException {
+    switch (field.kind) {
+      case RECORD:
+        writeRecord(field.record, (MessageOrBuilder) value, out);
+        break;
+      case JSON:
+        out.writeString(serializer.print((MessageOrBuilder) value));
+        break;
+      case WRAPPER:
+        MessageOrBuilder wrapper = (MessageOrBuilder) value;
+        Descriptors.FieldDescriptor wrapped = wrapper.getDescriptorForType().getFields().get(0);
+        writeScalar(field.type, wrapped, wrapper.getField(wrapped), out);
+        break;
+      default:
+        writeScalar(field.type, field.field, value, out);
+        break;
+    }
+  }
+
+  private static void writeScalar(
+      Schema.Type type, Descriptors.FieldDescriptor fd, Object value, BinaryEncoder out)
+      throws IOException {
+    switch (type) {
+      case LONG:
+        if (fd.getType() == Descriptors.FieldDescriptor.Type.UINT32
+            || fd.getType() == Descriptors.FieldDescriptor.Type.FIXED32) {
+          out.writeLong(((Integer) value) & 0xFFFFFFFFL);
+        } else if (value instanceof Boolean) {
+          out.writeLong((Boolean) value ? 1 : 0);
+        } else {
+          out.writeLong(((Number) value).longValue());
+        }
+        break;
+      case DOUBLE:
+        out.writeDouble(((Number) value).doubleValue());
+        break;
+      case BOOLEAN:
+        out.writeBoolean((Boolean) value);
+        break;
+      case BYTES:
+        out.writeBytes(((ByteString) value).asReadOnlyByteBuffer());
+        break;
+      default:
+        if (value instanceof Descriptors.EnumValueDescriptor) {
+          Descriptors.EnumValueDescriptor enumValue = (Descriptors.EnumValueDescriptor) value;
+          // Like in JSON, a value unknown to this version of the library is written as its number
+          out.writeString(
+              enumValue.getIndex() == -1
+                  ? String.valueOf(enumValue.getNumber())
+                  : enumValue.getName());
+        } else {
+          out.writeString(String.valueOf(value));
+        }
+        break;
+    }
+  }
+
+  /** The Avro schema of a message type and its fields in the same order. */
+  private static class RecordLayout {
+
+    private final Schema schema;
+    private final FieldLayout[] fields;
+
+    private RecordLayout(Schema schema, FieldLayout[] fields) {
+      this.schema = schema;
+      this.fields = fields;
+    }
+  }
+
+  /** A BigQuery field with the proto field it is read from. */
+  private static class FieldLayout {
+
+    private final Descriptors.FieldDescriptor field;
+    private final Kind kind;
+    private final Schema.Type type;
+    private final boolean repeated;
+    private final RecordLayout record;
+    private final boolean writtenWhenUnset;
+
+    private FieldLayout(
+        Descriptors.FieldDescriptor field,
+        Kind kind,
+        Schema.Type type,
+        boolean repeated,
+        RecordLayout record,
+        boolean includingDefaultValueFields) {
+      this.field = field;
+      this.kind = kind;
+      this.type = type;
+      this.repeated = repeated;
+      this.record = record;
+      // Unset messages and members of a oneof stay null, like in the JSON rows
+      this.writtenWhenUnset =
+          includingDefaultValueFields
+              && field != null
+              && field.getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE
+              && field.getContainingOneof() == null;
+    }
+  }
+}
@@ -0,0 +1,374 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.common.io.BaseEncoding;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.util.JsonFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Prints proto messages as single-line JSON, with the same output as a {@link JsonFormat.Printer}
+ * configured with {@code omittingInsignificantWhitespace()} and {@code preservingProtoFieldNames()}
+ * (and optionally {@code includingDefaultValueFields()}).
+ *
+ * <p>The fields of each message type are laid out once, in the order the printer uses, with their
+ * JSON keys already quoted. Messages are then written straight into a StringBuilder without going
+ * through the field maps, the Gson string escaping and the string concatenations of JsonFormat.
+ * Map fields and well-known types other than wrappers are rare in Google Ads resources and are
+ * handed over to JsonFormat.
+ */
+public final class ProtoJsonSerializer implements RowEncoder<MessageOrBuilder, String> {
+
+  private static final Set<String> DELEGATED_TYPES =
+      new HashSet<>(
+          Arrays.asList(
+              "google.protobuf.Any",
+              "google.protobuf.Duration",
+              "google.protobuf.FieldMask",
+              "google.protobuf.ListValue",
+              "google.protobuf.Struct",
+              "google.protobuf.Timestamp",
+              "google.protobuf.Value"));
+
+  private static final Set<String> WRAPPER_TYPES =
+      new HashSet<>(
+          Arrays.asList(
+              "google.protobuf.BoolValue",
+              "google.protobuf.BytesValue",
+              "google.protobuf.DoubleValue",
+              "google.protobuf.FloatValue",
+              "google.protobuf.Int32Value",
+              "google.protobuf.Int64Value",
+              "google.protobuf.StringValue",
+              "google.protobuf.UInt32Value",
+              "google.protobuf.UInt64Value"));
+
+  private static final char LINE_SEPARATOR = 0x2028;
+  private static final char PARAGRAPH_SEPARATOR = 0x2029;
+
+  /** The escaped form of the ASCII characters, as written by Gson with HTML escaping on. */
+  private static final String[] ESCAPES = new String[128];
+
+  static {
+    for (int c = 0; c < 0x20; c++) {
+      ESCAPES[c] = String.format("\\u%04x", c);
+    }
+    ESCAPES['"'] = "\\\"";
+    ESCAPES['\\'] = "\\\\";
+    ESCAPES['\t'] = "\\t";
+    ESCAPES['\b'] = "\\b";
+    ESCAPES['\n'] = "\\n";
+    ESCAPES['\r'] = "\\r";
+    ESCAPES['\f'] = "\\f";
+    ESCAPES['<'] = "\\u003c";
+    ESCAPES['>'] = "\\u003e";
+    ESCAPES['&'] = "\\u0026";
+    ESCAPES['='] = "\\u003d";
+    ESCAPES['\''] = "\\u0027";
+  }
+
+  private final boolean includingDefaultValueFields;
+  private final JsonFormat.Printer printer;
+  private final ConcurrentMap<Descriptors.Descriptor, MessageLayout> layouts =
+      new ConcurrentHashMap<>();
+
+  private ProtoJsonSerializer(boolean includingDefaultValueFields) {
+    this.includingDefaultValueFields = includingDefaultValueFields;
+    JsonFormat.Printer basePrinter =
+        JsonFormat.printer().omittingInsignificantWhitespace().preservingProtoFieldNames();
+    this.printer =
+        includingDefaultValueFields ? basePrinter.includingDefaultValueFields() : basePrinter;
+  }
+
+  /** @return a serializer omitting the fields set to their default value */
+  public static ProtoJsonSerializer create() {
+    return new ProtoJsonSerializer(false);
+  }
+
+  /** @return a serializer also printing the fields set to their default value */
+  public ProtoJsonSerializer includingDefaultValueFields() {
+    return new ProtoJsonSerializer(true);
+  }
+
+  /** @return whether the fields set to their default value are printed */
+  public boolean isIncludingDefaultValueFields() {
+    return includingDefaultValueFields;
+  }
+
+  /** @return the JsonFormat printer giving the same output as this serializer */
+  public JsonFormat.Printer getPrinter() {
+    return printer;
+  }
+
+  /**
+   * @param message a proto message
+   * @return the message as single-line JSON
+   */
+  public String print(MessageOrBuilder message) throws InvalidProtocolBufferException {
+    StringBuilder out = new StringBuilder(256);
+    appendTo(message, out);
+    return out.toString();
+  }
+
+  @Override
+  public String encode(MessageOrBuilder message) throws InvalidProtocolBufferException {
+    return print(message);
+  }
+
+  @Override
+  public SpillCodec<String> getSpillCodec() {
+    return SpillCodec.STRINGS;
+  }
+
+  /**
+   * Appends a message as single-line JSON to a StringBuilder.
+   *
+   * @param message a proto message
+   * @param out the StringBuilder to append to
+   */
+  public void appendTo(MessageOrBuilder message, StringBuilder out)
+      throws InvalidProtocolBufferException {
+    appendMessage(layoutOf(message.getDescriptorForType()), message, out);
+  }
+
+  private MessageLayout layoutOf(Descriptors.Descriptor descriptor) {
+    MessageLayout layout = layouts.get(descriptor);
+    if (layout == null) {
+      layout = layouts.computeIfAbsent(descriptor, this::compile);
+    }
+    return layout;
+  }
+
+  private MessageLayout compile(Descriptors.Descriptor descriptor) {
+    String fullName = descriptor.getFullName();
+    boolean delegated = DELEGATED_TYPES.contains(fullName);
+    List<FieldLayout> fields = new ArrayList<>();
+    if (!delegated) {
+      List<Descriptors.FieldDescriptor> byNumber = new ArrayList<>(descriptor.getFields());
+      // The printer goes through the fields sorted by number
+      byNumber.sort(Comparator.comparingInt(Descriptors.FieldDescriptor::getNumber));
+      for (Descriptors.FieldDescriptor field : byNumber) {
+        if (field.isMapField()) {
+          delegated = true;
+          break;
+        }
+        fields.add(new FieldLayout(field, includingDefaultValueFields));
+      }
+    }
+    return new MessageLayout(
+        fields.toArray(new FieldLayout[0]), delegated, WRAPPER_TYPES.contains(fullName));
+  }
+
+  private void appendMessage(MessageLayout layout, MessageOrBuilder message, StringBuilder out)
+      throws InvalidProtocolBufferException {
+    if (layout.delegated) {
+      printer.appendTo(message, out);
+      return;
+    }
+    if (layout.wrapper) {
+      FieldLayout value = layout.fields[0];
+      appendValue(value, message.getField(value.field), out);
+      return;
+    }
+    out.append('{');
+    boolean first = true;
+    for (FieldLayout field : layout.fields) {
+      Object value;
+      if (field.field.isRepeated()) {
+        if (!field.printedWhenUnset && message.getRepeatedFieldCount(field.field) == 0) {
+          continue;
+        }
+        value = message.getField(field.field);
+      } else {
+        if (!message.hasField(field.field) && !field.printedWhenUnset) {
+          continue;
+        }
+        value = message.getField(field.field);
+      }
+      if (!first) {
+        out.append(',');
+      }
+      first = false;
+      out.append(field.key);
+      if (field.field.isRepeated()) {
+        out.append('[');
+        List<?> values = (List<?>) value;
+        for (int i = 0; i < values.size(); i++) {
+          if (i > 0) {
+            out.append(',');
+          }
+          appendValue(field, values.get(i), out);
+        }
+        out.append(']');
+      } else {
+        appendValue(field, value, out);
+      }
+    }
+    out.append('}');
+  }
+
+  private void appendValue(FieldLayout field, Object value, StringBuilder out)
+      throws InvalidProtocolBufferException {
+    switch (field.field.getType()) {
+      case INT32:
+      case SINT32:
+      case SFIXED32:
+        out.append(((Integer) value).intValue());
+        break;
+      case INT64:
+      case SINT64:
+      case SFIXED64:
+        out.append('"').append(((Long) value).longValue()).append('"');
+        break;
+      case UINT32:
+      case FIXED32:
+        out.append(((Integer) value).intValue() & 0xFFFFFFFFL);
+        break;
+      case UINT64:
+      case FIXED64:
+        out.append('"').append(Long.toUnsignedString((Long) value)).append('"');
+        break;
+      case BOOL:
+        out.append(((Boolean) value).booleanValue());
+        break;
+      case FLOAT:
+        Float floatValue = (Float) value;
+        if (floatValue.isNaN()) {
+          out.append("\"NaN\"");
+        } else if (floatValue.isInfinite()) {
+          out.append(floatValue < 0 ? "\"-Infinity\"" : "\"Infinity\"");
+        } else {
+          out.append(floatValue.toString());
+        }
+        break;
+      case DOUBLE:
+        Double doubleValue = (Double) value;
+        if (doubleValue.isNaN()) {
+          out.append("\"NaN\"");
+        } else if (doubleValue.isInfinite()) {
+          out.append(doubleValue < 0 ? "\"-Infinity\"" : "\"Infinity\"");
+        } else {
+          out.append(doubleValue.toString());
+        }
+        break;
+      case STRING:
+        appendString((String) value, out);
+        break;
+      case BYTES:
+        out.append('"')
+            .append(BaseEncoding.base64().encode(((ByteString) value).toByteArray()))
+            .append('"');
+        break;
+      case ENUM:
+        Descriptors.EnumValueDescriptor enumValue = (Descriptors.EnumValueDescriptor) value;
+        if (field.nullValue) {
+          out.append("null");
+        } else if (enumValue.getIndex() == -1) {
+          // A value unknown to this version of the library
+          out.append(enumValue.getNumber());
+        } else {
+          out.append('"').append(enumValue.getName()).append('"');
+        }
+        break;
+      case MESSAGE:
+      case GROUP:
+        MessageLayout layout = field.messageLayout;
+        if (layout == null) {
+          layout = layoutOf(field.field.getMessageType());
+          field.messageLayout = layout;
+        }
+        appendMessage(layout, (MessageOrBuilder) value, out);
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported field type " + field.field.getType());
+    }
+  }
+
+  /** Appends a quoted string, escaped the same way as Gson does for JsonFormat. */
+  private static void appendString(String value, StringBuilder out) {
+    out.append('"');
+    int last = 0;
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      String escape;
+      if (c < 128) {
+        escape = ESCAPES[c];
+      } else if (c == LINE_SEPARATOR) {
+        escape = "\\u2028";
+      } else if (c == PARAGRAPH_SEPARATOR) {
+        escape = "\\u2029";
+      } else {
+        continue;
+      }
+      if (escape == null) {
+        continue;
+      }
+      out.append(value, last, i).append(escape);
+      last = i + 1;
+    }
+    out.append(value, last, length).append('"');
+  }
+
+  /** The fields of a message type, in printing order. */
+  private static class MessageLayout {
+
+    private final FieldLayout[] fields;
+    private final boolean delegated;
+    private final boolean wrapper;
+
+    private MessageLayout(FieldLayout[] fields, boolean delegated, boolean wrapper) {
+      this.fields = fields;
+      this.delegated = delegated;
+      this.wrapper = wrapper;
+    }
+  }
+
+  /** A field of a message type with what is needed to print it. */
+  private static class FieldLayout {
+
+    private final Descriptors.FieldDescriptor field;
+    private final String key;
+    private final boolean printedWhenUnset;
+    private final boolean nullValue;
+    private volatile MessageLayout messageLayout;
+
+    private FieldLayout(Descriptors.FieldDescriptor field, boolean includingDefaultValueFields) {
+      this.field = field;
+      this.key = "\"" + field.getName() + "\":";
+      // Unset messages and members of a oneof are never printed, like in JsonFormat
+      this.printedWhenUnset =
+          includingDefaultValueFields
+              && (field.isRepeated()
+                  || !field.isOptional()
+                  || (field.getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE
+                      && field.getContainingOneof() == null));
+      this.nullValue =
+          field.getJavaType() == Descriptors.FieldDescriptor.JavaType.ENUM
+              && field.getEnumType().getFullName().equals("google.protobuf.NullValue");
+    }
+  }
+}
@@ -0,0 +1,37 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.io.IOException;
+
+/**
+ * Encodes a proto message as a row for a {@link RowWriter}.
+ *
+ * @param <T> the type of the messages
+ * @param <R> the type of the encoded rows
+ */
+public interface RowEncoder<T, R> {
+
+  /**
+   * @param message a proto message
+   * @return the encoded row
+   */
+  R encode(T message) throws IOException;
+
+  /** @return turns the rows into bytes and back, or null if they cannot be spilled off the heap */
+  default SpillCodec<R> getSpillCodec() {
+    return null;
+  }
+}
@@ -0,0 +1,45 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives the rows extracted for an entity of a customer.
+ *
+ * @param <R> the type of the encoded rows, such as a single line of JSON
+ */
+public interface RowWriter<R> extends Closeable {
+
+  /**
+   * Appends a row.
+   *
+   * @param row an encoded row
+   */
+  void writeRow(R row) throws IOException;
+
+  /**
+   * @return the names of the blobs written so far, to be loaded to BigQuery, or an empty list when
+   *     rows are written straight to BigQuery
+   */
+  List<String> getBlobNames();
+
+  /** @return the number of bytes written so far, or 0 if the writer does not count them */
+  default long getBytesWritten() {
+    return 0;
+  }
+}
@@ -0,0 +1,232 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the steps of a snapshot run, such as the extraction of an entity for one customer, as the
+ * nodes of a dependency graph.
+ *
+ * <p>Each node counts its unfinished dependencies and is submitted to the executor as soon as the
+ * count drops to zero, so independent steps overlap as much as the executor allows and a step
+ * never starts before its inputs are complete. A node may require the success of a dependency, in
+ * which case it is skipped, along with the nodes requiring it, when the dependency fails, or only
+ * await it whatever its outcome.
+ */
+public class RunGraph {
+
+  private static final Logger logger = Logger.getLogger(RunGraph.class.getName());
+
+  /** The state of a node. */
+  public enum State {
+    PENDING,
+    RUNNING,
+    DONE,
+    FAILED,
+    SKIPPED
+  }
+
+  private final String name;
+  private final Map<String, Node> nodes = new LinkedHashMap<>();
+  private final CompletableFuture<RunGraph> completion = new CompletableFuture<>();
+  private final AtomicInteger unfinished = new AtomicInteger();
+  private Executor executor;
+
+  /** @param name the name of the run, used in logs */
+  public RunGraph(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Adds a node, whose dependencies are declared on the returned node before the run starts.
+   *
+   * @param id the unique ID of the node, e.g. "AdGroups/1234567890"
+   * @param action the step run by the node
+   * @return the node
+   */
+  public synchronized Node add(String id, Runnable action) {
+    if (executor != null) {
+      throw new IllegalStateException("The run " + name + " already started");
+    }
+    if (nodes.containsKey(id)) {
+      throw new IllegalArgumentException("Duplicate node " + id);
+    }
+    Node node = new Node(id, action);
+    nodes.put(id, node);
+    return node;
+  }
+
+  /**
+   * Starts the nodes without dependencies. The run cannot be changed afterwards.
+   *
+   * @param executor runs the nodes
+   * @return a future completed once every node is done, failed or skipped
+   */
+  public CompletableFuture<RunGraph> start(Executor executor) {
+    List<Node> ready = new ArrayList<>();
+    synchronized (this) {
+      if (this.executor != null) {
+        throw new IllegalStateException("The run " + name + " already started");
+      }
+      this.executor = executor;
+      unfinished.set(nodes.size());
+      for (Node node : nodes.values()) {
+        if (node.pendingDependencies.get() == 0) {
+          ready.add(node);
+        }
+      }
+    }
+    logger.info("[" + name + "] Starting " + nodes.size() + " steps");
+    if (nodes.isEmpty()) {
+      completion.complete(this);
+    }
+    for (Node node : ready) {
+      submit(node);
+    }
+    return completion;
+  }
+
+  /** @return the number of nodes in each state */
+  public Map<State, Integer> getStateCounts() {
+    Map<State, Integer> counts = new EnumMap<>(State.class);
+    for (State state : State.values()) {
+      counts.put(state, 0);
+    }
+    for (Node node : nodes.values()) {
+      counts.merge(node.state, 1, Integer::sum);
+    }
+    return counts;
+  }
+
+  @Override
+  public String toString() {
+    return "[" + name + "] " + getStateCounts();
+  }
+
+  private void submit(Node node) {
+    if (node.blocked) {
+      finish(node, State.SKIPPED);
+      return;
+    }
+    executor.execute(() -> run(node));
+  }
+
+  private void run(Node node) {
+    node.state = State.RUNNING;
+    State state = State.FAILED;
+    try {
+      node.action.run();
+      state = State.DONE;
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "[" + name + "] Step " + node.id + " failed", e);
+    } catch (Error e) {
+      logger.log(Level.SEVERE, "[" + name + "] Step " + node.id + " failed", e);
+      throw e;
+    } finally {
+      // On every path, or the run would never complete
+      finish(node, state);
+    }
+  }
+
+  /** Releases the dependents of a node, and completes the run after its last node. */
+  private void finish(Node node, State state) {
+    node.state = state;
+    if (state == State.SKIPPED) {
+      logger.warning("[" + name + "] Skipped step " + node.id + " as a required step failed");
+    }
+    for (Dependent dependent : node.dependents) {
+      if (state != State.DONE && dependent.requiresSuccess) {
+        dependent.node.blocked = true;
+      }
+      if (dependent.node.pendingDependencies.decrementAndGet() == 0) {
+        submit(dependent.node);
+      }
+    }
+    if (unfinished.decrementAndGet() == 0) {
+      logger.info(toString());
+      completion.complete(this);
+    }
+  }
+
+  /** A step of the run. */
+  public final class Node {
+
+    private final String id;
+    private final Runnable action;
+    private final List<Dependent> dependents = new ArrayList<>();
+    private final AtomicInteger pendingDependencies = new AtomicInteger();
+    // Written before the last dependency is released, read once it is
+    private volatile boolean blocked = false;
+    private volatile State state = State.PENDING;
+
+    private Node(String id, Runnable action) {
+      this.id = id;
+      this.action = action;
+    }
+
+    /** Runs this node only once the given nodes succeeded, skipping it if any did not. */
+    public Node requires(Node... dependencies) {
+      return dependOn(true, dependencies);
+    }
+
+    /** Runs this node once the given nodes are done, whether they succeeded or not. */
+    public Node awaits(Node... dependencies) {
+      return dependOn(false, dependencies);
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    private Node dependOn(boolean requiresSuccess, Node... dependencies) {
+      synchronized (RunGraph.this) {
+        if (executor != null) {
+          throw new IllegalStateException("The run " + name + " already started");
+        }
+        for (Node dependency : dependencies) {
+          dependency.dependents.add(new Dependent(this, requiresSuccess));
+          pendingDependencies.incrementAndGet();
+        }
+      }
+      return this;
+    }
+  }
+
+  /** An edge of the graph, from a node to one of its dependents. */
+  private static final class Dependent {
+
+    private final Node node;
+    private final boolean requiresSuccess;
+
+    private Dependent(Node node, boolean requiresSuccess) {
+      this.node = node;
+      this.requiresSuccess = requiresSuccess;
+    }
+  }
+}
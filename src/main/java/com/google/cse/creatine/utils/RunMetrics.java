@@ -0,0 +1,303 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Counts where the snapshot runs spend their time, and prints it in the Prometheus text format.
+ *
+ * <p>Each extraction of an entity for a customer records the time spent in each stage of the
+ * pipeline into a histogram per entity and stage, and its rows, bytes written and errors into
+ * counters per entity and customer. The rows per second of a stage are its rows over its seconds.
+ * Loads are recorded per table once the ledger sees them complete.
+ *
+ * <p>The rows and duration of each finished extraction are also kept as its {@link CustomerCost},
+ * until drained to be saved for the scheduling of the next run.
+ *
+ * <p>Series are created on first use only; recording into them afterwards only adds to {@link
+ * LongAdder}s, so the extraction threads never contend on a lock.
+ */
+public class RunMetrics {
+
+  /** A stage of a snapshot run. */
+  public enum Stage {
+    /** Pulling the rows from the Google Ads API. */
+    FETCH,
+    /** Encoding the rows as JSON or Avro. */
+    ENCODE,
+    /** Writing the rows to Cloud Storage or BigQuery. */
+    WRITE,
+    /** Loading the blobs into BigQuery. */
+    LOAD;
+
+    String label() {
+      return name().toLowerCase();
+    }
+  }
+
+  private static final String PREFIX = "creatine_";
+  // The date of the daily tables, which would start new series every day
+  private static final Pattern SNAPSHOT_DATE = Pattern.compile("_?\\d{8}$");
+
+  // From a small customer's encoding to a large customer's fetch
+  private static final double[] BUCKET_SECONDS = {
+    0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300, 900, 1800, 3600
+  };
+
+  // Series by their formatted labels, so that they are printed in a stable order
+  private final ConcurrentMap<String, Histogram> stageSeconds = new ConcurrentSkipListMap<>();
+  private final ConcurrentMap<String, LongAdder> rows = new ConcurrentSkipListMap<>();
+  private final ConcurrentMap<String, LongAdder> bytesWritten = new ConcurrentSkipListMap<>();
+  private final ConcurrentMap<String, LongAdder> spilledBytes = new ConcurrentSkipListMap<>();
+  private final ConcurrentMap<String, LongAdder> errors = new ConcurrentSkipListMap<>();
+  private final ConcurrentMap<String, LongAdder> loadedBytes = new ConcurrentSkipListMap<>();
+  // The costs of the finished extractions not drained yet, by entity and customer
+  private final ConcurrentMap<String, ConcurrentMap<String, CustomerCost>> costs =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Starts recording the extraction of an entity for a customer.
+   *
+   * @param entityName the name of the entity, e.g. AdGroups
+   * @param customerId the customer ID
+   * @return the recorder of the extraction, to be used by its stages
+   */
+  public Extraction startExtraction(String entityName, String customerId) {
+    return new Extraction(entityName, customerId);
+  }
+
+  /**
+   * Records a load once it is complete.
+   *
+   * @param tableName the table loaded, whose date suffix is left out of the labels
+   * @param durationMillis the time from the submission of the load to its completion
+   * @param inputBytes the bytes read by the load, or null if it failed
+   * @param failed whether the load failed after all its attempts
+   */
+  public void recordLoad(String tableName, long durationMillis, Long inputBytes, boolean failed) {
+    String labels = labels("table", SNAPSHOT_DATE.matcher(tableName).replaceFirst(""));
+    histogram(labels(labels, "stage", Stage.LOAD.label()))
+        .observe(TimeUnit.MILLISECONDS.toNanos(durationMillis));
+    if (inputBytes != null) {
+      adder(loadedBytes, labels).add(inputBytes);
+    }
+    if (failed) {
+      adder(errors, labels(labels, "stage", Stage.LOAD.label())).increment();
+    }
+  }
+
+  /**
+   * Takes the costs of the extractions of an entity finished since the last call.
+   *
+   * @param entityName the name of the entity, e.g. AdGroups
+   * @return the cost of each customer, by customer ID
+   */
+  public Map<String, CustomerCost> drainCosts(String entityName) {
+    Map<String, CustomerCost> drained = new HashMap<>();
+    ConcurrentMap<String, CustomerCost> entityCosts = costs.get(entityName);
+    if (entityCosts != null) {
+      for (String customerId : entityCosts.keySet()) {
+        CustomerCost cost = entityCosts.remove(customerId);
+        if (cost != null) {
+          drained.put(customerId, cost);
+        }
+      }
+    }
+    return drained;
+  }
+
+  /** @return every series, in the Prometheus text exposition format */
+  public String toPrometheus() {
+    StringBuilder text = new StringBuilder();
+    header(text, "stage_seconds", "histogram", "Time spent in each stage of the snapshot runs.");
+    for (Map.Entry<String, Histogram> entry : stageSeconds.entrySet()) {
+      entry.getValue().print(text, PREFIX + "stage_seconds", entry.getKey());
+    }
+    counters(text, "rows_total", "Rows extracted.", rows);
+    counters(
+        text, "written_bytes_total", "Bytes written to Cloud Storage or BigQuery.", bytesWritten);
+    counters(text, "spilled_bytes_total", "Bytes of rows spilled off the heap.", spilledBytes);
+    counters(text, "errors_total", "Errors, by stage.", errors);
+    counters(text, "loaded_bytes_total", "Bytes read by the BigQuery load jobs.", loadedBytes);
+    return text.toString();
+  }
+
+  private Histogram histogram(String labels) {
+    return stageSeconds.computeIfAbsent(labels, key -> new Histogram());
+  }
+
+  private static LongAdder adder(ConcurrentMap<String, LongAdder> series, String labels) {
+    return series.computeIfAbsent(labels, key -> new LongAdder());
+  }
+
+  private static String labels(String name, String value) {
+    StringBuilder labels = new StringBuilder(name).append("=\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        labels.append('\\').append(c);
+      } else if (c == '\n') {
+        labels.append("\\n");
+      } else {
+        labels.append(c);
+      }
+    }
+    return labels.append('"').toString();
+  }
+
+  private static String labels(String labels, String name, String value) {
+    return labels + "," + labels(name, value);
+  }
+
+  private static void header(StringBuilder text, String name, String type, String help) {
+    text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void counters(
+      StringBuilder text, String name, String help, ConcurrentMap<String, LongAdder> series) {
+    header(text, name, "counter", help);
+    for (Map.Entry<String, LongAdder> entry : series.entrySet()) {
+      text.append(PREFIX)
+          .append(name)
+          .append('{')
+          .append(entry.getKey())
+          .append("} ")
+          .append(entry.getValue().sum())
+          .append('\n');
+    }
+  }
+
+  /** Records the stages of the extraction of an entity for a customer. */
+  public final class Extraction {
+
+    private final String entityName;
+    private final String customerId;
+    private final String entityLabels;
+    private final LongAdder rowCounter;
+    private final LongAdder byteCounter;
+    private final String customerLabels;
+    private final long startNanos = System.nanoTime();
+    private final LongAdder extractedRows = new LongAdder();
+
+    private Extraction(String entityName, String customerId) {
+      this.entityName = entityName;
+      this.customerId = customerId;
+      entityLabels = labels("entity", entityName);
+      customerLabels = labels(entityLabels, "customer", customerId);
+      rowCounter = adder(rows, customerLabels);
+      byteCounter = adder(bytesWritten, customerLabels);
+    }
+
+    /**
+     * Records the time spent in a stage, once per extraction.
+     *
+     * @param stage the stage
+     * @param nanos the time spent in the stage, not waiting for the other stages
+     */
+    public void recordStage(Stage stage, long nanos) {
+      histogram(labels(entityLabels, "stage", stage.label())).observe(nanos);
+    }
+
+    public void addRows(long count) {
+      rowCounter.add(count);
+      extractedRows.add(count);
+    }
+
+    public void addBytes(long count) {
+      byteCounter.add(count);
+    }
+
+    /** Records rows spilled to disk, only once there are some, to keep the series few. */
+    public void addSpilledBytes(long count) {
+      if (count > 0) {
+        adder(spilledBytes, customerLabels).add(count);
+      }
+    }
+
+    public void recordError(Stage stage) {
+      adder(errors, labels(customerLabels, "stage", stage.label())).increment();
+    }
+
+    /** Records the cost of the extraction, once all its rows are written. */
+    public void finish() {
+      CustomerCost cost =
+          new CustomerCost(
+              extractedRows.sum(),
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+      costs
+          .computeIfAbsent(entityName, key -> new ConcurrentHashMap<>())
+          .merge(customerId, cost, CustomerCost::plus);
+    }
+  }
+
+  /** A histogram of durations over BUCKET_SECONDS. */
+  private static final class Histogram {
+
+    private static final long[] BOUND_NANOS = new long[BUCKET_SECONDS.length];
+
+    static {
+      for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+        BOUND_NANOS[i] = (long) (BUCKET_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+      }
+    }
+
+    // One more bucket for the durations above the last bound
+    private final LongAdder[] buckets = new LongAdder[BOUND_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    private Histogram() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void observe(long nanos) {
+      int bucket = 0;
+      while (bucket < BOUND_NANOS.length && nanos > BOUND_NANOS[bucket]) {
+        bucket++;
+      }
+      buckets[bucket].increment();
+      sumNanos.add(nanos);
+    }
+
+    void print(StringBuilder text, String name, String labels) {
+      long cumulative = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        cumulative += buckets[i].sum();
+        text.append(name)
+            .append("_bucket{")
+            .append(labels)
+            .append(",le=\"")
+            .append(i < BUCKET_SECONDS.length ? String.valueOf(BUCKET_SECONDS[i]) : "+Inf")
+            .append("\"} ")
+            .append(cumulative)
+            .append('\n');
+      }
+      text.append(name).append("_sum{").append(labels).append("} ");
+      text.append(sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+      text.append(name).append("_count{").append(labels).append("} ");
+      text.append(cumulative).append('\n');
+    }
+  }
+}
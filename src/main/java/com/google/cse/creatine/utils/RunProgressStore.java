@@ -0,0 +1,98 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the progress of the snapshot of each entity, so that a retried run only extracts the
+ * customers which were not done yet.
+ *
+ * <p>The progress of an entity is kept per snapshot date: the customers whose extraction is done,
+ * with the blobs they staged in Cloud Storage, and the state of the table once its customers are
+ * done.
+ */
+public interface RunProgressStore {
+
+  /** The state of the table of an entity once all its customers are done. */
+  enum TableState {
+    /** The blobs of the customers are being loaded. */
+    LOADING,
+    /** The blobs of the customers are loaded. */
+    COMPLETED
+  }
+
+  /**
+   * @param snapshotDate the date of the snapshot, as in the table names (yyyyMMdd)
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @return the progress of the entity, empty if it was never started on that date
+   */
+  Progress get(String snapshotDate, String entityName);
+
+  /**
+   * Records that the extraction of a customer is done.
+   *
+   * @param snapshotDate the date of the snapshot, as in the table names (yyyyMMdd)
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @param customerId the customer ID
+   * @param blobNames the blobs staged by the customer in today's folder of the bucket
+   */
+  void markCustomerDone(
+      String snapshotDate, String entityName, String customerId, List<String> blobNames);
+
+  /**
+   * Records the state of the table of an entity.
+   *
+   * @param snapshotDate the date of the snapshot, as in the table names (yyyyMMdd)
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @param state the state of the table
+   */
+  void setTableState(String snapshotDate, String entityName, TableState state);
+
+  /** The progress of an entity on a snapshot date. */
+  final class Progress {
+
+    /** The progress of an entity which was never started. */
+    public static final Progress NONE = new Progress(null, Collections.emptyMap());
+
+    private final TableState tableState;
+    private final Map<String, List<String>> blobsByCustomer;
+
+    /**
+     * @param tableState the state of the table, or null while customers are being extracted
+     * @param blobsByCustomer the staged blobs of each customer done
+     */
+    public Progress(TableState tableState, Map<String, List<String>> blobsByCustomer) {
+      this.tableState = tableState;
+      this.blobsByCustomer = Collections.unmodifiableMap(blobsByCustomer);
+    }
+
+    /** @return the state of the table, or null while customers are being extracted */
+    public TableState getTableState() {
+      return tableState;
+    }
+
+    public boolean isDone(String customerId) {
+      return blobsByCustomer.containsKey(customerId);
+    }
+
+    /** @return the staged blobs of each customer done, by customer ID */
+    public Map<String, List<String>> getBlobsByCustomer() {
+      return blobsByCustomer;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.Schema;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.protobuf.Descriptors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Caches the BigQuery schema of each proto message type.
+ *
+ * <p>Walking a descriptor tree with {@link BigQueryUtils#createFields} is expensive for types such
+ * as AdGroupAd, so it is done once per descriptor and the resulting immutable {@link Schema} is
+ * shared by every customer.
+ */
+public class SchemaRegistry {
+
+  private static final Logger logger = Logger.getLogger(SchemaRegistry.class.getName());
+
+  private final BigQueryUtils bQUtils;
+  private final ConcurrentMap<Descriptors.Descriptor, Schema> schemas = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Descriptors.Descriptor, Schema> changeSchemas =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<Descriptors.Descriptor, ProtoAvroEncoder> avroEncoders =
+      new ConcurrentHashMap<>();
+
+  public SchemaRegistry(BigQueryUtils bQUtils) {
+    this.bQUtils = bQUtils;
+  }
+
+  /**
+   * Computes the schemas of the given message types ahead of their first use.
+   *
+   * @param descriptors the descriptors of the message types
+   */
+  public void warmUp(Descriptors.Descriptor... descriptors) {
+    for (Descriptors.Descriptor descriptor : descriptors) {
+      Schema schema = getSchema(descriptor);
+      logger.info(
+          "Cached schema of " + descriptor.getFullName() + " (" + schema.getFields().size()
+              + " top-level fields)");
+    }
+  }
+
+  /**
+   * @param descriptor the descriptor of a message type
+   * @return the BigQuery schema of the message type
+   */
+  public Schema getSchema(Descriptors.Descriptor descriptor) {
+    return schemas.computeIfAbsent(
+        descriptor, key -> Schema.of(bQUtils.createFields(key.getFields())));
+  }
+
+  /**
+   * @param descriptor the descriptor of a message type
+   * @return the BigQuery schema of the change tables of the message type
+   */
+  public Schema getChangeSchema(Descriptors.Descriptor descriptor) {
+    return changeSchemas.computeIfAbsent(
+        descriptor, key -> DeltaRowWriter.changeSchema(getSchema(key)));
+  }
+
+  /**
+   * @param descriptor the descriptor of a message type
+   * @return the top-level BigQuery fields of the message type
+   */
+  public Field[] getFields(Descriptors.Descriptor descriptor) {
+    return getSchema(descriptor).getFields().toArray(new Field[0]);
+  }
+
+  /**
+   * @param descriptor the descriptor of a message type
+   * @param serializer the JSON serializer of the message type, whose rows the Avro ones mirror
+   * @return the Avro encoder of the message type, matching its BigQuery schema
+   */
+  public ProtoAvroEncoder getAvroEncoder(
+      Descriptors.Descriptor descriptor, ProtoJsonSerializer serializer) {
+    return avroEncoders.computeIfAbsent(
+        descriptor, key -> new ProtoAvroEncoder(key, getSchema(key).getFields(), serializer));
+  }
+
+  /**
+   * Formats the schema of a message type the same way as the BigQuery JSON schema files, so that it
+   * can be compared with the schema of an existing table.
+   *
+   * @param descriptor the descriptor of a message type
+   * @return the schema as a JSON array of fields
+   */
+  public JsonArray toJson(Descriptors.Descriptor descriptor) {
+    return toJson(getSchema(descriptor).getFields());
+  }
+
+  /**
+   * @param fields BigQuery fields
+   * @return the fields as a JSON array, in the BigQuery JSON schema format
+   */
+  public static JsonArray toJson(FieldList fields) {
+    JsonArray array = new JsonArray();
+    for (Field field : fields) {
+      JsonObject object = new JsonObject();
+      object.addProperty("name", field.getName());
+      object.addProperty("type", field.getType().name());
+      object.addProperty(
+          "mode", field.getMode() == null ? Field.Mode.NULLABLE.name() : field.getMode().name());
+      if (field.getSubFields() != null && !field.getSubFields().isEmpty()) {
+        object.add("fields", toJson(field.getSubFields()));
+      }
+      array.add(object);
+    }
+    return array;
+  }
+}
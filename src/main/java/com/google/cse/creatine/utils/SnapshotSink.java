@@ -0,0 +1,83 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.avro.Schema;
+
+/**
+ * Receives the blobs of a snapshot, one set per entity and customer, in a folder named after
+ * today's date.
+ *
+ * <p>{@link GoogleCloudStorageUtils} stages them in Cloud Storage, from where BigQuery loads them.
+ * {@link LocalFileSink} and {@link InMemorySink} keep them on this machine, so that a snapshot can
+ * be run and profiled offline; nothing is loaded to BigQuery then.
+ */
+public interface SnapshotSink {
+
+  /**
+   * Makes sure blobs can be written, e.g. by creating the bucket.
+   *
+   * @param bucketName the name of the bucket
+   */
+  void prepare(String bucketName);
+
+  /**
+   * Opens a streaming writer to the NDJSON blobs named blobName.
+   *
+   * @param blobName the name of the blobs, "(chunk)" being replaced by the chunk number
+   * @return the writer, which must be closed to finalize the last blob
+   */
+  RowWriter<CharSequence> openWriter(String blobName);
+
+  /**
+   * Opens a streaming writer to the Avro blobs named blobName.
+   *
+   * @param blobName the name of the blobs, "(chunk)" being replaced by the chunk number
+   * @param schema the Avro schema of the rows
+   * @return the writer, which must be closed to finalize the last blob
+   */
+  RowWriter<ByteBuffer> openAvroWriter(String blobName, Schema schema);
+
+  /** @return whether the blobs are in Cloud Storage, from where BigQuery can load them */
+  boolean isLoadable();
+
+  /**
+   * Writes rows to the NDJSON blobs named blobName.
+   *
+   * @param dataList the rows (it will be emptied by this function)
+   * @param blobName the name of the blobs, "(chunk)" being replaced by the chunk number
+   * @return the names of the blobs written
+   */
+  default List<String> writeToBucket(List<String> dataList, String blobName) {
+    RowWriter<CharSequence> writer = openWriter(blobName);
+    try {
+      for (String row : dataList) {
+        writer.writeRow(row);
+      }
+      writer.close();
+    } catch (IOException e) {
+      Logger.getLogger(SnapshotSink.class.getName())
+          .log(Level.SEVERE, "Could not write " + blobName, e);
+    }
+    dataList.clear();
+    return new ArrayList<>(writer.getBlobNames());
+  }
+}
@@ -0,0 +1,321 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands batches of encoded rows from one stage of an extraction to the next, keeping a bounded
+ * number of batches on the heap and spilling the rows of the others to a memory-mapped temporary
+ * file.
+ *
+ * <p>A producer faster than its consumer, such as the encoding of a large customer while its blobs
+ * upload, only waits once the file reaches maxSpillBytes while the heap batches are full, so heap
+ * use does not grow with the size of the customer and the Google Ads stream is not held back by
+ * the upload. The spilled rows are read back once the heap batches are drained, so a consumer
+ * keeping up never touches the file, which is only created on the first spill. The file is reused
+ * from its start once every spilled row is read, and deleted on close.
+ *
+ * <p>Rows are not taken in the order they were put, which the writers of the rows do not need.
+ *
+ * @param <R> the type of the encoded rows
+ */
+public class SpillBuffer<R> implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(SpillBuffer.class.getName());
+
+  // Records never span segments, which are mapped one at a time as the file grows
+  private static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+  private static final int HEADER_BYTES = Integer.BYTES;
+  // Marks the unused end of a segment
+  private static final int SKIP = -1;
+
+  private final String name;
+  private final int heapBatches;
+  private final int batchSize;
+  private final long maxSpillBytes;
+  private final SpillCodec<R> codec;
+  private final int segmentBytes;
+  private final ArrayDeque<List<R>> heap = new ArrayDeque<>();
+  private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+  private Path path;
+  private FileChannel file;
+  private long writePosition = 0;
+  private long readPosition = 0;
+  private long unreadRows = 0;
+  private long spilledBytes = 0;
+  private boolean ended = false;
+  private boolean closed = false;
+  private Throwable failure;
+
+  /**
+   * @param name the name of the buffer, used in logs
+   * @param heapBatches the number of batches kept on the heap before spilling
+   * @param batchSize the number of rows of the batches read back from the file
+   * @param maxSpillBytes the size of the file after which the producer waits until it is read, 0
+   *     to never spill
+   * @param codec turns the rows into bytes and back, or null to never spill
+   */
+  public SpillBuffer(
+      String name, int heapBatches, int batchSize, long maxSpillBytes, SpillCodec<R> codec) {
+    this(name, heapBatches, batchSize, maxSpillBytes, codec, DEFAULT_SEGMENT_BYTES);
+  }
+
+  /** @param segmentBytes the size of the segments mapped one at a time, 64 MiB by default */
+  SpillBuffer(
+      String name,
+      int heapBatches,
+      int batchSize,
+      long maxSpillBytes,
+      SpillCodec<R> codec,
+      int segmentBytes) {
+    this.name = name;
+    this.heapBatches = heapBatches;
+    this.batchSize = batchSize;
+    this.maxSpillBytes = codec == null ? 0 : maxSpillBytes;
+    this.codec = codec;
+    this.segmentBytes = segmentBytes;
+  }
+
+  /**
+   * Adds a batch, spilling it if the heap batches are full. Waits while the file is full too.
+   *
+   * @param batch a non-empty batch of rows
+   * @throws IllegalStateException if the buffer was closed, e.g. as its consumer failed
+   */
+  public synchronized void put(List<R> batch) throws IOException, InterruptedException {
+    while (true) {
+      if (closed) {
+        throw new IllegalStateException("[" + name + "] The consumer of the rows stopped");
+      }
+      if (heap.size() < heapBatches) {
+        heap.add(batch);
+        notifyAll();
+        return;
+      }
+      if (writePosition < maxSpillBytes) {
+        spill(batch);
+        notifyAll();
+        return;
+      }
+      wait();
+    }
+  }
+
+  /** Marks the end of the rows, once the last batch was put. */
+  public synchronized void end() {
+    ended = true;
+    notifyAll();
+  }
+
+  /**
+   * Marks the rows as incomplete, once the producer failed, so that the consumer fails too rather
+   * than waiting for the end of the rows.
+   *
+   * @param cause the failure of the producer
+   */
+  public synchronized void fail(Throwable cause) {
+    if (failure == null) {
+      failure = cause;
+    }
+    notifyAll();
+  }
+
+  /** @return whether the producer failed */
+  public synchronized boolean isFailed() {
+    return failure != null;
+  }
+
+  /**
+   * Takes a batch, waiting until one is available.
+   *
+   * @return the batch, or an empty list once every row was taken after the end
+   * @throws IOException if the producer failed, the rows left being incomplete
+   */
+  public synchronized List<R> take() throws IOException, InterruptedException {
+    while (true) {
+      if (failure != null) {
+        throw new IOException("[" + name + "] The producer of the rows failed", failure);
+      }
+      if (!heap.isEmpty()) {
+        List<R> batch = heap.poll();
+        notifyAll();
+        return batch;
+      }
+      if (unreadRows > 0) {
+        List<R> batch = readBatch();
+        notifyAll();
+        return batch;
+      }
+      if (ended || closed) {
+        return Collections.emptyList();
+      }
+      wait();
+    }
+  }
+
+  /** @return the bytes of all the rows spilled so far */
+  public synchronized long getSpilledBytes() {
+    return spilledBytes;
+  }
+
+  /**
+   * Drops the rows left, unmaps and deletes the file and fails the producer's next put. The file
+   * is unmapped at once, as a temporary file may be held in memory, such as on App Engine where
+   * /tmp is backed by the memory of the instance, until its mappings are garbage collected.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    heap.clear();
+    for (MappedByteBuffer segment : segments) {
+      unmap(segment);
+    }
+    segments.clear();
+    unreadRows = 0;
+    notifyAll();
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "[" + name + "] Could not delete " + path, e);
+      }
+    }
+  }
+
+  private void spill(List<R> batch) throws IOException {
+    List<R> oversized = new ArrayList<>();
+    for (R row : batch) {
+      ByteBuffer bytes = codec.toBytes(row);
+      int length = bytes.remaining();
+      if (HEADER_BYTES + length > segmentBytes) {
+        oversized.add(row);
+        continue;
+      }
+      int offset = (int) (writePosition % segmentBytes);
+      if (segmentBytes - offset < HEADER_BYTES + length) {
+        if (segmentBytes - offset >= HEADER_BYTES) {
+          segment(writePosition).putInt(offset, SKIP);
+        }
+        writePosition += segmentBytes - offset;
+        offset = 0;
+      }
+      ByteBuffer target = segment(writePosition).duplicate();
+      target.putInt(offset, length);
+      target.position(offset + HEADER_BYTES);
+      target.put(bytes);
+      writePosition += HEADER_BYTES + length;
+      spilledBytes += length;
+      unreadRows++;
+    }
+    // Rows larger than a segment stay on the heap, going over the heap batches for once
+    if (!oversized.isEmpty()) {
+      heap.add(oversized);
+    }
+  }
+
+  private List<R> readBatch() {
+    List<R> batch = new ArrayList<>(batchSize);
+    while (unreadRows > 0 && batch.size() < batchSize) {
+      int offset = (int) (readPosition % segmentBytes);
+      MappedByteBuffer segment = segments.get((int) (readPosition / segmentBytes));
+      if (segmentBytes - offset < HEADER_BYTES || segment.getInt(offset) == SKIP) {
+        readPosition += segmentBytes - offset;
+        continue;
+      }
+      int length = segment.getInt(offset);
+      ByteBuffer bytes = segment.duplicate();
+      bytes.limit(offset + HEADER_BYTES + length);
+      bytes.position(offset + HEADER_BYTES);
+      batch.add(codec.fromBytes(bytes.slice()));
+      readPosition += HEADER_BYTES + length;
+      unreadRows--;
+    }
+    if (unreadRows == 0) {
+      // Everything spilled was read, the next spill overwrites the file from its start
+      readPosition = 0;
+      writePosition = 0;
+    }
+    return batch;
+  }
+
+  /**
+   * Releases the mapping of a segment, which must not be read afterwards, through the cleaner of
+   * the JDK. Left to the garbage collector when the JDK does not expose it.
+   */
+  private void unmap(MappedByteBuffer segment) {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner;
+      try {
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      } catch (NoSuchMethodException e) {
+        // Java 8, whose direct buffers hold their own cleaner
+        Method cleanerMethod = segment.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(segment);
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+        return;
+      }
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), segment);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      logger.log(Level.FINE, "[" + name + "] Could not unmap a segment of " + path, e);
+    }
+  }
+
+  /** @return the segment holding a position, mapping it if needed */
+  private MappedByteBuffer segment(long position) throws IOException {
+    int index = (int) (position / segmentBytes);
+    if (file == null) {
+      path = Files.createTempFile("creatine-spill-", ".rows");
+      file =
+          FileChannel.open(
+              path,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.DELETE_ON_CLOSE);
+      logger.info("[" + name + "] Spilling rows to " + path);
+    }
+    while (segments.size() <= index) {
+      segments.add(
+          file.map(
+              FileChannel.MapMode.READ_WRITE,
+              (long) segments.size() * segmentBytes,
+              segmentBytes));
+    }
+    return segments.get(index);
+  }
+}
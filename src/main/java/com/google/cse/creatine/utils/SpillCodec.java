@@ -0,0 +1,90 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns encoded rows into bytes and back, for a {@link SpillBuffer} to keep them off the heap.
+ *
+ * @param <R> the type of the encoded rows
+ */
+public interface SpillCodec<R> {
+
+  /** Rows printed as single-line JSON. */
+  SpillCodec<String> STRINGS =
+      new SpillCodec<String>() {
+        @Override
+        public ByteBuffer toBytes(String row) {
+          return ByteBuffer.wrap(row.getBytes(UTF_8));
+        }
+
+        @Override
+        public String fromBytes(ByteBuffer bytes) {
+          return UTF_8.decode(bytes).toString();
+        }
+      };
+
+  /** Rows already encoded as bytes, such as Avro records. */
+  SpillCodec<ByteBuffer> BYTES =
+      new SpillCodec<ByteBuffer>() {
+        @Override
+        public ByteBuffer toBytes(ByteBuffer row) {
+          return row.duplicate();
+        }
+
+        @Override
+        public ByteBuffer fromBytes(ByteBuffer bytes) {
+          ByteBuffer row = ByteBuffer.allocate(bytes.remaining());
+          row.put(bytes);
+          row.flip();
+          return row;
+        }
+      };
+
+  /** JSON rows along with their fingerprints. */
+  SpillCodec<FingerprintedRow> FINGERPRINTED_ROWS =
+      new SpillCodec<FingerprintedRow>() {
+        @Override
+        public ByteBuffer toBytes(FingerprintedRow row) {
+          byte[] json = row.getJson().getBytes(UTF_8);
+          ByteBuffer bytes = ByteBuffer.allocate(2 * Long.BYTES + json.length);
+          bytes.putLong(row.getKey()).putLong(row.getContent()).put(json);
+          bytes.flip();
+          return bytes;
+        }
+
+        @Override
+        public FingerprintedRow fromBytes(ByteBuffer bytes) {
+          long key = bytes.getLong();
+          long content = bytes.getLong();
+          return new FingerprintedRow(key, content, UTF_8.decode(bytes).toString());
+        }
+      };
+
+  /**
+   * @param row an encoded row
+   * @return the bytes of the row, from its position to its limit
+   */
+  ByteBuffer toBytes(R row);
+
+  /**
+   * @param bytes the bytes of a row, only valid during the call
+   * @return the row, copied out of the bytes
+   */
+  R fromBytes(ByteBuffer bytes);
+}
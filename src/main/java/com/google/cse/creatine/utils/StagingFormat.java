@@ -0,0 +1,53 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.bigquery.FormatOptions;
+
+/** The format of the blobs staged in Cloud Storage before being loaded to BigQuery. */
+public enum StagingFormat {
+  /** Newline-delimited JSON, repeating the field names on every row. */
+  NDJSON(FormatOptions.json(), ".json"),
+  /** Deflate-compressed Avro container files, with a schema derived from the proto descriptors. */
+  AVRO(FormatOptions.avro(), ".avro");
+
+  private final FormatOptions formatOptions;
+  private final String extension;
+
+  StagingFormat(FormatOptions formatOptions, String extension) {
+    this.formatOptions = formatOptions;
+    this.extension = extension;
+  }
+
+  /** @return the format options of the BigQuery load jobs */
+  public FormatOptions getFormatOptions() {
+    return formatOptions;
+  }
+
+  /** @return the extension of the blobs, with its leading dot */
+  public String getExtension() {
+    return extension;
+  }
+
+  /**
+   * Parses the value of a staging format property, such as "ndjson" or "avro".
+   *
+   * @param value the value of the property
+   * @return the matching StagingFormat
+   */
+  public static StagingFormat fromProperty(String value) {
+    return valueOf(value.trim().toUpperCase());
+  }
+}
@@ -0,0 +1,89 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.bigquery.Schema;
+import com.google.common.base.Utf8;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Buffers the rows of a customer in small batches and appends them to a table through a {@link
+ * TableStreamWriter}. No blob is written, so there is nothing to load afterwards.
+ */
+public class StreamingRowWriter implements RowWriter<CharSequence> {
+
+  private static final int MAX_ROWS_PER_APPEND = 500;
+  private static final int MAX_CHARS_PER_APPEND = 4 * 1024 * 1024;
+
+  private final TableStreamWriter tableStreamWriter;
+  private final String tableName;
+  private final String customerId;
+  private final Schema schema;
+
+  private List<String> batch = new ArrayList<>();
+  private int batchChars = 0;
+  private long bytesWritten = 0;
+
+  /**
+   * @param tableStreamWriter the writer of the BigQuery streams
+   * @param tableName the name of the table
+   * @param customerId the customer ID of the rows
+   * @param schema the Schema of the table
+   */
+  public StreamingRowWriter(
+      TableStreamWriter tableStreamWriter, String tableName, String customerId, Schema schema) {
+    this.tableStreamWriter = tableStreamWriter;
+    this.tableName = tableName;
+    this.customerId = customerId;
+    this.schema = schema;
+  }
+
+  @Override
+  public void writeRow(CharSequence row) throws IOException {
+    batch.add(row.toString());
+    batchChars += row.length();
+    bytesWritten += Utf8.encodedLength(row);
+    if (batch.size() >= MAX_ROWS_PER_APPEND || batchChars >= MAX_CHARS_PER_APPEND) {
+      flush();
+    }
+  }
+
+  @Override
+  public List<String> getBlobNames() {
+    return Collections.emptyList();
+  }
+
+  /** @return the UTF-8 bytes of the rows written so far */
+  @Override
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  @Override
+  public void close() throws IOException {
+    flush();
+  }
+
+  private void flush() throws IOException {
+    if (!batch.isEmpty()) {
+      tableStreamWriter.append(tableName, customerId, schema, batch);
+      batch = new ArrayList<>();
+      batchChars = 0;
+    }
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.cloud.bigquery.Schema;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes JSON rows straight into BigQuery tables, without staging them in Cloud Storage.
+ *
+ * <p>Rows appended to a table during a run go to the stream of their customer, so that a customer
+ * failing does not affect the rows of the others. Depending on the implementation they are visible
+ * at once or only after {@link #commit}, which commits the streams of all the customers together,
+ * or that of one customer.
+ */
+public interface TableStreamWriter {
+
+  /**
+   * Appends rows of a customer to a table, creating the table and the stream of the customer if
+   * needed. When the append fails, the stream of the customer is dropped, along with its rows not
+   * visible yet, and the next append of the customer opens a new stream.
+   *
+   * @param tableName the name of the table
+   * @param customerId the customer ID of the rows
+   * @param schema the Schema of the table
+   * @param rows JSON documents, one per row
+   */
+  void append(String tableName, String customerId, Schema schema, List<String> rows)
+      throws IOException;
+
+  /**
+   * Makes the rows appended to a table visible and closes its streams. Later appends open new
+   * streams.
+   *
+   * @param tableName the name of the table
+   */
+  void commit(String tableName) throws IOException;
+
+  /**
+   * Makes the rows appended by a customer to a table visible and closes its stream, for the
+   * dispatch modes which have no end of the run to commit the table at.
+   *
+   * @param tableName the name of the table
+   * @param customerId the customer ID of the rows
+   */
+  void commit(String tableName, String customerId) throws IOException;
+
+  /**
+   * Closes the stream of a failed customer, dropping its rows not visible yet.
+   *
+   * @param tableName the name of the table
+   * @param customerId the customer ID of the rows
+   */
+  void drop(String tableName, String customerId);
+
+  /** Releases the streams and connections of the writer. */
+  void close();
+}
@@ -0,0 +1,184 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Works through the items of a {@link WorkClaimStore} from one instance, until every item of the
+ * entity is done or failed.
+ *
+ * <p>The runner claims a batch of customers at a time and runs it on the {@link CustomerFanOut} of
+ * the instance, so that an instance only takes as much work as it can do while the others take the
+ * rest. The leases of the customers in flight are renewed in the background every third of a
+ * lease; a customer whose lease could not be renewed, e.g. as the instance stalled, may be claimed
+ * by another instance, which is logged. The task is given a check of the claim of its customer,
+ * which renews it under the owner of this runner, to call before handing the rows of the customer
+ * over and to fail if the claim was lost, so that a customer claimed again is not loaded twice.
+ * Once nothing is left to claim, the runner waits for the customers claimed by the other
+ * instances, and claims them again if their leases expire.
+ */
+public class WorkClaimRunner {
+
+  private static final Logger logger = Logger.getLogger(WorkClaimRunner.class.getName());
+
+  private final WorkClaimStore store;
+  private final CustomerFanOut fanOut;
+  private final int claimSize;
+  private final long leaseMillis;
+  private final int maxClaims;
+  private final String owner = UUID.randomUUID().toString();
+
+  /**
+   * @param store the store of the work items
+   * @param fanOut runs the claimed customers
+   * @param claimSize the number of customers claimed at a time
+   * @param leaseMillis the time after which the claims of a stalled instance expire
+   * @param maxClaims the number of claims after which a failing customer is given up
+   */
+  public WorkClaimRunner(
+      WorkClaimStore store, CustomerFanOut fanOut, int claimSize, long leaseMillis, int maxClaims) {
+    this.store = store;
+    this.fanOut = fanOut;
+    this.claimSize = claimSize;
+    this.leaseMillis = leaseMillis;
+    this.maxClaims = maxClaims;
+  }
+
+  /**
+   * Claims and runs customers until every item of the entity is done or failed.
+   *
+   * @param snapshotDate the date of the snapshot, as in the table names (yyyyMMdd)
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @param task the work to do for one customer, given its ID and a check that the claim of the
+   *     customer is still held
+   * @return the number of items in each state once finished
+   */
+  public WorkClaimStore.Counts run(
+      String snapshotDate, String entityName, BiConsumer<String, BooleanSupplier> task)
+      throws InterruptedException {
+    String name = "WorkClaimRunner " + entityName;
+    Set<String> held = ConcurrentHashMap.newKeySet();
+    ScheduledExecutorService heartbeat =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "work-claim-heartbeat");
+              thread.setDaemon(true);
+              return thread;
+            });
+    long period = Math.max(1, leaseMillis / 3);
+    heartbeat.scheduleAtFixedRate(
+        () -> renew(name, snapshotDate, entityName, held), period, period, TimeUnit.MILLISECONDS);
+    int claimedCount = 0;
+    try {
+      while (true) {
+        List<String> claimed =
+            store.claim(snapshotDate, entityName, owner, claimSize, leaseMillis);
+        if (claimed.isEmpty()) {
+          WorkClaimStore.Counts counts = store.getCounts(snapshotDate, entityName);
+          if (counts.isFinished()) {
+            logger.info(
+                "[" + name + "] Finished after claiming " + claimedCount + " customers: " + counts);
+            return counts;
+          }
+          // The customers left are claimed by other instances, unless their leases expire
+          Thread.sleep(period);
+          continue;
+        }
+        claimedCount += claimed.size();
+        held.addAll(claimed);
+        CustomerFanOut.Report report =
+            fanOut
+                .submit(
+                    name,
+                    claimed,
+                    customerId -> {
+                      task.accept(
+                          customerId, () -> renewClaim(snapshotDate, entityName, customerId));
+                      held.remove(customerId);
+                      if (!store.complete(snapshotDate, entityName, owner, customerId)) {
+                        logger.warning(
+                            "[" + name + "] Lost the claim of customer " + customerId
+                                + " before completing it");
+                      }
+                    })
+                .await();
+        for (String customerId : report.getFailedCustomerIds()) {
+          held.remove(customerId);
+          store.release(snapshotDate, entityName, owner, customerId, maxClaims);
+        }
+      }
+    } finally {
+      heartbeat.shutdownNow();
+    }
+  }
+
+  /**
+   * Renews the claim of a customer being run, to check that it is still held right before its rows
+   * are handed over to be loaded.
+   *
+   * @param snapshotDate the date of the snapshot, as in the table names (yyyyMMdd)
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @param customerId the customer ID
+   * @return false if the claim was lost, as another instance may extract the customer too, or if
+   *     it could not be renewed
+   */
+  private boolean renewClaim(String snapshotDate, String entityName, String customerId) {
+    try {
+      return store
+          .renew(
+              snapshotDate, entityName, owner, Collections.singleton(customerId), leaseMillis)
+          .contains(customerId);
+    } catch (RuntimeException e) {
+      logger.log(
+          Level.WARNING,
+          "[WorkClaimRunner " + entityName + "] Could not renew the claim of " + customerId,
+          e);
+      return false;
+    }
+  }
+
+  private void renew(String name, String snapshotDate, String entityName, Set<String> held) {
+    List<String> customerIds = new ArrayList<>(held);
+    if (customerIds.isEmpty()) {
+      return;
+    }
+    try {
+      Set<String> renewed = store.renew(snapshotDate, entityName, owner, customerIds, leaseMillis);
+      for (String customerId : customerIds) {
+        if (!renewed.contains(customerId) && held.contains(customerId)) {
+          logger.warning(
+              "[" + name + "] Lost the claim of customer " + customerId
+                  + ", another instance may extract it too");
+        }
+      }
+    } catch (RuntimeException e) {
+      // The next heartbeat tries again, before the leases expire
+      logger.log(Level.WARNING, "[" + name + "] Could not renew the claims", e);
+    }
+  }
+}
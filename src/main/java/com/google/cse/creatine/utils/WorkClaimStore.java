@@ -0,0 +1,156 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Shares the customers of a snapshot run between the instances of the app.
+ *
+ * <p>Each customer of an entity is a work item, which a worker claims for a lease, renews while it
+ * extracts the customer and completes once done. A claim is only granted on an item which is not
+ * claimed, or whose lease expired, e.g. as its instance was shut down, so that a customer is never
+ * extracted by two workers at once and never left behind. Workers claim a few items at a time, so
+ * that an instance busy with large customers leaves the others to the idle instances.
+ */
+public interface WorkClaimStore {
+
+  /** The state of a work item. */
+  enum ItemState {
+    /** Waiting for a worker. */
+    PENDING,
+    /** Claimed by a worker, until its lease expires. */
+    CLAIMED,
+    /** Extracted. */
+    DONE,
+    /** Released after failing in too many claims. */
+    FAILED
+  }
+
+  /**
+   * Adds the items of customers. Items already there are kept, except for failed ones which are
+   * pending again, so that the run can be sent again.
+   *
+   * @param snapshotDate the date of the snapshot, as in the table names (yyyyMMdd)
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @param customerIds the customers to extract, in the order in which they are claimed
+   */
+  void addItems(String snapshotDate, String entityName, Collection<String> customerIds);
+
+  /**
+   * Claims pending items, or items whose lease expired.
+   *
+   * @param snapshotDate the date of the snapshot, as in the table names (yyyyMMdd)
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @param owner the unique ID of the worker
+   * @param maxItems the maximum number of items to claim
+   * @param leaseMillis the time after which the claims expire unless renewed
+   * @return the customer IDs of the claimed items, empty if there is none to claim
+   */
+  List<String> claim(
+      String snapshotDate, String entityName, String owner, int maxItems, long leaseMillis);
+
+  /**
+   * Extends the leases of items claimed by a worker.
+   *
+   * @param snapshotDate the date of the snapshot, as in the table names (yyyyMMdd)
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @param owner the unique ID of the worker
+   * @param customerIds the customer IDs of the items
+   * @param leaseMillis the time after which the claims expire unless renewed again
+   * @return the customer IDs of the items still claimed by the worker
+   */
+  Set<String> renew(
+      String snapshotDate,
+      String entityName,
+      String owner,
+      Collection<String> customerIds,
+      long leaseMillis);
+
+  /**
+   * Marks an item claimed by a worker as done.
+   *
+   * @param snapshotDate the date of the snapshot, as in the table names (yyyyMMdd)
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @param owner the unique ID of the worker
+   * @param customerId the customer ID of the item
+   * @return false if the item was not claimed by the worker anymore
+   */
+  boolean complete(String snapshotDate, String entityName, String owner, String customerId);
+
+  /**
+   * Gives up an item claimed by a worker after a failure, for another claim to try it again.
+   *
+   * @param snapshotDate the date of the snapshot, as in the table names (yyyyMMdd)
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @param owner the unique ID of the worker
+   * @param customerId the customer ID of the item
+   * @param maxClaims the number of claims after which the item is failed instead
+   */
+  void release(
+      String snapshotDate, String entityName, String owner, String customerId, int maxClaims);
+
+  /**
+   * @param snapshotDate the date of the snapshot, as in the table names (yyyyMMdd)
+   * @param entityName the name of the extracted entity, e.g. AdGroups
+   * @return the number of items in each state, expired claims counting as pending
+   */
+  Counts getCounts(String snapshotDate, String entityName);
+
+  /** The number of items of an entity in each state. */
+  final class Counts {
+
+    private final int pending;
+    private final int claimed;
+    private final int done;
+    private final int failed;
+
+    public Counts(int pending, int claimed, int done, int failed) {
+      this.pending = pending;
+      this.claimed = claimed;
+      this.done = done;
+      this.failed = failed;
+    }
+
+    public int getPending() {
+      return pending;
+    }
+
+    public int getClaimed() {
+      return claimed;
+    }
+
+    public int getDone() {
+      return done;
+    }
+
+    public int getFailed() {
+      return failed;
+    }
+
+    /** @return whether every item is done or failed */
+    public boolean isFinished() {
+      return pending == 0 && claimed == 0;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d pending, %d claimed, %d done, %d failed", pending, claimed, done, failed);
+    }
+  }
+}
@@ -0,0 +1,266 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import com.google.api.gax.core.FixedCredentialsProvider;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsRequest;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsResponse;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteSettings;
+import com.google.cloud.bigquery.storage.v1.CreateWriteStreamRequest;
+import com.google.cloud.bigquery.storage.v1.JsonStreamWriter;
+import com.google.cloud.bigquery.storage.v1.TableName;
+import com.google.cloud.bigquery.storage.v1.WriteStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Writes rows straight into BigQuery through the Storage Write API, with one write stream per
+ * table, customer and run.
+ *
+ * <p>With COMMITTED streams rows are visible as soon as they are appended. With PENDING streams
+ * they only become visible, all at once, when the streams of the table are committed together at
+ * the end of the run, or that of a customer when it is done if the run has no end on this instance.
+ * A customer whose append fails loses its own stream only: its rows are never committed, the
+ * customer fails, and the rows of the other customers are committed as usual.
+ */
+public class StorageWriteApiWriter implements TableStreamWriter {
+
+  private static final Logger logger = Logger.getLogger(StorageWriteApiWriter.class.getName());
+
+  private final BigQueryWriteClient client;
+  private final BigQueryUtils bQUtils;
+  private final Configuration configuration;
+  private final WriteStream.Type streamType;
+  // The open streams of each table, by customer ID
+  private final Map<String, Map<String, TableStream>> streams = new ConcurrentHashMap<>();
+
+  /**
+   * @param client the Storage Write API client
+   * @param bQUtils used to create the tables before streaming into them
+   * @param configuration the Configuration to get the Cloud project and BigQuery dataset names
+   * @param streamType COMMITTED or PENDING
+   */
+  public StorageWriteApiWriter(
+      BigQueryWriteClient client,
+      BigQueryUtils bQUtils,
+      Configuration configuration,
+      WriteStream.Type streamType) {
+    this.client = client;
+    this.bQUtils = bQUtils;
+    this.configuration = configuration;
+    this.streamType = streamType;
+  }
+
+  /**
+   * Creates a writer with a client authenticated as the default service account. Called by name
+   * from CreatineStarter, as this class is only built with the storage-write Maven profile.
+   *
+   * @param bQUtils used to create the tables before streaming into them
+   * @param configuration the Configuration to get the Cloud project and BigQuery dataset names
+   * @param streamType COMMITTED or PENDING
+   * @return the writer
+   */
+  public static StorageWriteApiWriter create(
+      BigQueryUtils bQUtils, Configuration configuration, String streamType) throws IOException {
+    BigQueryWriteClient client =
+        BigQueryWriteClient.create(
+            BigQueryWriteSettings.newBuilder()
+                .setCredentialsProvider(
+                    FixedCredentialsProvider.create(
+                        CredentialsUtils.retrieveDefaultServiceAccountGCreds()))
+                .build());
+    return new StorageWriteApiWriter(
+        client, bQUtils, configuration, WriteStream.Type.valueOf(streamType.toUpperCase()));
+  }
+
+  @Override
+  public void append(String tableName, String customerId, Schema schema, List<String> rows)
+      throws IOException {
+    TableStream stream = getStream(tableName, customerId, schema);
+    JSONArray array = new JSONArray();
+    for (String row : rows) {
+      array.put(normalize(new JSONObject(row), schema.getFields()));
+    }
+    try {
+      stream.writer.append(array).get();
+    } catch (Exception e) {
+      // A pending stream left out of the commit drops its rows, which are only this customer's
+      if (tableStreams(tableName).remove(customerId, stream)) {
+        stream.writer.close();
+      }
+      throw new IOException(
+          "Could not append " + rows.size() + " rows of customer " + customerId + " to "
+              + tableName,
+          e);
+    }
+  }
+
+  @Override
+  public void commit(String tableName) throws IOException {
+    Map<String, TableStream> tableStreams = streams.remove(tableName);
+    if (tableStreams == null || tableStreams.isEmpty()) {
+      return;
+    }
+    commit(tableName, tableStreams.values());
+  }
+
+  @Override
+  public void commit(String tableName, String customerId) throws IOException {
+    TableStream stream = removeStream(tableName, customerId);
+    if (stream != null) {
+      commit(tableName, Collections.singletonList(stream));
+    }
+  }
+
+  @Override
+  public void drop(String tableName, String customerId) {
+    TableStream stream = removeStream(tableName, customerId);
+    if (stream != null) {
+      // Never finalized nor committed, a pending stream is dropped by BigQuery with its rows
+      stream.writer.close();
+      logger.info("Dropped write stream " + stream.name + " of customer " + customerId);
+    }
+  }
+
+  /** Finalizes streams of a table, then commits them together if they are pending. */
+  private void commit(String tableName, Collection<TableStream> tableStreams) throws IOException {
+    BatchCommitWriteStreamsRequest.Builder request =
+        BatchCommitWriteStreamsRequest.newBuilder().setParent(tableName(tableName));
+    for (TableStream stream : tableStreams) {
+      stream.writer.close();
+      client.finalizeWriteStream(stream.name);
+      request.addWriteStreams(stream.name);
+    }
+    if (streamType == WriteStream.Type.PENDING) {
+      // The streams of all the customers become visible at once, or none of them
+      BatchCommitWriteStreamsResponse response = client.batchCommitWriteStreams(request.build());
+      if (!response.hasCommitTime()) {
+        throw new IOException(
+            "Could not commit the streams of " + tableName + ": "
+                + response.getStreamErrorsList());
+      }
+    }
+    logger.info("Committed " + tableStreams.size() + " write streams of table " + tableName);
+  }
+
+  @Override
+  public void close() {
+    for (Map<String, TableStream> tableStreams : streams.values()) {
+      for (TableStream stream : tableStreams.values()) {
+        stream.writer.close();
+      }
+    }
+    streams.clear();
+    client.close();
+  }
+
+  private Map<String, TableStream> tableStreams(String tableName) {
+    return streams.computeIfAbsent(tableName, key -> new ConcurrentHashMap<>());
+  }
+
+  private TableStream removeStream(String tableName, String customerId) {
+    Map<String, TableStream> tableStreams = streams.get(tableName);
+    return tableStreams == null ? null : tableStreams.remove(customerId);
+  }
+
+  private synchronized TableStream getStream(String tableName, String customerId, Schema schema)
+      throws IOException {
+    TableStream stream = tableStreams(tableName).get(customerId);
+    if (stream == null) {
+      bQUtils.createTableIfNotExists(configuration, tableName, schema);
+      WriteStream writeStream =
+          client.createWriteStream(
+              CreateWriteStreamRequest.newBuilder()
+                  .setParent(tableName(tableName))
+                  .setWriteStream(WriteStream.newBuilder().setType(streamType).build())
+                  .build());
+      try {
+        JsonStreamWriter writer =
+            JsonStreamWriter.newBuilder(writeStream.getName(), writeStream.getTableSchema(), client)
+                .build();
+        stream = new TableStream(writeStream.getName(), writer);
+      } catch (Exception e) {
+        throw new IOException("Could not open write stream of " + tableName, e);
+      }
+      tableStreams(tableName).put(customerId, stream);
+      logger.info(
+          "Opened " + streamType + " write stream " + writeStream.getName() + " for customer "
+              + customerId);
+    }
+    return stream;
+  }
+
+  private String tableName(String tableName) {
+    return TableName.of(configuration.getCloudProject(), configuration.getBqDataSet(), tableName)
+        .toString();
+  }
+
+  /**
+   * Shapes a row printed from a proto the way the Storage Write API expects it for the table
+   * schema: single records are wrapped in arrays for REPEATED fields and objects are kept as JSON
+   * text for STRING fields.
+   */
+  private static JSONObject normalize(JSONObject row, FieldList fields) {
+    for (Field field : fields) {
+      if (!row.has(field.getName())) {
+        continue;
+      }
+      Object value = row.get(field.getName());
+      if (field.getMode() == Field.Mode.REPEATED && !(value instanceof JSONArray)) {
+        value = new JSONArray().put(value);
+      }
+      if (field.getType() == LegacySQLTypeName.RECORD) {
+        JSONArray records = value instanceof JSONArray ? (JSONArray) value : null;
+        if (records != null) {
+          for (int i = 0; i < records.length(); i++) {
+            if (records.get(i) instanceof JSONObject) {
+              normalize(records.getJSONObject(i), field.getSubFields());
+            }
+          }
+        } else if (value instanceof JSONObject) {
+          normalize((JSONObject) value, field.getSubFields());
+        }
+      } else if (field.getType() == LegacySQLTypeName.STRING && value instanceof JSONObject) {
+        value = value.toString();
+      }
+      row.put(field.getName(), value);
+    }
+    return row;
+  }
+
+  /** The open write stream of a table. */
+  private static class TableStream {
+
+    private final String name;
+    private final JsonStreamWriter writer;
+
+    private TableStream(String name, JsonStreamWriter writer) {
+      this.name = name;
+      this.writer = writer;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cse.creatine.utils.CustomerRegistry.Flag;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CustomerRegistry}. */
+@RunWith(JUnit4.class)
+public class CustomerRegistryTest {
+
+  private static List<Long> idsWith(CustomerRegistry registry, Flag flag) {
+    List<Long> ids = new ArrayList<>();
+    registry.forEachWith(flag, ids::add);
+    return ids;
+  }
+
+  private static List<Long> idsWithout(CustomerRegistry registry, Flag flag) {
+    List<Long> ids = new ArrayList<>();
+    registry.forEachWithout(flag, ids::add);
+    return ids;
+  }
+
+  @Test
+  public void build_sortsCustomers_andMovesTheirFlags() {
+    CustomerRegistry registry =
+        CustomerRegistry.builder()
+            .add(30L, Flag.MANAGER)
+            .add(10L)
+            .add(20L, Flag.HIDDEN, Flag.TEST_ACCOUNT)
+            .build();
+
+    assertEquals(3, registry.size());
+    assertEquals(10L, registry.getId(0));
+    assertEquals(20L, registry.getId(1));
+    assertEquals(30L, registry.getId(2));
+    assertEquals(Arrays.asList(30L), idsWith(registry, Flag.MANAGER));
+    assertEquals(Arrays.asList(20L), idsWith(registry, Flag.HIDDEN));
+    assertEquals(Arrays.asList(20L), idsWith(registry, Flag.TEST_ACCOUNT));
+    assertTrue(registry.hasFlag(registry.indexOf(30L), Flag.MANAGER));
+    assertFalse(registry.hasFlag(registry.indexOf(10L), Flag.MANAGER));
+  }
+
+  @Test
+  public void build_customerAddedTwice_keptOnceWithMergedFlags() {
+    CustomerRegistry registry =
+        CustomerRegistry.builder()
+            .add(20L, Flag.HIDDEN)
+            .add(10L)
+            .add(20L, Flag.MANAGER)
+            .add(10L)
+            .add(20L)
+            .build();
+
+    assertEquals(2, registry.size());
+    assertEquals(10L, registry.getId(0));
+    assertEquals(20L, registry.getId(1));
+    assertEquals(Arrays.asList(20L), idsWith(registry, Flag.MANAGER));
+    assertEquals(Arrays.asList(20L), idsWith(registry, Flag.HIDDEN));
+    assertEquals(Arrays.asList(10L), idsWithout(registry, Flag.MANAGER));
+    assertEquals(1, registry.countWithout(Flag.MANAGER));
+    assertEquals("2 customers, 1 managers", registry.toString());
+  }
+
+  @Test
+  public void build_manyCustomers_growsAndKeepsFlags() {
+    CustomerRegistry.Builder builder = CustomerRegistry.builder();
+    // In decreasing order, every third one a manager, past the initial capacity of the builder
+    for (long id = 1000; id > 0; id--) {
+      if (id % 3 == 0) {
+        builder.add(id, Flag.MANAGER);
+      } else {
+        builder.add(id);
+      }
+    }
+
+    CustomerRegistry registry = builder.build();
+
+    assertEquals(1000, registry.size());
+    assertEquals(333, 1000 - registry.countWithout(Flag.MANAGER));
+    for (int index = 0; index < registry.size(); index++) {
+      long id = registry.getId(index);
+      assertEquals(index + 1L, id);
+      assertEquals(id % 3 == 0, registry.hasFlag(index, Flag.MANAGER));
+    }
+  }
+
+  @Test
+  public void getIdsWithout_listsOtherCustomersInOrder() {
+    CustomerRegistry registry =
+        CustomerRegistry.builder().add(1234567890L).add(42L, Flag.MANAGER).add(987L).build();
+
+    assertEquals(Arrays.asList("987", "1234567890"), registry.getIdsWithout(Flag.MANAGER));
+    assertEquals(Arrays.asList("42", "987", "1234567890"), registry.getIdsWithout(Flag.HIDDEN));
+  }
+
+  @Test
+  public void indexOf_missingCustomer_isNegative() {
+    CustomerRegistry registry = CustomerRegistry.builder().add(10L).add(30L).build();
+
+    assertTrue(registry.indexOf(20L) < 0);
+    assertFalse(registry.contains(20L));
+    assertTrue(registry.contains(30L));
+  }
+
+  @Test
+  public void empty_hasNoCustomer() {
+    assertEquals(0, CustomerRegistry.EMPTY.size());
+    assertEquals(Collections.emptyList(), idsWith(CustomerRegistry.EMPTY, Flag.MANAGER));
+    assertEquals(Collections.emptyList(), idsWithout(CustomerRegistry.EMPTY, Flag.MANAGER));
+  }
+}
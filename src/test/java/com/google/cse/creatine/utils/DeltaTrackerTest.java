@@ -0,0 +1,96 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.cse.creatine.utils.DeltaTracker.ChangeType;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DeltaTracker}. */
+@RunWith(JUnit4.class)
+public class DeltaTrackerTest {
+
+  private static FingerprintedRow row(long key, long content) {
+    return new FingerprintedRow(key, content, "{}");
+  }
+
+  /** The previous snapshot: rows 1, 2 and 3 with the contents 10, 20 and 30. */
+  private static FingerprintIndex previous() {
+    FingerprintIndex previous = new FingerprintIndex(3);
+    previous.put(1L, 10L);
+    previous.put(2L, 20L);
+    previous.put(3L, 30L);
+    return previous;
+  }
+
+  @Test
+  public void track_comparesWithPreviousSnapshot() {
+    DeltaTracker tracker = new DeltaTracker(previous());
+
+    assertNull(tracker.track(row(1L, 10L)));
+    assertEquals(ChangeType.UPDATE, tracker.track(row(2L, 21L)));
+    assertEquals(ChangeType.INSERT, tracker.track(row(4L, 40L)));
+
+    assertArrayEquals(new long[] {3L}, tracker.getDeletedKeys());
+    assertEquals("1 inserted, 1 updated, 1 unchanged, 1 deleted", tracker.toString());
+  }
+
+  @Test
+  public void track_withoutPreviousSnapshot_insertsEveryRow() {
+    DeltaTracker tracker = new DeltaTracker(null);
+
+    assertEquals(ChangeType.INSERT, tracker.track(row(1L, 10L)));
+    assertEquals(ChangeType.INSERT, tracker.track(row(2L, 20L)));
+
+    assertArrayEquals(new long[0], tracker.getDeletedKeys());
+  }
+
+  @Test
+  public void getDeletedKeys_noRowTracked_deletesEveryPreviousRow() {
+    DeltaTracker tracker = new DeltaTracker(previous());
+
+    long[] deleted = tracker.getDeletedKeys();
+
+    Arrays.sort(deleted);
+    assertArrayEquals(new long[] {1L, 2L, 3L}, deleted);
+  }
+
+  @Test
+  public void getCurrent_holdsTrackedRows_forNextSnapshot() {
+    DeltaTracker tracker = new DeltaTracker(previous());
+    tracker.track(row(1L, 10L));
+    tracker.track(row(2L, 21L));
+    tracker.track(row(4L, 40L));
+
+    FingerprintIndex current = tracker.getCurrent();
+
+    assertEquals(3, current.size());
+    assertEquals(10L, current.contentAt(current.slotOf(1L)));
+    assertEquals(21L, current.contentAt(current.slotOf(2L)));
+    assertEquals(40L, current.contentAt(current.slotOf(4L)));
+    assertEquals(-1, current.slotOf(3L));
+
+    // The next run compares with the rows tracked in this one
+    DeltaTracker next = new DeltaTracker(current);
+    assertNull(next.track(row(2L, 21L)));
+    assertEquals(ChangeType.INSERT, next.track(row(3L, 30L)));
+  }
+}
@@ -0,0 +1,130 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link FingerprintIndex}. */
+@RunWith(JUnit4.class)
+public class FingerprintIndexTest {
+
+  private static long contentOf(FingerprintIndex index, long key) {
+    int slot = index.slotOf(key);
+    assertTrue("Missing key " + key, slot >= 0);
+    return index.contentAt(slot);
+  }
+
+  @Test
+  public void put_newKeys_areFound() {
+    FingerprintIndex index = new FingerprintIndex(4);
+
+    index.put(42L, 1L);
+    index.put(-7L, 2L);
+    index.put(0L, 3L);
+
+    assertEquals(3, index.size());
+    assertEquals(1L, contentOf(index, 42L));
+    assertEquals(2L, contentOf(index, -7L));
+    assertEquals(3L, contentOf(index, 0L));
+    assertEquals(-1, index.slotOf(43L));
+  }
+
+  @Test
+  public void put_existingKey_replacesContent() {
+    FingerprintIndex index = new FingerprintIndex(4);
+
+    index.put(42L, 1L);
+    index.put(42L, 2L);
+
+    assertEquals(1, index.size());
+    assertEquals(2L, contentOf(index, 42L));
+  }
+
+  @Test
+  public void put_collidingKeys_probeNextSlots() {
+    FingerprintIndex index = new FingerprintIndex(0);
+    int capacity = index.capacity();
+
+    // Keys hashing to the same slot of the empty table
+    index.put(5L, 1L);
+    index.put(5L + capacity, 2L);
+    index.put(5L + 2 * capacity, 3L);
+
+    assertEquals(capacity, index.capacity());
+    assertEquals(1L, contentOf(index, 5L));
+    assertEquals(2L, contentOf(index, 5L + capacity));
+    assertEquals(3L, contentOf(index, 5L + 2 * capacity));
+    assertEquals(-1, index.slotOf(5L + 3 * capacity));
+  }
+
+  @Test
+  public void put_pastHalfFull_growsAndKeepsEveryRow() {
+    FingerprintIndex index = new FingerprintIndex(0);
+    int initialCapacity = index.capacity();
+    Random random = new Random(1);
+    long[] keys = new long[1000];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = random.nextLong();
+      index.put(keys[i], i);
+    }
+
+    assertEquals(keys.length, index.size());
+    assertTrue(index.capacity() > initialCapacity);
+    assertTrue(index.size() * 2 <= index.capacity());
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(i, contentOf(index, keys[i]));
+    }
+  }
+
+  @Test
+  public void readFrom_writtenIndex_hasSameRows() throws Exception {
+    FingerprintIndex index = new FingerprintIndex(10);
+    for (long key = 0; key < 100; key++) {
+      index.put(key * 31, key);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    index.writeTo(bytes);
+    FingerprintIndex read =
+        FingerprintIndex.readFrom(new ByteArrayInputStream(bytes.toByteArray()));
+
+    // A count followed by 16 bytes per row
+    assertEquals(Integer.BYTES + 100 * 16, bytes.size());
+    assertEquals(100, read.size());
+    for (long key = 0; key < 100; key++) {
+      assertEquals(key, contentOf(read, key * 31));
+    }
+  }
+
+  @Test
+  public void readFrom_emptyIndex_isEmpty() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    new FingerprintIndex(0).writeTo(bytes);
+    FingerprintIndex read =
+        FingerprintIndex.readFrom(new ByteArrayInputStream(bytes.toByteArray()));
+
+    assertEquals(0, read.size());
+    assertEquals(-1, read.slotOf(0L));
+  }
+}
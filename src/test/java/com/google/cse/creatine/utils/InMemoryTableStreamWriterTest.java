@@ -0,0 +1,117 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the streams of {@link InMemoryTableStreamWriter}. */
+@RunWith(JUnit4.class)
+public class InMemoryTableStreamWriterTest {
+
+  private static final String TABLE = "AdGroups_20200101";
+  private static final Schema SCHEMA = Schema.of(Field.of("id", LegacySQLTypeName.STRING));
+
+  private final InMemoryTableStreamWriter writer = new InMemoryTableStreamWriter();
+
+  @Test
+  public void append_rowsNotVisible_untilCommitted() {
+    writer.append(TABLE, "1", SCHEMA, Arrays.asList("{\"id\":\"a\"}", "{\"id\":\"b\"}"));
+    assertEquals(Collections.emptyList(), writer.getRows(TABLE));
+
+    writer.commit(TABLE);
+
+    assertEquals(Arrays.asList("{\"id\":\"a\"}", "{\"id\":\"b\"}"), writer.getRows(TABLE));
+  }
+
+  @Test
+  public void commit_ofCustomer_leavesOtherCustomersPending() {
+    writer.append(TABLE, "1", SCHEMA, Arrays.asList("{\"id\":\"a\"}"));
+    writer.append(TABLE, "2", SCHEMA, Arrays.asList("{\"id\":\"b\"}"));
+
+    writer.commit(TABLE, "1");
+    assertEquals(Arrays.asList("{\"id\":\"a\"}"), writer.getRows(TABLE));
+
+    writer.commit(TABLE);
+    assertEquals(
+        new HashSet<>(Arrays.asList("{\"id\":\"a\"}", "{\"id\":\"b\"}")),
+        new HashSet<>(writer.getRows(TABLE)));
+  }
+
+  @Test
+  public void drop_failedCustomer_discardsOnlyItsRows() {
+    writer.append(TABLE, "1", SCHEMA, Arrays.asList("{\"id\":\"a\"}"));
+    writer.append(TABLE, "2", SCHEMA, Arrays.asList("{\"id\":\"b\"}"));
+
+    writer.drop(TABLE, "2");
+    writer.commit(TABLE);
+
+    assertEquals(Arrays.asList("{\"id\":\"a\"}"), writer.getRows(TABLE));
+  }
+
+  @Test
+  public void append_afterDrop_opensNewStream() {
+    writer.append(TABLE, "1", SCHEMA, Arrays.asList("{\"id\":\"first attempt\"}"));
+    writer.drop(TABLE, "1");
+
+    writer.append(TABLE, "1", SCHEMA, Arrays.asList("{\"id\":\"second attempt\"}"));
+    writer.commit(TABLE, "1");
+
+    assertEquals(Arrays.asList("{\"id\":\"second attempt\"}"), writer.getRows(TABLE));
+  }
+
+  @Test
+  public void commit_isOncePerStream() {
+    writer.append(TABLE, "1", SCHEMA, Arrays.asList("{\"id\":\"a\"}"));
+    writer.commit(TABLE, "1");
+
+    // Nothing pending anymore, in the customer's stream or in the table's
+    writer.commit(TABLE, "1");
+    writer.commit(TABLE);
+    writer.drop(TABLE, "1");
+
+    assertEquals(Arrays.asList("{\"id\":\"a\"}"), writer.getRows(TABLE));
+  }
+
+  @Test
+  public void commit_keepsTablesApart() {
+    writer.append(TABLE, "1", SCHEMA, Arrays.asList("{\"id\":\"a\"}"));
+    writer.append("Campaigns_20200101", "1", SCHEMA, Arrays.asList("{\"id\":\"c\"}"));
+
+    writer.commit(TABLE, "1");
+
+    assertEquals(Arrays.asList("{\"id\":\"a\"}"), writer.getRows(TABLE));
+    assertEquals(Collections.emptyList(), writer.getRows("Campaigns_20200101"));
+  }
+
+  @Test
+  public void close_dropsPendingRows() {
+    writer.append(TABLE, "1", SCHEMA, Arrays.asList("{\"id\":\"a\"}"));
+
+    writer.close();
+    writer.commit(TABLE);
+
+    assertEquals(Collections.emptyList(), writer.getRows(TABLE));
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the claims of {@link InMemoryWorkClaimStore}. */
+@RunWith(JUnit4.class)
+public class InMemoryWorkClaimStoreTest {
+
+  private static final String DATE = "20200101";
+  private static final String ENTITY = "AdGroups";
+  private static final long LEASE_MILLIS = 60000;
+  // A lease expiring as soon as it is granted, standing for a worker whose instance went away
+  private static final long EXPIRED_LEASE_MILLIS = 0;
+
+  private final InMemoryWorkClaimStore store = new InMemoryWorkClaimStore();
+
+  private static void assertCounts(
+      int pending, int claimed, int done, int failed, WorkClaimStore.Counts counts) {
+    assertEquals("pending", pending, counts.getPending());
+    assertEquals("claimed", claimed, counts.getClaimed());
+    assertEquals("done", done, counts.getDone());
+    assertEquals("failed", failed, counts.getFailed());
+  }
+
+  @Test
+  public void claim_grantsPendingItemsInOrder_toOneWorkerOnly() {
+    store.addItems(DATE, ENTITY, Arrays.asList("1", "2", "3"));
+
+    assertEquals(Arrays.asList("1", "2"), store.claim(DATE, ENTITY, "a", 2, LEASE_MILLIS));
+    assertEquals(Arrays.asList("3"), store.claim(DATE, ENTITY, "b", 2, LEASE_MILLIS));
+    assertEquals(Collections.emptyList(), store.claim(DATE, ENTITY, "c", 2, LEASE_MILLIS));
+    assertCounts(0, 3, 0, 0, store.getCounts(DATE, ENTITY));
+  }
+
+  @Test
+  public void claim_otherEntityOrDate_isSeparate() {
+    store.addItems(DATE, ENTITY, Arrays.asList("1"));
+    store.addItems(DATE, "Campaigns", Arrays.asList("1"));
+
+    assertEquals(Arrays.asList("1"), store.claim(DATE, ENTITY, "a", 10, LEASE_MILLIS));
+    assertEquals(Arrays.asList("1"), store.claim(DATE, "Campaigns", "a", 10, LEASE_MILLIS));
+    assertEquals(Collections.emptyList(), store.claim("20200102", ENTITY, "a", 10, LEASE_MILLIS));
+  }
+
+  @Test
+  public void complete_byOwner_isDone() {
+    store.addItems(DATE, ENTITY, Arrays.asList("1", "2"));
+    store.claim(DATE, ENTITY, "a", 2, LEASE_MILLIS);
+
+    assertFalse(store.complete(DATE, ENTITY, "b", "1"));
+    assertTrue(store.complete(DATE, ENTITY, "a", "1"));
+
+    assertCounts(0, 1, 1, 0, store.getCounts(DATE, ENTITY));
+    // A done item is neither claimed nor completed again
+    assertEquals(Collections.emptyList(), store.claim(DATE, ENTITY, "b", 2, LEASE_MILLIS));
+    assertFalse(store.complete(DATE, ENTITY, "a", "1"));
+  }
+
+  @Test
+  public void claim_expiredLease_movesItemToAnotherWorker() {
+    store.addItems(DATE, ENTITY, Arrays.asList("1"));
+    store.claim(DATE, ENTITY, "a", 1, EXPIRED_LEASE_MILLIS);
+    assertCounts(1, 0, 0, 0, store.getCounts(DATE, ENTITY));
+
+    assertEquals(Arrays.asList("1"), store.claim(DATE, ENTITY, "b", 1, LEASE_MILLIS));
+
+    // The first worker lost the item, and cannot renew or complete it anymore
+    assertEquals(
+        Collections.emptySet(),
+        store.renew(DATE, ENTITY, "a", Collections.singleton("1"), LEASE_MILLIS));
+    assertFalse(store.complete(DATE, ENTITY, "a", "1"));
+    assertTrue(store.complete(DATE, ENTITY, "b", "1"));
+  }
+
+  @Test
+  public void renew_keepsOnlyItemsStillClaimedByWorker() {
+    store.addItems(DATE, ENTITY, Arrays.asList("1", "2", "3"));
+    store.claim(DATE, ENTITY, "a", 1, LEASE_MILLIS);
+    store.claim(DATE, ENTITY, "a", 1, EXPIRED_LEASE_MILLIS);
+    store.claim(DATE, ENTITY, "b", 1, LEASE_MILLIS);
+
+    assertEquals(
+        Collections.singleton("1"),
+        store.renew(DATE, ENTITY, "a", Arrays.asList("1", "2", "3", "4"), LEASE_MILLIS));
+  }
+
+  @Test
+  public void renew_expiredLeaseOfOwner_isNotExtended() {
+    store.addItems(DATE, ENTITY, Arrays.asList("1"));
+    store.claim(DATE, ENTITY, "a", 1, EXPIRED_LEASE_MILLIS);
+
+    assertEquals(
+        Collections.emptySet(),
+        store.renew(DATE, ENTITY, "a", Collections.singleton("1"), LEASE_MILLIS));
+    assertCounts(1, 0, 0, 0, store.getCounts(DATE, ENTITY));
+  }
+
+  @Test
+  public void release_belowMaxClaims_isPendingAgain_thenFailed() {
+    store.addItems(DATE, ENTITY, Arrays.asList("1"));
+
+    store.claim(DATE, ENTITY, "a", 1, LEASE_MILLIS);
+    store.release(DATE, ENTITY, "a", "1", 2);
+    assertCounts(1, 0, 0, 0, store.getCounts(DATE, ENTITY));
+
+    assertEquals(Arrays.asList("1"), store.claim(DATE, ENTITY, "b", 1, LEASE_MILLIS));
+    store.release(DATE, ENTITY, "b", "1", 2);
+    assertCounts(0, 0, 0, 1, store.getCounts(DATE, ENTITY));
+    assertTrue(store.getCounts(DATE, ENTITY).isFinished());
+    assertEquals(Collections.emptyList(), store.claim(DATE, ENTITY, "c", 1, LEASE_MILLIS));
+  }
+
+  @Test
+  public void release_byOtherWorker_isIgnored() {
+    store.addItems(DATE, ENTITY, Arrays.asList("1"));
+    store.claim(DATE, ENTITY, "a", 1, LEASE_MILLIS);
+
+    store.release(DATE, ENTITY, "b", "1", 1);
+
+    assertCounts(0, 1, 0, 0, store.getCounts(DATE, ENTITY));
+  }
+
+  @Test
+  public void addItems_failedItemsArePendingAgain_othersKept() {
+    store.addItems(DATE, ENTITY, Arrays.asList("1", "2", "3"));
+    store.claim(DATE, ENTITY, "a", 3, LEASE_MILLIS);
+    store.release(DATE, ENTITY, "a", "1", 1);
+    store.complete(DATE, ENTITY, "a", "2");
+    assertCounts(0, 1, 1, 1, store.getCounts(DATE, ENTITY));
+
+    store.addItems(DATE, ENTITY, Arrays.asList("1", "2", "3", "4"));
+
+    assertCounts(2, 1, 1, 0, store.getCounts(DATE, ENTITY));
+    assertEquals(
+        new HashSet<>(Arrays.asList("1", "4")),
+        new HashSet<>(store.claim(DATE, ENTITY, "b", 10, LEASE_MILLIS)));
+    // Its claims counted again from zero
+    store.release(DATE, ENTITY, "b", "1", 2);
+    assertCounts(1, 2, 1, 0, store.getCounts(DATE, ENTITY));
+  }
+}
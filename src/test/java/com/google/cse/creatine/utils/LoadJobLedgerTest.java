@@ -0,0 +1,219 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.Dataset;
+import com.google.cloud.bigquery.DatasetId;
+import com.google.cloud.bigquery.FormatOptions;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.JobStatistics;
+import com.google.cloud.bigquery.JobStatus;
+import com.google.cloud.bigquery.LoadJobConfiguration;
+import com.google.cloud.bigquery.TableId;
+import com.google.cse.creatine.utils.LoadJobLedger.Entry;
+import com.google.cse.creatine.utils.LoadJobLedger.Status;
+import com.google.gson.JsonArray;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+/** Tests for {@link LoadJobLedger} over a mocked BigQuery service. */
+@RunWith(JUnit4.class)
+public class LoadJobLedgerTest {
+
+  private static final String TABLE = "AdGroupAds_20200101";
+  private static final LoadJobConfiguration CONFIGURATION =
+      LoadJobConfiguration.builder(
+              TableId.of("creatine", TABLE),
+              Collections.singletonList("gs://creatine/20200101/AdGroupAds_1234567890.json"))
+          .setFormatOptions(FormatOptions.json())
+          .build();
+
+  private BigQuery bigquery;
+  private LoadJobLedger ledger;
+
+  @Before
+  public void setUp() {
+    bigquery = mock(BigQuery.class);
+    ledger = new LoadJobLedger(bigquery);
+  }
+
+  @After
+  public void tearDown() {
+    ledger.shutdown();
+  }
+
+  /** @return a job as returned by BigQuery, with its location */
+  private static Job job(JobId jobId) {
+    Job job = mock(Job.class);
+    when(job.getJobId()).thenReturn(jobId.toBuilder().setLocation("EU").build());
+    return job;
+  }
+
+  /** @return a completed job, failed if error is not null */
+  private static Job doneJob(BigQueryError error, long inputBytes, long outputRows) {
+    JobStatus status = mock(JobStatus.class);
+    when(status.getState()).thenReturn(JobStatus.State.DONE);
+    when(status.getError()).thenReturn(error);
+    JobStatistics.LoadStatistics statistics = mock(JobStatistics.LoadStatistics.class);
+    when(statistics.getInputBytes()).thenReturn(inputBytes);
+    when(statistics.getOutputRows()).thenReturn(outputRows);
+    Job job = mock(Job.class);
+    when(job.getStatus()).thenReturn(status);
+    doReturn(statistics).when(job).getStatistics();
+    return job;
+  }
+
+  /** Answers the creation of a job with the created job, located in EU. */
+  private void createJobs() {
+    when(bigquery.create(any(JobInfo.class)))
+        .thenAnswer(invocation -> job(invocation.<JobInfo>getArgument(0).getJobId()));
+  }
+
+  private static Entry await(Entry entry) throws Exception {
+    return entry.getCompletion().get(30, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void submit_jobSucceeds_recordsItsRowsAndBytes() throws Exception {
+    createJobs();
+    Job done = doneJob(null, 2048L, 100L);
+    when(bigquery.getJob(any(JobId.class))).thenReturn(done);
+
+    Entry entry = await(ledger.submit(TABLE, CONFIGURATION));
+
+    assertEquals(Status.DONE, entry.getStatus());
+    assertEquals(1, entry.getAttempts());
+    assertEquals(Long.valueOf(2048L), entry.getInputBytes());
+    assertEquals(Long.valueOf(100L), entry.getOutputRows());
+    // The job is looked up in the location BigQuery returned
+    ArgumentCaptor<JobId> polled = ArgumentCaptor.forClass(JobId.class);
+    verify(bigquery).getJob(polled.capture());
+    assertEquals("EU", polled.getValue().getLocation());
+    assertEquals(entry.getJobId(), polled.getValue().getJob());
+  }
+
+  @Test
+  public void submit_jobAlreadyExists_isTrackedInDatasetLocation() throws Exception {
+    when(bigquery.create(any(JobInfo.class)))
+        .thenThrow(new BigQueryException(409, "Already Exists: Job creatine_load_1"));
+    Dataset dataset = mock(Dataset.class);
+    when(dataset.getLocation()).thenReturn("asia-northeast1");
+    when(bigquery.getDataset(DatasetId.of("creatine"))).thenReturn(dataset);
+    Job done = doneJob(null, 10L, 1L);
+    when(bigquery.getJob(any(JobId.class))).thenReturn(done);
+
+    Entry entry = await(ledger.submit(TABLE, CONFIGURATION));
+
+    assertEquals(Status.DONE, entry.getStatus());
+    verify(bigquery, times(1)).create(any(JobInfo.class));
+    ArgumentCaptor<JobId> polled = ArgumentCaptor.forClass(JobId.class);
+    verify(bigquery).getJob(polled.capture());
+    assertEquals("asia-northeast1", polled.getValue().getLocation());
+  }
+
+  @Test
+  public void submit_creationFails_isSubmittedAgainUnderSameId() throws Exception {
+    when(bigquery.create(any(JobInfo.class)))
+        .thenThrow(new BigQueryException(503, "Backend error"))
+        .thenAnswer(invocation -> job(invocation.<JobInfo>getArgument(0).getJobId()));
+    Job done = doneJob(null, 10L, 1L);
+    when(bigquery.getJob(any(JobId.class))).thenReturn(done);
+
+    Entry entry = ledger.submit(TABLE, CONFIGURATION);
+    assertEquals(Status.RUNNING, entry.getStatus());
+    await(entry);
+
+    assertEquals(Status.DONE, entry.getStatus());
+    assertEquals(2, entry.getAttempts());
+    ArgumentCaptor<JobInfo> created = ArgumentCaptor.forClass(JobInfo.class);
+    verify(bigquery, times(2)).create(created.capture());
+    assertEquals(
+        created.getAllValues().get(0).getJobId(), created.getAllValues().get(1).getJobId());
+  }
+
+  @Test
+  public void submit_jobFails_isRetriedUnderNewIdsUntilMaxAttempts() throws Exception {
+    createJobs();
+    Job failed = doneJob(new BigQueryError("invalid", "gs://", "Bad row"), 0L, 0L);
+    when(bigquery.getJob(any(JobId.class))).thenReturn(failed);
+
+    Entry entry = await(ledger.submit(TABLE, CONFIGURATION));
+
+    assertEquals(Status.FAILED, entry.getStatus());
+    assertEquals(3, entry.getAttempts());
+    assertEquals("invalid: Bad row", entry.getError());
+    ArgumentCaptor<JobInfo> created = ArgumentCaptor.forClass(JobInfo.class);
+    verify(bigquery, times(3)).create(created.capture());
+    List<JobId> jobIds = new ArrayList<>();
+    for (JobInfo jobInfo : created.getAllValues()) {
+      assertFalse(jobIds.contains(jobInfo.getJobId()));
+      jobIds.add(jobInfo.getJobId());
+    }
+  }
+
+  @Test
+  public void submit_creationFailsEveryTime_failsAfterMaxAttempts() throws Exception {
+    when(bigquery.create(any(JobInfo.class)))
+        .thenThrow(new BigQueryException(503, "Backend error"));
+
+    Entry entry = await(ledger.submit(TABLE, CONFIGURATION));
+
+    assertEquals(Status.FAILED, entry.getStatus());
+    assertEquals(3, entry.getAttempts());
+    assertEquals("Backend error", entry.getError());
+    verify(bigquery, never()).getJob(any(JobId.class));
+  }
+
+  @Test
+  public void toJson_reportsCompletedLoadOnce() throws Exception {
+    createJobs();
+    Job done = doneJob(null, 10L, 1L);
+    when(bigquery.getJob(any(JobId.class))).thenReturn(done);
+    Entry entry = await(ledger.submit(TABLE, CONFIGURATION));
+    assertNotNull(entry.getJobId());
+
+    JsonArray reported = ledger.toJson();
+
+    assertEquals(1, reported.size());
+    assertEquals("DONE", reported.get(0).getAsJsonObject().get("status").getAsString());
+    assertEquals(entry.getJobId(), reported.get(0).getAsJsonObject().get("jobId").getAsString());
+    assertEquals(0, ledger.toJson().size());
+    assertEquals(Collections.emptyList(), ledger.getEntries());
+  }
+}
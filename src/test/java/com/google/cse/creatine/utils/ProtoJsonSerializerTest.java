@@ -0,0 +1,301 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.ads.googleads.v3.common.CustomParameter;
+import com.google.ads.googleads.v3.common.ExpandedTextAdInfo;
+import com.google.ads.googleads.v3.common.ManualCpc;
+import com.google.ads.googleads.v3.common.PolicyTopicEntry;
+import com.google.ads.googleads.v3.common.TargetCpa;
+import com.google.ads.googleads.v3.common.TextAdInfo;
+import com.google.ads.googleads.v3.enums.AdGroupAdStatusEnum.AdGroupAdStatus;
+import com.google.ads.googleads.v3.enums.AdGroupStatusEnum.AdGroupStatus;
+import com.google.ads.googleads.v3.enums.AdGroupTypeEnum.AdGroupType;
+import com.google.ads.googleads.v3.enums.AdTypeEnum.AdType;
+import com.google.ads.googleads.v3.enums.CampaignStatusEnum.CampaignStatus;
+import com.google.ads.googleads.v3.enums.ManagerLinkStatusEnum.ManagerLinkStatus;
+import com.google.ads.googleads.v3.enums.PolicyApprovalStatusEnum.PolicyApprovalStatus;
+import com.google.ads.googleads.v3.enums.PolicyReviewStatusEnum.PolicyReviewStatus;
+import com.google.ads.googleads.v3.enums.PolicyTopicEntryTypeEnum.PolicyTopicEntryType;
+import com.google.ads.googleads.v3.resources.Ad;
+import com.google.ads.googleads.v3.resources.AdGroup;
+import com.google.ads.googleads.v3.resources.AdGroupAd;
+import com.google.ads.googleads.v3.resources.AdGroupAdPolicySummary;
+import com.google.ads.googleads.v3.resources.Campaign;
+import com.google.ads.googleads.v3.resources.CustomerClientLink;
+import com.google.protobuf.BoolValue;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.BytesValue;
+import com.google.protobuf.DescriptorProtos.UninterpretedOption;
+import com.google.protobuf.DoubleValue;
+import com.google.protobuf.FloatValue;
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.StringValue;
+import com.google.protobuf.UInt32Value;
+import com.google.protobuf.UInt64Value;
+import com.google.protobuf.util.JsonFormat;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Checks that {@link ProtoJsonSerializer} prints exactly what {@link JsonFormat} prints. */
+@RunWith(JUnit4.class)
+public class ProtoJsonSerializerTest {
+
+  private static final String ESCAPED =
+      "quote \" backslash \\ slash / tab \t newline \n return \r backspace \b feed \f"
+          + " controls \u0000\u0001\u001f\u007f html <a href='x'>&amp;=</a>"
+          + " separators \u2028\u2029 accents \u00e9\u00fc cjk \u4e2d\u6587"
+          + " emoji \ud83d\ude00 \ud834\udd1e lone \ud800 surrogate";
+
+  private static final ProtoJsonSerializer SERIALIZER = ProtoJsonSerializer.create();
+  private static final ProtoJsonSerializer SERIALIZER_WITH_DEFAULTS =
+      ProtoJsonSerializer.create().includingDefaultValueFields();
+
+  private static final JsonFormat.Printer PRINTER =
+      JsonFormat.printer().preservingProtoFieldNames().omittingInsignificantWhitespace();
+  private static final JsonFormat.Printer PRINTER_WITH_DEFAULTS =
+      PRINTER.includingDefaultValueFields();
+
+  @Test
+  public void print_defaultInstances() throws Exception {
+    assertParity(AdGroupAd.getDefaultInstance());
+    assertParity(AdGroup.getDefaultInstance());
+    assertParity(Campaign.getDefaultInstance());
+    assertParity(CustomerClientLink.getDefaultInstance());
+  }
+
+  @Test
+  public void print_fieldsSetToDefaultValues() throws Exception {
+    assertParity(
+        AdGroupAd.newBuilder()
+            .setResourceName("")
+            .setStatus(AdGroupAdStatus.UNSPECIFIED)
+            .setAd(Ad.getDefaultInstance())
+            .build());
+    assertParity(
+        AdGroup.newBuilder()
+            .setId(Int64Value.getDefaultInstance())
+            .setName(StringValue.getDefaultInstance())
+            .setCpcBidMicros(Int64Value.of(0))
+            .build());
+    assertParity(
+        Campaign.newBuilder()
+            .setName(StringValue.of(""))
+            .setManualCpc(ManualCpc.getDefaultInstance())
+            .build());
+    assertParity(
+        CustomerClientLink.newBuilder()
+            .setHidden(BoolValue.of(false))
+            .setManagerLinkId(Int64Value.of(0))
+            .build());
+  }
+
+  @Test
+  public void print_adGroupAd() throws Exception {
+    assertParity(
+        AdGroupAd.newBuilder()
+            .setResourceName("customers/1234567890/adGroupAds/111~222")
+            .setAdGroup(StringValue.of("customers/1234567890/adGroups/111"))
+            .setStatus(AdGroupAdStatus.ENABLED)
+            .setAd(
+                Ad.newBuilder()
+                    .setId(Int64Value.of(222))
+                    .setType(AdType.EXPANDED_TEXT_AD)
+                    .addFinalUrls(StringValue.of("https://example.com/?a=1&b=<2>"))
+                    .addFinalUrls(StringValue.of(""))
+                    .setExpandedTextAd(
+                        ExpandedTextAdInfo.newBuilder()
+                            .setHeadlinePart1(StringValue.of(ESCAPED))
+                            .setDescription(StringValue.of("Free shipping"))))
+            .setPolicySummary(
+                AdGroupAdPolicySummary.newBuilder()
+                    .setApprovalStatus(PolicyApprovalStatus.DISAPPROVED)
+                    .setReviewStatus(PolicyReviewStatus.REVIEWED)
+                    .addPolicyTopicEntries(
+                        PolicyTopicEntry.newBuilder()
+                            .setTopic(StringValue.of("ALCOHOL"))
+                            .setType(PolicyTopicEntryType.PROHIBITED))
+                    .addPolicyTopicEntries(PolicyTopicEntry.getDefaultInstance()))
+            .build());
+  }
+
+  @Test
+  public void print_oneofs() throws Exception {
+    // The last member set wins, and a member set to its default instance is still printed
+    assertParity(
+        AdGroupAd.newBuilder()
+            .setAd(
+                Ad.newBuilder()
+                    .setExpandedTextAd(ExpandedTextAdInfo.getDefaultInstance())
+                    .setTextAd(TextAdInfo.newBuilder().setHeadline(StringValue.of("Text ad"))))
+            .build());
+    assertParity(
+        Campaign.newBuilder()
+            .setTargetCpa(TargetCpa.newBuilder().setTargetCpaMicros(Int64Value.of(1_500_000)))
+            .build());
+    assertParity(Campaign.newBuilder().setTargetCpa(TargetCpa.getDefaultInstance()).build());
+  }
+
+  @Test
+  public void print_unknownEnumValues() throws Exception {
+    assertParity(AdGroupAd.newBuilder().setStatusValue(999).build());
+    assertParity(
+        Campaign.newBuilder().setId(Int64Value.of(1)).setStatusValue(Integer.MAX_VALUE).build());
+    assertParity(CustomerClientLink.newBuilder().setStatusValue(-1).build());
+    assertParity(
+        AdGroupAd.newBuilder()
+            .setPolicySummary(
+                AdGroupAdPolicySummary.newBuilder()
+                    .addPolicyTopicEntries(PolicyTopicEntry.newBuilder().setTypeValue(42)))
+            .build());
+  }
+
+  @Test
+  public void print_adGroup() throws Exception {
+    assertParity(
+        AdGroup.newBuilder()
+            .setResourceName("customers/1234567890/adGroups/111")
+            .setId(Int64Value.of(111))
+            .setName(StringValue.of(ESCAPED))
+            .setCampaign(StringValue.of("customers/1234567890/campaigns/333"))
+            .setStatus(AdGroupStatus.PAUSED)
+            .setType(AdGroupType.SEARCH_STANDARD)
+            .setCpcBidMicros(Int64Value.of(Long.MAX_VALUE))
+            .addUrlCustomParameters(
+                CustomParameter.newBuilder()
+                    .setKey(StringValue.of("season"))
+                    .setValue(StringValue.of("\u2028winter\u2029")))
+            .addUrlCustomParameters(CustomParameter.getDefaultInstance())
+            .build());
+  }
+
+  @Test
+  public void print_campaign() throws Exception {
+    assertParity(
+        Campaign.newBuilder()
+            .setResourceName("customers/1234567890/campaigns/333")
+            .setId(Int64Value.of(Long.MIN_VALUE))
+            .setName(StringValue.of("Campagne d'\u00e9t\u00e9 \ud83c\udf1e"))
+            .setStatus(CampaignStatus.ENABLED)
+            .setNetworkSettings(
+                Campaign.NetworkSettings.newBuilder().setTargetGoogleSearch(BoolValue.of(true)))
+            .setManualCpc(ManualCpc.newBuilder().setEnhancedCpcEnabled(BoolValue.of(false)))
+            .build());
+  }
+
+  @Test
+  public void print_customerClientLink() throws Exception {
+    assertParity(
+        CustomerClientLink.newBuilder()
+            .setResourceName("customers/1234567890/customerClientLinks/9876543210~42")
+            .setClientCustomer(StringValue.of("customers/9876543210"))
+            .setManagerLinkId(Int64Value.of(42))
+            .setStatus(ManagerLinkStatus.ACTIVE)
+            .setHidden(BoolValue.of(true))
+            .build());
+  }
+
+  @Test
+  public void print_wrappers() throws Exception {
+    assertParity(StringValue.of(ESCAPED));
+    assertParity(StringValue.getDefaultInstance());
+    assertParity(BoolValue.of(true));
+    assertParity(BytesValue.of(ByteString.copyFrom(new byte[] {0, -1, 62, 63, 127, -128})));
+    assertParity(BytesValue.getDefaultInstance());
+    assertParity(UInt32Value.of(-1));
+    for (long value : new long[] {0, 1, -1, Long.MIN_VALUE, Long.MAX_VALUE}) {
+      assertParity(Int64Value.of(value));
+      assertParity(UInt64Value.of(value));
+    }
+    for (float value :
+        new float[] {
+          0f, -0f, 1.5f, -1f / 3, Float.MIN_VALUE, Float.MIN_NORMAL, Float.MAX_VALUE, 1e-7f, 1e7f,
+          Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY
+        }) {
+      assertParity(FloatValue.of(value));
+    }
+    for (double value :
+        new double[] {
+          0d, -0d, 0.1, -1d / 3, Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, 1e-3, 1e7,
+          1e300, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+        }) {
+      assertParity(DoubleValue.of(value));
+    }
+  }
+
+  @Test
+  public void print_scalarEdgeValues() throws Exception {
+    // A message with plain int64, uint64, double and bytes fields, which the resources lack
+    assertParity(
+        UninterpretedOption.newBuilder()
+            .addName(UninterpretedOption.NamePart.newBuilder().setNamePart(ESCAPED))
+            .addName(
+                UninterpretedOption.NamePart.newBuilder()
+                    .setNamePart("")
+                    .setIsExtension(true))
+            .setIdentifierValue("")
+            .setPositiveIntValue(-1)
+            .setNegativeIntValue(Long.MIN_VALUE)
+            .setDoubleValue(-0d)
+            .setStringValue(ByteString.copyFromUtf8(ESCAPED))
+            .setAggregateValue("\u0000")
+            .build());
+    assertParity(
+        UninterpretedOption.newBuilder()
+            .setPositiveIntValue(Long.MAX_VALUE)
+            .setNegativeIntValue(-1)
+            .setDoubleValue(Double.NaN)
+            .setStringValue(ByteString.EMPTY)
+            .build());
+    assertParity(UninterpretedOption.newBuilder().setDoubleValue(Double.MIN_VALUE).build());
+  }
+
+  @Test
+  public void appendTo_appendsToExistingContent() throws Exception {
+    AdGroup adGroup = AdGroup.newBuilder().setId(Int64Value.of(7)).build();
+    StringBuilder out = new StringBuilder("[");
+    SERIALIZER.appendTo(adGroup, out);
+    out.append(',');
+    SERIALIZER.appendTo(adGroup.toBuilder(), out);
+    out.append(']');
+
+    String json = PRINTER.print(adGroup);
+    assertEquals("[" + json + "," + json + "]", out.toString());
+  }
+
+  /** Checks both serializers against their printer, on the message and on its builder. */
+  private static void assertParity(MessageOrBuilder message) throws Exception {
+    assertBytesEqual(PRINTER.print(message), SERIALIZER.print(message));
+    assertBytesEqual(
+        PRINTER_WITH_DEFAULTS.print(message), SERIALIZER_WITH_DEFAULTS.print(message));
+    if (message instanceof Message) {
+      Message.Builder builder = ((Message) message).toBuilder();
+      assertBytesEqual(PRINTER.print(builder), SERIALIZER.print(builder));
+    }
+  }
+
+  private static void assertBytesEqual(String expected, String actual) {
+    assertEquals(expected, actual);
+    assertArrayEquals(
+        expected.getBytes(StandardCharsets.UTF_8), actual.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,170 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.cse.creatine.utils.RunGraph.Node;
+import com.google.cse.creatine.utils.RunGraph.State;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link RunGraph}. */
+@RunWith(JUnit4.class)
+public class RunGraphTest {
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+  private final List<String> ran = Collections.synchronizedList(new ArrayList<>());
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private Runnable record(String id) {
+    return () -> ran.add(id);
+  }
+
+  private static Runnable throwing(RuntimeException e) {
+    return () -> {
+      throw e;
+    };
+  }
+
+  private static void await(RunGraph graph, Executor executor) throws Exception {
+    graph.start(executor).get(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void start_runsNodeAfterItsDependencies() throws Exception {
+    RunGraph graph = new RunGraph("test");
+    Node campaigns = graph.add("Campaigns", record("Campaigns"));
+    Node adGroups = graph.add("AdGroups", record("AdGroups"));
+    Node ads = graph.add("AdGroupAds", record("AdGroupAds")).requires(campaigns, adGroups);
+    Node load = graph.add("Load", record("Load")).requires(ads);
+
+    await(graph, executor);
+
+    assertEquals(4, ran.size());
+    assertTrue(ran.indexOf("AdGroupAds") > ran.indexOf("Campaigns"));
+    assertTrue(ran.indexOf("AdGroupAds") > ran.indexOf("AdGroups"));
+    assertEquals("Load", ran.get(3));
+    for (Node node : new Node[] {campaigns, adGroups, ads, load}) {
+      assertEquals(State.DONE, node.getState());
+    }
+  }
+
+  @Test
+  public void start_failedDependency_skipsRequiringNodesOnly() throws Exception {
+    RunGraph graph = new RunGraph("test");
+    Node failed = graph.add("Failed", throwing(new IllegalStateException("API error")));
+    Node required = graph.add("Required", record("Required")).requires(failed);
+    Node transitive = graph.add("Transitive", record("Transitive")).requires(required);
+    Node awaiting = graph.add("Awaiting", record("Awaiting")).awaits(failed);
+
+    await(graph, executor);
+
+    assertEquals(Collections.singletonList("Awaiting"), ran);
+    assertEquals(State.FAILED, failed.getState());
+    assertEquals(State.SKIPPED, required.getState());
+    assertEquals(State.SKIPPED, transitive.getState());
+    assertEquals(State.DONE, awaiting.getState());
+    assertEquals(Integer.valueOf(1), graph.getStateCounts().get(State.FAILED));
+    assertEquals(Integer.valueOf(2), graph.getStateCounts().get(State.SKIPPED));
+    assertEquals(Integer.valueOf(1), graph.getStateCounts().get(State.DONE));
+  }
+
+  @Test
+  public void start_nodeThrowingError_failsItAndCompletesRun() throws Exception {
+    RunGraph graph = new RunGraph("test");
+    Node failed =
+        graph.add(
+            "Failed",
+            () -> {
+              throw new OutOfMemoryError("Java heap space");
+            });
+    Node required = graph.add("Required", record("Required")).requires(failed);
+    Node awaiting = graph.add("Awaiting", record("Awaiting")).awaits(failed);
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    // Runs the nodes on the calling thread, keeping the errors they rethrow
+    Executor direct =
+        command -> {
+          try {
+            command.run();
+          } catch (Error e) {
+            errors.add(e);
+          }
+        };
+
+    await(graph, direct);
+
+    assertEquals(State.FAILED, failed.getState());
+    assertEquals(State.SKIPPED, required.getState());
+    assertEquals(State.DONE, awaiting.getState());
+    assertEquals(1, errors.size());
+    assertTrue(errors.get(0) instanceof OutOfMemoryError);
+  }
+
+  @Test
+  public void start_emptyRun_completesAtOnce() throws Exception {
+    RunGraph graph = new RunGraph("test");
+
+    assertTrue(graph.start(executor).isDone());
+  }
+
+  @Test
+  public void add_afterStart_throws() throws Exception {
+    RunGraph graph = new RunGraph("test");
+    Node node = graph.add("Campaigns", record("Campaigns"));
+    await(graph, executor);
+
+    try {
+      graph.add("AdGroups", record("AdGroups"));
+      fail("The run already started");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    try {
+      node.requires(node);
+      fail("The run already started");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void add_duplicateId_throws() {
+    RunGraph graph = new RunGraph("test");
+    graph.add("Campaigns/1", record("Campaigns/1"));
+
+    try {
+      graph.add("Campaigns/1", record("Campaigns/1"));
+      fail("The node already exists");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,219 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SpillBuffer}. */
+@RunWith(JUnit4.class)
+public class SpillBufferTest {
+
+  // Small segments, so that a few rows fill one
+  private static final int SEGMENT_BYTES = 64;
+
+  private SpillBuffer<String> buffer;
+
+  @After
+  public void tearDown() {
+    if (buffer != null) {
+      buffer.close();
+    }
+  }
+
+  /** A buffer spilling every batch, as it keeps none on the heap. */
+  private static SpillBuffer<String> spillingBuffer() {
+    return new SpillBuffer<>("test", 0, 100, 1024 * 1024, SpillCodec.STRINGS, SEGMENT_BYTES);
+  }
+
+  /** @return a row of the given length, numbered so that rows can be told apart */
+  private static String row(int number, int length) {
+    StringBuilder row = new StringBuilder().append(number).append(':');
+    while (row.length() < length) {
+      row.append('x');
+    }
+    return row.toString();
+  }
+
+  private static List<String> rows(int first, int count, int length) {
+    List<String> rows = new ArrayList<>();
+    for (int i = first; i < first + count; i++) {
+      rows.add(row(i, length));
+    }
+    return rows;
+  }
+
+  private static List<String> takeAll(SpillBuffer<String> buffer) throws Exception {
+    List<String> rows = new ArrayList<>();
+    List<String> batch;
+    while (!(batch = buffer.take()).isEmpty()) {
+      rows.addAll(batch);
+    }
+    return rows;
+  }
+
+  @Test
+  public void take_heapBatches_notSpilled() throws Exception {
+    buffer = new SpillBuffer<>("test", 2, 100, 1024 * 1024, SpillCodec.STRINGS, SEGMENT_BYTES);
+
+    buffer.put(rows(0, 3, 10));
+    buffer.put(rows(3, 3, 10));
+    buffer.end();
+
+    assertEquals(rows(0, 6, 10), takeAll(buffer));
+    assertEquals(0, buffer.getSpilledBytes());
+  }
+
+  @Test
+  public void take_recordsWrappingSegments_withSkipMarker() throws Exception {
+    // Two records of 4 + 20 bytes per segment, the 16 bytes left holding a SKIP marker
+    buffer = spillingBuffer();
+    List<String> rows = rows(0, 5, 20);
+
+    buffer.put(rows);
+    buffer.end();
+
+    assertEquals(rows, takeAll(buffer));
+    assertEquals(5 * 20, buffer.getSpilledBytes());
+  }
+
+  @Test
+  public void take_recordsWrappingSegments_withoutRoomForSkipMarker() throws Exception {
+    // Two records of 4 + 27 bytes per segment, the 2 bytes left being too short for a marker
+    buffer = spillingBuffer();
+    List<String> rows = rows(0, 5, 27);
+
+    buffer.put(rows);
+    buffer.end();
+
+    assertEquals(rows, takeAll(buffer));
+  }
+
+  @Test
+  public void take_recordFillingSegment_exactly() throws Exception {
+    buffer = spillingBuffer();
+    List<String> rows = rows(0, 3, SEGMENT_BYTES - 4);
+
+    buffer.put(rows);
+    buffer.end();
+
+    assertEquals(rows, takeAll(buffer));
+  }
+
+  @Test
+  public void take_batchesOfBatchSize() throws Exception {
+    buffer = new SpillBuffer<>("test", 0, 2, 1024 * 1024, SpillCodec.STRINGS, SEGMENT_BYTES);
+    buffer.put(rows(0, 5, 10));
+    buffer.end();
+
+    assertEquals(rows(0, 2, 10), buffer.take());
+    assertEquals(rows(2, 2, 10), buffer.take());
+    assertEquals(rows(4, 1, 10), buffer.take());
+    assertEquals(Collections.emptyList(), buffer.take());
+  }
+
+  @Test
+  public void put_afterEverySpilledRowIsRead_reusesFileFromItsStart() throws Exception {
+    buffer = spillingBuffer();
+    buffer.put(rows(0, 5, 27));
+    assertEquals(rows(0, 5, 27), buffer.take());
+
+    // Shorter rows over the start of the file, whose stale records must not be read again
+    buffer.put(rows(5, 7, 10));
+    buffer.put(rows(12, 2, 40));
+    buffer.end();
+
+    List<String> expected = new ArrayList<>(rows(5, 7, 10));
+    expected.addAll(rows(12, 2, 40));
+    assertEquals(expected, takeAll(buffer));
+    assertEquals(5 * 27 + 7 * 10 + 2 * 40, buffer.getSpilledBytes());
+  }
+
+  @Test
+  public void put_interleavedWithTake_keepsEveryRow() throws Exception {
+    buffer = spillingBuffer();
+    List<String> taken = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      buffer.put(rows(i * 3, 3, 15 + i));
+      if (i % 3 == 2) {
+        taken.addAll(buffer.take());
+      }
+    }
+    buffer.end();
+    taken.addAll(takeAll(buffer));
+
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      expected.addAll(rows(i * 3, 3, 15 + i));
+    }
+    assertEquals(expected, taken);
+  }
+
+  @Test
+  public void put_rowLargerThanSegment_staysOnHeap() throws Exception {
+    buffer = spillingBuffer();
+    String oversized = row(1, SEGMENT_BYTES);
+
+    buffer.put(Arrays.asList(row(0, 10), oversized, row(2, 10)));
+    buffer.end();
+
+    List<String> rows = takeAll(buffer);
+    assertEquals(Arrays.asList(oversized), rows.subList(0, 1));
+    assertEquals(Arrays.asList(row(0, 10), row(2, 10)), rows.subList(1, 3));
+    assertEquals(20, buffer.getSpilledBytes());
+  }
+
+  @Test
+  public void take_afterProducerFailed_throws() throws Exception {
+    buffer = spillingBuffer();
+    buffer.put(rows(0, 2, 10));
+    buffer.fail(new IllegalStateException("encoding failed"));
+
+    assertTrue(buffer.isFailed());
+    try {
+      buffer.take();
+      fail("The rows are incomplete");
+    } catch (IOException e) {
+      assertEquals("encoding failed", e.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void close_dropsSpilledRows_andFailsNextPut() throws Exception {
+    buffer = spillingBuffer();
+    buffer.put(rows(0, 5, 20));
+
+    buffer.close();
+
+    assertEquals(Collections.emptyList(), buffer.take());
+    try {
+      buffer.put(rows(5, 1, 20));
+      fail("The consumer stopped");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,80 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the {@link SpillCodec} of fingerprinted rows. */
+@RunWith(JUnit4.class)
+public class SpillCodecTest {
+
+  private static final SpillCodec<FingerprintedRow> CODEC = SpillCodec.FINGERPRINTED_ROWS;
+
+  private static void assertRowEquals(FingerprintedRow expected, FingerprintedRow actual) {
+    assertEquals(expected.getKey(), actual.getKey());
+    assertEquals(expected.getContent(), actual.getContent());
+    assertEquals(expected.getJson(), actual.getJson());
+  }
+
+  @Test
+  public void fromBytes_encodedRow_isSameRow() {
+    String json = "{\"name\":\"\u00e9t\u00e9 \u2603\",\"id\":\"12\"}";
+    FingerprintedRow row = new FingerprintedRow(Long.MIN_VALUE, -1L, json);
+
+    ByteBuffer bytes = CODEC.toBytes(row);
+
+    assertEquals(2 * Long.BYTES + json.getBytes(UTF_8).length, bytes.remaining());
+    assertRowEquals(row, CODEC.fromBytes(bytes));
+  }
+
+  @Test
+  public void fromBytes_emptyJson_keepsFingerprints() {
+    FingerprintedRow row = new FingerprintedRow(1L, 2L, "");
+
+    assertRowEquals(row, CODEC.fromBytes(CODEC.toBytes(row)));
+  }
+
+  @Test
+  public void fromBytes_sliceOfSharedBuffer_readsOnlyItsRow() {
+    List<FingerprintedRow> rows =
+        Arrays.asList(
+            new FingerprintedRow(1L, 10L, "{\"id\":\"1\"}"),
+            new FingerprintedRow(2L, 20L, "{\"id\":\"22\"}"));
+    // Laid out back to back, as in a segment of a spill file
+    ByteBuffer segment = ByteBuffer.allocate(100);
+    List<Integer> offsets = new ArrayList<>();
+    for (FingerprintedRow row : rows) {
+      offsets.add(segment.position());
+      segment.put(CODEC.toBytes(row));
+    }
+    offsets.add(segment.position());
+
+    for (int i = 0; i < rows.size(); i++) {
+      ByteBuffer bytes = segment.duplicate();
+      bytes.limit(offsets.get(i + 1));
+      bytes.position(offsets.get(i));
+      assertRowEquals(rows.get(i), CODEC.fromBytes(bytes.slice()));
+    }
+  }
+}
@@ -0,0 +1,154 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cse.creatine.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WorkClaimRunner} over an {@link InMemoryWorkClaimStore}. */
+@RunWith(JUnit4.class)
+public class WorkClaimRunnerTest {
+
+  private static final String DATE = "20200101";
+  private static final String ENTITY = "AdGroups";
+  private static final long LEASE_MILLIS = 3000;
+
+  private final CustomerFanOut fanOut = new CustomerFanOut(4);
+  private final ExecutorService requests = Executors.newFixedThreadPool(2);
+
+  @After
+  public void tearDown() {
+    fanOut.shutdown();
+    requests.shutdownNow();
+  }
+
+  private static List<String> customerIds(int count) {
+    List<String> customerIds = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      customerIds.add(String.valueOf(1000 + i));
+    }
+    return customerIds;
+  }
+
+  @Test
+  public void run_twoRunnersOnOneInstance_eachChecksItsOwnClaims() throws Exception {
+    InMemoryWorkClaimStore store = new InMemoryWorkClaimStore();
+    List<String> customerIds = customerIds(20);
+    store.addItems(DATE, ENTITY, customerIds);
+    Map<String, AtomicInteger> runs = new ConcurrentHashMap<>();
+    Set<String> lostClaims = ConcurrentHashMap.newKeySet();
+
+    // Two /v1/work requests of the same entity landing on the same instance
+    List<Future<WorkClaimStore.Counts>> counts = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      WorkClaimRunner runner = new WorkClaimRunner(store, fanOut, 2, LEASE_MILLIS, 3);
+      counts.add(
+          requests.submit(
+              () ->
+                  runner.run(
+                      DATE,
+                      ENTITY,
+                      (customerId, claim) -> {
+                        runs.computeIfAbsent(customerId, id -> new AtomicInteger())
+                            .incrementAndGet();
+                        sleep(10);
+                        if (!claim.getAsBoolean()) {
+                          lostClaims.add(customerId);
+                          throw new IllegalStateException("Lost the claim of " + customerId);
+                        }
+                      })));
+    }
+
+    for (Future<WorkClaimStore.Counts> runnerCounts : counts) {
+      WorkClaimStore.Counts finished = runnerCounts.get();
+      assertEquals(20, finished.getDone());
+      assertEquals(0, finished.getFailed());
+    }
+    assertEquals(Collections.emptySet(), lostClaims);
+    assertEquals(new HashSet<>(customerIds), runs.keySet());
+    for (AtomicInteger customerRuns : runs.values()) {
+      assertEquals(1, customerRuns.get());
+    }
+  }
+
+  @Test
+  public void run_lostClaim_failsCustomerUntilGivenUp() throws Exception {
+    // The claim of 1001 is lost right before its rows are handed over, on every attempt
+    InMemoryWorkClaimStore store =
+        new InMemoryWorkClaimStore() {
+          @Override
+          public synchronized Set<String> renew(
+              String snapshotDate,
+              String entityName,
+              String owner,
+              Collection<String> customerIds,
+              long leaseMillis) {
+            Set<String> renewed =
+                new HashSet<>(
+                    super.renew(snapshotDate, entityName, owner, customerIds, leaseMillis));
+            renewed.remove("1001");
+            return renewed;
+          }
+        };
+    store.addItems(DATE, ENTITY, customerIds(3));
+    Set<String> handedOver = ConcurrentHashMap.newKeySet();
+    AtomicInteger attempts = new AtomicInteger();
+
+    WorkClaimStore.Counts counts =
+        new WorkClaimRunner(store, fanOut, 3, LEASE_MILLIS, 2)
+            .run(
+                DATE,
+                ENTITY,
+                (customerId, claim) -> {
+                  if (customerId.equals("1001")) {
+                    attempts.incrementAndGet();
+                  }
+                  if (!claim.getAsBoolean()) {
+                    throw new IllegalStateException("Lost the claim of " + customerId);
+                  }
+                  handedOver.add(customerId);
+                });
+
+    assertEquals(2, counts.getDone());
+    assertEquals(1, counts.getFailed());
+    assertEquals(2, attempts.get());
+    assertEquals(new HashSet<>(Arrays.asList("1000", "1002")), handedOver);
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}